@@ -33,6 +33,10 @@ import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** The JavaBuilder main called by bazel. */
 public abstract class BazelJavaBuilder {
@@ -54,6 +58,7 @@ public abstract class BazelJavaBuilder {
   }
 
   private static int runPersistentWorker() {
+    MultiplexedRequests multiplexedRequests = null;
     while (true) {
       try {
         WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
@@ -62,15 +67,21 @@ public abstract class BazelJavaBuilder {
           break;
         }
 
+        // Only a multiplexed worker sends requests with an id, and it expects them to be handled
+        // concurrently.
+        if (request.getRequestId() != 0) {
+          if (multiplexedRequests == null) {
+            multiplexedRequests = new MultiplexedRequests();
+          }
+          multiplexedRequests.handle(request);
+          continue;
+        }
+
         try (StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw)) {
           int exitCode = processRequest(request.getArgumentsList(), pw);
-          WorkResponse.newBuilder()
-              .setOutput(sw.toString())
-              .setExitCode(exitCode)
-              .build()
-              .writeDelimitedTo(System.out);
-          System.out.flush();
+          writeResponse(
+              WorkResponse.newBuilder().setOutput(sw.toString()).setExitCode(exitCode).build());
 
           // Hint to the system that now would be a good time to run a gc.  After a compile
           // completes lots of objects should be available for collection and it should be cheap to
@@ -85,6 +96,60 @@ public abstract class BazelJavaBuilder {
     return 0;
   }
 
+  /** Writes a response to stdout, which the threads of concurrent compilations share. */
+  private static void writeResponse(WorkResponse response) throws IOException {
+    synchronized (System.out) {
+      response.writeDelimitedTo(System.out);
+      System.out.flush();
+    }
+  }
+
+  /**
+   * Compiles the requests of a multiplexed worker on their own threads, and writes the response of
+   * each as soon as it's done. A cancelled request that hasn't started yet is responded to right
+   * away. One that has started runs to completion and gets its normal response, since javac
+   * doesn't check for interrupts.
+   */
+  private static final class MultiplexedRequests {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // The requests whose compilation hasn't started yet. Whoever removes a request from it, the
+    // compilation or the cancellation, responds to it.
+    private final Set<Integer> notStarted = ConcurrentHashMap.newKeySet();
+
+    void handle(WorkRequest request) throws IOException {
+      int requestId = request.getRequestId();
+      if (request.getCancel()) {
+        if (notStarted.remove(requestId)) {
+          writeResponse(
+              WorkResponse.newBuilder().setRequestId(requestId).setWasCancelled(true).build());
+        }
+        return;
+      }
+      notStarted.add(requestId);
+      executor.execute(
+          () -> {
+            if (!notStarted.remove(requestId)) {
+              // Cancelled before it started, and already responded to.
+              return;
+            }
+            StringWriter sw = new StringWriter();
+            int exitCode = processRequest(request.getArgumentsList(), new PrintWriter(sw));
+            try {
+              writeResponse(
+                  WorkResponse.newBuilder()
+                      .setRequestId(requestId)
+                      .setOutput(sw.toString())
+                      .setExitCode(exitCode)
+                      .build());
+            } catch (IOException e) {
+              // Like in the main loop, there's no point in going on if stdout is closed.
+              e.printStackTrace();
+              System.exit(1);
+            }
+          });
+    }
+  }
+
   public static int processRequest(List<String> args, PrintWriter err) {
     try {
       JavaLibraryBuildRequest build = parse(args);
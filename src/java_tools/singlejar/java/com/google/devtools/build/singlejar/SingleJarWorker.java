@@ -18,8 +18,13 @@ import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A blaze worker to run {@link SingleJar} in a warm JVM process.
@@ -32,7 +37,14 @@ public class SingleJarWorker {
 
   private PrintStream originalStdout;
   private PrintStream originalSterr;
-  private ByteArrayOutputStream stdoutAndStderr;
+  // What the thread running a request printed to stdout and stderr, since a multiplexed worker
+  // runs many requests at the same time.
+  private final ThreadLocal<ByteArrayOutputStream> stdoutAndStderr =
+      ThreadLocal.withInitial(ByteArrayOutputStream::new);
+  // The multiplexed requests whose run hasn't started yet. Whoever removes a request from it, the
+  // run or the cancellation, responds to it.
+  private final Set<Integer> notStarted = ConcurrentHashMap.newKeySet();
+  private ExecutorService executor;
 
   protected void runWorker() {
     trapOutputs();
@@ -48,35 +60,93 @@ public class SingleJarWorker {
   private void trapOutputs() {
     originalStdout = System.out;
     originalSterr = System.err;
-    stdoutAndStderr = new ByteArrayOutputStream();
-    System.setErr(new PrintStream(stdoutAndStderr, true));
-    System.setOut(new PrintStream(stdoutAndStderr, true));
+    OutputStream perThreadOutput =
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            stdoutAndStderr.get().write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            stdoutAndStderr.get().write(b, off, len);
+          }
+        };
+    System.setErr(new PrintStream(perThreadOutput, true));
+    System.setOut(new PrintStream(perThreadOutput, true));
   }
 
   private void dispatchWorkRequestsForever() throws IOException {
     while (true) {
       WorkRequest workRequest = WorkRequest.parseDelimitedFrom(System.in);
 
+      // Only a multiplexed worker sends requests with an id, and it expects them to be handled
+      // concurrently.
+      if (workRequest.getRequestId() != 0) {
+        dispatchMultiplexedWorkRequest(workRequest);
+        continue;
+      }
+
       String[] args = workRequest.getArgumentsList().toArray(new String[0]);
 
       int returnCode = runSingleJar(args);
 
-      outputResult(returnCode);
+      outputResult(0, returnCode);
+    }
+  }
+
+  /**
+   * Runs a request of a multiplexed worker on its own thread. A request to cancel one that hasn't
+   * started yet is responded to right away; one that has started runs to completion and gets its
+   * normal response.
+   */
+  private void dispatchMultiplexedWorkRequest(WorkRequest workRequest) throws IOException {
+    int requestId = workRequest.getRequestId();
+    if (workRequest.getCancel()) {
+      if (notStarted.remove(requestId)) {
+        writeResponse(
+            WorkResponse.newBuilder().setRequestId(requestId).setWasCancelled(true).build());
+      }
+      return;
     }
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool();
+    }
+    String[] args = workRequest.getArgumentsList().toArray(new String[0]);
+    notStarted.add(requestId);
+    executor.execute(
+        () -> {
+          if (!notStarted.remove(requestId)) {
+            // Cancelled before it started, and already responded to.
+            return;
+          }
+          int returnCode = runSingleJar(args);
+          try {
+            outputResult(requestId, returnCode);
+          } catch (IOException e) {
+            // System.out has been closed, like in dispatchWorkRequestsForever.
+            System.exit(0);
+          }
+        });
+  }
+
+  private void outputResult(int requestId, int returnCode) throws IOException {
+    ByteArrayOutputStream output = stdoutAndStderr.get();
+    // Drops the buffer rather than resetting it, which would still keep it allocated.
+    stdoutAndStderr.remove();
+    writeResponse(
+        WorkResponse.newBuilder()
+            .setRequestId(requestId)
+            .setExitCode(returnCode)
+            .setOutput(new String(output.toByteArray(), StandardCharsets.UTF_8))
+            .build());
   }
 
-  private void outputResult(int returnCode) throws IOException {
-    WorkResponse.newBuilder()
-        .setExitCode(returnCode)
-        .setOutput(new String(stdoutAndStderr.toByteArray(), StandardCharsets.UTF_8))
-        .build()
-        .writeDelimitedTo(originalStdout);
-
-    // Reset output streams, we are not simply calling reset on the BAOS since this will
-    // still keep the full buffer allocated.
-    stdoutAndStderr = new ByteArrayOutputStream();
-    System.setErr(new PrintStream(stdoutAndStderr, true));
-    System.setOut(new PrintStream(stdoutAndStderr, true));
+  private void writeResponse(WorkResponse response) throws IOException {
+    synchronized (originalStdout) {
+      response.writeDelimitedTo(originalStdout);
+      originalStdout.flush();
+    }
   }
 
   private int runSingleJar(String[] args) {
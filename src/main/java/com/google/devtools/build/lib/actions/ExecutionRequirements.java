@@ -147,6 +147,12 @@ public class ExecutionRequirements {
   public static final ImmutableMap<String, String> WORKER_MODE_ENABLED =
       ImmutableMap.of(SUPPORTS_WORKERS, "1");
 
+  /**
+   * If an action's persistent worker can handle many requests at the same time, so that one worker
+   * process can run many of its actions in parallel.
+   */
+  public static final String SUPPORTS_MULTIPLEX_WORKERS = "supports-multiplex-workers";
+
   /**
    * Requires local execution without sandboxing for a spawn.
    *
@@ -17,6 +17,7 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
 import com.google.devtools.build.lib.clock.Clock;
@@ -38,15 +39,23 @@ import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * An implementation of the ActionCache interface that uses
  * {@link CompactStringIndexer} to reduce memory footprint and saves
- * cached actions using the {@link PersistentMap}.
+ * cached actions using the {@link PersistentMap} or, with {@link StorageFormat#MAPPED}, the
+ * {@link MappedRecordStore}.
  *
  * <p>This cache is not fully correct: as hashes are xor'd together, a permutation of input
  * file contents will erroneously be considered up to date.
@@ -73,22 +82,31 @@ public class CompactPersistentActionCache implements ActionCache {
 
   private final class ActionMap extends PersistentMap<Integer, byte[]> {
     private final Clock clock;
+    // If true, the caller batches updates itself and every batch is written to the journal.
+    private final boolean batched;
     private long nextUpdateSecs;
 
-    public ActionMap(Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile)
+    public ActionMap(
+        Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile, boolean batched)
         throws IOException {
       super(VERSION, map, mapFile, journalFile);
       this.clock = clock;
+      this.batched = batched;
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
       nextUpdateSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()) + SAVE_INTERVAL_SECONDS;
       load();
     }
 
+    /** Appends a batch of updates, already applied to the backing map, to the journal. */
+    void appendToJournal(Map<Integer, byte[]> updates) {
+      journalUpdates(updates);
+    }
+
     @Override
     protected boolean updateJournal() {
       // Using nanoTime. currentTimeMillis may not provide enough granularity.
       long timeSecs = TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime());
-      if (SAVE_INTERVAL_SECONDS == 0 || timeSecs > nextUpdateSecs) {
+      if (batched || SAVE_INTERVAL_SECONDS == 0 || timeSecs > nextUpdateSecs) {
         nextUpdateSecs = timeSecs + SAVE_INTERVAL_SECONDS;
         // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
         // that filename index data on disk is always up-to-date when we save action cache
@@ -155,19 +173,328 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
-  private final PersistentMap<Integer, byte[]> map;
+  /** The on-disk format used for the action records. */
+  public enum StorageFormat {
+    /**
+     * All records are read into a map on the heap when the cache is loaded; updates are appended
+     * to a journal, and the map file is rewritten when the journal grows too large.
+     */
+    JOURNALED,
+    /**
+     * Like {@link #JOURNALED}, but lookups don't take any lock, updates of different keys don't
+     * contend, and the journal is written in batches by a background thread.
+     */
+    CONCURRENT,
+    /**
+     * Records stay in a memory-mapped, log-structured segment file and are only read on lookup.
+     * Requires the cache root to be on a local disk. See {@link MappedRecordStore}.
+     */
+    MAPPED;
+
+    /**
+     * Returns the format selected by the {@code bazel.ActionCacheFormat} system property, which
+     * defaults to {@link #JOURNALED}.
+     */
+    public static StorageFormat fromSystemProperty() {
+      String value = System.getProperty("bazel.ActionCacheFormat", "journaled");
+      try {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        logger.warning("Unknown action cache format '" + value + "', using journaled");
+        return JOURNALED;
+      }
+    }
+  }
+
+  /** The storage of the encoded action records, keyed by the index of the action key. */
+  private interface RecordStore {
+    @Nullable
+    byte[] get(int key) throws IOException;
+
+    void put(int key, byte[] value);
+
+    void remove(int key);
+
+    int size();
+
+    Collection<Map.Entry<Integer, byte[]>> entries() throws IOException;
+
+    /**
+     * Persists the records, reporting any I/O error that occurred since the last save.
+     *
+     * @return the size of the records on disk
+     */
+    long save() throws IOException;
+
+    void clear();
+
+    /** Releases the resources held by the store. The store must not be used afterwards. */
+    void close() throws IOException;
+  }
+
+  /** A {@link RecordStore} on top of the journaled {@link ActionMap}. */
+  private static final class JournaledRecordStore implements RecordStore {
+    private final PersistentMap<Integer, byte[]> map;
+
+    JournaledRecordStore(PersistentMap<Integer, byte[]> map) {
+      this.map = map;
+    }
+
+    @Override
+    public synchronized byte[] get(int key) {
+      return map.get(key);
+    }
+
+    @Override
+    public synchronized void put(int key, byte[] value) {
+      map.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(int key) {
+      map.remove(key);
+    }
+
+    @Override
+    public synchronized int size() {
+      return map.size();
+    }
+
+    @Override
+    public synchronized Collection<Map.Entry<Integer, byte[]>> entries() {
+      return ImmutableList.copyOf(map.entrySet());
+    }
+
+    @Override
+    public synchronized long save() throws IOException {
+      return map.save();
+    }
+
+    @Override
+    public synchronized void clear() {
+      map.clear();
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * A {@link RecordStore} that reads from a {@link ConcurrentHashMap} without locking. Writers
+   * only lock the stripe of their key, under which they update the map and remember the update
+   * for the journal. A background thread periodically moves the remembered updates of all stripes
+   * into the journal of the {@link ActionMap}, which shares the concurrent map as backing map.
+   */
+  private static final class ConcurrentRecordStore implements RecordStore {
+    private static final int STRIPES = 64;
+
+    private static final ScheduledThreadPoolExecutor journalWriter = createJournalWriter();
+
+    private static ScheduledThreadPoolExecutor createJournalWriter() {
+      ScheduledThreadPoolExecutor executor =
+          new ScheduledThreadPoolExecutor(
+              1,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("action-cache-journal-%d")
+                  .setDaemon(true)
+                  .build());
+      // Don't keep the stores of closed caches reachable from the queue.
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+    }
+
+    private final ConcurrentHashMap<Integer, byte[]> records;
+    private final ActionMap map;
+    // Updates that have not been journaled yet, keyed by record; a null value is a removal. Each
+    // stripe is also the lock that orders updates of its keys.
+    private final ImmutableList<Map<Integer, byte[]>> pending;
+    // Serializes all access to 'map' other than through 'records'.
+    private final Object journalLock = new Object();
+    private final ScheduledFuture<?> journalTask;
+
+    ConcurrentRecordStore(ConcurrentHashMap<Integer, byte[]> records, ActionMap map) {
+      this.records = records;
+      this.map = map;
+      ImmutableList.Builder<Map<Integer, byte[]>> stripes = ImmutableList.builder();
+      for (int i = 0; i < STRIPES; i++) {
+        stripes.add(new HashMap<>());
+      }
+      this.pending = stripes.build();
+      this.journalTask =
+          journalWriter.scheduleWithFixedDelay(
+              this::writeJournal,
+              SAVE_INTERVAL_SECONDS,
+              SAVE_INTERVAL_SECONDS,
+              TimeUnit.SECONDS);
+    }
+
+    private Map<Integer, byte[]> stripe(int key) {
+      return pending.get((key ^ (key >>> 16)) & (STRIPES - 1));
+    }
+
+    @Override
+    public byte[] get(int key) {
+      return records.get(key);
+    }
+
+    @Override
+    public void put(int key, byte[] value) {
+      Map<Integer, byte[]> stripe = stripe(key);
+      synchronized (stripe) {
+        records.put(key, value);
+        stripe.put(key, value);
+      }
+    }
+
+    @Override
+    public void remove(int key) {
+      Map<Integer, byte[]> stripe = stripe(key);
+      synchronized (stripe) {
+        if (records.remove(key) != null) {
+          stripe.put(key, null);
+        }
+      }
+    }
+
+    @Override
+    public int size() {
+      return records.size();
+    }
+
+    @Override
+    public Collection<Map.Entry<Integer, byte[]>> entries() {
+      return records.entrySet();
+    }
+
+    /** Moves the pending updates into the journal. */
+    private void writeJournal() {
+      synchronized (journalLock) {
+        Map<Integer, byte[]> batch = new HashMap<>();
+        for (Map<Integer, byte[]> stripe : pending) {
+          synchronized (stripe) {
+            batch.putAll(stripe);
+            stripe.clear();
+          }
+        }
+        map.appendToJournal(batch);
+      }
+    }
+
+    @Override
+    public long save() throws IOException {
+      synchronized (journalLock) {
+        writeJournal();
+        return map.save();
+      }
+    }
+
+    @Override
+    public void clear() {
+      synchronized (journalLock) {
+        for (Map<Integer, byte[]> stripe : pending) {
+          synchronized (stripe) {
+            stripe.clear();
+          }
+        }
+        map.clear();
+      }
+    }
+
+    /**
+     * Stops the background journal writes. Once this returns, the store's files are no longer
+     * written to, so the cache can be replaced or its directory deleted.
+     */
+    @Override
+    public void close() {
+      journalTask.cancel(false);
+      // Wait for a write that is already running.
+      synchronized (journalLock) {
+      }
+    }
+  }
+
+  /**
+   * A {@link RecordStore} on top of a {@link MappedRecordStore}. Like {@link PersistentMap}, it
+   * defers write failures until the next {@link #save}.
+   */
+  private static final class MappedStore implements RecordStore {
+    private final MappedRecordStore store;
+    private final AtomicReference<IOException> deferredIOFailure = new AtomicReference<>();
+
+    MappedStore(MappedRecordStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public byte[] get(int key) throws IOException {
+      return store.get(key);
+    }
+
+    @Override
+    public void put(int key, byte[] value) {
+      try {
+        store.put(key, value);
+      } catch (IOException e) {
+        deferredIOFailure.compareAndSet(null, e);
+      }
+    }
+
+    @Override
+    public void remove(int key) {
+      try {
+        store.remove(key);
+      } catch (IOException e) {
+        deferredIOFailure.compareAndSet(null, e);
+      }
+    }
+
+    @Override
+    public int size() {
+      return store.size();
+    }
+
+    @Override
+    public Collection<Map.Entry<Integer, byte[]>> entries() throws IOException {
+      return store.entries();
+    }
+
+    @Override
+    public long save() throws IOException {
+      IOException failure = deferredIOFailure.getAndSet(null);
+      if (failure != null) {
+        throw failure;
+      }
+      return store.save();
+    }
+
+    @Override
+    public void clear() {
+      try {
+        store.clear();
+      } catch (IOException e) {
+        deferredIOFailure.compareAndSet(null, e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      store.close();
+    }
+  }
+
+  private final RecordStore map;
   private final PersistentStringIndexer indexer;
 
   private final AtomicInteger hits = new AtomicInteger();
   private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
-    Path cacheFile = cacheFile(cacheRoot);
-    Path journalFile = journalFile(cacheRoot);
+    this(cacheRoot, clock, StorageFormat.JOURNALED);
+  }
+
+  public CompactPersistentActionCache(Path cacheRoot, Clock clock, StorageFormat format)
+      throws IOException {
     Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
 
     try {
       indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
@@ -177,16 +504,57 @@ public class CompactPersistentActionCache implements ActionCache {
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      switch (format) {
+        case CONCURRENT:
+          ConcurrentHashMap<Integer, byte[]> records = new ConcurrentHashMap<>();
+          map =
+              new ConcurrentRecordStore(
+                  records,
+                  new ActionMap(
+                      records,
+                      clock,
+                      cacheFile(cacheRoot),
+                      journalFile(cacheRoot),
+                      /*batched=*/ true));
+          break;
+        case MAPPED:
+          map =
+              new MappedStore(
+                  new MappedRecordStore(
+                      VERSION, segmentFile(cacheRoot), segmentIndexFile(cacheRoot)));
+          break;
+        case JOURNALED:
+        default:
+          // we can now use normal hash map as backing map, since dependency checker
+          // will manually purge records from the action cache.
+          map =
+              new JournaledRecordStore(
+                  new ActionMap(
+                      new HashMap<>(),
+                      clock,
+                      cacheFile(cacheRoot),
+                      journalFile(cacheRoot),
+                      /*batched=*/ false));
+          break;
+      }
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
     }
 
     // Validate referential integrity between two collections.
-    if (!map.isEmpty()) {
-      String integrityError = validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
+    if (map.size() > 0) {
+      byte[] validationRecord;
+      try {
+        validationRecord = map.get(VALIDATION_KEY);
+      } catch (IOException e) {
+        closeQuietly(map);
+        renameCorruptedFiles(cacheRoot);
+        throw new IOException("Failed to read action cache validation record", e);
+      }
+      String integrityError = validateIntegrity(indexer.size(), validationRecord);
       if (integrityError != null) {
+        closeQuietly(map);
         renameCorruptedFiles(cacheRoot);
         throw new IOException("Failed action cache referential integrity check: " + integrityError);
       }
@@ -202,6 +570,15 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
+  /** Closes a record store that is being discarded, e.g. so that it stops writing its journal. */
+  private static void closeQuietly(RecordStore store) {
+    try {
+      store.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close discarded action cache", e);
+    }
+  }
+
   /**
    * Rename corrupted files so they could be analyzed later. This would also ensure
    * that next initialization attempt will create empty cache.
@@ -253,17 +630,22 @@ public class CompactPersistentActionCache implements ActionCache {
     return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
   }
 
+  public static Path segmentFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_segment_v" + VERSION + ".blaze");
+  }
+
+  public static Path segmentIndexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_segment_index_v" + VERSION + ".blaze");
+  }
+
   @Override
   public ActionCache.Entry get(String key) {
     int index = indexer.getIndex(key);
     if (index < 0) {
       return null;
     }
-    byte[] data;
-    synchronized (this) {
-      data = map.get(index);
-    }
     try {
+      byte[] data = map.get(index);
       return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
     } catch (IOException e) {
       // return entry marked as corrupted.
@@ -286,15 +668,13 @@ public class CompactPersistentActionCache implements ActionCache {
     // updating the VALIDATION_KEY. If the most recent update loses the race,
     // a value lower than the indexer size will remain in the validation record.
     // This will still pass the integrity check.
-    synchronized (this) {
-      map.put(VALIDATION_KEY, buffer.array());
-      // Now update record itself.
-      map.put(index, content);
-    }
+    map.put(VALIDATION_KEY, buffer.array());
+    // Now update record itself.
+    map.put(index, content);
   }
 
   @Override
-  public synchronized void remove(String key) {
+  public void remove(String key) {
     map.remove(indexer.getIndex(key));
   }
 
@@ -311,6 +691,14 @@ public class CompactPersistentActionCache implements ActionCache {
     map.clear();
   }
 
+  /**
+   * Releases the file handles of the record store. Unsaved updates may be lost, and the cache
+   * must not be used afterwards.
+   */
+  public void close() throws IOException {
+    map.close();
+  }
+
   @Override
   public synchronized String toString() {
     StringBuilder builder = new StringBuilder();
@@ -318,7 +706,7 @@ public class CompactPersistentActionCache implements ActionCache {
     builder.append("Action cache (" + (map.size() - 1) + " records):\n");
     int size = map.size() > 1000 ? 10 : map.size();
     int ct = 0;
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
+    for (Map.Entry<Integer, byte[]> entry : entries()) {
       if (entry.getKey() == VALIDATION_KEY) { continue; }
       String content;
       try {
@@ -336,6 +724,15 @@ public class CompactPersistentActionCache implements ActionCache {
     return builder.toString();
   }
 
+  private Collection<Map.Entry<Integer, byte[]>> entries() {
+    try {
+      return map.entries();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read action cache records", e);
+      return ImmutableList.of();
+    }
+  }
+
   /**
    * Dumps action cache content.
    */
@@ -344,7 +741,7 @@ public class CompactPersistentActionCache implements ActionCache {
     out.println("String indexer content:\n");
     out.println(indexer);
     out.println("Action cache (" + map.size() + " records):\n");
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
+    for (Map.Entry<Integer, byte[]> entry : entries()) {
       if (entry.getKey() == VALIDATION_KEY) { continue; }
       String content;
       try {
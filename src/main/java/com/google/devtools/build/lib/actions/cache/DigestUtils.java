@@ -34,6 +34,8 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Utility class for getting md5 digests of files.
@@ -42,7 +44,8 @@ import java.util.logging.Level;
  * costly (i.e. when {@link Path#getFastDigest()} is not available). The cache can be enabled via
  * the {@link #configureCache(long)} function, but note that enabling this cache might have an
  * impact on correctness because not all changes to files can be purely detected from their
- * metadata.
+ * metadata. The cache can additionally be persisted across server restarts via {@link
+ * #configurePersistentCache}.
  *
  * <p>Note that this class is responsible for digesting file metadata in an order-independent
  * manner. Care must be taken to do this properly. The digest must be a function of the set of
@@ -53,6 +56,7 @@ import java.util.logging.Level;
  * fail.
  */
 public class DigestUtils {
+  private static final Logger logger = Logger.getLogger(DigestUtils.class.getName());
 
   // Object to synchronize on when serializing large file reads.
   private static final Object DIGEST_LOCK = new Object();
@@ -135,6 +139,13 @@ public class DigestUtils {
    */
   private static volatile Cache<CacheKey, byte[]> globalCache = null;
 
+  /**
+   * Cache of file digests that survives server restarts, consulted after {@link #globalCache}.
+   *
+   * <p>This is null when the persistent cache is disabled.
+   */
+  @Nullable private static volatile PersistentDigestCache persistentCache = null;
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -194,6 +205,39 @@ public class DigestUtils {
     return cache.stats();
   }
 
+  /**
+   * Enables the caching of file digests on disk, in files under the given directory, in addition to
+   * the in-memory cache, or disables it if the directory is null. The on-disk cache uses the same
+   * keys as the in-memory one, so it has the same impact on correctness.
+   */
+  public static void configurePersistentCache(@Nullable Path cacheRoot)
+      throws IOException, InterruptedException {
+    PersistentDigestCache previous = persistentCache;
+    if (previous != null) {
+      previous.flush();
+    }
+    persistentCache = cacheRoot == null ? null : new PersistentDigestCache(cacheRoot);
+  }
+
+  /**
+   * Writes the digests added to the persistent cache to disk, and logs its statistics.
+   *
+   * <p>Does nothing if the persistent cache is disabled.
+   */
+  public static void flushPersistentCache() throws IOException, InterruptedException {
+    PersistentDigestCache cache = persistentCache;
+    if (cache != null) {
+      cache.flush();
+      logger.info(
+          "Persistent file digest cache stats: hit count="
+              + cache.hitCount()
+              + ", miss count="
+              + cache.missCount()
+              + ", bytes not digested="
+              + cache.bytesSaved());
+    }
+  }
+
   /**
    * Enable or disable multi-threaded digesting even for large files.
    */
@@ -226,10 +270,19 @@ public class DigestUtils {
     // At this point, either we could not get a fast digest or the fast digest we got is corrupt.
     // Attempt a cache lookup if the cache is enabled and return the cached digest if found.
     Cache<CacheKey, byte[]> cache = globalCache;
+    PersistentDigestCache persistent = persistentCache;
     CacheKey key = null;
-    if (cache != null && digest == null) {
+    if ((cache != null || persistent != null) && digest == null) {
       key = new CacheKey(path, path.stat());
-      digest = cache.getIfPresent(key);
+      if (cache != null) {
+        digest = cache.getIfPresent(key);
+      }
+      if (digest == null && persistent != null) {
+        digest = persistent.get(key.path, key.nodeId, key.modifiedTime, key.size);
+        if (digest != null && cache != null) {
+          cache.put(key, digest);
+        }
+      }
     }
     if (digest != null) {
       return digest;
@@ -253,13 +306,18 @@ public class DigestUtils {
         digest,
         "We should have gotten a digest for %s at this point but we still don't have one",
         path);
-    if (cache != null) {
+    if (cache != null || persistent != null) {
       Preconditions.checkNotNull(
           key,
           "We should have computed a cache key earlier for %s because the cache is enabled and we"
               + " did not get a fast digest for this file, but we don't have a key here",
           path);
-      cache.put(key, digest);
+      if (cache != null) {
+        cache.put(key, digest);
+      }
+      if (persistent != null) {
+        persistent.put(key.path, key.nodeId, key.modifiedTime, key.size, digest);
+      }
     }
     return digest;
   }
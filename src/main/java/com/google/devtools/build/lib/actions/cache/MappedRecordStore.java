@@ -0,0 +1,853 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent map from {@code int} keys to {@code byte[]} values that keeps the values on disk
+ * rather than on the heap.
+ *
+ * <p>Values are appended to a log-structured segment file; overwritten and removed values are left
+ * behind as garbage and reclaimed by a background compaction. The location of the latest record of
+ * every key is kept in an open-addressing hash table that lives in a memory-mapped index file, so
+ * that neither the records nor the index occupy Java heap, and a cleanly saved store can be
+ * reopened without reading its records. Lookups read the record lazily from the (memory-mapped)
+ * segment.
+ *
+ * <p>If the store was not saved cleanly, e.g. because the server crashed, the index is rebuilt from
+ * the record headers of the segment file, and a partially written record at the end of the segment
+ * is discarded.
+ *
+ * <p>The files must live on a file system that is backed by the local disk, i.e. one for which
+ * {@link Path#getPathFile} is meaningful. The store must be {@link #close closed} to release its
+ * file handles.
+ */
+@ThreadSafe
+final class MappedRecordStore {
+  private static final long SEGMENT_MAGIC = 0x20180301L;
+  private static final long INDEX_MAGIC = 0x20180302L;
+
+  private static final int SEGMENT_HEADER_SIZE = 16;
+  // key (int) + length (int); a negative length marks the removal of the key.
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int TOMBSTONE = -1;
+
+  // Don't bother compacting small segments.
+  private static final long DEFAULT_MIN_COMPACTION_SIZE = 16L * 1024 * 1024;
+
+  private static final Logger logger = Logger.getLogger(MappedRecordStore.class.getName());
+
+  private static final ExecutorService compactionExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("action-cache-compaction-%d")
+              .setDaemon(true)
+              .build());
+
+  private final long version;
+  private final Path segmentFile;
+  private final Path indexFile;
+  private final long minCompactionSize;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  // Serializes compactions, which share their temporary files.
+  private final Object compactionLock = new Object();
+
+  // All of the fields below are guarded by 'lock'.
+  private FileChannel segment;
+  private long segmentEnd;
+  @Nullable private MappedByteBuffer segmentView;
+  private Index index;
+  // Incremented by clear() and close(), so that a concurrent compaction can notice it was made
+  // obsolete.
+  private int generation;
+  private boolean closed;
+
+  /**
+   * Opens the store backed by the given files, creating them if they don't exist.
+   *
+   * @param version the version tag. Files written with a different version tag are discarded.
+   */
+  MappedRecordStore(long version, Path segmentFile, Path indexFile) throws IOException {
+    this(version, segmentFile, indexFile, DEFAULT_MIN_COMPACTION_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedRecordStore(long version, Path segmentFile, Path indexFile, long minCompactionSize)
+      throws IOException {
+    this.version = version;
+    this.segmentFile = segmentFile;
+    this.indexFile = indexFile;
+    this.minCompactionSize = minCompactionSize;
+    FileSystemUtils.createDirectoryAndParents(segmentFile.getParentDirectory());
+    open();
+  }
+
+  private void open() throws IOException {
+    segment = openChannel(segmentFile);
+    long size = segment.size();
+    boolean validSegment = size >= SEGMENT_HEADER_SIZE && hasSegmentHeader(segment, version);
+    if (!validSegment) {
+      segment.truncate(0);
+      writeSegmentHeader(segment, version);
+      size = SEGMENT_HEADER_SIZE;
+    }
+    segmentEnd = size;
+
+    Index existing = validSegment ? Index.open(indexFile, version) : null;
+    if (existing != null && existing.isClean() && existing.getCoveredLength() == segmentEnd) {
+      index = existing;
+    } else {
+      if (existing != null) {
+        existing.close();
+      }
+      if (validSegment) {
+        logger.info(String.format("Rebuilding index of '%s' [%d bytes]", segmentFile, size));
+      }
+      index = rebuildIndex();
+    }
+    index.markDirty();
+    remapSegment();
+  }
+
+  /**
+   * Returns the value associated with the given key, or null if there is none.
+   */
+  @Nullable
+  byte[] get(int key) throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      int slot = index.find(key);
+      if (slot < 0) {
+        return null;
+      }
+      return readValue(index.getOffset(slot), index.getLength(slot));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Associates the given value with the given key, replacing any previous value. */
+  void put(int key, byte[] value) throws IOException {
+    Preconditions.checkNotNull(value);
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      long offset = append(segment, segmentEnd, key, value, 0, value.length);
+      segmentEnd += RECORD_HEADER_SIZE + value.length;
+      index = index.ensureCapacity(indexFile, version);
+      index.put(key, offset, value.length);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes the value associated with the given key, if any. */
+  void remove(int key) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      if (index.remove(key)) {
+        append(segment, segmentEnd, key, null, 0, TOMBSTONE);
+        segmentEnd += RECORD_HEADER_SIZE;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns the number of keys in the store. */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return index.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the entries of the store. The values are read eagerly, so this should
+   * only be used for debugging output.
+   */
+  List<Map.Entry<Integer, byte[]>> entries() throws IOException {
+    lock.readLock().lock();
+    try {
+      List<Map.Entry<Integer, byte[]>> entries = new ArrayList<>(index.size());
+      for (int slot = 0; slot < index.capacity(); slot++) {
+        if (index.isOccupied(slot)) {
+          entries.add(
+              new AbstractMap.SimpleImmutableEntry<>(
+                  index.getKey(slot), readValue(index.getOffset(slot), index.getLength(slot))));
+        }
+      }
+      return entries;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes the segment and the index to disk and marks the index as consistent with the segment,
+   * so that the next {@link MappedRecordStore} instance can use it as is. Schedules a background
+   * compaction if most of the segment is garbage.
+   *
+   * @return the combined size of the files on disk
+   */
+  long save() throws IOException {
+    long size;
+    boolean shouldCompact;
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      segment.force(false);
+      index.markClean(segmentEnd);
+      remapSegment();
+      size = segmentEnd + index.fileSize();
+      long garbage = segmentEnd - SEGMENT_HEADER_SIZE - index.getLiveBytes();
+      shouldCompact = segmentEnd >= minCompactionSize && garbage > segmentEnd / 2;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (shouldCompact && compacting.compareAndSet(false, true)) {
+      compactionExecutor.execute(
+          () -> {
+            try {
+              compact();
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to compact " + segmentFile, e);
+            } finally {
+              compacting.set(false);
+            }
+          });
+    }
+    return size;
+  }
+
+  /** Removes all entries and truncates the files on disk. */
+  void clear() throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      generation++;
+      segmentView = null;
+      segment.truncate(0);
+      writeSegmentHeader(segment, version);
+      segmentEnd = SEGMENT_HEADER_SIZE;
+      index.close();
+      index = Index.create(indexFile, version, Index.MIN_CAPACITY);
+      index.markDirty();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Closes the files of the store. The data written since the last {@link #save} is kept, but the
+   * index has to be rebuilt when the store is opened again. Does nothing if the store is already
+   * closed.
+   */
+  void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      generation++;
+      // The mappings are released once they are garbage collected.
+      segmentView = null;
+      try {
+        segment.close();
+      } finally {
+        index.close();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /**
+   * Copies the live records into a new segment file and atomically replaces the old one. Records
+   * are copied without holding the lock; the records appended in the meantime are replayed onto
+   * the new segment before it is swapped in.
+   *
+   * <p>The copy is written to files of its own, so it doesn't interfere with the temporary file
+   * that {@link #put} uses to grow the index.
+   */
+  @VisibleForTesting
+  void compact() throws IOException {
+    synchronized (compactionLock) {
+      compactLocked();
+    }
+  }
+
+  private void compactLocked() throws IOException {
+    int[] keys;
+    long[] offsets;
+    int[] lengths;
+    long snapshotEnd;
+    int snapshotGeneration;
+    FileChannel oldSegment;
+    lock.readLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      int count = index.size();
+      keys = new int[count];
+      offsets = new long[count];
+      lengths = new int[count];
+      int i = 0;
+      for (int slot = 0; slot < index.capacity(); slot++) {
+        if (index.isOccupied(slot)) {
+          keys[i] = index.getKey(slot);
+          offsets[i] = index.getOffset(slot);
+          lengths[i] = index.getLength(slot);
+          i++;
+        }
+      }
+      snapshotEnd = segmentEnd;
+      snapshotGeneration = generation;
+      oldSegment = segment;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Path newSegmentFile = compactionFile(segmentFile);
+    Path newIndexFile = compactionFile(indexFile);
+    FileChannel newSegment = openChannel(newSegmentFile);
+    Index newIndex = null;
+    boolean swapped = false;
+    try {
+      newSegment.truncate(0);
+      writeSegmentHeader(newSegment, version);
+      long newEnd = SEGMENT_HEADER_SIZE;
+      newIndex = Index.create(newIndexFile, version, Index.capacityFor(keys.length));
+      for (int i = 0; i < keys.length; i++) {
+        byte[] value;
+        try {
+          value = readValue(oldSegment, null, offsets[i], lengths[i]);
+        } catch (IOException e) {
+          if (isObsolete(snapshotGeneration)) {
+            // The segment was truncated by clear() or closed under us.
+            return;
+          }
+          throw e;
+        }
+        append(newSegment, newEnd, keys[i], value, 0, value.length);
+        newIndex.put(keys[i], newEnd, value.length);
+        newEnd += RECORD_HEADER_SIZE + value.length;
+      }
+
+      lock.writeLock().lock();
+      try {
+        if (generation != snapshotGeneration) {
+          return;
+        }
+        // Replay whatever was written while we were copying.
+        try (DataInputStream in = openScan(segment, snapshotEnd)) {
+          for (long offset = snapshotEnd; offset < segmentEnd; ) {
+            int key = in.readInt();
+            int length = in.readInt();
+            if (length == TOMBSTONE) {
+              if (newIndex.remove(key)) {
+                append(newSegment, newEnd, key, null, 0, TOMBSTONE);
+                newEnd += RECORD_HEADER_SIZE;
+              }
+              offset += RECORD_HEADER_SIZE;
+            } else {
+              byte[] value = new byte[length];
+              in.readFully(value);
+              append(newSegment, newEnd, key, value, 0, length);
+              newIndex = newIndex.ensureCapacity(newIndexFile, version);
+              newIndex.put(key, newEnd, length);
+              newEnd += RECORD_HEADER_SIZE + length;
+              offset += RECORD_HEADER_SIZE + length;
+            }
+          }
+        }
+        newSegment.force(false);
+        newIndex.markDirty();
+        newSegmentFile.renameTo(segmentFile);
+        newIndexFile.renameTo(indexFile);
+        swapped = true;
+
+        logger.info(
+            String.format(
+                "Compacted '%s' from %d to %d bytes", segmentFile, segmentEnd, newEnd));
+        segmentView = null;
+        segment.close();
+        index.close();
+        segment = newSegment;
+        segmentEnd = newEnd;
+        index = newIndex;
+        remapSegment();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    } finally {
+      if (!swapped) {
+        newSegment.close();
+        if (newIndex != null) {
+          newIndex.close();
+        }
+        newSegmentFile.delete();
+        newIndexFile.delete();
+      }
+    }
+  }
+
+  private boolean isObsolete(int snapshotGeneration) {
+    lock.readLock().lock();
+    try {
+      return generation != snapshotGeneration;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the size of the segment file, including garbage. */
+  @VisibleForTesting
+  long segmentSize() {
+    lock.readLock().lock();
+    try {
+      return segmentEnd;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private byte[] readValue(long offset, int length) throws IOException {
+    return readValue(segment, segmentView, offset, length);
+  }
+
+  private static byte[] readValue(
+      FileChannel channel, @Nullable MappedByteBuffer view, long offset, int length)
+      throws IOException {
+    byte[] value = new byte[length];
+    long start = offset + RECORD_HEADER_SIZE;
+    if (view != null && start + length <= view.capacity()) {
+      ByteBuffer source = view.duplicate();
+      source.position((int) start);
+      source.get(value);
+    } else {
+      readFully(channel, ByteBuffer.wrap(value), start);
+    }
+    return value;
+  }
+
+  /** Maps the current extent of the segment file, unless it is too large to be mapped at once. */
+  private void remapSegment() throws IOException {
+    segmentView =
+        segmentEnd <= Integer.MAX_VALUE
+            ? segment.map(FileChannel.MapMode.READ_ONLY, 0, segmentEnd)
+            : null;
+  }
+
+  /**
+   * Creates a new index by scanning the record headers of the segment. Truncates the segment
+   * after the last complete record.
+   */
+  private Index rebuildIndex() throws IOException {
+    Index rebuilt = Index.create(indexFile, version, Index.MIN_CAPACITY);
+    long offset = SEGMENT_HEADER_SIZE;
+    try (DataInputStream in = openScan(segment, offset)) {
+      while (offset < segmentEnd) {
+        int key = in.readInt();
+        int length = in.readInt();
+        if (length == TOMBSTONE) {
+          rebuilt.remove(key);
+          offset += RECORD_HEADER_SIZE;
+        } else if (length < 0 || offset + RECORD_HEADER_SIZE + length > segmentEnd) {
+          break;
+        } else {
+          if (in.skipBytes(length) != length) {
+            break;
+          }
+          rebuilt = rebuilt.ensureCapacity(indexFile, version);
+          rebuilt.put(key, offset, length);
+          offset += RECORD_HEADER_SIZE + length;
+        }
+      }
+    } catch (EOFException e) {
+      // Partially written record; drop it below.
+    }
+    if (offset != segmentEnd) {
+      logger.warning(
+          String.format(
+              "Discarding %d bytes of incomplete records at the end of '%s'",
+              segmentEnd - offset, segmentFile));
+      segment.truncate(offset);
+      segmentEnd = offset;
+    }
+    return rebuilt;
+  }
+
+  private static DataInputStream openScan(FileChannel channel, long offset) throws IOException {
+    // Positional reads and writes don't depend on the channel position, so moving it is harmless.
+    channel.position(offset);
+    return new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024) {
+          @Override
+          public void close() {
+            // Keep the channel open.
+          }
+        });
+  }
+
+  /**
+   * Writes a record at the given offset. A {@code length} of {@link #TOMBSTONE} writes a removal
+   * marker. Returns the offset.
+   */
+  private static long append(
+      FileChannel channel, long offset, int key, byte[] value, int start, int length)
+      throws IOException {
+    int payload = length == TOMBSTONE ? 0 : length;
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+    buffer.putInt(key).putInt(length);
+    if (payload > 0) {
+      buffer.put(value, start, payload);
+    }
+    buffer.flip();
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+    return offset;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long offset)
+      throws IOException {
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of action cache segment at " + position);
+      }
+      position += read;
+    }
+  }
+
+  private static boolean hasSegmentHeader(FileChannel channel, long version) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    readFully(channel, header, 0);
+    return header.getLong(0) == SEGMENT_MAGIC && header.getLong(8) == version;
+  }
+
+  private static void writeSegmentHeader(FileChannel channel, long version) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    header.putLong(SEGMENT_MAGIC).putLong(version).flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private static Path tempFile(Path path) {
+    return path.getParentDirectory().getChild(path.getBaseName() + ".tmp");
+  }
+
+  private static Path compactionFile(Path path) {
+    return path.getParentDirectory().getChild(path.getBaseName() + ".compact.tmp");
+  }
+
+  /**
+   * An open-addressing hash table from keys to record locations that lives in a memory-mapped
+   * file. Uses linear probing with backward-shift deletion, so there are no tombstones.
+   *
+   * <p>Not thread-safe; access is guarded by the lock of the enclosing store.
+   */
+  private static final class Index {
+    private static final int MIN_CAPACITY = 1024;
+
+    // magic (8), version (8), covered segment length (8), live bytes (8), size (4),
+    // capacity (4), clean (4), padding (4).
+    private static final int HEADER_SIZE = 48;
+    private static final int COVERED_OFFSET = 16;
+    private static final int LIVE_BYTES_OFFSET = 24;
+    private static final int SIZE_OFFSET = 32;
+    private static final int CAPACITY_OFFSET = 36;
+    private static final int CLEAN_OFFSET = 40;
+
+    // key (4), record offset (8, 0 means empty), value length (4).
+    private static final int SLOT_SIZE = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int size;
+    private long liveBytes;
+    private boolean clean;
+
+    private Index(FileChannel channel, MappedByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.capacity = buffer.getInt(CAPACITY_OFFSET);
+      this.size = buffer.getInt(SIZE_OFFSET);
+      this.liveBytes = buffer.getLong(LIVE_BYTES_OFFSET);
+      this.clean = buffer.getInt(CLEAN_OFFSET) != 0;
+    }
+
+    /** Returns the smallest valid capacity that holds the given number of keys. */
+    static int capacityFor(int keys) {
+      int capacity = MIN_CAPACITY;
+      while (keys >= capacity / 4 * 3) {
+        capacity *= 2;
+      }
+      return capacity;
+    }
+
+    static Index create(Path file, long version, int capacity) throws IOException {
+      Preconditions.checkArgument(Integer.bitCount(capacity) == 1, capacity);
+      FileChannel channel = openChannel(file);
+      channel.truncate(0);
+      MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+      buffer.putLong(0, INDEX_MAGIC);
+      buffer.putLong(8, version);
+      buffer.putInt(CAPACITY_OFFSET, capacity);
+      return new Index(channel, buffer);
+    }
+
+    /** Returns the index stored in the given file, or null if it is missing or unusable. */
+    @Nullable
+    static Index open(Path file, long version) throws IOException {
+      if (!file.exists()) {
+        return null;
+      }
+      FileChannel channel = openChannel(file);
+      long fileSize = channel.size();
+      if (fileSize >= HEADER_SIZE) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        if (buffer.getLong(0) == INDEX_MAGIC
+            && buffer.getLong(8) == version
+            && capacity >= MIN_CAPACITY
+            && Integer.bitCount(capacity) == 1
+            && fileSize == HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+          return new Index(channel, buffer);
+        }
+      }
+      channel.close();
+      return null;
+    }
+
+    /**
+     * Returns an index that can take one more key: either this one, or a copy with twice the
+     * capacity that replaces this one on disk.
+     */
+    Index ensureCapacity(Path file, long version) throws IOException {
+      if (size + 1 < capacity / 4 * 3) {
+        return this;
+      }
+      Path tmp = tempFile(file);
+      Index grown = create(tmp, version, capacity * 2);
+      for (int slot = 0; slot < capacity; slot++) {
+        if (isOccupied(slot)) {
+          grown.put(getKey(slot), getOffset(slot), getLength(slot));
+        }
+      }
+      grown.markDirty();
+      tmp.renameTo(file);
+      close();
+      return grown;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return capacity;
+    }
+
+    long getLiveBytes() {
+      return liveBytes;
+    }
+
+    boolean isClean() {
+      return clean;
+    }
+
+    long getCoveredLength() {
+      return buffer.getLong(COVERED_OFFSET);
+    }
+
+    long fileSize() {
+      return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /** Returns the slot holding the given key, or -1. */
+    int find(int key) {
+      int mask = capacity - 1;
+      for (int slot = hash(key) & mask; isOccupied(slot); slot = (slot + 1) & mask) {
+        if (getKey(slot) == key) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    void put(int key, long offset, int length) {
+      int mask = capacity - 1;
+      int slot = hash(key) & mask;
+      while (isOccupied(slot)) {
+        if (getKey(slot) == key) {
+          liveBytes -= RECORD_HEADER_SIZE + getLength(slot);
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (!isOccupied(slot)) {
+        size++;
+      }
+      setSlot(slot, key, offset, length);
+      liveBytes += RECORD_HEADER_SIZE + length;
+      updateCounts();
+    }
+
+    /** Removes the key, returning whether it was present. */
+    boolean remove(int key) {
+      int slot = find(key);
+      if (slot < 0) {
+        return false;
+      }
+      liveBytes -= RECORD_HEADER_SIZE + getLength(slot);
+      size--;
+      // Backward-shift deletion: move later entries of the probe sequence into the hole.
+      int mask = capacity - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; isOccupied(next); next = (next + 1) & mask) {
+        int home = hash(getKey(next)) & mask;
+        // Move the entry if its home slot is not cyclically within (hole, next].
+        boolean movable =
+            hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+        if (movable) {
+          setSlot(hole, getKey(next), getOffset(next), getLength(next));
+          hole = next;
+        }
+      }
+      setSlot(hole, 0, 0, 0);
+      updateCounts();
+      return true;
+    }
+
+    boolean isOccupied(int slot) {
+      return getOffset(slot) != 0;
+    }
+
+    int getKey(int slot) {
+      return buffer.getInt(slotPosition(slot));
+    }
+
+    long getOffset(int slot) {
+      return buffer.getLong(slotPosition(slot) + 4);
+    }
+
+    int getLength(int slot) {
+      return buffer.getInt(slotPosition(slot) + 12);
+    }
+
+    /** Marks the index as possibly inconsistent with the segment until the next save. */
+    void markDirty() {
+      if (clean || buffer.getInt(CLEAN_OFFSET) != 0) {
+        clean = false;
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+      }
+    }
+
+    /** Flushes the index and records that it describes a segment of the given length. */
+    void markClean(long segmentLength) {
+      buffer.putLong(COVERED_OFFSET, segmentLength);
+      buffer.force();
+      buffer.putInt(CLEAN_OFFSET, 1);
+      buffer.force();
+      clean = true;
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+
+    private void setSlot(int slot, int key, long offset, int length) {
+      if (clean) {
+        markDirty();
+      }
+      int position = slotPosition(slot);
+      buffer.putInt(position, key);
+      buffer.putLong(position + 4, offset);
+      buffer.putInt(position + 12, length);
+    }
+
+    private void updateCounts() {
+      buffer.putInt(SIZE_OFFSET, size);
+      buffer.putLong(LIVE_BYTES_OFFSET, liveBytes);
+    }
+
+    private static int slotPosition(int slot) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(int key) {
+      // Action cache keys are dense small integers; spread them over the table.
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+}
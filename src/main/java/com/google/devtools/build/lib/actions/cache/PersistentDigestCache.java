@@ -0,0 +1,242 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of file digests with the same keys as the in-memory cache of {@link
+ * DigestUtils}: the path, node id, modification time and size of the file. It lets the digests of
+ * large output trees survive server restarts on file systems without fast digests.
+ *
+ * <p>The records are kept in a {@link MappedRecordStore}, under the hash of their path. A record
+ * holds its full key, so a hash collision or a changed file is a miss. The store is opened in the
+ * background, and lookups miss until it is open. New digests are buffered, and written to the
+ * store in batches by a background thread.
+ */
+@ThreadSafe
+final class PersistentDigestCache {
+  private static final long VERSION = 1;
+  // The number of buffered digests from which they are written to the store.
+  private static final int BATCH_SIZE = 1024;
+
+  private static final Logger logger = Logger.getLogger(PersistentDigestCache.class.getName());
+
+  // Opens the store and writes to it, so that writes never wait for each other.
+  private static final ExecutorService writer =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("file-digest-cache-writer-%d")
+              .setDaemon(true)
+              .build());
+
+  private final Future<MappedRecordStore> store;
+  private final ConcurrentMap<Integer, byte[]> pending = new ConcurrentHashMap<>();
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  private final AtomicBoolean openFailureLogged = new AtomicBoolean();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong bytesSaved = new AtomicLong();
+
+  PersistentDigestCache(Path cacheRoot) {
+    this(
+        cacheRoot.getChild("file_digest_segment_v" + VERSION + ".blaze"),
+        cacheRoot.getChild("file_digest_index_v" + VERSION + ".blaze"));
+  }
+
+  @VisibleForTesting
+  PersistentDigestCache(Path segmentFile, Path indexFile) {
+    store = writer.submit(() -> new MappedRecordStore(VERSION, segmentFile, indexFile));
+  }
+
+  /** Returns the cached digest of the file with the given key, or null. */
+  @Nullable
+  byte[] get(PathFragment path, long nodeId, long modifiedTime, long size) {
+    int key = hash(path);
+    byte[] record = pending.get(key);
+    if (record == null) {
+      MappedRecordStore openStore = getIfOpen();
+      if (openStore != null) {
+        try {
+          record = openStore.get(key);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to read the digest of " + path, e);
+        }
+      }
+    }
+    byte[] digest = record != null ? decode(record, path, nodeId, modifiedTime, size) : null;
+    if (digest != null) {
+      hitCount.incrementAndGet();
+      bytesSaved.addAndGet(size);
+    } else {
+      missCount.incrementAndGet();
+    }
+    return digest;
+  }
+
+  /** Caches the digest of the file with the given key. */
+  void put(PathFragment path, long nodeId, long modifiedTime, long size, byte[] digest) {
+    pending.put(hash(path), encode(path, nodeId, modifiedTime, size, digest));
+    if (pending.size() >= BATCH_SIZE && writeScheduled.compareAndSet(false, true)) {
+      writer.execute(
+          () -> {
+            writeScheduled.set(false);
+            try {
+              writePending();
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to write file digests", e);
+            }
+          });
+    }
+  }
+
+  /** Writes all buffered digests to disk, and waits until they are. */
+  void flush() throws IOException, InterruptedException {
+    Future<?> flushed =
+        writer.submit(
+            () -> {
+              writePending();
+              store.get().save();
+              return null;
+            });
+    try {
+      flushed.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to save file digests", e.getCause());
+    }
+  }
+
+  /** Compacts the store on the calling thread, while digests may still be written. */
+  @VisibleForTesting
+  void compact() throws IOException, InterruptedException {
+    try {
+      store.get().compact();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to open the file digest cache", e.getCause());
+    }
+  }
+
+  long hitCount() {
+    return hitCount.get();
+  }
+
+  long missCount() {
+    return missCount.get();
+  }
+
+  /** Returns the total size of the files whose digests were found in the cache. */
+  long bytesSaved() {
+    return bytesSaved.get();
+  }
+
+  // Only called on the writer thread.
+  private void writePending() throws IOException {
+    MappedRecordStore openStore;
+    try {
+      openStore = Uninterruptibles.getUninterruptibly(store);
+    } catch (ExecutionException e) {
+      // Already logged by getIfOpen, or will be.
+      pending.clear();
+      return;
+    }
+    for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+      openStore.put(entry.getKey(), entry.getValue());
+      // Keeps the entry if it was replaced in the meantime, so that it's written next time.
+      pending.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Nullable
+  private MappedRecordStore getIfOpen() {
+    if (!store.isDone()) {
+      return null;
+    }
+    try {
+      return Uninterruptibles.getUninterruptibly(store);
+    } catch (ExecutionException e) {
+      if (openFailureLogged.compareAndSet(false, true)) {
+        logger.log(Level.WARNING, "Failed to open the file digest cache", e.getCause());
+      }
+      return null;
+    }
+  }
+
+  // The hash of the path string is stable across servers, unlike that of the PathFragment.
+  private static int hash(PathFragment path) {
+    return path.getPathString().hashCode();
+  }
+
+  private static byte[] encode(
+      PathFragment path, long nodeId, long modifiedTime, long size, byte[] digest) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeLong(nodeId);
+      out.writeLong(modifiedTime);
+      out.writeLong(size);
+      out.writeInt(digest.length);
+      out.write(digest);
+      byte[] pathBytes = path.getPathString().getBytes(UTF_8);
+      out.writeInt(pathBytes.length);
+      out.write(pathBytes);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Returns the digest in the record if its key is the given one, and null otherwise. */
+  @Nullable
+  private static byte[] decode(
+      byte[] record, PathFragment path, long nodeId, long modifiedTime, long size) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+      if (in.readLong() != nodeId || in.readLong() != modifiedTime || in.readLong() != size) {
+        return null;
+      }
+      byte[] digest = new byte[in.readInt()];
+      in.readFully(digest);
+      byte[] pathBytes = new byte[in.readInt()];
+      in.readFully(pathBytes);
+      return Arrays.equals(pathBytes, path.getPathString().getBytes(UTF_8)) ? digest : null;
+    } catch (IOException | NegativeArraySizeException e) {
+      // A corrupt record.
+      return null;
+    }
+  }
+}
@@ -16,10 +16,13 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static java.util.stream.Collectors.joining;
 
 import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
 import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -273,15 +276,70 @@ public final class NestedSet<E> implements Iterable<E> {
   }
 
   /**
-   * Implementation of {@link #toList}.  Uses one of three strategies based on the value of
-   * {@code this.memo}: wrap our direct items in a list, call {@link #lockedExpand} to perform
-   * the initial {@link #walk}, or call {@link #replay} if we have a nontrivial memo.
+   * Returns an iterator over the elements of {@link #toList}, in the same order, that expands the
+   * set as it goes instead of building the list first. Stopping early saves the rest of the
+   * expansion, and a set that was expanded before is replayed without any allocation per element.
+   *
+   * <p>A {@link Order#LINK_ORDER} set is still expanded up front, since its order is the reverse of
+   * the traversal.
+   */
+  public Iterator<E> streamingIterator() {
+    if (isSingleton()) {
+      return Iterators.singletonIterator((E) children);
+    }
+    if (order == Order.LINK_ORDER) {
+      return toList().iterator();
+    }
+    if (memo == LEAF_MEMO) {
+      return (Iterator<E>) Iterators.forArray((Object[]) children);
+    }
+    ImmutableList<E> cached = NestedSetExpander.getCached(this);
+    if (cached != null) {
+      return cached.iterator();
+    }
+    return new ExpandingIterator<>((Object[]) children, getMemo());
+  }
+
+  /** Returns the memo of a previous {@link #walk}, or null. */
+  @Nullable
+  private synchronized byte[] getMemo() {
+    return memo;
+  }
+
+  /**
+   * Records the memo of an expansion that didn't {@link #walk}, see {@link
+   * NestedSetExpander#expandInParallel}, unless a memo was recorded in the meantime.
+   */
+  synchronized void setMemo(byte[] memo) {
+    if (this.memo == null) {
+      this.memo = memo;
+    }
+  }
+
+  /**
+   * Implementation of {@link #toList}. Returns the cached expansion, if any, or uses one of three
+   * strategies based on the value of {@code this.memo}: wrap our direct items in a list, call
+   * {@link #lockedExpand} to perform the initial {@link #walk}, or call {@link #replay} if we have
+   * a nontrivial memo.
    */
   private ImmutableList<E> expand() {
     // This value is only set in the constructor, so safe to test here with no lock.
     if (memo == LEAF_MEMO) {
       return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) children));
     }
+    ImmutableList<E> cached = NestedSetExpander.getCached(this);
+    if (cached != null) {
+      return cached;
+    }
+    ImmutableList<E> expanded =
+        NestedSetExpander.shouldExpandInParallel((Object[]) children) && getMemo() == null
+            ? NestedSetExpander.expandInParallel(this)
+            : expandSequentially();
+    NestedSetExpander.maybeCache(this, expanded);
+    return expanded;
+  }
+
+  private ImmutableList<E> expandSequentially() {
     CompactHashSet<E> members = lockedExpand();
     if (members != null) {
       return ImmutableList.copyOf(members);
@@ -373,6 +431,53 @@ public final class NestedSet<E> implements Iterable<E> {
     return pos;
   }
 
+  /**
+   * Iterates over the elements of a set like {@link #replay} if there is a memo, or else like
+   * {@link #walk}, without recording a memo.
+   */
+  private static final class ExpandingIterator<E> extends AbstractIterator<E> {
+    private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+    // The index of the next child of each array in arrays.
+    private final ArrayDeque<int[]> indices = new ArrayDeque<>();
+    @Nullable private final byte[] memo;
+    // The arrays and elements seen so far, if there is no memo.
+    @Nullable private final CompactHashSet<Object> seen;
+    private int pos = 0;
+
+    private ExpandingIterator(Object[] children, @Nullable byte[] memo) {
+      this.memo = memo;
+      this.seen = memo == null ? CompactHashSet.create() : null;
+      arrays.push(children);
+      indices.push(new int[1]);
+    }
+
+    @Override
+    protected E computeNext() {
+      while (!arrays.isEmpty()) {
+        Object[] array = arrays.peek();
+        int[] index = indices.peek();
+        if (index[0] == array.length) {
+          arrays.pop();
+          indices.pop();
+          continue;
+        }
+        Object child = array[index[0]++];
+        boolean taken = memo != null ? (memo[pos >> 3] & (1 << (pos & 7))) != 0 : seen.add(child);
+        ++pos;
+        if (!taken) {
+          continue;
+        }
+        if (child instanceof Object[]) {
+          arrays.push((Object[]) child);
+          indices.push(new int[1]);
+        } else {
+          return (E) child;
+        }
+      }
+      return endOfData();
+    }
+  }
+
   /**
    * Repeat a previous traversal of {@code children} performed by {@link #walk}
    * and recorded in {@code memo}, appending leaves to {@code output}.
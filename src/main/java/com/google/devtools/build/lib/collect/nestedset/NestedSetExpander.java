@@ -0,0 +1,272 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.Nullable;
+
+/**
+ * Helps {@link NestedSet#toList} with sets that are expanded over and over, like the transitive
+ * classpaths and header sets of large builds: remembers recently expanded lists, and expands sets
+ * with many nested subsets by deduplicating their elements in parallel.
+ *
+ * <p>Both are off by default. The cache is enabled by setting the {@code
+ * nestedset.NestedSet.ExpandedCacheSize} system property to the total number of elements to keep,
+ * and the parallel expansion by {@code nestedset.NestedSet.ParallelExpansion}.
+ */
+final class NestedSetExpander {
+  private static final long CACHE_SIZE = Long.getLong("nestedset.NestedSet.ExpandedCacheSize", 0);
+  private static final boolean PARALLEL =
+      Boolean.parseBoolean(System.getProperty("nestedset.NestedSet.ParallelExpansion", "false"));
+
+  // Smaller sets are replayed from their memo about as quickly as they are looked up.
+  private static final int MIN_CACHED_SIZE = 1024;
+  // The number of nested subsets from which a set is expanded in parallel.
+  private static final int MIN_PARALLEL_WIDTH = 16;
+  // Fewer elements are deduplicated sequentially, since forking would take longer.
+  @VisibleForTesting static final int MIN_PARALLEL_OCCURRENCES = 4096;
+
+  // Weakly keyed, so that the lists of sets that are no longer referenced aren't kept.
+  @Nullable
+  private static final Cache<NestedSet<?>, ImmutableList<?>> cache =
+      CACHE_SIZE > 0
+          ? CacheBuilder.newBuilder()
+              .weakKeys()
+              .maximumWeight(CACHE_SIZE)
+              .<NestedSet<?>, ImmutableList<?>>weigher((set, list) -> list.size())
+              .build()
+          : null;
+
+  private NestedSetExpander() {}
+
+  /** Returns the cached expansion of {@code set}, or null. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static <E> ImmutableList<E> getCached(NestedSet<E> set) {
+    return cache == null ? null : (ImmutableList<E>) cache.getIfPresent(set);
+  }
+
+  /** Remembers the expansion of {@code set}, if the cache is enabled and the set is large. */
+  static <E> void maybeCache(NestedSet<E> set, ImmutableList<E> expanded) {
+    if (cache != null && expanded.size() >= MIN_CACHED_SIZE) {
+      cache.put(set, expanded);
+    }
+  }
+
+  /** Returns whether the set with the given children should be expanded in parallel. */
+  static boolean shouldExpandInParallel(Object[] children) {
+    return PARALLEL && isWide(children);
+  }
+
+  /**
+   * Returns the unique elements of {@code set} in the same order as a sequential expansion, and
+   * records the same memo in the set, so that its next expansion is a replay.
+   *
+   * <p>Hashing and comparing the elements is most of the cost of an expansion, and it's what is
+   * done in parallel: first, the children are walked sequentially, visiting every array once and
+   * collecting the elements in order, duplicates included, which only hashes the arrays by
+   * identity. Then the first occurrence of every element is found by parallel tasks that each own
+   * the elements whose hash falls into their partition. A sequential pass keeps those, and another
+   * one writes the memo.
+   */
+  @SuppressWarnings("unchecked")
+  static <E> ImmutableList<E> expandInParallel(NestedSet<E> set) {
+    Object[] children = (Object[]) set.rawChildren();
+    List<Object> collected = new ArrayList<>();
+    int positions = collect(children, collected, Sets.newIdentityHashSet());
+    Object[] occurrences = collected.toArray();
+    boolean[] firstOccurrences = new boolean[occurrences.length];
+    if (occurrences.length < MIN_PARALLEL_OCCURRENCES) {
+      new MarkFirstOccurrences(occurrences, null, 0, firstOccurrences).compute();
+    } else {
+      ForkJoinPool pool = PoolHolder.POOL;
+      int partitions = pool.getParallelism();
+      pool.invoke(new Deduplicate(occurrences, partitions, firstOccurrences));
+    }
+    ImmutableList.Builder<E> output = ImmutableList.builder();
+    for (int i = 0; i < occurrences.length; i++) {
+      if (firstOccurrences[i]) {
+        output.add((E) occurrences[i]);
+      }
+    }
+    MemoWriter memoWriter = new MemoWriter(children, firstOccurrences, positions);
+    int pos = memoWriter.write(children, 0);
+    set.setMemo(Arrays.copyOf(memoWriter.memo, (pos + 7) / 8));
+    return output.build();
+  }
+
+  /**
+   * Collects the elements of the given children in the order of {@link NestedSet#walk}, without
+   * deduplicating them. Returns the number of positions that {@code walk} visits at most.
+   */
+  private static int collect(Object[] children, List<Object> occurrences, Set<Object[]> arrays) {
+    int positions = children.length;
+    for (Object child : children) {
+      if (child instanceof Object[]) {
+        if (arrays.add((Object[]) child)) {
+          positions += collect((Object[]) child, occurrences, arrays);
+        }
+      } else {
+        occurrences.add(child);
+      }
+    }
+    return positions;
+  }
+
+  private static boolean isWide(Object[] children) {
+    int nested = 0;
+    for (Object child : children) {
+      if (child instanceof Object[] && ++nested >= MIN_PARALLEL_WIDTH) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the memo that {@link NestedSet#walk} would have written, given the first occurrences of
+   * the elements collected by {@link #collect}.
+   */
+  private static final class MemoWriter {
+    private final boolean[] firstOccurrences;
+    private final Set<Object[]> arrays = Sets.newIdentityHashSet();
+    private final byte[] memo;
+    // The index of the next element in the collected occurrences.
+    private int occurrence = 0;
+    private int numFirstOccurrences = 0;
+
+    private MemoWriter(Object[] children, boolean[] firstOccurrences, int positions) {
+      this.firstOccurrences = firstOccurrences;
+      this.memo = new byte[(positions + 7) / 8];
+      arrays.add(children);
+    }
+
+    private int write(Object[] children, int pos) {
+      for (Object child : children) {
+        if (child instanceof Object[]) {
+          if (arrays.add((Object[]) child)) {
+            int prepos = pos;
+            int before = numFirstOccurrences;
+            pos = write((Object[]) child, pos + 1);
+            if (numFirstOccurrences > before) {
+              memo[prepos >> 3] |= (byte) (1 << (prepos & 7));
+            } else {
+              // Like walk, doesn't take a branch without new elements. No bits were set in it.
+              pos = prepos + 1;
+            }
+          } else {
+            ++pos;
+          }
+        } else {
+          if (firstOccurrences[occurrence++]) {
+            memo[pos >> 3] |= (byte) (1 << (pos & 7));
+            numFirstOccurrences++;
+          }
+          ++pos;
+        }
+      }
+      return pos;
+    }
+  }
+
+  /** Lazily creates the pool, since the parallel expansion is usually disabled. */
+  private static final class PoolHolder {
+    private static final ForkJoinPool POOL =
+        NamedForkJoinPool.newNamedPool(
+            "nested-set-expander", Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Assigns the occurrences to partitions by hash, then marks the first ones per partition. */
+  private static final class Deduplicate extends RecursiveAction {
+    private final Object[] occurrences;
+    private final int partitions;
+    private final boolean[] firstOccurrences;
+
+    private Deduplicate(Object[] occurrences, int partitions, boolean[] firstOccurrences) {
+      this.occurrences = occurrences;
+      this.partitions = partitions;
+      this.firstOccurrences = firstOccurrences;
+    }
+
+    @Override
+    protected void compute() {
+      int[] partitionOf = new int[occurrences.length];
+      int chunk = (occurrences.length + partitions - 1) / partitions;
+      List<RecursiveAction> tasks = new ArrayList<>(partitions);
+      for (int start = 0; start < occurrences.length; start += chunk) {
+        int from = start;
+        int to = Math.min(start + chunk, occurrences.length);
+        tasks.add(
+            new RecursiveAction() {
+              @Override
+              protected void compute() {
+                for (int i = from; i < to; i++) {
+                  // Spreads the hash like HashMap, since the low bits of some hash codes are poor.
+                  int hash = occurrences[i].hashCode();
+                  partitionOf[i] = Math.floorMod(hash ^ (hash >>> 16), partitions);
+                }
+              }
+            });
+      }
+      invokeAll(tasks);
+      tasks.clear();
+      for (int partition = 0; partition < partitions; partition++) {
+        tasks.add(
+            new MarkFirstOccurrences(occurrences, partitionOf, partition, firstOccurrences));
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  /** Marks the first occurrence of every element in a partition, or in all if there is none. */
+  private static final class MarkFirstOccurrences extends RecursiveAction {
+    private final Object[] occurrences;
+    @Nullable private final int[] partitionOf;
+    private final int partition;
+    private final boolean[] firstOccurrences;
+
+    private MarkFirstOccurrences(
+        Object[] occurrences,
+        @Nullable int[] partitionOf,
+        int partition,
+        boolean[] firstOccurrences) {
+      this.occurrences = occurrences;
+      this.partitionOf = partitionOf;
+      this.partition = partition;
+      this.firstOccurrences = firstOccurrences;
+    }
+
+    @Override
+    protected void compute() {
+      CompactHashSet<Object> seen = CompactHashSet.createWithExpectedSize(128);
+      for (int i = 0; i < occurrences.length; i++) {
+        if ((partitionOf == null || partitionOf[i] == partition) && seen.add(occurrences[i])) {
+          firstOccurrences[i] = true;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of non-negative ints that can be added to concurrently without locking, e.g. to deduplicate
+ * the visitation of nodes with dense int ids by many threads. It takes one bit per possible element
+ * instead of the dozens of bytes per element of a concurrent hash set.
+ *
+ * <p>The bits are stored in fixed-size chunks, which are allocated on first use, so a set over a
+ * large id space that is only sparsely populated in some ranges doesn't allocate those ranges.
+ */
+@ThreadSafe
+public final class ConcurrentBitSet {
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int WORDS_PER_CHUNK = CHUNK_SIZE / Long.SIZE;
+
+  // Only grown while holding the lock on this object.
+  private volatile AtomicLongArray[] chunks = new AtomicLongArray[1];
+
+  /**
+   * Adds {@code i} to the set. Returns true if it wasn't already present. Exactly one of the threads
+   * that concurrently add the same element sees true.
+   */
+  public boolean add(int i) {
+    Preconditions.checkArgument(i >= 0, i);
+    AtomicLongArray chunk = getOrCreateChunk(i >>> CHUNK_BITS);
+    int word = (i & (CHUNK_SIZE - 1)) >>> 6;
+    long mask = 1L << i;
+    long old;
+    do {
+      old = chunk.get(word);
+      if ((old & mask) != 0) {
+        return false;
+      }
+    } while (!chunk.compareAndSet(word, old, old | mask));
+    return true;
+  }
+
+  /** Returns whether {@code i} is in the set. */
+  public boolean contains(int i) {
+    Preconditions.checkArgument(i >= 0, i);
+    AtomicLongArray[] current = chunks;
+    int chunkIndex = i >>> CHUNK_BITS;
+    if (chunkIndex >= current.length || current[chunkIndex] == null) {
+      return false;
+    }
+    return (current[chunkIndex].get((i & (CHUNK_SIZE - 1)) >>> 6) & (1L << i)) != 0;
+  }
+
+  private AtomicLongArray getOrCreateChunk(int chunkIndex) {
+    AtomicLongArray[] current = chunks;
+    if (chunkIndex < current.length && current[chunkIndex] != null) {
+      return current[chunkIndex];
+    }
+    synchronized (this) {
+      current = chunks;
+      if (chunkIndex >= current.length) {
+        current = Arrays.copyOf(current, Math.max(current.length * 2, chunkIndex + 1));
+      }
+      if (current[chunkIndex] == null) {
+        current[chunkIndex] = new AtomicLongArray(WORDS_PER_CHUNK);
+      }
+      chunks = current;
+      return current[chunkIndex];
+    }
+  }
+}
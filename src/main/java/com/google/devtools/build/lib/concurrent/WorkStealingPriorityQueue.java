@@ -0,0 +1,146 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A priority queue that is split into one heap per thread that adds elements, so that threads
+ * that both produce and consume elements, like the workers of a {@link QuiescingExecutor}, mostly
+ * don't contend with each other.
+ *
+ * <p>{@link #poll} returns the highest-priority element of the calling thread's heap, and when that
+ * is empty, steals the highest-priority element of another thread's heap. The order is therefore
+ * only approximately global. Elements with the same priority are returned last-in-first-out, like
+ * the {@link BlockingStack} that {@link AbstractQueueVisitor} uses by default.
+ *
+ * <p>{@link #take} waits for an element instead. A queue should either only be consumed through
+ * {@link #take}, or only through {@link #poll}.
+ */
+@ThreadSafe
+public final class WorkStealingPriorityQueue<E> {
+  private final ThreadLocal<Heap<E>> localHeap = new ThreadLocal<>();
+  private final List<Heap<E>> heaps = new CopyOnWriteArrayList<>();
+  // The elements not claimed by a take() yet, and the number of adds, see take().
+  private final Semaphore available = new Semaphore(0);
+  private final AtomicLong addCount = new AtomicLong();
+
+  /** Adds {@code element} to the calling thread's heap. Higher priorities are polled first. */
+  public void add(E element, long priority) {
+    Heap<E> heap = localHeap.get();
+    if (heap == null) {
+      heap = new Heap<>();
+      localHeap.set(heap);
+      heaps.add(heap);
+    }
+    heap.add(element, priority);
+    addCount.incrementAndGet();
+    available.release();
+  }
+
+  /**
+   * Removes and returns an element, preferring the calling thread's heap, and waits until one is
+   * added if there is none.
+   */
+  public E take() throws InterruptedException {
+    // Claiming a permit guarantees that an element is left for this call: every other caller that
+    // holds a permit removes only one element. The scan of the heaps can only miss that element if
+    // it was removed by a caller whose permit was released by an add() during the scan, after the
+    // heap holding the new element had been checked; then the scan is repeated.
+    available.acquire();
+    while (true) {
+      long adds = addCount.get();
+      E element = poll();
+      if (element != null) {
+        return element;
+      }
+      Preconditions.checkState(addCount.get() != adds, "Missed an element of %s", this);
+    }
+  }
+
+  /**
+   * Removes and returns an element, preferring the calling thread's heap. Returns null if all heaps
+   * were empty when they were checked. Since the heaps are checked one after the other, this may
+   * also happen if elements are concurrently added and removed, so callers that know an element is
+   * present must retry, or use {@link #take}.
+   */
+  @Nullable
+  public E poll() {
+    Heap<E> own = localHeap.get();
+    if (own != null) {
+      E element = own.poll();
+      if (element != null) {
+        return element;
+      }
+    }
+    // Start at a random heap, so that thieves don't all contend for the first one.
+    Object[] snapshot = heaps.toArray();
+    int start = snapshot.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(snapshot.length);
+    for (int i = 0; i < snapshot.length; i++) {
+      @SuppressWarnings("unchecked")
+      Heap<E> heap = (Heap<E>) snapshot[(start + i) % snapshot.length];
+      if (heap != own) {
+        E element = heap.poll();
+        if (element != null) {
+          return element;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static final class Heap<E> {
+    private final PriorityQueue<Entry<E>> queue = new PriorityQueue<>();
+    // Orders the elements with the same priority. Only elements of the same heap are compared.
+    private long nextSequenceNumber = 0;
+
+    private synchronized void add(E element, long priority) {
+      queue.add(new Entry<>(element, priority, nextSequenceNumber++));
+    }
+
+    @Nullable
+    private synchronized E poll() {
+      Entry<E> entry = queue.poll();
+      return entry == null ? null : entry.element;
+    }
+  }
+
+  private static final class Entry<E> implements Comparable<Entry<E>> {
+    private final E element;
+    private final long priority;
+    private final long sequenceNumber;
+
+    private Entry(E element, long priority, long sequenceNumber) {
+      this.element = element;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public int compareTo(Entry<E> other) {
+      if (priority != other.priority) {
+        return Long.compare(other.priority, priority);
+      }
+      return Long.compare(other.sequenceNumber, sequenceNumber);
+    }
+  }
+}
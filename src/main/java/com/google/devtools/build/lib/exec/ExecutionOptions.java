@@ -292,6 +292,19 @@ public class ExecutionOptions extends OptionsBase {
   )
   public long cacheSizeForComputedFileDigests;
 
+  @Option(
+    name = "experimental_persistent_file_digest_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If true, the file digests that are cached in memory because of "
+            + "--cache_computed_file_digests are also saved in the output base, so that they "
+            + "survive server restarts. This has the same impact on correctness as the in-memory "
+            + "cache."
+  )
+  public boolean persistentFileDigestCache;
+
   @Option(
     name = "experimental_enable_critical_path_profiling",
     defaultValue = "true",
@@ -17,6 +17,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.SettableFuture;
@@ -138,16 +139,45 @@ public class GlobCache {
       throws BadGlobException {
     Future<List<Path>> cached = globCache.get(Pair.of(pattern, excludeDirs));
     if (cached == null) {
-      if (maxDirectoriesToEagerlyVisit > -1
-          && !globalStarted.getAndSet(true)) {
-        packageDirectory.prefetchPackageAsync(maxDirectoriesToEagerlyVisit);
-      }
+      prefetchPackage();
       cached = safeGlobUnsorted(pattern, excludeDirs);
       setGlobPaths(pattern, excludeDirs, cached);
     }
     return cached;
   }
 
+  /**
+   * Starts evaluating all of the given glob patterns that haven't been started yet against this
+   * package's directory. They are evaluated in a single traversal, so that overlapping patterns
+   * like {@code **}{@code /*.java} and {@code **}{@code /*.kt} read each directory only once.
+   *
+   * @throws BadGlobException if any of the globs was syntactically invalid, or contained uplevel
+   *     references.
+   */
+  void prefetchGlobs(Iterable<String> patterns, boolean excludeDirs) throws BadGlobException {
+    List<String> uncached = new ArrayList<>();
+    for (String pattern : patterns) {
+      if (!globCache.containsKey(Pair.of(pattern, excludeDirs)) && !uncached.contains(pattern)) {
+        uncached.add(pattern);
+      }
+    }
+    if (uncached.isEmpty()) {
+      return;
+    }
+    prefetchPackage();
+    List<Future<List<Path>>> results = safeGlobUnsorted(uncached, excludeDirs);
+    for (int i = 0; i < uncached.size(); i++) {
+      setGlobPaths(uncached.get(i), excludeDirs, results.get(i));
+    }
+  }
+
+  private void prefetchPackage() {
+    if (maxDirectoriesToEagerlyVisit > -1
+        && !globalStarted.getAndSet(true)) {
+      packageDirectory.prefetchPackageAsync(maxDirectoriesToEagerlyVisit);
+    }
+  }
+
   @VisibleForTesting
   List<String> getGlobUnsorted(String pattern)
       throws IOException, BadGlobException, InterruptedException {
@@ -191,22 +221,31 @@ public class GlobCache {
    */
   @VisibleForTesting
   Future<List<Path>> safeGlobUnsorted(String pattern, boolean excludeDirs) throws BadGlobException {
-    // Forbidden patterns:
-    if (pattern.indexOf('?') != -1) {
-      throw new BadGlobException("glob pattern '" + pattern + "' contains forbidden '?' wildcard");
-    }
-    // Patterns forbidden by UnixGlob library:
-    String error = UnixGlob.checkPatternForError(pattern);
-    if (error != null) {
-      throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
+    return safeGlobUnsorted(ImmutableList.of(pattern), excludeDirs).get(0);
+  }
+
+  /** Like {@link #safeGlobUnsorted(String, boolean)}, but for several patterns at once. */
+  private List<Future<List<Path>>> safeGlobUnsorted(List<String> patterns, boolean excludeDirs)
+      throws BadGlobException {
+    for (String pattern : patterns) {
+      // Forbidden patterns:
+      if (pattern.indexOf('?') != -1) {
+        throw new BadGlobException(
+            "glob pattern '" + pattern + "' contains forbidden '?' wildcard");
+      }
+      // Patterns forbidden by UnixGlob library:
+      String error = UnixGlob.checkPatternForError(pattern);
+      if (error != null) {
+        throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
+      }
     }
     return UnixGlob.forPath(packageDirectory)
-        .addPattern(pattern)
+        .addPatterns(patterns)
         .setExcludeDirectories(excludeDirs)
         .setDirectoryFilter(childDirectoryPredicate)
         .setThreadPool(globExecutor)
         .setFilesystemCalls(syscalls)
-        .globAsync(true);
+        .globAsyncByPattern(true);
   }
 
   /**
@@ -235,13 +274,9 @@ public class GlobCache {
       List<String> includes,
       List<String> excludes,
       boolean excludeDirs) throws IOException, BadGlobException, InterruptedException {
-    // Start globbing all patterns in parallel. The getGlob() calls below will
-    // block on an individual pattern's results, but the other globs can
-    // continue in the background.
-    for (String pattern : Iterables.concat(includes, excludes)) {
-      @SuppressWarnings("unused") 
-      Future<?> possiblyIgnoredError = getGlobUnsortedAsync(pattern, excludeDirs);
-    }
+    // Start globbing all patterns in a single traversal in the background. The getGlob() calls
+    // below will block on the results.
+    prefetchGlobs(Iterables.concat(includes, excludes), excludeDirs);
 
     HashSet<String> results = new HashSet<>();
     for (String pattern : includes) {
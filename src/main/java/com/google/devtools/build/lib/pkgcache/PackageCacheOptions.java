@@ -22,6 +22,8 @@ import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
 import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
@@ -168,6 +170,31 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public boolean checkOutputFiles;
 
+  @Option(
+    name = "experimental_persistent_ast_cache",
+    defaultValue = "null",
+    converter = OptionsUtils.PathFragmentConverter.class,
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If set, the syntax trees of BUILD and .bzl files are cached in this directory, so that "
+            + "new servers don't parse the files that didn't change. A relative path is "
+            + "resolved against the output base. The directory is never cleaned up."
+  )
+  public PathFragment persistentAstCache;
+
+  @Option(
+    name = "experimental_local_batch_stat",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS, OptionEffectTag.EXECUTION},
+    help =
+        "If true, the files that are checked for changes since the previous build (source files "
+            + "without diff information, and output files unless the output service stats "
+            + "them) are stat'ed in batches, with a single native call for many files."
+  )
+  public boolean localBatchStat;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
@@ -89,6 +89,10 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  SKYFRAME_INVALIDATION("skyframe invalidation", -1, 0x99CC33, 0),
+  WORKER_POOL_WAIT("worker pool wait", -1, 0x66CCCC, 0),
+  WORKER_SPAWN("worker process spawn", -1, 0x663366, 0),
+  WORKER_EVICTION("worker eviction", -1, 0xCC3300, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
@@ -13,6 +13,13 @@
 // limitations under the License.
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
@@ -31,23 +38,50 @@ import com.google.devtools.remoteexecution.v1test.OutputDirectory;
 import com.google.devtools.remoteexecution.v1test.OutputFile;
 import com.google.devtools.remoteexecution.v1test.Tree;
 import com.google.protobuf.ByteString;
+import io.grpc.Context;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /** A cache for storing artifacts (input and output) as well as the output of running an action. */
 @ThreadSafety.ThreadSafe
 public abstract class AbstractRemoteActionCache implements AutoCloseable {
+  private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 20;
+
   protected final DigestUtil digestUtil;
+  // Shared by all downloads, so that it bounds the requests in flight across all actions.
+  private final ListeningExecutorService downloadExecutor;
 
   public AbstractRemoteActionCache(DigestUtil digestUtil) {
+    this(digestUtil, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+  }
+
+  public AbstractRemoteActionCache(DigestUtil digestUtil, int maxConcurrentDownloads) {
     this.digestUtil = digestUtil;
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxConcurrentDownloads,
+            maxConcurrentDownloads,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("remote-download-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+    this.downloadExecutor = MoreExecutors.listeningDecorator(executor);
   }
 
   /**
@@ -117,7 +151,12 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
    * Download the output files and directory trees of a remotely executed action to the local
    * machine, as well stdin / stdout to the given files.
    *
-   * <p>In case of failure, this method deletes any output files it might have already created.
+   * <p>The output files, the trees of the output directories, stdout and stderr are downloaded
+   * concurrently, with at most as many downloads in flight across all actions as the cache was
+   * created with. Files with the same digest are only downloaded once, and then copied.
+   *
+   * <p>In case of failure or interruption, this method stops the downloads in flight and waits for
+   * them to finish, and then deletes any output files it might have already created.
    *
    * @throws IOException in case of a cache miss or if the remote cache is unavailable.
    * @throws ExecException in case clean up after a failed download failed.
@@ -125,72 +164,110 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
   // TODO(olaola): will need to amend to include the TreeNodeRepository for updating.
   public void download(ActionResult result, Path execRoot, FileOutErr outErr)
       throws ExecException, IOException, InterruptedException {
+    Downloads downloads = new Downloads();
     try {
       for (OutputFile file : result.getOutputFilesList()) {
         Path path = execRoot.getRelative(file.getPath());
-        downloadFile(path, file.getDigest(), file.getIsExecutable(), file.getContent());
+        downloads.addFile(path, file.getDigest(), file.getIsExecutable(), file.getContent());
       }
+      List<ListenableFuture<Tree>> trees = new ArrayList<>();
       for (OutputDirectory dir : result.getOutputDirectoriesList()) {
-        Digest treeDigest = dir.getTreeDigest();
-        byte[] b = downloadBlob(treeDigest);
-        Digest receivedTreeDigest = digestUtil.compute(b);
-        if (!receivedTreeDigest.equals(treeDigest)) {
-          throw new IOException(
-              "Digest does not match " + receivedTreeDigest + " != " + treeDigest);
-        }
-        Tree tree = Tree.parseFrom(b);
+        trees.add(downloads.submit(() -> downloadTree(dir.getTreeDigest())));
+      }
+      if (outErr != null) {
+        downloads.submit(
+            () -> {
+              downloadOutErr(result.getStdoutRaw(), result, outErr.getOutputStream(), true);
+              return null;
+            });
+        downloads.submit(
+            () -> {
+              downloadOutErr(result.getStderrRaw(), result, outErr.getErrorStream(), false);
+              return null;
+            });
+      }
+      for (int i = 0; i < trees.size(); i++) {
+        Tree tree = downloads.get(trees.get(i));
         Map<Digest, Directory> childrenMap = new HashMap<>();
         for (Directory child : tree.getChildrenList()) {
           childrenMap.put(digestUtil.compute(child), child);
         }
-        Path path = execRoot.getRelative(dir.getPath());
-        downloadDirectory(path, tree.getRoot(), childrenMap);
+        Path path = execRoot.getRelative(result.getOutputDirectories(i).getPath());
+        downloadDirectory(path, tree.getRoot(), childrenMap, downloads);
       }
-      // TODO(ulfjack): use same code as above also for stdout / stderr if applicable.
-      downloadOutErr(result, outErr);
+      downloads.awaitAll();
     } catch (IOException downloadException) {
+      // Make sure that no download writes to the output files while or after they are deleted.
+      downloads.awaitAllUninterruptibly(downloadException);
+      deleteOutputs(result, execRoot, outErr);
+      throw downloadException;
+    } catch (InterruptedException e) {
+      downloads.cancel(e);
+      downloads.awaitAllUninterruptibly(e);
       try {
-        // Delete any (partially) downloaded output files, since any subsequent local execution
-        // of this action may expect none of the output files to exist.
-        for (OutputFile file : result.getOutputFilesList()) {
-          execRoot.getRelative(file.getPath()).delete();
-        }
-        for (OutputDirectory directory : result.getOutputDirectoriesList()) {
-          execRoot.getRelative(directory.getPath()).delete();
-        }
-        if (outErr != null) {
-          outErr.getOutputPath().delete();
-          outErr.getErrorPath().delete();
-        }
-      } catch (IOException e) {
-        // If deleting of output files failed, we abort the build with a decent error message as
-        // any subsequent local execution failure would likely be incomprehensible.
-
-        // We don't propagate the downloadException, as this is a recoverable error and the cause
-        // of the build failure is really that we couldn't delete output files.
-        throw new EnvironmentalExecException(
-            "Failed to delete output files after incomplete "
-                + "download. Cannot continue with local execution.",
-            e,
-            true);
+        deleteOutputs(result, execRoot, outErr);
+      } catch (ExecException deleteException) {
+        Thread.currentThread().interrupt();
+        throw deleteException;
       }
-      throw downloadException;
+      throw e;
+    }
+  }
+
+  /**
+   * Deletes any (partially) downloaded output files, since any subsequent local execution of the
+   * action may expect none of the output files to exist.
+   */
+  private static void deleteOutputs(ActionResult result, Path execRoot, FileOutErr outErr)
+      throws ExecException {
+    try {
+      for (OutputFile file : result.getOutputFilesList()) {
+        execRoot.getRelative(file.getPath()).delete();
+      }
+      for (OutputDirectory directory : result.getOutputDirectoriesList()) {
+        FileSystemUtils.deleteTree(execRoot.getRelative(directory.getPath()));
+      }
+      if (outErr != null) {
+        outErr.getOutputPath().delete();
+        outErr.getErrorPath().delete();
+      }
+    } catch (IOException e) {
+      // If deleting of output files failed, we abort the build with a decent error message as
+      // any subsequent local execution failure would likely be incomprehensible.
+
+      // We don't propagate the download exception, as this is a recoverable error and the cause
+      // of the build failure is really that we couldn't delete output files.
+      throw new EnvironmentalExecException(
+          "Failed to delete output files after incomplete "
+              + "download. Cannot continue with local execution.",
+          e,
+          true);
     }
   }
 
+  private Tree downloadTree(Digest treeDigest) throws IOException, InterruptedException {
+    byte[] b = downloadBlob(treeDigest);
+    Digest receivedTreeDigest = digestUtil.compute(b);
+    if (!receivedTreeDigest.equals(treeDigest)) {
+      throw new IOException("Digest does not match " + receivedTreeDigest + " != " + treeDigest);
+    }
+    return Tree.parseFrom(b);
+  }
+
   /**
    * Download a directory recursively. The directory is represented by a {@link Directory} protobuf
    * message, and the descendant directories are in {@code childrenMap}, accessible through their
-   * digest.
+   * digest. The files are added to {@code downloads}.
    */
-  private void downloadDirectory(Path path, Directory dir, Map<Digest, Directory> childrenMap)
+  private void downloadDirectory(
+      Path path, Directory dir, Map<Digest, Directory> childrenMap, Downloads downloads)
       throws IOException, InterruptedException {
     // Ensure that the directory is created here even though the directory might be empty
     FileSystemUtils.createDirectoryAndParents(path);
 
     for (FileNode child : dir.getFilesList()) {
       Path childPath = path.getRelative(child.getName());
-      downloadFile(childPath, child.getDigest(), child.getIsExecutable(), null);
+      downloads.addFile(childPath, child.getDigest(), child.getIsExecutable(), null);
     }
 
     for (DirectoryNode child : dir.getDirectoriesList()) {
@@ -207,7 +284,7 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
                 + childDigest
                 + "not found");
       }
-      downloadDirectory(childPath, childDir, childrenMap);
+      downloadDirectory(childPath, childDir, childrenMap, downloads);
     }
   }
 
@@ -238,23 +315,149 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
     path.setExecutable(isExecutable);
   }
 
-  private void downloadOutErr(ActionResult result, FileOutErr outErr)
+  /** Writes either stdout or stderr of {@code result}, which is inlined as {@code raw} if given. */
+  private void downloadOutErr(
+      ByteString raw, ActionResult result, OutputStream out, boolean stdout)
       throws IOException, InterruptedException {
-    if (!result.getStdoutRaw().isEmpty()) {
-      result.getStdoutRaw().writeTo(outErr.getOutputStream());
-      outErr.getOutputStream().flush();
-    } else if (result.hasStdoutDigest()) {
-      byte[] stdoutBytes = downloadBlob(result.getStdoutDigest());
-      outErr.getOutputStream().write(stdoutBytes);
-      outErr.getOutputStream().flush();
+    if (!raw.isEmpty()) {
+      raw.writeTo(out);
+      out.flush();
+    } else if (stdout ? result.hasStdoutDigest() : result.hasStderrDigest()) {
+      out.write(downloadBlob(stdout ? result.getStdoutDigest() : result.getStderrDigest()));
+      out.flush();
     }
-    if (!result.getStderrRaw().isEmpty()) {
-      result.getStderrRaw().writeTo(outErr.getErrorStream());
-      outErr.getErrorStream().flush();
-    } else if (result.hasStderrDigest()) {
-      byte[] stderrBytes = downloadBlob(result.getStderrDigest());
-      outErr.getErrorStream().write(stderrBytes);
-      outErr.getErrorStream().flush();
+  }
+
+  /**
+   * The downloads of one {@link #download} call. The files are downloaded on the shared download
+   * executor; a file whose digest was already added is copied once the first one is downloaded.
+   * After the first failure, the downloads that haven't started yet fail without doing anything.
+   */
+  private final class Downloads {
+    private final List<ListenableFuture<?>> futures = new ArrayList<>();
+    private final Map<Digest, ListenableFuture<Path>> filesByDigest = new HashMap<>();
+    private final Set<Path> createdDirectories = new HashSet<>();
+    private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+    // The threads that are running a download of this action.
+    private final Set<Thread> downloadingThreads = new HashSet<>();
+
+    /** Starts a download on the download executor. */
+    private <T> ListenableFuture<T> submit(Callable<T> download) {
+      ListenableFuture<T> future = downloadExecutor.submit(guard(download));
+      futures.add(future);
+      return future;
+    }
+
+    /**
+     * Returns a task that runs {@code download} in the gRPC context of the caller, unless another
+     * download has failed already.
+     */
+    private <T> Callable<T> guard(Callable<T> download) {
+      return Context.current()
+          .wrap(
+              () -> {
+                synchronized (downloadingThreads) {
+                  if (firstFailure.get() != null) {
+                    throw new IOException("Another download of the same action failed");
+                  }
+                  downloadingThreads.add(Thread.currentThread());
+                }
+                try {
+                  return download.call();
+                } catch (Exception e) {
+                  firstFailure.compareAndSet(null, e);
+                  throw e;
+                } finally {
+                  synchronized (downloadingThreads) {
+                    downloadingThreads.remove(Thread.currentThread());
+                    // Clears an interrupt from cancel() that came too late for this download, so
+                    // that it doesn't hit the next task of the pool thread.
+                    Thread.interrupted();
+                  }
+                }
+              });
+    }
+
+    private void addFile(
+        Path path, Digest digest, boolean isExecutable, @Nullable ByteString content)
+        throws IOException, InterruptedException {
+      // Created here, so that the concurrent downloads don't race to create the same directories.
+      Path parent = path.getParentDirectory();
+      if (createdDirectories.add(parent)) {
+        FileSystemUtils.createDirectoryAndParents(parent);
+      }
+      if (digest.getSizeBytes() == 0 || (content != null && !content.isEmpty())) {
+        // Nothing to download.
+        downloadFile(path, digest, isExecutable, content);
+        return;
+      }
+      ListenableFuture<Path> first = filesByDigest.get(digest);
+      if (first == null) {
+        filesByDigest.put(
+            digest,
+            submit(
+                () -> {
+                  downloadFile(path, digest, isExecutable, null);
+                  return path;
+                }));
+      } else {
+        Callable<Void> copy =
+            guard(
+                () -> {
+                  FileSystemUtils.copyFile(first.get(), path);
+                  path.setExecutable(isExecutable);
+                  return null;
+                });
+        // Only submitted once the first file is downloaded, so that no thread waits for it.
+        futures.add(
+            Futures.transformAsync(
+                first, unused -> downloadExecutor.submit(copy), MoreExecutors.directExecutor()));
+      }
+    }
+
+    /** Waits for {@code future}, throwing its exception, if any. */
+    private <T> T get(ListenableFuture<T> future) throws IOException, InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        // Report the download that failed first, rather than one that was skipped because of it.
+        Throwable cause = firstFailure.get() != null ? firstFailure.get() : e.getCause();
+        Throwables.propagateIfPossible(cause, IOException.class, InterruptedException.class);
+        throw new IOException(cause);
+      }
+    }
+
+    /** Waits for all downloads, throwing the exception of the first failed one, if any. */
+    private void awaitAll() throws IOException, InterruptedException {
+      for (ListenableFuture<?> future : futures) {
+        get(future);
+      }
+    }
+
+    /** Waits for all downloads after a failure, ignoring their results. */
+    private void awaitAllUninterruptibly(Exception failure) {
+      firstFailure.compareAndSet(null, failure);
+      for (ListenableFuture<?> future : futures) {
+        try {
+          Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+          // Already failed.
+        }
+      }
+    }
+
+    /**
+     * Interrupts the downloads in flight, and makes the others fail without starting. The futures
+     * are not cancelled, since a cancelled future is done before its download has stopped, so
+     * {@link #awaitAllUninterruptibly} can still wait for them.
+     */
+    private void cancel(InterruptedException interrupt) {
+      synchronized (downloadingThreads) {
+        firstFailure.compareAndSet(null, interrupt);
+        for (Thread thread : downloadingThreads) {
+          thread.interrupt();
+        }
+      }
     }
   }
 
@@ -369,7 +572,12 @@ public abstract class AbstractRemoteActionCache implements AutoCloseable {
     }
   }
 
-  /** Release resources associated with the cache. The cache may not be used after calling this. */
+  /**
+   * Release resources associated with the cache. The cache may not be used after calling this.
+   * Subclasses must call this.
+   */
   @Override
-  public abstract void close();
+  public void close() {
+    downloadExecutor.shutdownNow();
+  }
 }
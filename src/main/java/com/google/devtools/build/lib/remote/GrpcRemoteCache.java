@@ -14,16 +14,23 @@
 
 package com.google.devtools.build.lib.remote;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.bytestream.ByteStreamGrpc;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamBlockingStub;
 import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
@@ -35,6 +42,8 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.remoteexecution.v1test.ActionCacheGrpc;
 import com.google.devtools.remoteexecution.v1test.ActionCacheGrpc.ActionCacheBlockingStub;
 import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.BatchUpdateBlobsRequest;
+import com.google.devtools.remoteexecution.v1test.BatchUpdateBlobsResponse;
 import com.google.devtools.remoteexecution.v1test.Command;
 import com.google.devtools.remoteexecution.v1test.ContentAddressableStorageGrpc;
 import com.google.devtools.remoteexecution.v1test.ContentAddressableStorageGrpc.ContentAddressableStorageBlockingStub;
@@ -44,6 +53,7 @@ import com.google.devtools.remoteexecution.v1test.FindMissingBlobsRequest;
 import com.google.devtools.remoteexecution.v1test.FindMissingBlobsResponse;
 import com.google.devtools.remoteexecution.v1test.GetActionResultRequest;
 import com.google.devtools.remoteexecution.v1test.UpdateActionResultRequest;
+import com.google.protobuf.ByteString;
 import io.grpc.CallCredentials;
 import io.grpc.Channel;
 import io.grpc.Status;
@@ -53,21 +63,41 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /** A RemoteActionCache implementation that uses gRPC calls to a remote cache server. */
 @ThreadSafe
 public class GrpcRemoteCache extends AbstractRemoteActionCache {
+  // gRPC rejects messages larger than 4 MiB by default, so a batch is sent before it grows past
+  // that. Besides its data, each blob of a batch costs at most this many bytes for its digest and
+  // the framing of its request.
+  private static final long MAX_BATCH_BYTES = 4 * 1024 * 1024;
+  private static final long BATCH_BLOB_OVERHEAD_BYTES = 128;
+
   private final RemoteOptions options;
   private final CallCredentials credentials;
   private final Channel channel;
   private final RemoteRetrier retrier;
   private final ByteStreamUploader uploader;
+  // Set once the server responds that it doesn't implement BatchUpdateBlobs.
+  private volatile boolean batchUpdateUnsupported;
+  private static final ListenableFuture<Void> PRESENT = Futures.immediateFuture(null);
+
+  // The input digests that other actions of this build found in, or uploaded to, the remote cache,
+  // so that they're not queried again. The future of a digest completes once it is known to be
+  // present, and is cancelled if that failed. Null if disabled.
+  @Nullable private final Cache<Digest, ListenableFuture<Void>> knownPresentDigests;
   private final ListeningScheduledExecutorService retryScheduler =
       MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(1));
 
@@ -78,11 +108,17 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
       RemoteOptions options,
       RemoteRetrier retrier,
       DigestUtil digestUtil) {
-    super(digestUtil);
+    super(digestUtil, options.experimentalRemoteMaxConcurrentDownloads);
     this.options = options;
     this.credentials = credentials;
     this.channel = channel;
     this.retrier = retrier;
+    this.knownPresentDigests =
+        options.experimentalRemoteKnownDigestsCacheSize > 0
+            ? CacheBuilder.newBuilder()
+                .maximumSize(options.experimentalRemoteKnownDigestsCacheSize)
+                .<Digest, ListenableFuture<Void>>build()
+            : null;
 
     uploader = new ByteStreamUploader(options.remoteInstanceName, channel, credentials,
         options.remoteTimeout, retrier, retryScheduler);
@@ -113,6 +149,7 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
   public void close() {
     retryScheduler.shutdownNow();
     uploader.shutdown();
+    super.close();
   }
 
   public static boolean isRemoteCacheOptions(RemoteOptions options) {
@@ -144,9 +181,66 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     repository.computeMerkleDigests(root);
     Digest commandDigest = digestUtil.compute(command);
     // TODO(olaola): avoid querying all the digests, only ask for novel subtrees.
-    ImmutableSet<Digest> missingDigests =
-        getMissingDigests(
-            Iterables.concat(repository.getAllDigests(root), ImmutableList.of(commandDigest)));
+    Iterable<Digest> digests =
+        Iterables.concat(repository.getAllDigests(root), ImmutableList.of(commandDigest));
+    if (knownPresentDigests == null) {
+      uploadMissingInputs(repository, execRoot, command, commandDigest, digests);
+      return;
+    }
+    // Each digest is queried, and uploaded if missing, by the first action that needs it. Other
+    // actions wait for that instead of querying the digest again, and take the digest over if the
+    // first action fails.
+    ConcurrentMap<Digest, ListenableFuture<Void>> known = knownPresentDigests.asMap();
+    Collection<Digest> remaining = ImmutableList.copyOf(digests);
+    while (!remaining.isEmpty()) {
+      Map<Digest, SettableFuture<Void>> claimed = new HashMap<>();
+      Map<Digest, ListenableFuture<Void>> pending = new HashMap<>();
+      for (Digest digest : remaining) {
+        SettableFuture<Void> future = SettableFuture.create();
+        ListenableFuture<Void> previous = known.putIfAbsent(digest, future);
+        if (previous == null) {
+          claimed.put(digest, future);
+        } else if (!claimed.containsKey(digest)) {
+          pending.put(digest, previous);
+        }
+      }
+      boolean uploaded = false;
+      try {
+        uploadMissingInputs(repository, execRoot, command, commandDigest, claimed.keySet());
+        uploaded = true;
+      } finally {
+        for (Map.Entry<Digest, SettableFuture<Void>> entry : claimed.entrySet()) {
+          if (uploaded) {
+            entry.getValue().set(null);
+            // Keeps a single shared future for the digests that are known to be present.
+            known.replace(entry.getKey(), entry.getValue(), PRESENT);
+          } else {
+            known.remove(entry.getKey(), entry.getValue());
+            entry.getValue().cancel(false);
+          }
+        }
+      }
+      List<Digest> failed = new ArrayList<>();
+      for (Map.Entry<Digest, ListenableFuture<Void>> entry : pending.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (CancellationException | ExecutionException e) {
+          failed.add(entry.getKey());
+        }
+      }
+      remaining = failed;
+    }
+  }
+
+  /** Queries which of the given digests are missing from the remote cache, and uploads them. */
+  private void uploadMissingInputs(
+      TreeNodeRepository repository,
+      Path execRoot,
+      Command command,
+      Digest commandDigest,
+      Iterable<Digest> digests)
+      throws IOException, InterruptedException {
+    ImmutableSet<Digest> missingDigests = getMissingDigests(digests);
 
     List<Chunker> toUpload = new ArrayList<>();
     // Only upload data that was missing from the cache.
@@ -170,7 +264,98 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
         toUpload.add(new Chunker(actionInput, inputFileCache, execRoot, digestUtil));
       }
     }
-    uploader.uploadBlobs(toUpload);
+    uploadBlobs(toUpload);
+  }
+
+  /**
+   * Uploads the given blobs. Blobs that are at most {@code
+   * --experimental_remote_max_batch_blob_size} large are uploaded in BatchUpdateBlobs calls, which
+   * saves a call per blob for the many small inputs of typical actions. A batch holds at most
+   * {@code --experimental_remote_max_batch_blobs} blobs and stays below the gRPC message size
+   * limit. The other blobs, and those that failed to upload in a batch, are streamed with the
+   * ByteStream API.
+   */
+  private void uploadBlobs(List<Chunker> chunkers) throws IOException, InterruptedException {
+    long maxBatchBytes =
+        MAX_BATCH_BYTES
+            - BATCH_BLOB_OVERHEAD_BYTES
+            - options.remoteInstanceName.getBytes(UTF_8).length;
+    List<Chunker> toStream = new ArrayList<>();
+    List<Chunker> batch = new ArrayList<>();
+    long batchBytes = 0;
+    for (Chunker chunker : chunkers) {
+      long size = chunker.digest().getSizeBytes();
+      long blobBytes = size + BATCH_BLOB_OVERHEAD_BYTES;
+      if (batchUpdateUnsupported
+          || !(options.experimentalRemoteMaxBatchBlobSize > 0
+              && size <= options.experimentalRemoteMaxBatchBlobSize
+              && blobBytes <= maxBatchBytes)) {
+        toStream.add(chunker);
+        continue;
+      }
+      if (batchBytes + blobBytes > maxBatchBytes) {
+        toStream.addAll(batchUpdateBlobs(batch));
+        batch.clear();
+        batchBytes = 0;
+      }
+      batch.add(chunker);
+      batchBytes += blobBytes;
+      if (batch.size() >= options.experimentalRemoteMaxBatchBlobs) {
+        toStream.addAll(batchUpdateBlobs(batch));
+        batch.clear();
+        batchBytes = 0;
+      }
+    }
+    if (!batch.isEmpty()) {
+      toStream.addAll(batchUpdateBlobs(batch));
+    }
+    if (!toStream.isEmpty()) {
+      uploader.uploadBlobs(toStream);
+    }
+  }
+
+  /** Uploads the given blobs in one call, and returns those that were not uploaded. */
+  private List<Chunker> batchUpdateBlobs(List<Chunker> batch)
+      throws IOException, InterruptedException {
+    BatchUpdateBlobsRequest.Builder request =
+        BatchUpdateBlobsRequest.newBuilder().setInstanceName(options.remoteInstanceName);
+    for (Chunker chunker : batch) {
+      request.addRequestsBuilder().setContentDigest(chunker.digest()).setData(readAll(chunker));
+    }
+    BatchUpdateBlobsResponse response;
+    try {
+      response = retrier.execute(() -> casBlockingStub().batchUpdateBlobs(request.build()));
+    } catch (RetryException e) {
+      if (RemoteRetrierUtils.causedByStatus(e, Status.Code.UNIMPLEMENTED)) {
+        // Don't try again, and stream all blobs instead.
+        batchUpdateUnsupported = true;
+        return batch;
+      }
+      throw e;
+    }
+    Set<Digest> uploaded = new HashSet<>();
+    for (BatchUpdateBlobsResponse.Response blobResponse : response.getResponsesList()) {
+      if (blobResponse.getStatus().getCode() == Status.Code.OK.value()) {
+        uploaded.add(blobResponse.getBlobDigest());
+      }
+    }
+    List<Chunker> failed = new ArrayList<>();
+    for (Chunker chunker : batch) {
+      if (!uploaded.contains(chunker.digest())) {
+        failed.add(chunker);
+      }
+    }
+    return failed;
+  }
+
+  private static ByteString readAll(Chunker chunker) throws IOException {
+    chunker.reset();
+    ByteString data = ByteString.EMPTY;
+    while (chunker.hasNext()) {
+      data = data.concat(chunker.next().getData());
+    }
+    chunker.reset();
+    return data;
   }
 
   /**
@@ -291,7 +476,7 @@ public class GrpcRemoteCache extends AbstractRemoteActionCache {
     }
 
     if (!filesToUpload.isEmpty()) {
-      uploader.uploadBlobs(filesToUpload);
+      uploadBlobs(filesToUpload);
     }
 
     // TODO(olaola): inline small stdout/stderr here.
@@ -0,0 +1,74 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import com.google.devtools.remoteexecution.v1test.Digest;
+import com.google.devtools.remoteexecution.v1test.Directory;
+import javax.annotation.Nullable;
+
+/**
+ * The Merkle tree directories shared by the {@link TreeNodeRepository} objects of the actions of
+ * one build, so that input subtrees that many actions have in common, like toolchains and headers,
+ * are only statted and digested once per build.
+ *
+ * <p>It also interns the {@link TreeNode} objects of all those repositories, since tree nodes only
+ * compare equal if their children are the same objects. It must not outlive the build, because the
+ * directories are cached by the input files they contain, not by their contents.
+ */
+@ThreadSafe
+final class MerkleTreeCache {
+  /** A directory of the Merkle tree and its digest. */
+  static final class Entry {
+    final Directory directory;
+    final Digest digest;
+
+    Entry(Directory directory, Digest digest) {
+      this.directory = directory;
+      this.digest = digest;
+    }
+  }
+
+  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  private final Cache<TreeNode, Entry> directories;
+
+  /** Creates a cache that keeps at most {@code maxSize} directories. */
+  MerkleTreeCache(long maxSize) {
+    directories = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  Interner<TreeNode> getInterner() {
+    return interner;
+  }
+
+  @Nullable
+  Entry get(TreeNode node) {
+    return directories.getIfPresent(node);
+  }
+
+  void put(TreeNode node, Directory directory, Digest digest) {
+    directories.put(node, new Entry(directory, digest));
+  }
+
+  /** Returns the hit rate and other statistics of the lookups so far. */
+  CacheStats getStats() {
+    return directories.stats();
+  }
+}
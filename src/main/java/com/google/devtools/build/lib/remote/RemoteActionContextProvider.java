@@ -27,16 +27,22 @@ import com.google.devtools.build.lib.exec.local.LocalExecutionOptions;
 import com.google.devtools.build.lib.exec.local.LocalSpawnRunner;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.OS;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
  * Provide a remote execution context.
  */
 final class RemoteActionContextProvider extends ActionContextProvider {
+  private static final Logger logger =
+      Logger.getLogger(RemoteActionContextProvider.class.getName());
+
   private final CommandEnvironment env;
   private final AbstractRemoteActionCache cache;
   private final GrpcRemoteExecutor executor;
   private final DigestUtil digestUtil;
+  @Nullable private MerkleTreeCache merkleTreeCache;
+  private boolean closed;
 
   RemoteActionContextProvider(
       CommandEnvironment env,
@@ -56,6 +62,10 @@ final class RemoteActionContextProvider extends ActionContextProvider {
     RemoteOptions remoteOptions = checkNotNull(env.getOptions().getOptions(RemoteOptions.class));
     String buildRequestId = env.getBuildRequestId().toString();
     String commandId = env.getCommandId().toString();
+    merkleTreeCache =
+        remoteOptions.experimentalRemoteMerkleTreeCacheSize > 0
+            ? new MerkleTreeCache(remoteOptions.experimentalRemoteMerkleTreeCacheSize)
+            : null;
 
     if (remoteOptions.experimentalRemoteSpawnCache || remoteOptions.experimentalLocalDiskCache) {
       RemoteSpawnCache spawnCache =
@@ -67,7 +77,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               commandId,
               executionOptions.verboseFailures,
               env.getReporter(),
-              digestUtil);
+              digestUtil,
+              merkleTreeCache);
       return ImmutableList.of(spawnCache);
     } else {
       RemoteSpawnRunner spawnRunner =
@@ -81,7 +92,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               commandId,
               cache,
               executor,
-              digestUtil);
+              digestUtil,
+              merkleTreeCache);
       return ImmutableList.of(new RemoteSpawnStrategy(env.getExecRoot(), spawnRunner));
     }
   }
@@ -104,6 +116,21 @@ final class RemoteActionContextProvider extends ActionContextProvider {
 
   @Override
   public void executionPhaseEnding() {
+    if (merkleTreeCache != null) {
+      logger.info("Merkle tree cache: " + merkleTreeCache.getStats());
+    }
+    close();
+  }
+
+  /**
+   * Releases the cache. Called when the execution phase ends and, for commands that stop before
+   * or during it, after the command; only the first call has an effect.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
     if (cache != null) {
       cache.close();
     }
@@ -125,7 +125,8 @@ public final class RemoteModule extends BlazeModule {
                     remoteOptions,
                     GoogleAuthUtils.newCredentials(authAndTlsOptions),
                     env.getWorkingDirectory()),
-                digestUtil);
+                digestUtil,
+                remoteOptions.experimentalRemoteMaxConcurrentDownloads);
       } else if (grpcCache || remoteOptions.remoteExecutor != null) {
         // If a remote executor but no remote cache is specified, assume both at the same target.
         String target = grpcCache ? remoteOptions.remoteCache : remoteOptions.remoteExecutor;
@@ -167,6 +168,14 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  @Override
+  public void afterCommand() {
+    if (actionContextProvider != null) {
+      actionContextProvider.close();
+      actionContextProvider = null;
+    }
+  }
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return "build".equals(command.name())
@@ -119,6 +119,66 @@ public final class RemoteOptions extends OptionsBase {
   )
   public String remoteInstanceName;
 
+  @Option(
+    name = "experimental_remote_max_concurrent_downloads",
+    defaultValue = "20",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum number of blobs that are downloaded from the remote cache concurrently, "
+            + "across all actions."
+  )
+  public int experimentalRemoteMaxConcurrentDownloads;
+
+  @Option(
+    name = "experimental_remote_max_batch_blob_size",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "Blobs of up to this many bytes are uploaded to the remote cache in batches, instead of "
+            + "with one ByteStream call each. 0 disables batching."
+  )
+  public long experimentalRemoteMaxBatchBlobSize;
+
+  @Option(
+    name = "experimental_remote_max_batch_blobs",
+    defaultValue = "500",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum number of blobs uploaded to the remote cache in one batch. See "
+            + "--experimental_remote_max_batch_blob_size."
+  )
+  public int experimentalRemoteMaxBatchBlobs;
+
+  @Option(
+    name = "experimental_remote_merkle_tree_cache_size",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The number of input directories whose digests are shared between the actions of a "
+            + "build. 0 disables sharing."
+  )
+  public long experimentalRemoteMerkleTreeCacheSize;
+
+  @Option(
+    name = "experimental_remote_known_digests_cache_size",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The number of input digests that are remembered to be in the remote cache, so that "
+            + "later actions of the build don't query them again. 0 disables it."
+  )
+  public long experimentalRemoteKnownDigestsCacheSize;
+
   @Option(
     name = "experimental_remote_retry",
     defaultValue = "true",
@@ -212,6 +272,19 @@ public final class RemoteOptions extends OptionsBase {
   )
   public PathFragment experimentalLocalDiskCachePath;
 
+  @Option(
+    name = "experimental_local_disk_cache_max_size_mb",
+    defaultValue = "0",
+    category = "remote",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "The maximum size of the local disk cache in megabytes. When the cache grows beyond this "
+            + "size, the least recently used entries that the current build doesn't use are "
+            + "deleted in the background. 0 means unbounded."
+  )
+  public long experimentalLocalDiskCacheMaxSizeMb;
+
   @Option(
     name = "experimental_guard_against_concurrent_changes",
     defaultValue = "false",
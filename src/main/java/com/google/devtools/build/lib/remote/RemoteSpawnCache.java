@@ -65,6 +65,7 @@ final class RemoteSpawnCache implements SpawnCache {
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
   private final DigestUtil digestUtil;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
 
   RemoteSpawnCache(
       Path execRoot,
@@ -75,6 +76,28 @@ final class RemoteSpawnCache implements SpawnCache {
       boolean verboseFailures,
       @Nullable Reporter cmdlineReporter,
       DigestUtil digestUtil) {
+    this(
+        execRoot,
+        options,
+        remoteCache,
+        buildRequestId,
+        commandId,
+        verboseFailures,
+        cmdlineReporter,
+        digestUtil,
+        null);
+  }
+
+  RemoteSpawnCache(
+      Path execRoot,
+      RemoteOptions options,
+      AbstractRemoteActionCache remoteCache,
+      String buildRequestId,
+      String commandId,
+      boolean verboseFailures,
+      @Nullable Reporter cmdlineReporter,
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.options = options;
     this.remoteCache = remoteCache;
@@ -83,6 +106,7 @@ final class RemoteSpawnCache implements SpawnCache {
     this.buildRequestId = buildRequestId;
     this.commandId = commandId;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -90,7 +114,8 @@ final class RemoteSpawnCache implements SpawnCache {
       throws InterruptedException, IOException, ExecException {
     // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     TreeNodeRepository repository =
-        new TreeNodeRepository(execRoot, policy.getActionInputFileCache(), digestUtil);
+        new TreeNodeRepository(
+            execRoot, policy.getActionInputFileCache(), digestUtil, merkleTreeCache);
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
     TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
     repository.computeMerkleDigests(inputRoot);
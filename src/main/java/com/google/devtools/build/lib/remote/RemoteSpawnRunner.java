@@ -82,6 +82,7 @@ class RemoteSpawnRunner implements SpawnRunner {
   private final String buildRequestId;
   private final String commandId;
   private final DigestUtil digestUtil;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
 
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
@@ -97,6 +98,32 @@ class RemoteSpawnRunner implements SpawnRunner {
       @Nullable AbstractRemoteActionCache remoteCache,
       @Nullable GrpcRemoteExecutor remoteExecutor,
       DigestUtil digestUtil) {
+    this(
+        execRoot,
+        options,
+        fallbackRunner,
+        verboseFailures,
+        cmdlineReporter,
+        buildRequestId,
+        commandId,
+        remoteCache,
+        remoteExecutor,
+        digestUtil,
+        null);
+  }
+
+  RemoteSpawnRunner(
+      Path execRoot,
+      RemoteOptions options,
+      SpawnRunner fallbackRunner,
+      boolean verboseFailures,
+      @Nullable Reporter cmdlineReporter,
+      String buildRequestId,
+      String commandId,
+      @Nullable AbstractRemoteActionCache remoteCache,
+      @Nullable GrpcRemoteExecutor remoteExecutor,
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.options = options;
     this.fallbackRunner = fallbackRunner;
@@ -107,6 +134,7 @@ class RemoteSpawnRunner implements SpawnRunner {
     this.buildRequestId = buildRequestId;
     this.commandId = commandId;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache = merkleTreeCache;
   }
 
   @Override
@@ -119,7 +147,8 @@ class RemoteSpawnRunner implements SpawnRunner {
     policy.report(ProgressStatus.EXECUTING, "remote");
     // Temporary hack: the TreeNodeRepository should be created and maintained upstream!
     ActionInputFileCache inputFileCache = policy.getActionInputFileCache();
-    TreeNodeRepository repository = new TreeNodeRepository(execRoot, inputFileCache, digestUtil);
+    TreeNodeRepository repository =
+        new TreeNodeRepository(execRoot, inputFileCache, digestUtil, merkleTreeCache);
     SortedMap<PathFragment, ActionInput> inputMap = policy.getInputMapping();
     TreeNode inputRoot = repository.buildFromActionInputs(inputMap);
     repository.computeMerkleDigests(inputRoot);
@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
 import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
+import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -59,6 +60,12 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
     this.blobStore = blobStore;
   }
 
+  public SimpleBlobStoreActionCache(
+      SimpleBlobStore blobStore, DigestUtil digestUtil, int maxConcurrentDownloads) {
+    super(digestUtil, maxConcurrentDownloads);
+    this.blobStore = blobStore;
+  }
+
   @Override
   public void ensureInputsPresent(
       TreeNodeRepository repository, Path execRoot, TreeNode root, Command command)
@@ -89,6 +96,14 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
 
   private Digest uploadFileContents(Path file) throws IOException, InterruptedException {
     Digest digest = digestUtil.compute(file);
+    return uploadFile(digest, file);
+  }
+
+  private Digest uploadFile(Digest digest, Path file) throws IOException, InterruptedException {
+    if (blobStore instanceof OnDiskBlobStore) {
+      ((OnDiskBlobStore) blobStore).putFromPath(digest.getHash(), file);
+      return digest;
+    }
     try (InputStream in = file.getInputStream()) {
       return uploadStream(digest, in);
     }
@@ -101,9 +116,9 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
       byte[] blob = ((VirtualActionInput) input).getBytes().toByteArray();
       return uploadBlob(blob, digestUtil.compute(blob));
     }
-    try (InputStream in = execRoot.getRelative(input.getExecPathString()).getInputStream()) {
-      return uploadStream(DigestUtil.getFromInputCache(input, inputCache), in);
-    }
+    return uploadFile(
+        DigestUtil.getFromInputCache(input, inputCache),
+        execRoot.getRelative(input.getExecPathString()));
   }
 
   @Override
@@ -135,9 +150,7 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
     manifest.addFiles(files);
 
     for (Map.Entry<Digest, Path> entry : manifest.getDigestToFile().entrySet()) {
-      try (InputStream in = entry.getValue().getInputStream()) {
-        uploadStream(entry.getKey(), in);
-      }
+      uploadFile(entry.getKey(), entry.getValue());
     }
 
     for (Map.Entry<Digest, Chunker> entry : manifest.getDigestToChunkers().entrySet()) {
@@ -209,10 +222,17 @@ public final class SimpleBlobStoreActionCache extends AbstractRemoteActionCache
   @Override
   public void close() {
     blobStore.close();
+    super.close();
   }
 
   @Override
   protected void downloadBlob(Digest digest, Path dest) throws IOException, InterruptedException {
+    if (blobStore instanceof OnDiskBlobStore) {
+      if (!((OnDiskBlobStore) blobStore).getToPath(digest.getHash(), dest)) {
+        throw new CacheNotFoundException(digest);
+      }
+      return;
+    }
     try (OutputStream out = dest.getOutputStream()) {
       boolean success = blobStore.get(digest.getHash(), out);
       if (!success) {
@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.remote;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.auth.Credentials;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.remote.blobstore.OnDiskBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.remote.blobstore.http.HttpBlobStore;
@@ -48,8 +49,15 @@ public final class SimpleBlobStoreFactory {
 
   public static SimpleBlobStore createLocalDisk(RemoteOptions options, Path workingDirectory)
       throws IOException {
-    return new OnDiskBlobStore(
-        workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath)));
+    Path cacheDir =
+        workingDirectory.getRelative(checkNotNull(options.experimentalLocalDiskCachePath));
+    if (options.experimentalLocalDiskCacheMaxSizeMb > 0) {
+      return new OnDiskBlobStore(
+          cacheDir,
+          options.experimentalLocalDiskCacheMaxSizeMb * 1024 * 1024,
+          BlazeClock.instance());
+    }
+    return new OnDiskBlobStore(cacheDir);
   }
 
   public static SimpleBlobStore create(
@@ -204,7 +204,9 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
       new TreeNode(ImmutableList.<TreeNode.ChildEntry>of(), null);
 
   // Keep only one canonical instance of every TreeNode in the repository.
-  private final Interner<TreeNode> interner = BlazeInterners.newWeakInterner();
+  private final Interner<TreeNode> interner;
+  // Shared with the repositories of other actions, if any.
+  @Nullable private final MerkleTreeCache merkleTreeCache;
   // Merkle hashes are computed and cached by the repository, therefore execRoot must
   // be part of the state.
   private final Path execRoot;
@@ -220,9 +222,26 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
 
   public TreeNodeRepository(
       Path execRoot, ActionInputFileCache inputFileCache, DigestUtil digestUtil) {
+    this(execRoot, inputFileCache, digestUtil, null);
+  }
+
+  /**
+   * Creates a repository that takes the directories it has in common with the repositories of
+   * other actions of the same build from {@code merkleTreeCache}, if given.
+   */
+  TreeNodeRepository(
+      Path execRoot,
+      ActionInputFileCache inputFileCache,
+      DigestUtil digestUtil,
+      @Nullable MerkleTreeCache merkleTreeCache) {
     this.execRoot = execRoot;
     this.inputFileCache = inputFileCache;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache = merkleTreeCache;
+    this.interner =
+        merkleTreeCache != null
+            ? merkleTreeCache.getInterner()
+            : BlazeInterners.<TreeNode>newWeakInterner();
   }
 
   public ActionInputFileCache getInputFileCache() {
@@ -341,39 +360,60 @@ public final class TreeNodeRepository extends TreeTraverser<TreeNodeRepository.T
     Preconditions.checkArgument(!node.isLeaf());
     Directory directory = directoryCache.get(node);
     if (directory == null) {
-      Directory.Builder b = Directory.newBuilder();
-      for (TreeNode.ChildEntry entry : node.getChildEntries()) {
-        TreeNode child = entry.getChild();
-        if (child.isLeaf()) {
-          ActionInput input = child.getActionInput();
-          if (input instanceof VirtualActionInput) {
-            VirtualActionInput virtualInput = (VirtualActionInput) input;
-            Digest digest = digestUtil.compute(virtualInput);
-            virtualInputDigestCache.put(virtualInput, digest);
-            // There may be multiple inputs with the same digest. In that case, we don't care which
-            // one we get back from the digestVirtualInputCache later.
-            digestVirtualInputCache.put(digest, virtualInput);
-            b.addFilesBuilder()
-                .setName(entry.getSegment())
-                .setDigest(digest)
-                .setIsExecutable(false);
-          } else {
-            b.addFilesBuilder()
-                .setName(entry.getSegment())
-                .setDigest(DigestUtil.getFromInputCache(input, inputFileCache))
-                .setIsExecutable(execRoot.getRelative(input.getExecPathString()).isExecutable());
+      MerkleTreeCache.Entry shared = merkleTreeCache != null ? merkleTreeCache.get(node) : null;
+      Digest digest;
+      if (shared != null) {
+        directory = shared.directory;
+        digest = shared.digest;
+        for (TreeNode.ChildEntry entry : node.getChildEntries()) {
+          TreeNode child = entry.getChild();
+          if (!child.isLeaf() && child.getActionInput() != null) {
+            inputDirectoryDigestCache.put(
+                child.getActionInput(), Preconditions.checkNotNull(treeNodeDigestCache.get(child)));
           }
-        } else {
-          Digest childDigest = Preconditions.checkNotNull(treeNodeDigestCache.get(child));
-          if (child.getActionInput() != null) {
-            inputDirectoryDigestCache.put(child.getActionInput(), childDigest);
+        }
+      } else {
+        boolean hasVirtualInputs = false;
+        Directory.Builder b = Directory.newBuilder();
+        for (TreeNode.ChildEntry entry : node.getChildEntries()) {
+          TreeNode child = entry.getChild();
+          if (child.isLeaf()) {
+            ActionInput input = child.getActionInput();
+            if (input instanceof VirtualActionInput) {
+              VirtualActionInput virtualInput = (VirtualActionInput) input;
+              Digest inputDigest = digestUtil.compute(virtualInput);
+              virtualInputDigestCache.put(virtualInput, inputDigest);
+              // There may be multiple inputs with the same digest. In that case, we don't care
+              // which one we get back from the digestVirtualInputCache later.
+              digestVirtualInputCache.put(inputDigest, virtualInput);
+              b.addFilesBuilder()
+                  .setName(entry.getSegment())
+                  .setDigest(inputDigest)
+                  .setIsExecutable(false);
+              hasVirtualInputs = true;
+            } else {
+              b.addFilesBuilder()
+                  .setName(entry.getSegment())
+                  .setDigest(DigestUtil.getFromInputCache(input, inputFileCache))
+                  .setIsExecutable(execRoot.getRelative(input.getExecPathString()).isExecutable());
+            }
+          } else {
+            Digest childDigest = Preconditions.checkNotNull(treeNodeDigestCache.get(child));
+            if (child.getActionInput() != null) {
+              inputDirectoryDigestCache.put(child.getActionInput(), childDigest);
+            }
+            b.addDirectoriesBuilder().setName(entry.getSegment()).setDigest(childDigest);
           }
-          b.addDirectoriesBuilder().setName(entry.getSegment()).setDigest(childDigest);
+        }
+        directory = b.build();
+        digest = digestUtil.compute(directory);
+        // The contents of virtual inputs are specific to their action, and the digests of the
+        // virtual inputs of a shared directory would be missing from the other repositories.
+        if (merkleTreeCache != null && !hasVirtualInputs) {
+          merkleTreeCache.put(node, directory, digest);
         }
       }
-      directory = b.build();
       directoryCache.put(node, directory);
-      Digest digest = digestUtil.compute(directory);
       treeNodeDigestCache.put(node, digest);
       digestTreeNodeCache.put(digest, node);
     }
@@ -0,0 +1,272 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote.blobstore;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * The sizes and last access times of the entries of an {@link OnDiskBlobStore}.
+ *
+ * <p>The access times are tracked here rather than through the file system's atime, which is often
+ * disabled or coarse, and persisted in a single index file between builds.
+ */
+final class DiskCacheIndex {
+  private static final int MAGIC = 0x44434958;
+  private static final int VERSION = 1;
+
+  /** The bookkeeping for one blob. */
+  static final class Entry {
+    private final long size;
+    private volatile long lastAccessMillis;
+    // Set while the blob is being deleted by evict(), and counted down when that's done.
+    @Nullable private volatile CountDownLatch eviction;
+
+    Entry(long size, long lastAccessMillis) {
+      this.size = size;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getLastAccessMillis() {
+      return lastAccessMillis;
+    }
+  }
+
+  /** Deletes the blob of an evicted entry. */
+  interface Evictor {
+    /**
+     * Returns whether the blob may be evicted. Called atomically with respect to {@link #touch} and
+     * {@link #add} of the same key, so it must be cheap.
+     */
+    boolean canEvict(String key);
+
+    /** Deletes the blob. A blob that is already gone is not an error. */
+    void delete(String key) throws IOException;
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  // Keys evicted by this instance, so that they aren't resurrected when merging on save.
+  private final Set<String> evicted = ConcurrentHashMap.newKeySet();
+  private final AtomicLong totalSize = new AtomicLong();
+
+  /** Returns the total size of the blobs in the index. */
+  long getTotalSize() {
+    return totalSize.get();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  @Nullable
+  Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /** Records that the blob was added or replaced. */
+  void add(String key, long size, long nowMillis) {
+    evicted.remove(key);
+    entries.compute(
+        key,
+        (k, old) -> {
+          totalSize.addAndGet(size - (old == null ? 0 : old.size));
+          return new Entry(size, nowMillis);
+        });
+  }
+
+  /**
+   * Records that the blob was accessed. This waits for a concurrent {@link #evict} of the same key
+   * to finish.
+   */
+  void touch(String key, long nowMillis) {
+    while (true) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        return;
+      }
+      CountDownLatch eviction = entry.eviction;
+      if (eviction == null) {
+        break;
+      }
+      Uninterruptibles.awaitUninterruptibly(eviction);
+    }
+    entries.computeIfPresent(
+        key,
+        (k, entry) -> {
+          entry.lastAccessMillis = Math.max(entry.lastAccessMillis, nowMillis);
+          return entry;
+        });
+  }
+
+  /**
+   * Evicts the entry with the given key using {@code evictor}. Returns the number of bytes freed.
+   *
+   * <p>The entry is claimed for eviction under the lock of the map, if {@link
+   * Evictor#canEvict} allows it, and the blob is deleted after the lock was released, so that the
+   * deletion doesn't block unrelated updates of the map. A {@link #touch} of a claimed entry waits
+   * until the deletion is done.
+   */
+  long evict(String key, Evictor evictor) throws IOException {
+    Entry[] claimed = new Entry[1];
+    entries.computeIfPresent(
+        key,
+        (k, entry) -> {
+          if (entry.eviction == null && evictor.canEvict(k)) {
+            entry.eviction = new CountDownLatch(1);
+            claimed[0] = entry;
+          }
+          return entry;
+        });
+    Entry entry = claimed[0];
+    if (entry == null) {
+      return 0;
+    }
+    CountDownLatch eviction = entry.eviction;
+    boolean deleted = false;
+    try {
+      evictor.delete(key);
+      deleted = true;
+    } finally {
+      // An add() of the same key may have replaced the entry in the meantime.
+      if (deleted && entries.remove(key, entry)) {
+        totalSize.addAndGet(-entry.size);
+        evicted.add(key);
+      } else {
+        entry.eviction = null;
+        deleted = false;
+      }
+      eviction.countDown();
+    }
+    return deleted ? entry.size : 0;
+  }
+
+  /** Returns a snapshot of the entries, least recently used first. */
+  List<Map.Entry<String, Entry>> leastRecentlyUsedFirst() {
+    List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.size());
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      snapshot.add(new SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+    }
+    snapshot.sort(Comparator.comparingLong(e -> e.getValue().getLastAccessMillis()));
+    return snapshot;
+  }
+
+  /**
+   * Reads the index from the given file. Returns null if the file doesn't exist or is not a valid
+   * index.
+   */
+  @Nullable
+  static DiskCacheIndex load(Path indexFile) {
+    DiskCacheIndex index = new DiskCacheIndex();
+    return index.merge(indexFile) ? index : null;
+  }
+
+  /**
+   * Adds the entries of the given index file that this index doesn't know about, e.g. ones added
+   * by another Bazel server sharing the cache, and keeps the most recent access time of the
+   * entries both know. Returns whether the file was a valid index.
+   */
+  private boolean merge(Path indexFile) {
+    if (!indexFile.exists()) {
+      return false;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(indexFile.getInputStream()))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return false;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        long size = in.readLong();
+        long lastAccessMillis = in.readLong();
+        if (evicted.contains(key)) {
+          continue;
+        }
+        Entry existing = entries.putIfAbsent(key, new Entry(size, lastAccessMillis));
+        if (existing == null) {
+          totalSize.addAndGet(size);
+        } else {
+          touch(key, lastAccessMillis);
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Builds the index by listing the blobs of the given sharded cache directory. Uses the last
+   * modification time of each blob as its last access time.
+   */
+  static DiskCacheIndex scan(Path root, String tmpDirName) throws IOException {
+    DiskCacheIndex index = new DiskCacheIndex();
+    if (!root.exists()) {
+      return index;
+    }
+    for (Path shard : root.getDirectoryEntries()) {
+      if (!shard.isDirectory() || shard.getBaseName().equals(tmpDirName)) {
+        continue;
+      }
+      for (Path blob : shard.getDirectoryEntries()) {
+        if (blob.isFile()) {
+          index.add(blob.getBaseName(), blob.getFileSize(), blob.getLastModifiedTime());
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Writes the index to the given file, merging in entries that were added to the file since it
+   * was read.
+   */
+  void save(Path indexFile) throws IOException {
+    merge(indexFile);
+    Path tmp = indexFile.getParentDirectory().getChild(indexFile.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmp.getOutputStream()))) {
+      List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, Entry> entry : snapshot) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue().size);
+        out.writeLong(entry.getValue().lastAccessMillis);
+      }
+    }
+    tmp.renameTo(indexFile);
+  }
+}
@@ -13,34 +13,326 @@
 // limitations under the License.
 package com.google.devtools.build.lib.remote.blobstore;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.vfs.AbstractFileSystemWithCustomStat;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
-/** A on-disk store for the remote action cache. */
+/**
+ * A on-disk store for the remote action cache.
+ *
+ * <p>Blobs are stored in subdirectories named after the first two characters of their key, so that
+ * no single directory holds millions of entries.
+ *
+ * <p>If a maximum size is given, the store keeps a {@link DiskCacheIndex} of the blob sizes and
+ * access times, and evicts the least recently used blobs on a background thread once the cache
+ * grows beyond that size. Blobs that were accessed through this instance, i.e. by the current
+ * build, are never evicted.
+ *
+ * <p>New blobs are written to a temporary file and only renamed into place after they have been
+ * synced to disk, so that a machine crash can't leave a truncated blob under a valid key. To avoid
+ * an fsync per blob, the renames are batched: a blob is served from its temporary file until the
+ * batch it belongs to is synced, which happens once enough data accumulated and on {@link
+ * #close}.
+ *
+ * <p>Each store writes its temporary files to a directory of its own below {@code tmp/}. On the
+ * local file system, it holds a lock on a file next to that directory while it is open. The
+ * temporary directories that aren't locked, i.e. those of stores that were not closed because their
+ * process was killed, are deleted when a store is opened; the blobs in them are lost.
+ */
 public final class OnDiskBlobStore implements SimpleBlobStore {
+  private static final Logger logger = Logger.getLogger(OnDiskBlobStore.class.getName());
+
+  private static final String TMP_DIR = "tmp";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String INDEX_FILE = "index";
+  // Evict down to this fraction of the maximum size, so that eviction doesn't run for every put.
+  private static final double EVICTION_LOW_WATERMARK = 0.9;
+  // Sync and rename the pending blobs once there are this many of them, or this many bytes.
+  private static final int SYNC_BATCH_FILES = 256;
+  private static final long SYNC_BATCH_BYTES = 64L * 1024 * 1024;
+
+  // The temporary directories of the stores that are open in this process.
+  private static final Set<Path> openTmpDirs = ConcurrentHashMap.newKeySet();
+
   private final Path root;
+  private final Path tmpDir;
+  private final Object tmpDirGuard = new Object();
+  // Guarded by tmpDirGuard.
+  private boolean tmpDirCreated;
+  // Guarded by tmpDirGuard. Only used on the local file system.
+  @Nullable private FileLock tmpDirLock;
+  private final long maxSizeBytes;
+  private final Clock clock;
+  @Nullable private final DiskCacheIndex index;
+  // The keys accessed by the current build, which must not be evicted.
+  private final Set<String> referenced = ConcurrentHashMap.newKeySet();
+  @Nullable private final ExecutorService evictionExecutor;
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final DiskCacheIndex.Evictor evictor =
+      new DiskCacheIndex.Evictor() {
+        @Override
+        public boolean canEvict(String key) {
+          // Check again, atomically with respect to reference().
+          return !referenced.contains(key);
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+          toPath(key).delete();
+        }
+      };
+
+  // Guards the visibility of pending blobs: held for reading while resolving and opening a blob,
+  // and for writing while adding pending blobs or renaming them into place.
+  private final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+  // The temporary files of the blobs written but not yet renamed into place, by key.
+  private final Map<String, Path> pending = new HashMap<>();
+  // The pending blobs that are not part of a batch being synced yet.
+  private List<PendingBlob> unsynced = new ArrayList<>();
+  private long unsyncedBytes;
+  // Only one batch is synced at a time.
+  private final Object syncLock = new Object();
+
+  private static final class PendingBlob {
+    final String key;
+    final Path temp;
 
+    PendingBlob(String key, Path temp) {
+      this.key = key;
+      this.temp = temp;
+    }
+  }
+
+  /** Creates an unbounded store. */
   public OnDiskBlobStore(Path root) {
     this.root = root;
+    this.tmpDir = newTmpDir(root);
+    this.maxSizeBytes = 0;
+    this.clock = null;
+    this.index = null;
+    this.evictionExecutor = null;
+    try {
+      deleteAbandonedTmpDirs();
+      shardUnshardedBlobs();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to clean up the local disk cache at " + root, e);
+    }
+  }
+
+  /**
+   * Creates a store that evicts the least recently used blobs when its size exceeds {@code
+   * maxSizeBytes}.
+   */
+  public OnDiskBlobStore(Path root, long maxSizeBytes, Clock clock) throws IOException {
+    this.root = root;
+    this.tmpDir = newTmpDir(root);
+    this.maxSizeBytes = maxSizeBytes;
+    this.clock = clock;
+    deleteAbandonedTmpDirs();
+    DiskCacheIndex loaded = DiskCacheIndex.load(root.getChild(INDEX_FILE));
+    if (loaded == null) {
+      shardUnshardedBlobs();
+    }
+    this.index = loaded != null ? loaded : DiskCacheIndex.scan(root, TMP_DIR);
+    this.evictionExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-eviction-%d")
+                .setDaemon(true)
+                .build());
+    maybeScheduleEviction();
+  }
+
+  private static Path newTmpDir(Path root) {
+    return root.getChild(TMP_DIR).getChild(UUID.randomUUID().toString());
+  }
+
+  private static Path lockFile(Path dir) {
+    return dir.getParentDirectory().getChild(dir.getBaseName() + LOCK_SUFFIX);
+  }
+
+  /**
+   * Deletes the temporary directories of the stores that are no longer open, and the temporary
+   * files of older versions of this store.
+   */
+  private void deleteAbandonedTmpDirs() throws IOException {
+    Path tmpRoot = tmpDir.getParentDirectory();
+    if (!tmpRoot.exists()) {
+      return;
+    }
+    boolean local = isLocal(tmpRoot);
+    for (Path entry : tmpRoot.getDirectoryEntries()) {
+      String name = entry.getBaseName();
+      if (local && name.endsWith(LOCK_SUFFIX)) {
+        Path dir = tmpRoot.getChild(name.substring(0, name.length() - LOCK_SUFFIX.length()));
+        if (!dir.exists()) {
+          // The store was killed before it created its directory, or while deleting it.
+          deleteIfUnlocked(dir);
+        }
+      } else if (openTmpDirs.contains(entry)) {
+        continue;
+      } else if (!entry.isDirectory(Symlinks.NOFOLLOW)) {
+        entry.delete();
+      } else if (!local) {
+        // Another process can't be using a non-local file system.
+        FileSystemUtils.deleteTree(entry);
+      } else {
+        deleteIfUnlocked(entry);
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary directory of another store and its lock file, if no process holds the
+   * lock. Directories without a lock file are kept, as their store may be just starting.
+   */
+  private static void deleteIfUnlocked(Path dir) throws IOException {
+    Path lockFile = lockFile(dir);
+    if (!lockFile.exists()) {
+      return;
+    }
+    try (FileChannel channel =
+        FileChannel.open(lockFile.getPathFile().toPath(), StandardOpenOption.WRITE)) {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Held by this process.
+        return;
+      }
+      if (lock == null) {
+        return;
+      }
+      FileSystemUtils.deleteTree(dir);
+      lockFile.delete();
+    } catch (NoSuchFileException e) {
+      // Deleted by another store in the meantime.
+    }
+  }
+
+  /** Creates the temporary directory of this store and, on the local file system, locks it. */
+  private void createTmpDir() throws IOException {
+    synchronized (tmpDirGuard) {
+      if (tmpDirCreated) {
+        return;
+      }
+      FileSystemUtils.createDirectoryAndParents(tmpDir.getParentDirectory());
+      openTmpDirs.add(tmpDir);
+      if (isLocal(tmpDir)) {
+        FileChannel channel =
+            FileChannel.open(
+                lockFile(tmpDir).getPathFile().toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        try {
+          tmpDirLock = channel.lock();
+        } catch (IOException e) {
+          channel.close();
+          throw e;
+        }
+      }
+      FileSystemUtils.createDirectoryAndParents(tmpDir);
+      tmpDirCreated = true;
+    }
+  }
+
+  /** Deletes the temporary directory of this store, which should be empty, and its lock file. */
+  private void deleteTmpDir() throws IOException {
+    synchronized (tmpDirGuard) {
+      if (!tmpDirCreated) {
+        return;
+      }
+      tmpDirCreated = false;
+      try {
+        FileSystemUtils.deleteTree(tmpDir);
+        if (tmpDirLock != null) {
+          lockFile(tmpDir).delete();
+        }
+      } finally {
+        if (tmpDirLock != null) {
+          tmpDirLock.channel().close();
+          tmpDirLock = null;
+        }
+        openTmpDirs.remove(tmpDir);
+      }
+    }
+  }
+
+  /**
+   * Moves the blobs that older versions of this store kept directly in the root directory into
+   * their shards, so that they are found, indexed and eventually evicted.
+   */
+  private void shardUnshardedBlobs() throws IOException {
+    if (!root.exists()) {
+      return;
+    }
+    for (Path entry : root.getDirectoryEntries()) {
+      String name = entry.getBaseName();
+      if (!entry.isFile(Symlinks.NOFOLLOW)
+          || name.equals(INDEX_FILE)
+          || name.equals(INDEX_FILE + ".tmp")) {
+        continue;
+      }
+      Path f = toPath(name);
+      FileSystemUtils.createDirectoryAndParents(f.getParentDirectory());
+      entry.renameTo(f);
+    }
   }
 
   @Override
   public boolean containsKey(String key) {
-    return toPath(key).exists();
+    reference(key);
+    if (toPath(key).exists()) {
+      return true;
+    }
+    pendingLock.readLock().lock();
+    try {
+      return pending.containsKey(key);
+    } finally {
+      pendingLock.readLock().unlock();
+    }
   }
 
   @Override
   public boolean get(String key, OutputStream out) throws IOException {
-    Path f = toPath(key);
-    if (!f.exists()) {
-      return false;
-    }
-    try (InputStream in = f.getInputStream()) {
+    reference(key);
+    try (InputStream in = openBlob(key)) {
+      if (in == null) {
+        return false;
+      }
       ByteStreams.copy(in, out);
     }
     return true;
@@ -52,17 +344,84 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
     return get(key, out);
   }
 
+  /**
+   * Copies the blob to {@code dest}, replacing its contents. If both are on the local file system,
+   * the data is moved with {@link FileChannel#transferTo}, which lets the kernel copy it without
+   * passing it through the Java heap.
+   *
+   * <p>The blob is copied rather than hard linked, as the caller may change the permissions of the
+   * output file, which would also change the permissions of the cached blob.
+   *
+   * @return {@code true} if the {@code key} was found. {@code false} otherwise.
+   */
+  public boolean getToPath(String key, Path dest) throws IOException {
+    reference(key);
+    FileChannel in = null;
+    Path blob;
+    pendingLock.readLock().lock();
+    try {
+      blob = resolve(key);
+      if (blob != null && isLocal(blob) && isLocal(dest)) {
+        in = FileChannel.open(blob.getPathFile().toPath(), StandardOpenOption.READ);
+      }
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+    if (blob == null) {
+      return false;
+    }
+    if (in == null) {
+      try (OutputStream out = dest.getOutputStream()) {
+        return get(key, out);
+      }
+    }
+    try (FileChannel source = in;
+        FileChannel target =
+            FileChannel.open(
+                dest.getPathFile().toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+      transfer(source, target);
+    }
+    return true;
+  }
+
   @Override
   public void put(String key, long length, InputStream in) throws IOException {
-    // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
-    Path temp = toPath(UUID.randomUUID().toString());
+    reference(key);
+    Path temp = newTempFile();
+    long size;
     try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
+      size = ByteStreams.copy(in, out);
     }
-    // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
-    // crashes (the OS may reorder the writes and the rename).
-    Path f = toPath(key);
-    temp.renameTo(f);
+    addPending(key, temp, size);
+  }
+
+  /**
+   * Stores the contents of {@code file} under {@code key}. If both are on the local file system,
+   * the data is moved with {@link FileChannel#transferTo}.
+   */
+  public void putFromPath(String key, Path file) throws IOException {
+    reference(key);
+    if (!isLocal(file) || !isLocal(root)) {
+      try (InputStream in = file.getInputStream()) {
+        put(key, file.getFileSize(), in);
+      }
+      return;
+    }
+    Path temp = newTempFile();
+    long size;
+    try (FileChannel source =
+            FileChannel.open(file.getPathFile().toPath(), StandardOpenOption.READ);
+        FileChannel target =
+            FileChannel.open(
+                temp.getPathFile().toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+      size = transfer(source, target);
+    }
+    addPending(key, temp, size);
   }
 
   @Override
@@ -70,10 +429,224 @@ public final class OnDiskBlobStore implements SimpleBlobStore {
     put(key, in.length, new ByteArrayInputStream(in));
   }
 
+  /**
+   * Syncs the pending blobs to disk, waits for a running eviction and writes the index to disk.
+   * Calls after the first one do nothing.
+   */
   @Override
-  public void close() {}
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      syncPending();
+      deleteTmpDir();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to sync the local disk cache", e);
+    }
+    if (index == null) {
+      return;
+    }
+    evictionExecutor.shutdown();
+    try {
+      evictionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      FileSystemUtils.createDirectoryAndParents(root);
+      index.save(root.getChild(INDEX_FILE));
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write the local disk cache index", e);
+    }
+  }
+
+  /**
+   * Protects the blob from eviction for the lifetime of this store. Must be called before the blob
+   * is accessed, so that a concurrent eviction either finishes before the access or skips it.
+   */
+  private void reference(String key) {
+    if (index != null) {
+      referenced.add(key);
+      index.touch(key, clock.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Returns a stream of the blob with the given key, or null if there is none. The stream is opened
+   * while holding the lock, so that a concurrent rename of a pending blob doesn't affect it.
+   */
+  @Nullable
+  private InputStream openBlob(String key) throws IOException {
+    pendingLock.readLock().lock();
+    try {
+      Path blob = resolve(key);
+      return blob != null ? blob.getInputStream() : null;
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+  }
+
+  /** Returns the file holding the blob, or null if there is none. Requires the pending lock. */
+  @Nullable
+  private Path resolve(String key) {
+    Path temp = pending.get(key);
+    if (temp != null) {
+      return temp;
+    }
+    Path f = toPath(key);
+    return f.exists() ? f : null;
+  }
+
+  private Path newTempFile() throws IOException {
+    createTmpDir();
+    return tmpDir.getChild(UUID.randomUUID().toString());
+  }
+
+  private void addPending(String key, Path temp, long size) throws IOException {
+    boolean syncNow;
+    pendingLock.writeLock().lock();
+    try {
+      pending.put(key, temp);
+      unsynced.add(new PendingBlob(key, temp));
+      unsyncedBytes += size;
+      syncNow = unsynced.size() >= SYNC_BATCH_FILES || unsyncedBytes >= SYNC_BATCH_BYTES;
+    } finally {
+      pendingLock.writeLock().unlock();
+    }
+    if (index != null) {
+      index.add(key, size, clock.currentTimeMillis());
+      maybeScheduleEviction();
+    }
+    if (syncNow) {
+      syncPending();
+    }
+  }
+
+  /**
+   * Syncs the current batch of pending blobs to disk and renames them into place. The renames are
+   * only done after all files of the batch have been synced, as the OS may otherwise reorder the
+   * writes and the rename, leaving a truncated blob after a machine crash.
+   */
+  @VisibleForTesting
+  void syncPending() throws IOException {
+    synchronized (syncLock) {
+      List<PendingBlob> batch;
+      pendingLock.writeLock().lock();
+      try {
+        batch = unsynced;
+        unsynced = new ArrayList<>();
+        unsyncedBytes = 0;
+      } finally {
+        pendingLock.writeLock().unlock();
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      for (PendingBlob blob : batch) {
+        fsync(blob.temp, StandardOpenOption.WRITE);
+      }
+      Set<Path> shards = new HashSet<>();
+      pendingLock.writeLock().lock();
+      try {
+        for (PendingBlob blob : batch) {
+          Path f = toPath(blob.key);
+          if (shards.add(f.getParentDirectory())) {
+            FileSystemUtils.createDirectoryAndParents(f.getParentDirectory());
+          }
+          blob.temp.renameTo(f);
+          pending.remove(blob.key, blob.temp);
+        }
+      } finally {
+        pendingLock.writeLock().unlock();
+      }
+      // Make the renames durable too. Not all platforms support syncing a directory, and losing
+      // a rename only loses a cache entry, so failures are ignored.
+      for (Path shard : shards) {
+        try {
+          fsync(shard, StandardOpenOption.READ);
+        } catch (IOException e) {
+          // Ignored, see above.
+        }
+      }
+    }
+  }
+
+  private static void fsync(Path path, StandardOpenOption mode) throws IOException {
+    if (!isLocal(path)) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(path.getPathFile().toPath(), mode)) {
+      channel.force(true);
+    }
+  }
+
+  /** Returns the number of bytes copied. */
+  private static long transfer(FileChannel source, FileChannel target) throws IOException {
+    long size = source.size();
+    long position = 0;
+    while (position < size) {
+      long transferred = source.transferTo(position, size - position, target);
+      if (transferred <= 0) {
+        // The file was truncated concurrently.
+        break;
+      }
+      position += transferred;
+    }
+    return position;
+  }
+
+  /** Whether the path is on the local file system, so that it can be accessed through java.nio. */
+  private static boolean isLocal(Path path) {
+    return path.getFileSystem() instanceof AbstractFileSystemWithCustomStat;
+  }
+
+  private void maybeScheduleEviction() {
+    if (index.getTotalSize() > maxSizeBytes && evictionScheduled.compareAndSet(false, true)) {
+      try {
+        evictionExecutor.execute(this::evict);
+      } catch (RejectedExecutionException e) {
+        // The store is being closed.
+        evictionScheduled.set(false);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void evict() {
+    try {
+      long target = (long) (maxSizeBytes * EVICTION_LOW_WATERMARK);
+      long freed = 0;
+      int count = 0;
+      for (Map.Entry<String, DiskCacheIndex.Entry> entry : index.leastRecentlyUsedFirst()) {
+        if (index.getTotalSize() <= target) {
+          break;
+        }
+        String key = entry.getKey();
+        if (referenced.contains(key)) {
+          continue;
+        }
+        try {
+          long bytes = index.evict(key, evictor);
+          if (bytes > 0) {
+            freed += bytes;
+            count++;
+          }
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to evict " + key + " from the local disk cache", e);
+        }
+      }
+      logger.info(
+          String.format(
+              "Evicted %d blobs (%d bytes) from the local disk cache at %s", count, freed, root));
+    } finally {
+      evictionScheduled.set(false);
+    }
+  }
 
-  private Path toPath(String key) {
-    return root.getChild(key);
+  @VisibleForTesting
+  Path toPath(String key) {
+    String shard = key.length() >= 2 ? key.substring(0, 2) : "_";
+    return root.getChild(shard).getChild(key);
   }
 }
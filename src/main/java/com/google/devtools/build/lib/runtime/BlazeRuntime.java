@@ -498,6 +498,9 @@ public final class BlazeRuntime {
 
   /** Invokes {@link BlazeModule#blazeShutdown()} on all registered modules. */
   public void shutdown() {
+    if (workspace != null) {
+      workspace.getSkyframeExecutor().noteServerShutdown();
+    }
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
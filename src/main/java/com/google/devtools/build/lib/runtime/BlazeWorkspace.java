@@ -22,6 +22,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache.StorageFormat;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
@@ -63,7 +64,7 @@ public final class BlazeWorkspace {
   private final BlazeDirectories directories;
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
-  private ActionCache actionCache;
+  private CompactPersistentActionCache actionCache;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -228,6 +229,7 @@ public final class BlazeWorkspace {
   public void clearCaches() throws IOException {
     if (actionCache != null) {
       actionCache.clear();
+      actionCache.close();
     }
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
@@ -240,9 +242,12 @@ public final class BlazeWorkspace {
    */
   public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
     if (actionCache == null) {
+      StorageFormat actionCacheFormat = StorageFormat.fromSystemProperty();
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, logger)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), actionCacheFormat);
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -255,7 +260,9 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache =
+              new CompactPersistentActionCache(
+                  getCacheDirectory(), runtime.getClock(), actionCacheFormat);
         }
       }
     }
@@ -20,6 +20,9 @@ import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** Enables the caching of file digests in {@link DigestUtils}. */
@@ -36,6 +39,9 @@ public class CacheFileDigestsModule extends BlazeModule {
    */
   private Long lastKnownCacheSize;
 
+  /** Whether the persistent cache is enabled. */
+  private boolean persistentCacheEnabled;
+
   public CacheFileDigestsModule() {}
 
   /**
@@ -76,6 +82,19 @@ public class CacheFileDigestsModule extends BlazeModule {
       stats = DigestUtils.getCacheStats();
       logStats("Accumulated cache stats before command", stats);
     }
+
+    if (options.persistentFileDigestCache != persistentCacheEnabled) {
+      Path cacheRoot =
+          options.persistentFileDigestCache ? env.getOutputBase().getChild("digest_cache") : null;
+      try {
+        DigestUtils.configurePersistentCache(cacheRoot);
+        persistentCacheEnabled = options.persistentFileDigestCache;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to reconfigure the persistent cache", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   @Override
@@ -89,5 +108,15 @@ public class CacheFileDigestsModule extends BlazeModule {
       logStats("Cache stats for finished command", newStats.minus(stats));
       stats = null; // Silence stats until next command that uses the executor.
     }
+
+    if (persistentCacheEnabled) {
+      try {
+        DigestUtils.flushPersistentCache();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to save the persistent cache", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 }
@@ -38,10 +38,12 @@ import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import javax.annotation.Nullable;
 
 /** Abstract common ancestor for sandbox spawn runners implementing the common parts. */
 abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
@@ -55,13 +57,22 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
   private final SandboxOptions sandboxOptions;
   private final boolean verboseFailures;
   private final ImmutableSet<Path> inaccessiblePaths;
+  @Nullable private final SandboxDirectoryPool sandboxDirectoryPool;
+  private final TreeDeleter treeDeleter;
 
-  public AbstractSandboxSpawnRunner(CommandEnvironment cmdEnv, Path sandboxBase) {
+  public AbstractSandboxSpawnRunner(
+      CommandEnvironment cmdEnv, Path sandboxBase, TreeDeleter treeDeleter) {
     this.sandboxBase = sandboxBase;
+    this.treeDeleter = treeDeleter;
     this.sandboxOptions = cmdEnv.getOptions().getOptions(SandboxOptions.class);
     this.verboseFailures = cmdEnv.getOptions().getOptions(ExecutionOptions.class).verboseFailures;
     this.inaccessiblePaths =
         sandboxOptions.getInaccessiblePaths(cmdEnv.getRuntime().getFileSystem());
+    // With --sandbox_debug, every sandbox directory is kept as the spawn left it.
+    this.sandboxDirectoryPool =
+        sandboxOptions.reuseSandboxDirectories && !sandboxOptions.sandboxDebug
+            ? new SandboxDirectoryPool(treeDeleter)
+            : null;
   }
 
   @Override
@@ -93,6 +104,7 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       Duration timeout,
       Optional<String> statisticsPath)
       throws IOException, InterruptedException {
+    boolean reusable = false;
     try {
       sandbox.createFileSystem();
       OutErr outErr = policy.getFileOutErr();
@@ -108,14 +120,37 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       } catch (IOException e) {
         throw new IOException("Could not move output artifacts from sandboxed execution", e);
       }
+      reusable = true;
       return result;
     } finally {
       if (!sandboxOptions.sandboxDebug) {
-        sandbox.delete();
+        if (!reusable || !releaseSandbox(originalSpawn, sandbox)) {
+          sandbox.delete();
+        }
       }
     }
   }
 
+  /**
+   * Returns the directory of {@code sandbox} to the pool of reusable sandbox directories, if there
+   * is one. Returns false if the directory should be deleted instead.
+   */
+  private boolean releaseSandbox(Spawn originalSpawn, SandboxedSpawn sandbox) {
+    if (sandboxDirectoryPool == null || !(sandbox instanceof SymlinkedSandboxedSpawn)) {
+      return false;
+    }
+    SymlinkedSandboxedSpawn symlinkedSandbox = (SymlinkedSandboxedSpawn) sandbox;
+    try {
+      sandboxDirectoryPool.release(
+          originalSpawn.getMnemonic(),
+          symlinkedSandbox.getSandboxPath(),
+          symlinkedSandbox.getInputs());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private final SpawnResult run(
       Spawn originalSpawn,
       SandboxedSpawn sandbox,
@@ -212,6 +247,31 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
     return !timeout.isZero() && wallTime.compareTo(timeout) > 0;
   }
 
+  /**
+   * Returns the sandbox directory for {@code spawn}: an idle one that an earlier spawn left behind
+   * if sandbox directories are reused, or a new temporary directory otherwise.
+   */
+  protected Path getSandboxRoot(Spawn spawn) throws IOException {
+    if (sandboxDirectoryPool != null) {
+      Path sandboxPath = sandboxDirectoryPool.take(spawn.getMnemonic());
+      if (sandboxPath != null) {
+        return sandboxPath;
+      }
+    }
+    return getSandboxRoot();
+  }
+
+  /**
+   * Returns the inputs that the previous spawn created in {@code sandboxPath}, which was returned
+   * by {@link #getSandboxRoot(Spawn)}, or null if the directory is new.
+   */
+  @Nullable
+  protected Map<PathFragment, Path> getPreviousInputs(Path sandboxPath) {
+    return sandboxDirectoryPool != null
+        ? sandboxDirectoryPool.takePreviousInputs(sandboxPath)
+        : null;
+  }
+
   /**
    * Returns a temporary directory that should be used as the sandbox directory for a single action.
    */
@@ -289,6 +349,10 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
     return inaccessiblePaths;
   }
 
+  protected TreeDeleter getTreeDeleter() {
+    return treeDeleter;
+  }
+
   protected SandboxOptions getSandboxOptions() {
     return sandboxOptions;
   }
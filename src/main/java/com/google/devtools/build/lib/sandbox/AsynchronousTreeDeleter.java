@@ -0,0 +1,136 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Deletes trees in the background, so that spawns and commands don't wait for it.
+ *
+ * <p>A tree is first renamed into a trash directory next to it, which is a single atomic operation
+ * that frees its path right away. A few low-priority threads then delete what's in the trash. If
+ * the server exits before they are done, the next server deletes the rest of the trash when it
+ * creates its deleter. If a tree can't be renamed, for example because the trash is on another file
+ * system, it's deleted synchronously instead.
+ */
+@ThreadSafe
+final class AsynchronousTreeDeleter implements TreeDeleter {
+  private static final Logger logger = Logger.getLogger(AsynchronousTreeDeleter.class.getName());
+
+  private final Path trashBase;
+  private final int threads;
+  private final ThreadPoolExecutor service;
+  // The trees that are in the trash and not deleted yet.
+  private final AtomicInteger pendingTrees = new AtomicInteger();
+  // Makes the names in the trash unique. The prefix keeps them from clashing with trash left behind
+  // by an earlier server, which may still be deleted.
+  private final String trashPrefix = Long.toString(System.currentTimeMillis()) + "-";
+  private final AtomicLong trashCounter = new AtomicLong();
+
+  /**
+   * Creates a deleter that moves trees into {@code trashBase} and deletes them with at most {@code
+   * threads} threads, and schedules everything that's in the trash already for deletion.
+   */
+  AsynchronousTreeDeleter(Path trashBase, int threads) throws IOException {
+    this.trashBase = trashBase;
+    this.threads = threads;
+    this.service =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("sandbox-tree-deleter-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+    service.allowCoreThreadTimeOut(true);
+    FileSystemUtils.createDirectoryAndParents(trashBase);
+    for (Path leftover : trashBase.getDirectoryEntries()) {
+      schedule(leftover);
+    }
+  }
+
+  Path getTrashBase() {
+    return trashBase;
+  }
+
+  int getThreads() {
+    return threads;
+  }
+
+  /** Returns the number of trees that are waiting to be deleted or being deleted. */
+  int getQueueDepth() {
+    return pendingTrees.get();
+  }
+
+  @Override
+  public void deleteTree(Path path) throws IOException {
+    Path trashPath = trashBase.getChild(trashPrefix + trashCounter.incrementAndGet());
+    try {
+      path.renameTo(trashPath);
+    } catch (IOException e) {
+      FileSystemUtils.deleteTree(path);
+      return;
+    }
+    schedule(trashPath);
+  }
+
+  private void schedule(Path trashPath) {
+    pendingTrees.incrementAndGet();
+    service.execute(
+        () -> {
+          try {
+            FileSystemUtils.deleteTree(trashPath);
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to delete " + trashPath, e);
+          } finally {
+            pendingTrees.decrementAndGet();
+          }
+        });
+  }
+
+  /**
+   * Stops deleting trees. What's left in the trash is deleted by the next deleter for the same
+   * trash directory.
+   */
+  void shutdown() {
+    service.shutdownNow();
+  }
+
+  /**
+   * Stops deleting trees, and waits until the trees that are being deleted are done, so that a new
+   * deleter for the same trash directory doesn't delete them at the same time.
+   */
+  void shutdownAndAwaitTermination() {
+    if (ExecutorUtil.uninterruptibleShutdownNow(service)) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -99,35 +99,6 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   private final ImmutableSet<Path> alwaysWritableDirs;
   private final LocalEnvProvider localEnvProvider;
 
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code process-wrapper} tool and the MacOS
-   * {@code sandbox-exec} binary. If a spawn exceeds its timeout, then it will be killed instantly.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   */
-  DarwinSandboxedSpawnRunner(CommandEnvironment cmdEnv, Path sandboxBase, String productName)
-      throws IOException {
-    this(cmdEnv, sandboxBase, productName, Optional.empty());
-  }
-
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code process-wrapper} tool and the MacOS
-   * {@code sandbox-exec} binary. If a spawn exceeds its timeout, then it will be killed after the
-   * specified delay.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   * @param timeoutKillDelay an additional grace period before killing timing out commands
-   */
-  DarwinSandboxedSpawnRunner(
-      CommandEnvironment cmdEnv, Path sandboxBase, String productName, Duration timeoutKillDelay)
-      throws IOException {
-    this(cmdEnv, sandboxBase, productName, Optional.of(timeoutKillDelay));
-  }
-
   /**
    * Creates a sandboxed spawn runner that uses the {@code process-wrapper} tool and the MacOS
    * {@code sandbox-exec} binary.
@@ -137,14 +108,16 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param productName the product name to use
    * @param timeoutKillDelay an optional, additional grace period before killing timing out
    *     commands. If not present, then no grace period is used and commands are killed instantly.
+   * @param treeDeleter what to delete sandbox directories with
    */
   DarwinSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
       String productName,
-      Optional<Duration> timeoutKillDelay)
+      Optional<Duration> timeoutKillDelay,
+      TreeDeleter treeDeleter)
       throws IOException {
-    super(cmdEnv, sandboxBase);
+    super(cmdEnv, sandboxBase, treeDeleter);
     this.execRoot = cmdEnv.getExecRoot();
     this.allowNetwork = SandboxHelpers.shouldAllowNetwork(cmdEnv.getOptions());
     this.productName = productName;
@@ -215,7 +188,7 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionPolicy policy)
       throws ExecException, IOException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath = getSandboxRoot();
+    Path sandboxPath = getSandboxRoot(spawn);
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
 
     // Each sandboxed action runs in its own execroot, so we don't need to make the temp directory's
@@ -268,7 +241,9 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
             environment,
             SandboxHelpers.getInputFiles(spawn, policy, execRoot),
             outputs,
-            writableDirs) {
+            writableDirs,
+            getPreviousInputs(sandboxPath),
+            getTreeDeleter()) {
           @Override
           public void createFileSystem() throws IOException {
             super.createFileSystem();
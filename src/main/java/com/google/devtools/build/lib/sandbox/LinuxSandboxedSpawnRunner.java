@@ -87,58 +87,6 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   private final Optional<Duration> timeoutKillDelay;
   private final String productName;
 
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool. If a spawn exceeds
-   * its timeout, then it will be killed instantly.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   * @param inaccessibleHelperFile path to a file that is (already) inaccessible
-   * @param inaccessibleHelperDir path to a directory that is (already) inaccessible
-   */
-  LinuxSandboxedSpawnRunner(
-      CommandEnvironment cmdEnv,
-      Path sandboxBase,
-      String productName,
-      Path inaccessibleHelperFile,
-      Path inaccessibleHelperDir) {
-    this(
-        cmdEnv,
-        sandboxBase,
-        productName,
-        inaccessibleHelperFile,
-        inaccessibleHelperDir,
-        Optional.empty());
-  }
-
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool. If a spawn exceeds
-   * its timeout, then it will be killed after the specified delay.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   * @param inaccessibleHelperFile path to a file that is (already) inaccessible
-   * @param inaccessibleHelperDir path to a directory that is (already) inaccessible
-   * @param timeoutKillDelay an additional grace period before killing timing out commands
-   */
-  LinuxSandboxedSpawnRunner(
-      CommandEnvironment cmdEnv,
-      Path sandboxBase,
-      String productName,
-      Path inaccessibleHelperFile,
-      Path inaccessibleHelperDir,
-      Duration timeoutKillDelay) {
-    this(
-        cmdEnv,
-        sandboxBase,
-        productName,
-        inaccessibleHelperFile,
-        inaccessibleHelperDir,
-        Optional.of(timeoutKillDelay));
-  }
-
   /**
    * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool.
    *
@@ -149,6 +97,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param inaccessibleHelperDir path to a directory that is (already) inaccessible
    * @param timeoutKillDelay an optional, additional grace period before killing timing out
    *     commands. If not present, then no grace period is used and commands are killed instantly.
+   * @param treeDeleter what to delete sandbox directories with
    */
   LinuxSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
@@ -156,8 +105,9 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       String productName,
       Path inaccessibleHelperFile,
       Path inaccessibleHelperDir,
-      Optional<Duration> timeoutKillDelay) {
-    super(cmdEnv, sandboxBase);
+      Optional<Duration> timeoutKillDelay,
+      TreeDeleter treeDeleter) {
+    super(cmdEnv, sandboxBase, treeDeleter);
     this.fileSystem = cmdEnv.getRuntime().getFileSystem();
     this.blazeDirs = cmdEnv.getDirectories();
     this.execRoot = cmdEnv.getExecRoot();
@@ -174,7 +124,7 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionPolicy policy)
       throws IOException, ExecException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath = getSandboxRoot();
+    Path sandboxPath = getSandboxRoot(spawn);
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
 
     // Each sandboxed action runs in its own execroot, so we don't need to make the temp directory's
@@ -224,7 +174,9 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
             environment,
             SandboxHelpers.getInputFiles(spawn, policy, execRoot),
             outputs,
-            writableDirs);
+            writableDirs,
+            getPreviousInputs(sandboxPath),
+            getTreeDeleter());
 
     return runSpawn(spawn, sandbox, policy, execRoot, tmpDir, timeout, statisticsPath);
   }
@@ -41,34 +41,6 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
     return "sandboxed";
   }
 
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool. If a spawn exceeds
-   * its timeout, then it will be killed instantly.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   */
-  static LinuxSandboxedSpawnRunner create(
-      CommandEnvironment cmdEnv, Path sandboxBase, String productName) throws IOException {
-    return create(cmdEnv, sandboxBase, productName, Optional.empty());
-  }
-
-  /**
-   * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool. If a spawn exceeds
-   * its timeout, then it will be killed after the specified delay.
-   *
-   * @param cmdEnv the command environment to use
-   * @param sandboxBase path to the sandbox base directory
-   * @param productName the product name to use
-   * @param timeoutKillDelay an additional grace period before killing timing out commands
-   */
-  static LinuxSandboxedSpawnRunner create(
-      CommandEnvironment cmdEnv, Path sandboxBase, String productName, Duration timeoutKillDelay)
-      throws IOException {
-    return create(cmdEnv, sandboxBase, productName, Optional.of(timeoutKillDelay));
-  }
-
   /**
    * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool.
    *
@@ -77,12 +49,14 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
    * @param productName the product name to use
    * @param timeoutKillDelay an optional, additional grace period before killing timing out
    *     commands. If not present, then no grace period is used and commands are killed instantly.
+   * @param treeDeleter what to delete sandbox directories with
    */
   static LinuxSandboxedSpawnRunner create(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
       String productName,
-      Optional<Duration> timeoutKillDelay)
+      Optional<Duration> timeoutKillDelay,
+      TreeDeleter treeDeleter)
       throws IOException {
     Path inaccessibleHelperFile = sandboxBase.getRelative("inaccessibleHelperFile");
     FileSystemUtils.touchFile(inaccessibleHelperFile);
@@ -102,6 +76,7 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
         productName,
         inaccessibleHelperFile,
         inaccessibleHelperDir,
-        timeoutKillDelay);
+        timeoutKillDelay,
+        treeDeleter);
   }
 }
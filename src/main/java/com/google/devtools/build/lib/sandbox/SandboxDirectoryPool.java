@@ -0,0 +1,104 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sandbox directories that are kept between spawns, so that the next spawn only has to create the
+ * symlinks for the inputs that differ, instead of a whole new tree.
+ *
+ * <p>Idle directories are grouped by the mnemonic of the spawn that last used them, because spawns
+ * of the same kind tend to share most of their inputs. There are never more idle directories than
+ * spawns that ran at the same time, so the pool isn't bounded otherwise.
+ */
+@ThreadSafe
+final class SandboxDirectoryPool {
+  /** The name of the directory below each sandbox directory that holds the execution root. */
+  static final String EXECROOT = "execroot";
+
+  private final TreeDeleter treeDeleter;
+  private final Map<String, Deque<Path>> idleDirs = new HashMap<>();
+  // The inputs that the last spawn in each idle directory created.
+  private final Map<Path, Map<PathFragment, Path>> inputsByDir = new HashMap<>();
+
+  /** Creates a pool that deletes what's left in released directories with {@code treeDeleter}. */
+  SandboxDirectoryPool(TreeDeleter treeDeleter) {
+    this.treeDeleter = treeDeleter;
+  }
+
+  /**
+   * Returns an idle sandbox directory, preferably one last used by a spawn with the same {@code
+   * mnemonic}, or null if there is none. The directory stays out of the pool until it's released.
+   */
+  @Nullable
+  synchronized Path take(String mnemonic) {
+    Deque<Path> dirs = idleDirs.get(mnemonic);
+    if (dirs == null || dirs.isEmpty()) {
+      dirs = null;
+      for (Iterator<Deque<Path>> it = idleDirs.values().iterator(); it.hasNext(); ) {
+        Deque<Path> otherDirs = it.next();
+        if (!otherDirs.isEmpty()) {
+          dirs = otherDirs;
+          break;
+        }
+        it.remove();
+      }
+      if (dirs == null) {
+        return null;
+      }
+    }
+    return dirs.removeFirst();
+  }
+
+  /**
+   * Returns the inputs the last spawn in {@code sandboxPath} created, or null if unknown. Must be
+   * called at most once after {@link #take} returned {@code sandboxPath}.
+   */
+  @Nullable
+  synchronized Map<PathFragment, Path> takePreviousInputs(Path sandboxPath) {
+    return inputsByDir.remove(sandboxPath);
+  }
+
+  /**
+   * Returns {@code sandboxPath} to the pool after a spawn with the given {@code mnemonic} and
+   * {@code inputs} ran in it and its outputs were moved out. Everything in the directory except the
+   * execution root is deleted right away; what the spawn left in the execution root is deleted by
+   * the next spawn that uses it.
+   *
+   * @throws IOException if the directory couldn't be cleaned, in which case it's not pooled
+   */
+  void release(String mnemonic, Path sandboxPath, Map<PathFragment, Path> inputs)
+      throws IOException {
+    for (Path child : sandboxPath.getDirectoryEntries()) {
+      if (!child.getBaseName().equals(EXECROOT)) {
+        treeDeleter.deleteTree(child);
+      }
+    }
+    synchronized (this) {
+      inputsByDir.put(sandboxPath, inputs);
+      idleDirs.computeIfAbsent(mnemonic, m -> new ArrayDeque<>()).addFirst(sandboxPath);
+    }
+  }
+}
@@ -27,13 +27,20 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import java.io.IOException;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * This module provides the Sandbox spawn strategy.
  */
 public final class SandboxModule extends BlazeModule {
+  private static final Logger logger = Logger.getLogger(SandboxModule.class.getName());
+
   private Path sandboxBase;
   private boolean shouldCleanupSandboxBase;
+  // Outlives commands, so that deletions can finish in the background.
+  @Nullable private AsynchronousTreeDeleter asyncTreeDeleter;
+  private TreeDeleter treeDeleter = TreeDeleter.SYNCHRONOUS;
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
@@ -63,14 +70,41 @@ public final class SandboxModule extends BlazeModule {
     shouldCleanupSandboxBase = !sandboxOptions.sandboxDebug;
 
     try {
+      treeDeleter = getTreeDeleter(sandboxOptions.asyncTreeDeleteThreads);
       FileSystemUtils.createDirectoryAndParents(sandboxBase);
-      builder.addActionContextProvider(SandboxActionContextProvider.create(cmdEnv, sandboxBase));
+      builder.addActionContextProvider(
+          SandboxActionContextProvider.create(cmdEnv, sandboxBase, treeDeleter));
     } catch (IOException e) {
       throw new IllegalStateException(e);
     }
     builder.addActionContextConsumer(new SandboxActionContextConsumer(cmdEnv));
   }
 
+  /**
+   * Returns the tree deleter for sandbox directories below {@link #sandboxBase}: an asynchronous
+   * one that uses a trash directory next to {@link #sandboxBase} if {@code asyncThreads} is
+   * positive, or a synchronous one otherwise.
+   */
+  private TreeDeleter getTreeDeleter(int asyncThreads) throws IOException {
+    Path trashBase =
+        sandboxBase.getParentDirectory().getChild(sandboxBase.getBaseName() + "-trash");
+    if (asyncTreeDeleter != null
+        && (asyncThreads <= 0
+            || asyncTreeDeleter.getThreads() != asyncThreads
+            || !asyncTreeDeleter.getTrashBase().equals(trashBase))) {
+      asyncTreeDeleter.shutdownAndAwaitTermination();
+      asyncTreeDeleter = null;
+    }
+    if (asyncThreads <= 0) {
+      return TreeDeleter.SYNCHRONOUS;
+    }
+    if (asyncTreeDeleter == null) {
+      // Also deletes whatever an earlier server left in the trash.
+      asyncTreeDeleter = new AsynchronousTreeDeleter(trashBase, asyncThreads);
+    }
+    return asyncTreeDeleter;
+  }
+
   @Override
   public void afterCommand() {
     super.afterCommand();
@@ -78,12 +112,25 @@ public final class SandboxModule extends BlazeModule {
     if (sandboxBase != null) {
       if (shouldCleanupSandboxBase) {
         try {
-          FileSystemUtils.deleteTree(sandboxBase);
+          treeDeleter.deleteTree(sandboxBase);
         } catch (IOException e) {
           // Nothing we can do at this point.
         }
       }
       sandboxBase = null;
     }
+    if (asyncTreeDeleter != null) {
+      logger.info(
+          String.format(
+              "%d sandbox trees are waiting to be deleted", asyncTreeDeleter.getQueueDepth()));
+    }
+  }
+
+  @Override
+  public void blazeShutdown() {
+    if (asyncTreeDeleter != null) {
+      asyncTreeDeleter.shutdown();
+      asyncTreeDeleter = null;
+    }
   }
 }
@@ -110,6 +110,33 @@ public class SandboxOptions extends OptionsBase {
   )
   public String sandboxBase;
 
+  @Option(
+    name = "experimental_reuse_sandbox_directories",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If enabled, the directories of sandboxed actions are kept for later actions, which only "
+            + "create the input symlinks that differ from those of the previous action instead of "
+            + "a whole new input tree. Has no effect if --sandbox_debug is enabled."
+  )
+  public boolean reuseSandboxDirectories;
+
+  @Option(
+    name = "experimental_sandbox_async_tree_delete_threads",
+    defaultValue = "0",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If positive, sandbox directories are moved into a trash directory when they are no longer "
+            + "needed and deleted in the background by this many low-priority threads, instead of "
+            + "being deleted by the thread that ran the action. Trash that is left behind when the "
+            + "server exits is deleted by the next server."
+  )
+  public int asyncTreeDeleteThreads;
+
   @Option(
     name = "sandbox_fake_hostname",
     defaultValue = "false",
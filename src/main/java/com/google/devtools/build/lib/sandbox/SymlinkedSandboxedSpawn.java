@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.sandbox;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.Files;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -28,12 +30,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Creates an execRoot for a Spawn that contains input files as symlinks to their original
  * destination.
  */
 public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
+  private static final Logger logger = Logger.getLogger(SymlinkedSandboxedSpawn.class.getName());
+
   private final Path sandboxPath;
   private final Path sandboxExecRoot;
   private final List<String> arguments;
@@ -41,6 +49,13 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   private final Map<PathFragment, Path> inputs;
   private final Collection<PathFragment> outputs;
   private final Set<Path> writableDirs;
+  @Nullable private final Map<PathFragment, Path> previousInputs;
+  private final TreeDeleter treeDeleter;
+
+  // What the last call to createFileSystem did to the input symlinks.
+  private int keptInputs;
+  private int createdInputs;
+  private int deletedEntries;
 
   public SymlinkedSandboxedSpawn(
       Path sandboxPath,
@@ -50,6 +65,35 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
       Map<PathFragment, Path> inputs,
       Collection<PathFragment> outputs,
       Set<Path> writableDirs) {
+    this(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        /*previousInputs=*/ null,
+        TreeDeleter.SYNCHRONOUS);
+  }
+
+  /**
+   * Creates a spawn whose sandbox directory may have been used by an earlier spawn.
+   *
+   * @param previousInputs the inputs the earlier spawn created in {@code sandboxExecRoot}, or null
+   *     if they are unknown
+   * @param treeDeleter what {@link #delete} deletes the sandbox directory with
+   */
+  public SymlinkedSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      Map<PathFragment, Path> inputs,
+      Collection<PathFragment> outputs,
+      Set<Path> writableDirs,
+      @Nullable Map<PathFragment, Path> previousInputs,
+      TreeDeleter treeDeleter) {
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxExecRoot;
     this.arguments = arguments;
@@ -57,6 +101,18 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
     this.inputs = inputs;
     this.outputs = outputs;
     this.writableDirs = writableDirs;
+    this.previousInputs = previousInputs;
+    this.treeDeleter = treeDeleter;
+  }
+
+  /** Returns the directory that contains the execution root and all other files of the sandbox. */
+  Path getSandboxPath() {
+    return sandboxPath;
+  }
+
+  /** Returns the inputs that {@link #createFileSystem} makes available. */
+  Map<PathFragment, Path> getInputs() {
+    return inputs;
   }
 
   @Override
@@ -74,40 +130,96 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
     return environment;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If the execution root already exists, only the difference to {@code inputs} is applied:
+   * input symlinks that still point to the right file are kept, and everything else is deleted.
+   */
   @Override
   public void createFileSystem() throws IOException {
+    long startTime = BlazeClock.nanoTime();
+    keptInputs = 0;
+    createdInputs = 0;
+    deletedEntries = 0;
     Set<Path> createdDirs = new HashSet<>();
-    cleanFileSystem(inputs.keySet());
+    Set<PathFragment> existingInputs = new HashSet<>();
+    cleanFileSystem(existingInputs);
     createDirectoryAndParentsWithCache(createdDirs, sandboxExecRoot);
     createParentDirectoriesForInputs(createdDirs, inputs.keySet());
-    createInputs(inputs);
+    createInputs(inputs, existingInputs);
     createWritableDirectories(createdDirs, writableDirs);
     createDirectoriesForOutputs(createdDirs, outputs);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(
+          String.format(
+              "Set up %s in %d ms: %d inputs kept, %d inputs created, %d entries deleted",
+              sandboxExecRoot,
+              TimeUnit.NANOSECONDS.toMillis(BlazeClock.nanoTime() - startTime),
+              keptInputs,
+              createdInputs,
+              deletedEntries));
+    }
   }
 
-  private void cleanFileSystem(Set<PathFragment> allowedFiles) throws IOException {
+  /**
+   * Deletes everything in the execution root except the symlinks for {@code inputs} that still
+   * point to the right file, which are added to {@code existingInputs}.
+   */
+  private void cleanFileSystem(Set<PathFragment> existingInputs) throws IOException {
     if (sandboxExecRoot.exists(Symlinks.NOFOLLOW)) {
-      deleteExceptAllowedFiles(sandboxExecRoot, allowedFiles);
+      deleteExceptExistingInputs(sandboxExecRoot, existingInputs);
     }
   }
 
-  private void deleteExceptAllowedFiles(Path root, Set<PathFragment> allowedFiles)
+  private void deleteExceptExistingInputs(Path root, Set<PathFragment> existingInputs)
       throws IOException {
-    for (Path p : root.getDirectoryEntries()) {
-      FileStatus stat = p.stat(Symlinks.NOFOLLOW);
-      if (!stat.isDirectory()) {
-        if (!allowedFiles.contains(p.relativeTo(sandboxExecRoot))) {
+    for (Dirent dirent : root.readdir(Symlinks.NOFOLLOW)) {
+      Path p = root.getChild(dirent.getName());
+      Dirent.Type type = dirent.getType();
+      if (type == Dirent.Type.UNKNOWN) {
+        FileStatus stat = p.stat(Symlinks.NOFOLLOW);
+        if (stat.isDirectory()) {
+          type = Dirent.Type.DIRECTORY;
+        } else if (stat.isSymbolicLink()) {
+          type = Dirent.Type.SYMLINK;
+        }
+      }
+      if (type != Dirent.Type.DIRECTORY) {
+        PathFragment relativePath = p.relativeTo(sandboxExecRoot);
+        if (type == Dirent.Type.SYMLINK && isUpToDateInput(p, relativePath)) {
+          existingInputs.add(relativePath);
+        } else {
           p.delete();
+          deletedEntries++;
         }
       } else {
-        deleteExceptAllowedFiles(p, allowedFiles);
+        deleteExceptExistingInputs(p, existingInputs);
         if (p.readdir(Symlinks.NOFOLLOW).isEmpty()) {
           p.delete();
+          deletedEntries++;
         }
       }
     }
   }
 
+  /**
+   * Returns whether the symlink at {@code path} is the input {@code relativePath}. If the previous
+   * spawn in this sandbox had a different input there, it's replaced without reading the symlink.
+   * Otherwise the symlink is read, because the spawn may have replaced it.
+   */
+  private boolean isUpToDateInput(Path path, PathFragment relativePath) throws IOException {
+    Path target = inputs.get(relativePath);
+    if (target == null) {
+      // Not an input, or an empty file.
+      return false;
+    }
+    if (previousInputs != null && !target.equals(previousInputs.get(relativePath))) {
+      return false;
+    }
+    return path.readSymbolicLink().equals(target.asFragment());
+  }
+
   /**
    * No input can be a child of another input, because otherwise we might try to create a symlink
    * below another symlink we created earlier - which means we'd actually end up writing somewhere
@@ -130,25 +242,22 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
     }
   }
 
-  private void createInputs(Map<PathFragment, Path> inputs) throws IOException {
+  private void createInputs(Map<PathFragment, Path> inputs, Set<PathFragment> existingInputs)
+      throws IOException {
     // All input files are relative to the execroot.
     for (Entry<PathFragment, Path> entry : inputs.entrySet()) {
-      Path key = sandboxExecRoot.getRelative(entry.getKey());
-      FileStatus keyStat = key.statNullable(Symlinks.NOFOLLOW);
-      if (keyStat != null) {
-        if (keyStat.isSymbolicLink()
-            && entry.getValue() != null
-            && key.readSymbolicLink().equals(entry.getValue().asFragment())) {
-          continue;
-        }
-        key.delete();
+      if (existingInputs.contains(entry.getKey())) {
+        keptInputs++;
+        continue;
       }
+      Path key = sandboxExecRoot.getRelative(entry.getKey());
       // A null value means that we're supposed to create an empty file as the input.
       if (entry.getValue() != null) {
         key.createSymbolicLink(entry.getValue());
       } else {
         FileSystemUtils.createEmptyFile(key);
       }
+      createdInputs++;
     }
   }
 
@@ -197,7 +306,7 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   @Override
   public void delete() {
     try {
-      FileSystemUtils.deleteTree(sandboxPath);
+      treeDeleter.deleteTree(sandboxPath);
     } catch (IOException e) {
       // This usually means that the Spawn itself exited, but still has children running that
       // we couldn't wait for, which now block deletion of the sandbox directory. On Linux this
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -111,6 +112,23 @@ public class JavaSubprocessFactory implements SubprocessFactory {
       return process.getInputStream();
     }
 
+    @Override
+    public long getProcessId() {
+      // java.lang.Process only has a pid() method from Java 9 on. Before that, it's a private field
+      // of the UNIXProcess subclass.
+      try {
+        return (Long) Process.class.getMethod("pid").invoke(process);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        try {
+          Field pid = process.getClass().getDeclaredField("pid");
+          pid.setAccessible(true);
+          return pid.getInt(process);
+        } catch (ReflectiveOperationException | RuntimeException e1) {
+          return -1;
+        }
+      }
+    }
+
     @Override
     public void close() {
       // java.lang.Process doesn't give us a way to clean things up other than #destroy(), which was
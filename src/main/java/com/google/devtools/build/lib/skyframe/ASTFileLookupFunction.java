@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
@@ -45,9 +46,16 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  @Nullable private final PersistentAstCache persistentAstCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, /*persistentAstCache=*/ null);
+  }
+
+  public ASTFileLookupFunction(
+      RuleClassProvider ruleClassProvider, @Nullable PersistentAstCache persistentAstCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @Override
@@ -110,6 +118,23 @@ public class ASTFileLookupFunction implements SkyFunction {
     Path path = rootedPath.asPath();
     try {
       long astFileSize = fileValue.getSize();
+      byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
+      PersistentAstCache.Key cacheKey =
+          persistentAstCache == null
+              ? null
+              : persistentAstCache.key(
+                  "bzl:" + path.getFileSystem().getDigestFunction(),
+                  path.asFragment(),
+                  bytes,
+                  skylarkSemantics);
+      if (cacheKey != null) {
+        ast = persistentAstCache.get(cacheKey);
+        if (ast != null) {
+          return ASTFileLookupValue.withFile(ast);
+        }
+      }
+      // The events are stored so that we know whether the tree can be cached.
+      StoredEventHandler eventHandler = new StoredEventHandler();
       try (Mutability mutability = Mutability.create("validate")) {
         com.google.devtools.build.lib.syntax.Environment validationEnv =
             ruleClassProvider
@@ -117,18 +142,21 @@ public class ASTFileLookupFunction implements SkyFunction {
                     fileLabel,
                     mutability,
                     skylarkSemantics,
-                    env.getListener(),
+                    eventHandler,
                     // the two below don't matter for extracting the ValidationEnvironment:
                     /*astFileContentHashCode=*/ null,
                     /*importMap=*/ null)
                 .setupDynamic(Runtime.PKG_NAME, Runtime.NONE)
                 .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE);
-        byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
         ast =
             BuildFileAST.parseSkylarkFile(
-                bytes, path.getDigest(), path.asFragment(), env.getListener());
-          ast = ast.validate(validationEnv, env.getListener());
-        }
+                bytes, path.getDigest(), path.asFragment(), eventHandler);
+        ast = ast.validate(validationEnv, eventHandler);
+      }
+      eventHandler.replayOn(env.getListener());
+      if (cacheKey != null && eventHandler.isEmpty() && !ast.containsErrors()) {
+        persistentAstCache.put(cacheKey, ast);
+      }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
           Transience.TRANSIENT);
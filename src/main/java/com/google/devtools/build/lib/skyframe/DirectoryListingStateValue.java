@@ -15,6 +15,10 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.EnumCodec;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.skyframe.serialization.strings.StringCodecs;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.Dirent.Type;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -22,13 +26,17 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 import javax.annotation.Nullable;
 
@@ -38,6 +46,7 @@ import javax.annotation.Nullable;
  * <p>This class is an implementation detail of {@link DirectoryListingValue}.
  */
 public final class DirectoryListingStateValue implements SkyValue {
+  public static final ObjectCodec<DirectoryListingStateValue> CODEC = new Codec();
 
   private final CompactSortedDirents compactSortedDirents;
 
@@ -218,4 +227,36 @@ public final class DirectoryListingStateValue implements SkyValue {
       return new Dirent(names[i], unpackType(i));
     }
   }
+
+  private static class Codec implements ObjectCodec<DirectoryListingStateValue> {
+    private static final EnumCodec<Dirent.Type> TYPE_CODEC = new EnumCodec<>(Dirent.Type.class);
+
+    @Override
+    public Class<DirectoryListingStateValue> getEncodedClass() {
+      return DirectoryListingStateValue.class;
+    }
+
+    @Override
+    public void serialize(DirectoryListingStateValue obj, CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      Dirents dirents = obj.getDirents();
+      codedOut.writeInt32NoTag(dirents.size());
+      for (Dirent dirent : dirents) {
+        StringCodecs.asciiOptimized().serialize(dirent.getName(), codedOut);
+        TYPE_CODEC.serialize(dirent.getType(), codedOut);
+      }
+    }
+
+    @Override
+    public DirectoryListingStateValue deserialize(CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      int size = codedIn.readInt32();
+      List<Dirent> dirents = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        String name = StringCodecs.asciiOptimized().deserialize(codedIn);
+        dirents.add(new Dirent(name, TYPE_CODEC.deserialize(codedIn)));
+      }
+      return create(dirents);
+    }
+  }
 }
@@ -15,10 +15,17 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.InjectingObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.vfs.FileSystemProvider;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.RootedPath.RootedPathCodec;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -36,6 +43,8 @@ import java.util.Objects;
 @Immutable
 @ThreadSafe
 public abstract class DirectoryListingValue implements SkyValue {
+  public static final InjectingObjectCodec<DirectoryListingValue, FileSystemProvider> CODEC =
+      new Codec();
 
   /**
    * Returns the directory entries for this directory, in a stable order.
@@ -139,4 +148,42 @@ public abstract class DirectoryListingValue implements SkyValue {
       return Objects.hash(realDirRootedPath, directoryListingStateValue);
     }
   }
+
+  private static class Codec
+      implements InjectingObjectCodec<DirectoryListingValue, FileSystemProvider> {
+
+    @Override
+    public Class<DirectoryListingValue> getEncodedClass() {
+      return DirectoryListingValue.class;
+    }
+
+    @Override
+    public void serialize(
+        FileSystemProvider fsProvider, DirectoryListingValue obj, CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      if (obj instanceof DifferentRealPathDirectoryListingValue) {
+        codedOut.writeBoolNoTag(true);
+        new RootedPathCodec(fsProvider.getFileSystem())
+            .serialize(
+                ((DifferentRealPathDirectoryListingValue) obj).getRealDirRootedPath(), codedOut);
+      } else {
+        codedOut.writeBoolNoTag(false);
+      }
+      DirectoryListingStateValue.CODEC.serialize(obj.getDirectoryListingStateValue(), codedOut);
+    }
+
+    @Override
+    public DirectoryListingValue deserialize(
+        FileSystemProvider fsProvider, CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      if (codedIn.readBool()) {
+        RootedPath realDirRootedPath =
+            new RootedPathCodec(fsProvider.getFileSystem()).deserialize(codedIn);
+        return new DifferentRealPathDirectoryListingValue(
+            realDirRootedPath, DirectoryListingStateValue.CODEC.deserialize(codedIn));
+      }
+      return new RegularDirectoryListingValue(
+          DirectoryListingStateValue.CODEC.deserialize(codedIn));
+    }
+  }
 }
@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -53,6 +54,25 @@ public class DirtinessCheckerUtils {
         return null;
       }
     }
+
+    @Override
+    public RootedPath getLstatPath(SkyKey key) {
+      return (RootedPath) key.argument();
+    }
+
+    @Override
+    public DirtyResult checkWithLstat(SkyKey key, @Nullable SkyValue oldValue,
+        FileStatusWithDigest lstat, @Nullable TimestampGranularityMonitor tsgm) {
+      RootedPath rootedPath = (RootedPath) key.argument();
+      SkyValue newValue;
+      try {
+        newValue = FileStateValue.createWithStatNoFollow(rootedPath, lstat, tsgm);
+      } catch (IOException e) {
+        // See createNewValue.
+        newValue = null;
+      }
+      return compare(oldValue, newValue);
+    }
   }
 
   static class DirectoryDirtinessChecker extends SkyValueDirtinessChecker {
@@ -89,6 +109,18 @@ public class DirtinessCheckerUtils {
     public SkyValue createNewValue(SkyKey key, @Nullable TimestampGranularityMonitor tsgm) {
       return checker.createNewValue(key, tsgm);
     }
+
+    @Override
+    @Nullable
+    public RootedPath getLstatPath(SkyKey key) {
+      return checker.getLstatPath(key);
+    }
+
+    @Override
+    public DirtyResult checkWithLstat(SkyKey key, @Nullable SkyValue oldValue,
+        FileStatusWithDigest lstat, @Nullable TimestampGranularityMonitor tsgm) {
+      return checker.checkWithLstat(key, oldValue, lstat, tsgm);
+    }
   }
 
   static final class MissingDiffDirtinessChecker extends BasicFilesystemDirtinessChecker {
@@ -131,6 +163,13 @@ public class DirtinessCheckerUtils {
       throw new UnsupportedOperationException();
     }
 
+    // Few files are external, and their check doesn't only compare the new value.
+    @Nullable
+    @Override
+    public RootedPath getLstatPath(SkyKey key) {
+      return null;
+    }
+
     @Override
     public SkyValueDirtinessChecker.DirtyResult check(
         SkyKey skyKey, SkyValue oldValue, @Nullable TimestampGranularityMonitor tsgm) {
@@ -183,5 +222,18 @@ public class DirtinessCheckerUtils {
         @Nullable TimestampGranularityMonitor tsgm) {
       return Preconditions.checkNotNull(getChecker(key), key).check(key, oldValue, tsgm);
     }
+
+    @Override
+    @Nullable
+    public RootedPath getLstatPath(SkyKey key) {
+      return Preconditions.checkNotNull(getChecker(key), key).getLstatPath(key);
+    }
+
+    @Override
+    public DirtyResult checkWithLstat(SkyKey key, @Nullable SkyValue oldValue,
+        FileStatusWithDigest lstat, @Nullable TimestampGranularityMonitor tsgm) {
+      return Preconditions.checkNotNull(getChecker(key), key)
+          .checkWithLstat(key, oldValue, lstat, tsgm);
+    }
   }
 }
@@ -18,6 +18,9 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.actions.FileStateType;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.EnumCodec;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
@@ -29,6 +32,8 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Objects;
@@ -60,6 +65,8 @@ public abstract class FileStateValue implements SkyValue {
   public static final NonexistentFileStateValue NONEXISTENT_FILE_STATE_NODE =
       new NonexistentFileStateValue();
 
+  public static final ObjectCodec<FileStateValue> CODEC = new Codec();
+
   protected FileStateValue() {
   }
 
@@ -404,4 +411,74 @@ public abstract class FileStateValue implements SkyValue {
       return 8765432;
     }
   }
+
+  private static class Codec implements ObjectCodec<FileStateValue> {
+    private static final EnumCodec<FileStateType> TYPE_CODEC = new EnumCodec<>(FileStateType.class);
+
+    @Override
+    public Class<FileStateValue> getEncodedClass() {
+      return FileStateValue.class;
+    }
+
+    @Override
+    public void serialize(FileStateValue obj, CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      TYPE_CODEC.serialize(obj.getType(), codedOut);
+      switch (obj.getType()) {
+        case REGULAR_FILE:
+          RegularFileStateValue regularFile = (RegularFileStateValue) obj;
+          codedOut.writeInt64NoTag(regularFile.getSize());
+          if (regularFile.getDigest() != null) {
+            codedOut.writeBoolNoTag(true);
+            codedOut.writeByteArrayNoTag(regularFile.getDigest());
+          } else {
+            codedOut.writeBoolNoTag(false);
+            serializeContentsProxy(regularFile.getContentsProxy(), codedOut);
+          }
+          break;
+        case SPECIAL_FILE:
+          serializeContentsProxy(((SpecialFileStateValue) obj).getContentsProxy(), codedOut);
+          break;
+        case SYMLINK:
+          PathFragment.CODEC.serialize(obj.getSymlinkTarget(), codedOut);
+          break;
+        case DIRECTORY:
+        case NONEXISTENT:
+          break;
+      }
+    }
+
+    @Override
+    public FileStateValue deserialize(CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      FileStateType type = TYPE_CODEC.deserialize(codedIn);
+      switch (type) {
+        case REGULAR_FILE:
+          long size = codedIn.readInt64();
+          return codedIn.readBool()
+              ? new RegularFileStateValue(size, codedIn.readByteArray(), null)
+              : new RegularFileStateValue(size, null, deserializeContentsProxy(codedIn));
+        case SPECIAL_FILE:
+          return new SpecialFileStateValue(deserializeContentsProxy(codedIn));
+        case SYMLINK:
+          return new SymlinkFileStateValue(PathFragment.CODEC.deserialize(codedIn));
+        case DIRECTORY:
+          return DIRECTORY_FILE_STATE_NODE;
+        case NONEXISTENT:
+          return NONEXISTENT_FILE_STATE_NODE;
+      }
+      throw new SerializationException("Unknown file state type: " + type);
+    }
+
+    private static void serializeContentsProxy(
+        FileContentsProxy contentsProxy, CodedOutputStream codedOut) throws IOException {
+      codedOut.writeInt64NoTag(contentsProxy.getCTime());
+      codedOut.writeInt64NoTag(contentsProxy.getNodeId());
+    }
+
+    private static FileContentsProxy deserializeContentsProxy(CodedInputStream codedIn)
+        throws IOException {
+      return new FileContentsProxy(codedIn.readInt64(), codedIn.readInt64());
+    }
+  }
 }
@@ -0,0 +1,265 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemProvider;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.RootedPath.RootedPathCodec;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.InMemoryNodeEntry;
+import com.google.devtools.build.skyframe.LegacySkyKey;
+import com.google.devtools.build.skyframe.NodeEntry;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the file system nodes of a Skyframe graph to a file, and restores them into the graph of a
+ * new server. This is not a snapshot of the graph: only {@link FileStateValue}, {@link
+ * DirectoryListingStateValue}, {@link FileValue} and {@link DirectoryListingValue} nodes are
+ * saved, so the loading and analysis phases still run in full after a restart.
+ *
+ * <p>This does not save the stats and directory listings themselves. A new server has no diff
+ * information (the state of a {@link DiffAwareness}, such as a file system watch, doesn't outlive
+ * the server), so the first sync checks every restored {@link FileStateValue} and {@link
+ * DirectoryListingStateValue} against the file system with a {@link FilesystemValueChecker}, see
+ * {@link SequencedSkyframeExecutor#handleDiffs}, and invalidates the changed ones and their
+ * reverse deps. What is saved is the evaluation of the {@link FileValue}s and {@link
+ * DirectoryListingValue}s on top of them, like the resolution of symlinks: the unchanged ones are
+ * reused instead of being rebuilt one dependency at a time during loading, and the checks run in
+ * parallel rather than as the loading phase discovers them.
+ *
+ * <p>Only done nodes without errors whose keys are {@link RootedPath}s under a package path entry
+ * are saved, and only if all of their direct deps are saved too. The nodes are written after their
+ * deps, so every prefix of the file is a dependency-closed subgraph, and a truncated snapshot
+ * restores fewer nodes rather than broken ones.
+ *
+ * <p>{@link PackageValue}s are not saved. {@link PackageValue#CODEC} delegates to the {@link
+ * com.google.devtools.build.lib.packages.PackageSerializerInterface} and {@link
+ * com.google.devtools.build.lib.packages.PackageDeserializerInterface} of its {@link
+ * com.google.devtools.build.lib.packages.PackageCodecDependencies}, which have no implementation
+ * in Bazel, and the deps of a package ({@link PackageLookupValue}, {@link GlobValue}, {@link
+ * ASTFileLookupValue}, {@link SkylarkImportLookupValue}) have no codecs, so a package node couldn't
+ * be restored with its edges.
+ */
+final class FileSystemNodeSnapshot {
+  private static final int FORMAT_VERSION = 1;
+
+  /** The functions whose nodes are saved. The index of a function is its tag in the file. */
+  private static final ImmutableList<SkyFunctionName> FUNCTIONS =
+      ImmutableList.of(
+          SkyFunctions.FILE_STATE,
+          SkyFunctions.DIRECTORY_LISTING_STATE,
+          SkyFunctions.FILE,
+          SkyFunctions.DIRECTORY_LISTING);
+
+  private final FileSystemProvider fileSystemProvider;
+  private final RootedPathCodec rootedPathCodec;
+
+  FileSystemNodeSnapshot(final FileSystem fileSystem) {
+    this.fileSystemProvider =
+        new FileSystemProvider() {
+          @Override
+          public FileSystem getFileSystem() {
+            return fileSystem;
+          }
+        };
+    this.rootedPathCodec = new RootedPathCodec(fileSystem);
+  }
+
+  /** Writes the file system nodes of {@code graph} to {@code file}. Returns the number written. */
+  int write(Map<SkyKey, ? extends NodeEntry> graph, List<Root> pathEntries, Path file)
+      throws IOException, SerializationException, InterruptedException {
+    try (OutputStream out = file.getOutputStream()) {
+      CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+      codedOut.writeInt32NoTag(FORMAT_VERSION);
+      codedOut.writeInt32NoTag(pathEntries.size());
+      for (Root pathEntry : pathEntries) {
+        rootedPathCodec.serialize(
+            RootedPath.toRootedPath(pathEntry, PathFragment.EMPTY_FRAGMENT), codedOut);
+      }
+      Writer writer = new Writer(graph, pathEntries, codedOut);
+      for (SkyKey key : graph.keySet()) {
+        writer.maybeWrite(key);
+      }
+      // Marks the end of the nodes.
+      codedOut.writeInt32NoTag(-1);
+      codedOut.flush();
+      return writer.numWritten;
+    }
+  }
+
+  /**
+   * Restores the nodes in {@code file} into {@code evaluator}, which must not have evaluated
+   * anything yet. Returns the number of nodes restored, which is zero if the snapshot was taken
+   * with different package path entries.
+   */
+  int read(InMemoryMemoizingEvaluator evaluator, List<Root> pathEntries, Path file)
+      throws IOException, SerializationException, InterruptedException {
+    try (InputStream in = file.getInputStream()) {
+      CodedInputStream codedIn = CodedInputStream.newInstance(in);
+      if (codedIn.readInt32() != FORMAT_VERSION) {
+        return 0;
+      }
+      int numPathEntries = codedIn.readInt32();
+      List<Root> snapshotPathEntries = new ArrayList<>(numPathEntries);
+      for (int i = 0; i < numPathEntries; i++) {
+        snapshotPathEntries.add(rootedPathCodec.deserialize(codedIn).getRoot());
+      }
+      if (!snapshotPathEntries.equals(pathEntries)) {
+        return 0;
+      }
+      List<SkyKey> keys = new ArrayList<>();
+      int functionIndex;
+      while ((functionIndex = codedIn.readInt32()) != -1) {
+        if (functionIndex < 0 || functionIndex >= FUNCTIONS.size()) {
+          throw new SerializationException("Unknown function index: " + functionIndex);
+        }
+        SkyFunctionName functionName = FUNCTIONS.get(functionIndex);
+        SkyKey key = LegacySkyKey.create(functionName, rootedPathCodec.deserialize(codedIn));
+        SkyValue value = deserializeValue(functionName, codedIn);
+        int numGroups = codedIn.readInt32();
+        GroupedList<SkyKey> directDeps = new GroupedList<>();
+        for (int i = 0; i < numGroups; i++) {
+          int groupSize = codedIn.readInt32();
+          List<SkyKey> group = new ArrayList<>(groupSize);
+          for (int j = 0; j < groupSize; j++) {
+            int depIndex = codedIn.readInt32();
+            if (depIndex < 0 || depIndex >= keys.size()) {
+              throw new SerializationException("Dep " + depIndex + " of " + key + " not restored");
+            }
+            group.add(keys.get(depIndex));
+          }
+          directDeps.appendGroup(group);
+        }
+        evaluator.restoreDoneNode(key, value, directDeps);
+        keys.add(key);
+      }
+      return keys.size();
+    }
+  }
+
+  private void serializeValue(
+      SkyFunctionName functionName, SkyValue value, CodedOutputStream codedOut)
+      throws IOException, SerializationException {
+    if (functionName.equals(SkyFunctions.FILE_STATE)) {
+      FileStateValue.CODEC.serialize((FileStateValue) value, codedOut);
+    } else if (functionName.equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+      DirectoryListingStateValue.CODEC.serialize((DirectoryListingStateValue) value, codedOut);
+    } else if (functionName.equals(SkyFunctions.FILE)) {
+      FileValue.CODEC.serialize(fileSystemProvider, (FileValue) value, codedOut);
+    } else {
+      DirectoryListingValue.CODEC.serialize(
+          fileSystemProvider, (DirectoryListingValue) value, codedOut);
+    }
+  }
+
+  private SkyValue deserializeValue(SkyFunctionName functionName, CodedInputStream codedIn)
+      throws IOException, SerializationException {
+    if (functionName.equals(SkyFunctions.FILE_STATE)) {
+      return FileStateValue.CODEC.deserialize(codedIn);
+    } else if (functionName.equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+      return DirectoryListingStateValue.CODEC.deserialize(codedIn);
+    } else if (functionName.equals(SkyFunctions.FILE)) {
+      return FileValue.CODEC.deserialize(fileSystemProvider, codedIn);
+    } else {
+      return DirectoryListingValue.CODEC.deserialize(fileSystemProvider, codedIn);
+    }
+  }
+
+  /** Writes nodes after their deps, skipping the ones that can't be saved. */
+  private class Writer {
+    private static final int SKIPPED = -1;
+
+    private final Map<SkyKey, ? extends NodeEntry> graph;
+    private final List<Root> pathEntries;
+    private final CodedOutputStream codedOut;
+    // The index of each visited node in the file, or SKIPPED.
+    private final Map<SkyKey, Integer> indices = new HashMap<>();
+    private int numWritten = 0;
+
+    private Writer(
+        Map<SkyKey, ? extends NodeEntry> graph,
+        List<Root> pathEntries,
+        CodedOutputStream codedOut) {
+      this.graph = graph;
+      this.pathEntries = pathEntries;
+      this.codedOut = codedOut;
+    }
+
+    /** Returns the index of the node for {@code key}, or {@link #SKIPPED}. */
+    private int maybeWrite(SkyKey key)
+        throws IOException, SerializationException, InterruptedException {
+      Integer index = indices.get(key);
+      if (index != null) {
+        return index;
+      }
+      // Marked while its deps are visited, so that the nodes of a cycle are skipped.
+      indices.put(key, SKIPPED);
+      NodeEntry entry = graph.get(key);
+      int functionIndex = FUNCTIONS.indexOf(key.functionName());
+      if (functionIndex == -1
+          || !(key.argument() instanceof RootedPath)
+          || !pathEntries.contains(((RootedPath) key.argument()).getRoot())
+          || !(entry instanceof InMemoryNodeEntry)
+          || !entry.isDone()
+          || entry.getErrorInfo() != null) {
+        return SKIPPED;
+      }
+      GroupedList<SkyKey> directDeps = ((InMemoryNodeEntry) entry).getGroupedDirectDeps();
+      List<List<Integer>> depIndices = new ArrayList<>(directDeps.listSize());
+      for (Collection<SkyKey> group : directDeps) {
+        List<Integer> groupIndices = new ArrayList<>(group.size());
+        for (SkyKey dep : group) {
+          int depIndex = maybeWrite(dep);
+          if (depIndex == SKIPPED) {
+            return SKIPPED;
+          }
+          groupIndices.add(depIndex);
+        }
+        depIndices.add(groupIndices);
+      }
+      codedOut.writeInt32NoTag(functionIndex);
+      rootedPathCodec.serialize((RootedPath) key.argument(), codedOut);
+      serializeValue(key.functionName(), entry.getValue(), codedOut);
+      codedOut.writeInt32NoTag(depIndices.size());
+      for (List<Integer> groupIndices : depIndices) {
+        codedOut.writeInt32NoTag(groupIndices.size());
+        for (int depIndex : groupIndices) {
+          codedOut.writeInt32NoTag(depIndex);
+        }
+      }
+      index = numWritten++;
+      indices.put(key, index);
+      return index;
+    }
+  }
+}
@@ -17,11 +17,18 @@ import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.actions.FileStateType;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.InjectingObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.vfs.FileSystemProvider;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.RootedPath.RootedPathCodec;
 import com.google.devtools.build.skyframe.LegacySkyKey;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
 import java.util.Objects;
 import javax.annotation.Nullable;
 
@@ -46,6 +53,7 @@ import javax.annotation.Nullable;
 @Immutable
 @ThreadSafe
 public abstract class FileValue implements SkyValue {
+  public static final InjectingObjectCodec<FileValue, FileSystemProvider> CODEC = new Codec();
 
   public boolean exists() {
     return realFileStateValue().getType() != FileStateType.NONEXISTENT;
@@ -285,4 +293,54 @@ public abstract class FileValue implements SkyValue {
           realRootedPath, realFileStateValue, linkValue);
     }
   }
+
+  private static class Codec implements InjectingObjectCodec<FileValue, FileSystemProvider> {
+    private static final byte REGULAR = 0;
+    private static final byte DIFFERENT_REAL_PATH = 1;
+    private static final byte SYMLINK = 2;
+
+    @Override
+    public Class<FileValue> getEncodedClass() {
+      return FileValue.class;
+    }
+
+    @Override
+    public void serialize(FileSystemProvider fsProvider, FileValue obj, CodedOutputStream codedOut)
+        throws SerializationException, IOException {
+      if (obj.getClass() == RegularFileValue.class) {
+        codedOut.writeRawByte(REGULAR);
+      } else if (obj.getClass() == DifferentRealPathFileValue.class) {
+        codedOut.writeRawByte(DIFFERENT_REAL_PATH);
+      } else if (obj.getClass() == SymlinkFileValue.class) {
+        codedOut.writeRawByte(SYMLINK);
+      } else {
+        throw new SerializationException("Unknown file value: " + obj.getClass());
+      }
+      new RootedPathCodec(fsProvider.getFileSystem()).serialize(obj.realRootedPath(), codedOut);
+      FileStateValue.CODEC.serialize(obj.realFileStateValue(), codedOut);
+      if (obj.isSymlink()) {
+        PathFragment.CODEC.serialize(obj.getUnresolvedLinkTarget(), codedOut);
+      }
+    }
+
+    @Override
+    public FileValue deserialize(FileSystemProvider fsProvider, CodedInputStream codedIn)
+        throws SerializationException, IOException {
+      byte kind = codedIn.readRawByte();
+      RootedPath realRootedPath =
+          new RootedPathCodec(fsProvider.getFileSystem()).deserialize(codedIn);
+      FileStateValue realFileStateValue = FileStateValue.CODEC.deserialize(codedIn);
+      switch (kind) {
+        case REGULAR:
+          return new RegularFileValue(realRootedPath, realFileStateValue);
+        case DIFFERENT_REAL_PATH:
+          return new DifferentRealPathFileValue(realRootedPath, realFileStateValue);
+        case SYMLINK:
+          return new SymlinkFileValue(
+              realRootedPath, realFileStateValue, PathFragment.CODEC.deserialize(codedIn));
+        default:
+          throw new SerializationException("Unknown file value kind: " + kind);
+      }
+    }
+  }
 }
@@ -39,12 +39,14 @@ import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -70,6 +72,8 @@ import javax.annotation.Nullable;
 public class FilesystemValueChecker {
 
   private static final int DIRTINESS_CHECK_THREADS = 200;
+  // The number of keys whose paths are stat'ed together with the batch stat.
+  private static final int DIRTINESS_CHECK_BATCH_SIZE = 1024;
   private static final Logger logger = Logger.getLogger(FilesystemValueChecker.class.getName());
 
   private static final Predicate<SkyKey> ACTION_FILTER =
@@ -78,13 +82,25 @@ public class FilesystemValueChecker {
   private final TimestampGranularityMonitor tsgm;
   @Nullable
   private final Range<Long> lastExecutionTimeRange;
+  @Nullable private final BatchStat batchStatter;
   private AtomicInteger modifiedOutputFilesCounter = new AtomicInteger(0);
   private AtomicInteger modifiedOutputFilesIntraBuildCounter = new AtomicInteger(0);
 
   public FilesystemValueChecker(@Nullable TimestampGranularityMonitor tsgm,
       @Nullable Range<Long> lastExecutionTimeRange) {
+    this(tsgm, lastExecutionTimeRange, /*batchStatter=*/ null);
+  }
+
+  /**
+   * @param batchStatter if not null, stats the paths that the dirtiness checkers of the file
+   *     system values start with ({@link SkyValueDirtinessChecker#getLstatPath}) in batches. It is
+   *     given absolute paths.
+   */
+  public FilesystemValueChecker(@Nullable TimestampGranularityMonitor tsgm,
+      @Nullable Range<Long> lastExecutionTimeRange, @Nullable BatchStat batchStatter) {
     this.tsgm = tsgm;
     this.lastExecutionTimeRange = lastExecutionTimeRange;
+    this.batchStatter = batchStatter;
   }
 
   /**
@@ -491,6 +507,9 @@ public class FilesystemValueChecker {
           }
         };
     try (AutoProfiler prof = AutoProfiler.create(elapsedTimeReceiver)) {
+      List<SkyKey> batchKeys = new ArrayList<>();
+      List<SkyValue> batchValues = new ArrayList<>();
+      List<PathFragment> batchPaths = new ArrayList<>();
       for (final SkyKey key : keys) {
         numKeysScanned.incrementAndGet();
         if (!checker.applies(key)) {
@@ -500,6 +519,23 @@ public class FilesystemValueChecker {
         if (!checkMissingValues && value == null) {
           continue;
         }
+        RootedPath lstatPath = batchStatter == null ? null : checker.getLstatPath(key);
+        if (lstatPath != null) {
+          batchKeys.add(key);
+          batchValues.add(value);
+          batchPaths.add(lstatPath.asPath().asFragment());
+          if (batchKeys.size() == DIRTINESS_CHECK_BATCH_SIZE) {
+            executor.execute(
+                wrapper.wrap(
+                    batchDirtinessCheckJob(
+                        batchKeys, batchValues, batchPaths, checker, batchResult,
+                        numKeysChecked)));
+            batchKeys = new ArrayList<>();
+            batchValues = new ArrayList<>();
+            batchPaths = new ArrayList<>();
+          }
+          continue;
+        }
         executor.execute(
             wrapper.wrap(
                 new Runnable() {
@@ -513,6 +549,12 @@ public class FilesystemValueChecker {
                   }
                 }));
       }
+      if (!batchKeys.isEmpty()) {
+        executor.execute(
+            wrapper.wrap(
+                batchDirtinessCheckJob(
+                    batchKeys, batchValues, batchPaths, checker, batchResult, numKeysChecked)));
+      }
 
       boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
       Throwables.propagateIfPossible(wrapper.getFirstThrownError());
@@ -523,6 +565,50 @@ public class FilesystemValueChecker {
     return batchResult;
   }
 
+  /** Checks the keys given the statuses of their paths, which are stat'ed together. */
+  private Runnable batchDirtinessCheckJob(final List<SkyKey> keys, final List<SkyValue> values,
+      final List<PathFragment> paths, final SkyValueDirtinessChecker checker,
+      final BatchDirtyResult batchResult, final AtomicInteger numKeysChecked) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        List<FileStatusWithDigest> stats;
+        try {
+          stats =
+              batchStatter.batchStat(
+                  /*includeDigest=*/ false, /*includeLinks=*/ true, paths);
+        } catch (IOException e) {
+          // Batch stat did not work. Log an exception and fall back on system calls.
+          logger.log(Level.WARNING, "Unable to process batch stat", e);
+          stats = Collections.nCopies(keys.size(), null);
+        } catch (InterruptedException e) {
+          // We handle interrupt in the main thread.
+          return;
+        }
+        Preconditions.checkState(
+            keys.size() == stats.size(),
+            "keys.size() == %s stats.size() == %s",
+            keys.size(),
+            stats.size());
+        for (int i = 0; i < keys.size(); i++) {
+          numKeysChecked.incrementAndGet();
+          SkyKey key = keys.get(i);
+          SkyValue value = values.get(i);
+          FileStatusWithDigest stat = stats.get(i);
+          // Paths that couldn't be stat'ed, for instance because they don't exist, are checked one
+          // at a time, which tells the missing ones from the errors.
+          DirtyResult result =
+              stat == null
+                  ? checker.check(key, value, tsgm)
+                  : checker.checkWithLstat(key, value, stat, tsgm);
+          if (result.isDirty()) {
+            batchResult.add(key, value, result.getNewValue());
+          }
+        }
+      }
+    };
+  }
+
   /**
    * Result of a batch call to {@link SkyValueDirtinessChecker#check}. Partitions the dirty
    * values based on whether we have a new value available for them or not.
@@ -108,6 +108,11 @@ public class PackageFunction implements SkyFunction {
 
   private final IncrementalityIntent incrementalityIntent;
 
+  @Nullable private final PersistentAstCache persistentAstCache;
+
+  // The number of restarts saved by requesting independent dependencies together.
+  private final AtomicInteger numRestartsAvoided = new AtomicInteger();
+
   static final PathFragment DEFAULTS_PACKAGE_NAME = PathFragment.create("tools/defaults");
 
   public PackageFunction(
@@ -121,6 +126,32 @@ public class PackageFunction implements SkyFunction {
       @Nullable PackageProgressReceiver packageProgress,
       ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile,
       IncrementalityIntent incrementalityIntent) {
+    this(
+        packageFactory,
+        pkgLocator,
+        showLoadingProgress,
+        packageFunctionCache,
+        astCache,
+        numPackagesLoaded,
+        skylarkImportLookupFunctionForInlining,
+        packageProgress,
+        actionOnIOExceptionReadingBuildFile,
+        incrementalityIntent,
+        /*persistentAstCache=*/ null);
+  }
+
+  public PackageFunction(
+      PackageFactory packageFactory,
+      CachingPackageLocator pkgLocator,
+      AtomicBoolean showLoadingProgress,
+      Cache<PackageIdentifier, BuilderAndGlobDeps> packageFunctionCache,
+      Cache<PackageIdentifier, AstParseResult> astCache,
+      AtomicInteger numPackagesLoaded,
+      @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      @Nullable PackageProgressReceiver packageProgress,
+      ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile,
+      IncrementalityIntent incrementalityIntent,
+      @Nullable PersistentAstCache persistentAstCache) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -135,6 +166,7 @@ public class PackageFunction implements SkyFunction {
     this.packageProgress = packageProgress;
     this.actionOnIOExceptionReadingBuildFile = actionOnIOExceptionReadingBuildFile;
     this.incrementalityIntent = incrementalityIntent;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @VisibleForTesting
@@ -159,6 +191,14 @@ public class PackageFunction implements SkyFunction {
         IncrementalityIntent.INCREMENTAL);
   }
 
+  /**
+   * Returns the number of restarts avoided since the last call by requesting independent
+   * dependencies together, and resets it.
+   */
+  public int getAndResetNumRestartsAvoided() {
+    return numRestartsAvoided.getAndSet(0);
+  }
+
   public void setSkylarkImportLookupFunctionForInliningForTesting(
       SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
@@ -518,38 +558,21 @@ public class PackageFunction implements SkyFunction {
     if (packageId.equals(Label.EXTERNAL_PACKAGE_IDENTIFIER)) {
       return getExternalPackage(env, packageLookupValue.getRoot());
     }
+    // The values below don't depend on each other, so they are requested together and cost at
+    // most one restart.
     WorkspaceNameValue workspaceNameValue =
         (WorkspaceNameValue) env.getValue(WorkspaceNameValue.key());
-    if (workspaceNameValue == null) {
-      return null;
-    }
-    String workspaceName = workspaceNameValue.getName();
     RootedPath buildFileRootedPath = packageLookupValue.getRootedPath(packageId);
     FileValue buildFileValue = null;
     Path buildFilePath = buildFileRootedPath.asPath();
     String replacementContents = null;
-
     if (!isDefaultsPackage(packageId)) {
       buildFileValue = getBuildFileValue(env, buildFileRootedPath);
-      if (buildFileValue == null) {
-        return null;
-      }
     } else {
       replacementContents = PrecomputedValue.DEFAULTS_PACKAGE_CONTENTS.get(env);
-      if (replacementContents == null) {
-        return null;
-      }
     }
-
     RuleVisibility defaultVisibility = PrecomputedValue.DEFAULT_VISIBILITY.get(env);
-    if (defaultVisibility == null) {
-      return null;
-    }
-
     SkylarkSemantics skylarkSemantics = PrecomputedValue.SKYLARK_SEMANTICS.get(env);
-    if (skylarkSemantics == null) {
-      return null;
-    }
 
     // Load the prelude from the same repository as the package being loaded.  Can't use
     // Label.resolveRepositoryRelative because preludeLabel is in the main repository, not the
@@ -569,9 +592,18 @@ public class PackageFunction implements SkyFunction {
               packageId, "Error encountered while reading the prelude file: " + e.getMessage()),
           Transience.PERSISTENT);
     }
-    if (astLookupValue == null) {
+    if (env.valuesMissing()) {
+      // Requested one at a time, each missing one would have cost a restart.
+      int missing =
+          (workspaceNameValue == null ? 1 : 0)
+              + (buildFileValue == null && replacementContents == null ? 1 : 0)
+              + (astLookupValue == null ? 1 : 0);
+      if (missing > 1) {
+        numRestartsAvoided.addAndGet(missing - 1);
+      }
       return null;
     }
+    String workspaceName = workspaceNameValue.getName();
     // The prelude file doesn't have to exist. If not, we substitute an empty statement list.
     List<Statement> preludeStatements =
         astLookupValue.lookupSuccessful()
@@ -1229,6 +1261,35 @@ public class PackageFunction implements SkyFunction {
     }
   }
 
+  /**
+   * Requests the {@link GlobValue}s predicted by {@link PredictedGlobDeps}, and returns whether
+   * any of them is missing.
+   */
+  private static boolean requestPredictedGlobDeps(
+      BuildFileAST ast, PackageIdentifier packageId, Root packageRoot, Environment env)
+      throws InterruptedException {
+    ImmutableSet<SkyKey> globKeys = PredictedGlobDeps.predict(ast, packageId, packageRoot);
+    if (globKeys.isEmpty()) {
+      return false;
+    }
+    // The same exceptions as in SkyframeHybridGlobber, which requests these keys again.
+    Map<SkyKey, ValueOrException3<IOException, BuildFileNotFoundException,
+        FileSymlinkCycleException>> globValues =
+        env.getValuesOrThrow(globKeys, IOException.class, BuildFileNotFoundException.class,
+            FileSymlinkCycleException.class);
+    for (ValueOrException3<IOException, BuildFileNotFoundException, FileSymlinkCycleException>
+        globValue : globValues.values()) {
+      try {
+        if (globValue.get() == null) {
+          return true;
+        }
+      } catch (IOException | BuildFileNotFoundException e) {
+        // Reported when the package requests the glob.
+      }
+    }
+    return false;
+  }
+
   private GlobberWithSkyframeGlobDeps makeGlobber(
       Path buildFilePath,
       PackageIdentifier packageId,
@@ -1285,6 +1346,7 @@ public class PackageFunction implements SkyFunction {
             env.getListener().handle(Event.progress("Loading package: " + packageId));
           }
           ParserInputSource input;
+          PersistentAstCache.Key cacheKey = null;
           if (replacementContents == null) {
             Preconditions.checkNotNull(buildFileValue, packageId);
             byte[] buildFileBytes = null;
@@ -1306,6 +1368,12 @@ public class PackageFunction implements SkyFunction {
               // If control flow reaches here, we're in territory that is deliberately unsound.
               // See the javadoc for ActionOnIOExceptionReadingBuildFile.
             }
+            // The prelude isn't part of the key, so trees parsed with one aren't cached.
+            if (persistentAstCache != null && preludeStatements.isEmpty()) {
+              cacheKey =
+                  persistentAstCache.key(
+                      "BUILD", buildFilePath.asFragment(), buildFileBytes, skylarkSemantics);
+            }
             input =
                 ParserInputSource.create(
                     FileSystemUtils.convertFromLatin1(buildFileBytes),
@@ -1313,11 +1381,19 @@ public class PackageFunction implements SkyFunction {
           } else {
             input = ParserInputSource.create(replacementContents, buildFilePath.asFragment());
           }
-          StoredEventHandler astParsingEventHandler = new StoredEventHandler();
-          BuildFileAST ast =
-              PackageFactory.parseBuildFile(
-                  packageId, input, preludeStatements, astParsingEventHandler);
-          astParseResult = new AstParseResult(ast, astParsingEventHandler);
+          BuildFileAST cachedAst = cacheKey == null ? null : persistentAstCache.get(cacheKey);
+          if (cachedAst != null) {
+            astParseResult = new AstParseResult(cachedAst, new StoredEventHandler());
+          } else {
+            StoredEventHandler astParsingEventHandler = new StoredEventHandler();
+            BuildFileAST ast =
+                PackageFactory.parseBuildFile(
+                    packageId, input, preludeStatements, astParsingEventHandler);
+            astParseResult = new AstParseResult(ast, astParsingEventHandler);
+            if (cacheKey != null && astParsingEventHandler.isEmpty() && !ast.containsErrors()) {
+              persistentAstCache.put(cacheKey, ast);
+            }
+          }
           astCache.put(packageId, astParseResult);
         }
         SkylarkImportResult importResult;
@@ -1336,6 +1412,12 @@ public class PackageFunction implements SkyFunction {
           throw e;
         }
         if (importResult == null) {
+          // This function restarts for the imports anyway, so the globs that the BUILD file
+          // obviously calls are requested now too. They are evaluated along with the imports, and
+          // the package doesn't need to restart for them after it is evaluated.
+          if (requestPredictedGlobDeps(astParseResult.ast, packageId, packageRoot, env)) {
+            numRestartsAvoided.incrementAndGet();
+          }
           return null;
         }
         astCache.invalidate(packageId);
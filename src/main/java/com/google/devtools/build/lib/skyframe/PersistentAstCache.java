@@ -0,0 +1,263 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent, content-addressed cache of the syntax trees of BUILD and .bzl files, so that new
+ * servers don't parse and validate again the files that didn't change.
+ *
+ * <p>Each entry is a file in the cache directory, named after a digest of the path, the contents
+ * and the parsing mode of a source file, and holds the syntax tree written with {@link
+ * BuildFileAST#CODEC}. Validation depends on the Skylark semantics and on the rules of the Blaze
+ * binary, so each entry also records the ones it was validated with, and is stale for any others.
+ * Stale entries are overwritten.
+ *
+ * <p>Only trees without errors whose parsing reported no events are cached, since the events are
+ * not.
+ */
+public final class PersistentAstCache {
+  private static final Logger logger = Logger.getLogger(PersistentAstCache.class.getName());
+
+  // Changed when the format of the entries changes.
+  private static final String FORMAT = "bazel-ast-cache-1";
+
+  @Nullable private final String blazeVersion;
+  @Nullable private volatile Path directory;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong staleEntries = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Creates a disabled cache.
+   *
+   * @param blazeVersion identifies the Blaze binary, for instance by the digest of its install
+   *     base. If it is null, the rules the entries were validated with are unknown, and the cache
+   *     stays disabled.
+   */
+  public PersistentAstCache(@Nullable String blazeVersion) {
+    this.blazeVersion = blazeVersion;
+  }
+
+  /**
+   * Stores the entries in the given directory, or disables the cache if it is null or the Blaze
+   * version is unknown.
+   */
+  public void setDirectory(@Nullable Path directory) {
+    if (directory != null && blazeVersion == null) {
+      logger.warning("Persistent AST cache disabled, the version of the Blaze binary is unknown");
+      directory = null;
+    }
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the key of the entry for the syntax tree of a file, or null if the cache is disabled.
+   *
+   * @param parsingMode anything besides the contents that the tree depends on, like the kind of
+   *     file and the digest function of its content hash code
+   */
+  @Nullable
+  public Key key(
+      String parsingMode, PathFragment path, byte[] contents, SkylarkSemantics semantics) {
+    Path directory = this.directory;
+    if (directory == null) {
+      return null;
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(parsingMode, StandardCharsets.UTF_8).putByte((byte) 0);
+    hasher.putString(path.getPathString(), StandardCharsets.UTF_8).putByte((byte) 0);
+    hasher.putBytes(contents);
+    String name = hasher.hash().toString();
+    return new Key(
+        directory.getRelative(name.substring(0, 2)).getChild(name),
+        blazeVersion + "\n" + semantics);
+  }
+
+  /** Returns the cached syntax tree, or null if there is none for the key. */
+  @Nullable
+  public BuildFileAST get(Key key) {
+    byte[] bytes;
+    try {
+      bytes = FileSystemUtils.readContent(key.entry);
+    } catch (FileNotFoundException e) {
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read " + key.entry, e);
+      failures.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    try {
+      CodedInputStream codedIn = CodedInputStream.newInstance(bytes);
+      if (!codedIn.readString().equals(FORMAT) || !codedIn.readString().equals(key.validation)) {
+        staleEntries.incrementAndGet();
+        misses.incrementAndGet();
+        return null;
+      }
+      BuildFileAST ast = BuildFileAST.CODEC.deserialize(codedIn);
+      hits.incrementAndGet();
+      return ast;
+    } catch (IOException | SerializationException e) {
+      logger.log(Level.WARNING, "Invalid entry " + key.entry, e);
+      failures.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /** Caches the syntax tree for the key. */
+  public void put(Key key, BuildFileAST ast) {
+    ByteString.Output bytes = ByteString.newOutput();
+    try {
+      CodedOutputStream codedOut = CodedOutputStream.newInstance(bytes);
+      codedOut.writeStringNoTag(FORMAT);
+      codedOut.writeStringNoTag(key.validation);
+      BuildFileAST.CODEC.serialize(ast, codedOut);
+      codedOut.flush();
+    } catch (IOException | SerializationException e) {
+      logger.log(Level.WARNING, "Failed to serialize the syntax tree for " + key.entry, e);
+      failures.incrementAndGet();
+      return;
+    }
+    // Written to a temporary file first, so that concurrent readers see the entry complete or
+    // not at all. The name is unique across the servers that share the directory.
+    Path tmp =
+        key.entry
+            .getParentDirectory()
+            .getChild(key.entry.getBaseName() + ".tmp." + UUID.randomUUID());
+    try {
+      FileSystemUtils.createDirectoryAndParents(key.entry.getParentDirectory());
+      try (OutputStream out = tmp.getOutputStream()) {
+        bytes.toByteString().writeTo(out);
+      }
+      tmp.renameTo(key.entry);
+      writes.incrementAndGet();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write " + key.entry, e);
+      failures.incrementAndGet();
+      try {
+        tmp.delete();
+      } catch (IOException deleteException) {
+        logger.log(Level.WARNING, "Failed to delete " + tmp, deleteException);
+      }
+    }
+  }
+
+  /** Returns the statistics since the last call, and resets them. */
+  public Stats getAndResetStats() {
+    return new Stats(
+        hits.getAndSet(0),
+        misses.getAndSet(0),
+        staleEntries.getAndSet(0),
+        writes.getAndSet(0),
+        failures.getAndSet(0));
+  }
+
+  /** The key of an entry, and what it must have been validated with to be used. */
+  public static final class Key {
+    private final Path entry;
+    private final String validation;
+
+    private Key(Path entry, String validation) {
+      this.entry = entry;
+      this.validation = validation;
+    }
+
+    @VisibleForTesting
+    Path getEntry() {
+      return entry;
+    }
+  }
+
+  /** Statistics of the lookups in the cache. */
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long staleEntries;
+    private final long writes;
+    private final long failures;
+
+    @VisibleForTesting
+    Stats(long hits, long misses, long staleEntries, long writes, long failures) {
+      this.hits = hits;
+      this.misses = misses;
+      this.staleEntries = staleEntries;
+      this.writes = writes;
+      this.failures = failures;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    /** Returns the number of lookups without an entry, including the stale entries. */
+    public long getMisses() {
+      return misses;
+    }
+
+    /** Returns the number of entries that were written for other semantics or Blaze versions. */
+    public long getStaleEntries() {
+      return staleEntries;
+    }
+
+    public long getWrites() {
+      return writes;
+    }
+
+    /** Returns the number of entries that couldn't be read or written. */
+    public long getFailures() {
+      return failures;
+    }
+
+    /** Returns the fraction of lookups that were hits, or 0 if there were none. */
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "hits=%d, misses=%d (stale=%d), hit rate=%.1f%%, writes=%d, failures=%d",
+          hits, misses, staleEntries, 100 * getHitRate(), writes, failures);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.syntax.Argument;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Expression;
+import com.google.devtools.build.lib.syntax.FuncallExpression;
+import com.google.devtools.build.lib.syntax.Identifier;
+import com.google.devtools.build.lib.syntax.IntegerLiteral;
+import com.google.devtools.build.lib.syntax.ListLiteral;
+import com.google.devtools.build.lib.syntax.StringLiteral;
+import com.google.devtools.build.lib.syntax.SyntaxTreeVisitor;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Predicts the {@link GlobValue}s that a package will depend on from the syntax tree of its BUILD
+ * file, before it is evaluated.
+ *
+ * <p>Only the calls to {@code glob} whose patterns are list literals of string literals are
+ * recognized. Globs computed by macros, or from variables, are found by the evaluation of the
+ * package, as before. Since BUILD files have no {@code if} statements, nearly all the predicted
+ * globs are evaluated.
+ */
+final class PredictedGlobDeps extends SyntaxTreeVisitor {
+  private final PackageIdentifier packageId;
+  private final Root packageRoot;
+  private final ImmutableSet.Builder<SkyKey> globKeys = ImmutableSet.builder();
+
+  private PredictedGlobDeps(PackageIdentifier packageId, Root packageRoot) {
+    this.packageId = packageId;
+    this.packageRoot = packageRoot;
+  }
+
+  /** Returns the keys of the globs that the BUILD file obviously calls. */
+  static ImmutableSet<SkyKey> predict(
+      BuildFileAST ast, PackageIdentifier packageId, Root packageRoot) {
+    PredictedGlobDeps predictedGlobDeps = new PredictedGlobDeps(packageId, packageRoot);
+    predictedGlobDeps.visitAll(ast.getStatements());
+    return predictedGlobDeps.globKeys.build();
+  }
+
+  @Override
+  public void visit(FuncallExpression node) {
+    super.visit(node);
+    Expression function = node.getFunction();
+    if (!(function instanceof Identifier) || !((Identifier) function).getName().equals("glob")) {
+      return;
+    }
+    // Mirrors the signature glob(include, exclude=[], exclude_directories=1).
+    List<String> includes = null;
+    List<String> excludes = null;
+    boolean excludeDirs = true;
+    int position = 0;
+    for (Argument.Passed argument : node.getArguments()) {
+      String name;
+      if (argument.isPositional()) {
+        name = position == 0 ? "include" : position == 1 ? "exclude" : "exclude_directories";
+        position++;
+      } else if (argument.isKeyword()) {
+        name = argument.getName();
+      } else {
+        return;
+      }
+      Expression value = argument.getValue();
+      switch (name) {
+        case "include":
+          includes = stringList(value);
+          if (includes == null) {
+            return;
+          }
+          break;
+        case "exclude":
+          excludes = stringList(value);
+          if (excludes == null) {
+            return;
+          }
+          break;
+        case "exclude_directories":
+          if (!(value instanceof IntegerLiteral)) {
+            return;
+          }
+          excludeDirs = ((IntegerLiteral) value).getValue() != 0;
+          break;
+        default:
+          return;
+      }
+    }
+    if (includes != null) {
+      addGlobKeys(includes, excludeDirs);
+    }
+    if (excludes != null) {
+      addGlobKeys(excludes, excludeDirs);
+    }
+  }
+
+  private void addGlobKeys(List<String> patterns, boolean excludeDirs) {
+    for (String pattern : patterns) {
+      try {
+        globKeys.add(
+            GlobValue.key(
+                packageId, packageRoot, pattern, excludeDirs, PathFragment.EMPTY_FRAGMENT));
+      } catch (InvalidGlobPatternException e) {
+        // Reported by the evaluation of the package.
+      }
+    }
+  }
+
+  @Nullable
+  private static List<String> stringList(Expression expression) {
+    if (!(expression instanceof ListLiteral)) {
+      return null;
+    }
+    ImmutableList.Builder<String> strings = ImmutableList.builder();
+    for (Expression element : ((ListLiteral) expression).getElements()) {
+      if (!(element instanceof StringLiteral)) {
+        return null;
+      }
+      strings.add(((StringLiteral) element).getValue());
+    }
+    return strings.build();
+  }
+}
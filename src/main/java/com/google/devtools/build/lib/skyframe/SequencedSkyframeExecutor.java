@@ -57,6 +57,7 @@ import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFilesK
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.skyframe.PackageFunction.ActionOnIOExceptionReadingBuildFile;
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.ResourceUsage;
@@ -83,6 +84,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.common.options.OptionsClassProvider;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -95,6 +97,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -106,6 +109,12 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
 
   private static final Logger logger = Logger.getLogger(SequencedSkyframeExecutor.class.getName());
 
+  // Whether to save the file system nodes of the graph in the output base when the server shuts
+  // down, and restore them in the next server, see FileSystemNodeSnapshot.
+  private static final boolean FILE_SYSTEM_SNAPSHOT =
+      Boolean.parseBoolean(System.getProperty("bazel.FileSystemNodeSnapshot", "false"));
+  private static final String FILE_SYSTEM_SNAPSHOT_FILE_NAME = "file_system_node_snapshot";
+
   private boolean lastAnalysisDiscarded = false;
 
   /**
@@ -125,6 +134,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   private final DiffAwarenessManager diffAwarenessManager;
   private final Iterable<SkyValueDirtinessChecker> customDirtinessCheckers;
   private Set<String> previousClientEnvironment = null;
+  private final FileSystemNodeSnapshot fileSystemSnapshot;
+  private final Path fileSystemSnapshotFile;
+  private boolean fileSystemSnapshotRestoreAttempted = false;
 
   private SequencedSkyframeExecutor(
       EvaluatorSupplier evaluatorSupplier,
@@ -159,6 +171,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
         actionOnIOExceptionReadingBuildFile);
     this.diffAwarenessManager = new DiffAwarenessManager(diffAwarenessFactories);
     this.customDirtinessCheckers = customDirtinessCheckers;
+    this.fileSystemSnapshot = new FileSystemNodeSnapshot(fileSystem);
+    this.fileSystemSnapshotFile =
+        directories.getOutputBase().getRelative(FILE_SYSTEM_SNAPSHOT_FILE_NAME);
   }
 
   public static SequencedSkyframeExecutor create(
@@ -244,9 +259,60 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     }
     super.sync(eventHandler, packageCacheOptions, skylarkSemanticsOptions, outputBase,
         workingDirectory, defaultsPackageContents, commandId, clientEnv, tsgm, options);
+    maybeRestoreFileSystemSnapshot();
     handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles, options);
   }
 
+  /**
+   * Restores the nodes saved by the previous server before the first diff is handled, which checks
+   * them against the file system. The snapshot is deleted, so that a server that crashes doesn't
+   * leave a stale snapshot behind for the next one.
+   */
+  private void maybeRestoreFileSystemSnapshot() throws InterruptedException {
+    if (!FILE_SYSTEM_SNAPSHOT || fileSystemSnapshotRestoreAttempted) {
+      return;
+    }
+    fileSystemSnapshotRestoreAttempted = true;
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)
+        || !trackIncrementalState
+        || !fileSystemSnapshotFile.exists()) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("restoring file system node snapshot", logger)) {
+      int restored =
+          fileSystemSnapshot.read(
+              (InMemoryMemoizingEvaluator) memoizingEvaluator,
+              getPathEntries(),
+              fileSystemSnapshotFile);
+      logger.info(String.format("Restored %d nodes from %s", restored, fileSystemSnapshotFile));
+    } catch (IOException | SerializationException e) {
+      // The nodes restored before the failure are still consistent, see FileSystemNodeSnapshot.
+      logger.log(Level.WARNING, "Failed to restore file system node snapshot", e);
+    }
+    try {
+      fileSystemSnapshotFile.delete();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete " + fileSystemSnapshotFile, e);
+    }
+  }
+
+  @Override
+  public void noteServerShutdown() {
+    if (!FILE_SYSTEM_SNAPSHOT || !trackIncrementalState || pkgLocator.get() == null) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("saving file system node snapshot", logger)) {
+      int saved =
+          fileSystemSnapshot.write(
+              memoizingEvaluator.getGraphMap(), getPathEntries(), fileSystemSnapshotFile);
+      logger.info(String.format("Saved %d nodes to %s", saved, fileSystemSnapshotFile));
+    } catch (IOException | SerializationException e) {
+      logger.log(Level.WARNING, "Failed to save file system node snapshot", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * The value types whose builders have direct access to the package locator, rather than accessing
    * it via an explicit Skyframe dependency. They need to be invalidated if the package locator
@@ -403,7 +469,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     buildDriver.evaluate(ImmutableList.<SkyKey>of(), false,
         DEFAULT_THREAD_COUNT, eventHandler);
 
-    FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, null);
+    FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, null, getLocalBatchStat());
     // We need to manually check for changes to known files. This entails finding all dirty file
     // system values under package roots for which we don't have diff information. If at least
     // one path entry doesn't have diff information, then we're going to have to iterate over
@@ -581,8 +647,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     TimestampGranularityMonitor tsgm = this.tsgm.get();
     Differencer.Diff diff;
     if (modifiedFileSet.treatEverythingAsModified()) {
-      diff = new FilesystemValueChecker(tsgm, null).getDirtyKeys(memoizingEvaluator.getValues(),
-          new BasicFilesystemDirtinessChecker());
+      diff =
+          new FilesystemValueChecker(tsgm, null, getLocalBatchStat())
+              .getDirtyKeys(memoizingEvaluator.getValues(), new BasicFilesystemDirtinessChecker());
     } else {
       diff = getDiff(tsgm, modifiedFileSet.modifiedSourceFiles(), pathEntry);
     }
@@ -601,13 +668,18 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
 
   @Override
   public void detectModifiedOutputFiles(
-      ModifiedFileSet modifiedOutputFiles, @Nullable Range<Long> lastExecutionTimeRange)
+      ModifiedFileSet modifiedOutputFiles,
+      @Nullable Range<Long> lastExecutionTimeRange,
+      Path execRoot)
       throws AbruptExitException, InterruptedException {
 
     // Detect external modifications in the output tree.
     FilesystemValueChecker fsvc =
         new FilesystemValueChecker(Preconditions.checkNotNull(tsgm.get()), lastExecutionTimeRange);
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
+    if (batchStatter == null) {
+      batchStatter = getLocalBatchStat(execRoot);
+    }
     recordingDiffer.invalidate(
         fsvc.getDirtyActionValues(
             memoizingEvaluator.getValues(), batchStatter, modifiedOutputFiles));
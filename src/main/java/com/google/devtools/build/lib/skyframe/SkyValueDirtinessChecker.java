@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import javax.annotation.Nullable;
@@ -40,7 +42,28 @@ public abstract class SkyValueDirtinessChecker {
    */
   public DirtyResult check(SkyKey key, @Nullable SkyValue oldValue,
       @Nullable TimestampGranularityMonitor tsgm) {
-    SkyValue newValue = createNewValue(key, tsgm);
+    return compare(oldValue, createNewValue(key, tsgm));
+  }
+
+  /**
+   * If {@code applies(key)}, returns the path whose lstat(2) the check of {@code key} starts with,
+   * so that the paths of many keys can be stat'ed together, or {@code null} if there is none.
+   */
+  @Nullable
+  public RootedPath getLstatPath(SkyKey key) {
+    return null;
+  }
+
+  /**
+   * Like {@link #check}, but given the existing status {@code lstat} of {@link #getLstatPath}, so
+   * that the path isn't stat'ed again.
+   */
+  public DirtyResult checkWithLstat(SkyKey key, @Nullable SkyValue oldValue,
+      FileStatusWithDigest lstat, @Nullable TimestampGranularityMonitor tsgm) {
+    return check(key, oldValue, tsgm);
+  }
+
+  static DirtyResult compare(@Nullable SkyValue oldValue, @Nullable SkyValue newValue) {
     if (newValue == null) {
       return DirtyResult.dirty(oldValue);
     }
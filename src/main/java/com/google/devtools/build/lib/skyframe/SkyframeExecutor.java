@@ -129,8 +129,10 @@ import com.google.devtools.build.lib.skyframe.ToolchainUtil.ToolchainContextExce
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.LocalBatchStat;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -192,6 +194,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final PackageFactory pkgFactory;
   private final WorkspaceStatusAction.Factory workspaceStatusActionFactory;
   private final FileSystem fileSystem;
+
+  // Whether to stat the files checked for changes in batches, see LocalBatchStat.
+  private boolean localBatchStat = false;
   private final BlazeDirectories directories;
   protected final ExternalFilesHelper externalFilesHelper;
   @Nullable protected OutputService outputService;
@@ -217,6 +222,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final Cache<PackageIdentifier, PackageFunction.BuilderAndGlobDeps>
       packageFunctionCache = newPkgFunctionCache();
   private final Cache<PackageIdentifier, AstParseResult> astCache = newAstCache();
+  // Syntax trees of BUILD and .bzl files cached across servers, if enabled by the options.
+  private final PersistentAstCache persistentAstCache;
+  // Set by skyFunctions() whenever the evaluator is created.
+  private PackageFunction packageFunction;
 
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
   private final PackageProgressReceiver packageProgress = new PackageProgressReceiver();
@@ -324,6 +333,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor = new SkyframeActionExecutor(actionKeyContext, statusReporterRef);
     this.fileSystem = fileSystem;
     this.directories = Preconditions.checkNotNull(directories);
+    this.persistentAstCache =
+        new PersistentAstCache(
+            directories.getInstallMD5() == null ? null : directories.getInstallMD5().toString());
     this.actionKeyContext = Preconditions.checkNotNull(actionKeyContext);
     ImmutableMap.Builder<BuildInfoKey, BuildInfoFactory> factoryMapBuilder = ImmutableMap.builder();
     for (BuildInfoFactory factory : buildInfoFactories) {
@@ -376,7 +388,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         new PackageLookupFunction(
             deletedPackages, crossRepositoryLabelViolationStrategy, buildFilesByPriority));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(
+        SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, persistentAstCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -398,8 +412,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.TEST_SUITE_EXPANSION, new TestSuiteExpansionFunction());
     map.put(SkyFunctions.TARGET_PATTERN_PHASE, new TargetPatternPhaseFunction(pkgLocator));
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction(directories));
-    map.put(
-        SkyFunctions.PACKAGE,
+    packageFunction =
         newPackageFunction(
             pkgFactory,
             packageManager,
@@ -408,7 +421,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             astCache,
             numPackagesLoaded,
             ruleClassProvider,
-            packageProgress));
+            packageProgress);
+    map.put(SkyFunctions.PACKAGE, packageFunction);
     map.put(SkyFunctions.PACKAGE_ERROR, new PackageErrorFunction());
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
     map.put(SkyFunctions.TRANSITIVE_TARGET, new TransitiveTargetFunction(ruleClassProvider));
@@ -499,7 +513,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         null,
         packageProgress,
         actionOnIOExceptionReadingBuildFile,
-        IncrementalityIntent.INCREMENTAL);
+        IncrementalityIntent.INCREMENTAL,
+        persistentAstCache);
   }
 
   protected SkyFunction newSkylarkImportLookupFunction(
@@ -554,6 +569,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   /** Inform this SkyframeExecutor that a new command is starting. */
   public void noteCommandStart() {}
 
+  /** Inform this SkyframeExecutor that the server is shutting down. */
+  public void noteServerShutdown() {}
+
   /**
    * Notify listeners about changed files, and release any associated memory afterwards.
    */
@@ -623,6 +641,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return new SkyframeProgressReceiver();
   }
 
+  @VisibleForTesting
+  PersistentAstCache getPersistentAstCache() {
+    return persistentAstCache;
+  }
+
   /** Reinitializes the Skyframe evaluator, dropping all previously computed values. */
   public void resetEvaluator() {
     init();
@@ -930,6 +953,21 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         || (oldType.equals(Dirent.Type.SYMLINK) && newType.equals(FileStateType.SYMLINK));
   }
 
+  /**
+   * Returns a {@link LocalBatchStat} of the paths relative to {@code root}, or null if the files
+   * checked for changes are stat'ed one at a time.
+   */
+  @Nullable
+  protected BatchStat getLocalBatchStat(Path root) {
+    return localBatchStat ? new LocalBatchStat(root) : null;
+  }
+
+  /** Like {@link #getLocalBatchStat(Path)}, for absolute paths. */
+  @Nullable
+  protected BatchStat getLocalBatchStat() {
+    return getLocalBatchStat(fileSystem.getPath("/"));
+  }
+
   protected Differencer.Diff getDiff(
       TimestampGranularityMonitor tsgm,
       Iterable<PathFragment> modifiedSourceFiles,
@@ -956,7 +994,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     logger.info(
         "About to recompute filesystem nodes corresponding to files that are known to have "
             + "changed");
-    FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, null);
+    FilesystemValueChecker fsvc =
+        new FilesystemValueChecker(tsgm, null, getLocalBatchStat());
     Map<SkyKey, SkyValue> valuesMap = memoizingEvaluator.getValues();
     Differencer.DiffWithDelta diff =
         fsvc.getNewAndOldValues(valuesMap, dirtyFileStateSkyKeys, new FileDirtinessChecker());
@@ -1045,6 +1084,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     PrecomputedValue.ACTION_ENV.set(injectable(), actionEnv);
     this.clientEnv.set(clientEnv);
     setShowLoadingProgress(packageCacheOptions.showLoadingProgress);
+    localBatchStat = packageCacheOptions.localBatchStat;
     setDefaultVisibility(packageCacheOptions.defaultVisibility);
     setSkylarkSemantics(skylarkSemanticsOptions);
     setupDefaultPackage(defaultsPackageContents);
@@ -1061,6 +1101,21 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     astCache.invalidateAll();
     numPackagesLoaded.set(0);
     packageProgress.reset();
+    PersistentAstCache.Stats astCacheStats = persistentAstCache.getAndResetStats();
+    if (astCacheStats.getHits() + astCacheStats.getMisses() > 0) {
+      logger.info("Persistent AST cache of the previous command: " + astCacheStats);
+    }
+    int restartsAvoided = packageFunction.getAndResetNumRestartsAvoided();
+    if (restartsAvoided > 0) {
+      logger.info(
+          String.format(
+              "Package loading avoided %d Skyframe restarts in the previous command",
+              restartsAvoided));
+    }
+    persistentAstCache.setDirectory(
+        packageCacheOptions.persistentAstCache == null
+            ? null
+            : directories.getOutputBase().getRelative(packageCacheOptions.persistentAstCache));
 
     // Reset the stateful SkyframeCycleReporter, which contains cycles from last run.
     cyclesReporter.set(createCyclesReporter());
@@ -2012,7 +2067,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   }
 
   public abstract void detectModifiedOutputFiles(
-      ModifiedFileSet modifiedOutputFiles, @Nullable Range<Long> lastExecutionTimeRange)
+      ModifiedFileSet modifiedOutputFiles,
+      @Nullable Range<Long> lastExecutionTimeRange,
+      Path execRoot)
       throws AbruptExitException, InterruptedException;
 
   /**
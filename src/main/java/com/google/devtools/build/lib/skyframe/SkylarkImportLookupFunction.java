@@ -379,8 +379,9 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     // A more accurate - however much more complicated - way would be to calculate a hash based on
     // the transitive closure of the accessible AST nodes.
     PathFragment extensionFile = extensionLabel.toPathFragment();
+    com.google.devtools.build.lib.syntax.Environment extensionEnv;
     try (Mutability mutability = Mutability.create("importing %s", extensionFile)) {
-      com.google.devtools.build.lib.syntax.Environment extensionEnv =
+      extensionEnv =
           ruleClassProvider
               .createSkylarkRuleClassEnvironment(
                   extensionLabel, mutability, skylarkSemantics,
@@ -395,8 +396,9 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       if (eventHandler.hasErrors()) {
         throw SkylarkImportFailedException.errors(extensionFile);
       }
-      return new Extension(extensionEnv);
     }
+    // Made after the environment is frozen, so that the bindings are shared with its global frame.
+    return new Extension(extensionEnv);
   }
 
   public static void execAndExport(BuildFileAST ast, Label extensionLabel,
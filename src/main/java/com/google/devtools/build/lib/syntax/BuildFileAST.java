@@ -20,6 +20,7 @@ import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
 import com.google.devtools.build.lib.syntax.Parser.ParseResult;
 import com.google.devtools.build.lib.syntax.SkylarkImports.SkylarkImportSyntaxException;
 import com.google.devtools.build.lib.util.Pair;
@@ -36,6 +37,12 @@ import javax.annotation.Nullable;
 // does not itself extend ASTNode. This would help keep the AST minimalistic.
 public class BuildFileAST extends ASTNode {
 
+  /**
+   * A codec for syntax trees, including the results of validation. Unlike Java serialization, it
+   * reads trees faster than they can be parsed.
+   */
+  public static final ObjectCodec<BuildFileAST> CODEC = new SyntaxTreeCodec();
+
   private final ImmutableList<Statement> statements;
 
   private final ImmutableList<Comment> comments;
@@ -49,7 +56,7 @@ public class BuildFileAST extends ASTNode {
 
   @Nullable private final String contentHashCode;
 
-  private BuildFileAST(
+  BuildFileAST(
       ImmutableList<Statement> statements,
       boolean containsErrors,
       String contentHashCode,
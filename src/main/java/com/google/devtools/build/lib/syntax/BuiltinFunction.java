@@ -14,13 +14,16 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
+import com.google.common.primitives.Primitives;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature;
 import com.google.devtools.build.lib.syntax.SkylarkType.SkylarkFunctionType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -53,6 +56,10 @@ public class BuiltinFunction extends BaseFunction {
   // The underlying invoke() method.
   @Nullable private Method invokeMethod;
 
+  // A handle on invokeMethod that takes this function and the array of arguments, which is
+  // cheaper to call than the method itself.
+  @Nullable private MethodHandle invokeHandle;
+
   // extra arguments required beside signature.
   @Nullable private ExtraArgKind[] extraArgs;
 
@@ -163,42 +170,19 @@ public class BuiltinFunction extends BaseFunction {
     // Last but not least, actually make an inner call to the function with the resolved arguments.
     try {
       env.enterScope(this, ast, env.getGlobals());
-      return invokeMethod.invoke(this, args);
-    } catch (InvocationTargetException x) {
-      Throwable e = x.getCause();
-
-      if (e instanceof EvalException) {
-        throw ((EvalException) e).ensureLocation(loc);
-      } else if (e instanceof IllegalArgumentException) {
-        throw new EvalException(loc, "illegal argument in call to " + getName(), e);
-      }
-      // TODO(bazel-team): replace with Throwables.throwIfInstanceOf once Guava 20 is released.
-      Throwables.propagateIfInstanceOf(e, InterruptedException.class);
-      // TODO(bazel-team): replace with Throwables.throwIfUnchecked once Guava 20 is released.
-      Throwables.propagateIfPossible(e);
-      throw badCallException(loc, e, args);
+      return (Object) invokeHandle.invokeExact((Object) this, args);
+    } catch (ClassCastException | NullPointerException e) {
+      // Either this was thrown by the handle for an argument of the wrong type, or by the
+      // function itself. To cover the first case, let's manually check the arguments.
+      checkArgumentTypes(loc, e, args);
+      throw e;
+    } catch (EvalException e) {
+      throw e.ensureLocation(loc);
     } catch (IllegalArgumentException e) {
-      // Either this was thrown by Java itself, or it's a bug
-      // To cover the first case, let's manually check the arguments.
-      final int len = args.length - ((extraArgs == null) ? 0 : extraArgs.length);
-      final Class<?>[] types = invokeMethod.getParameterTypes();
-      for (int i = 0; i < args.length; i++) {
-        if (args[i] != null && !types[i].isAssignableFrom(args[i].getClass())) {
-          String paramName =
-              i < len ? signature.getSignature().getNames().get(i) : extraArgs[i - len].name();
-          throw new EvalException(
-              loc,
-              String.format(
-                  "argument '%s' has type '%s', but should be '%s'\nin call to builtin %s %s",
-                  paramName,
-                  EvalUtils.getDataTypeName(args[i]),
-                  EvalUtils.getDataTypeNameFromClass(types[i]),
-                  hasSelfArgument() ? "method" : "function",
-                  getShortSignature()));
-        }
-      }
-      throw badCallException(loc, e, args);
-    } catch (IllegalAccessException e) {
+      throw new EvalException(loc, "illegal argument in call to " + getName(), e);
+    } catch (InterruptedException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
       throw badCallException(loc, e, args);
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYLARK_BUILTIN_FN);
@@ -206,6 +190,35 @@ public class BuiltinFunction extends BaseFunction {
     }
   }
 
+  /**
+   * Throws an exception if one of the arguments doesn't have the type of the corresponding
+   * parameter of the invoke method.
+   */
+  private void checkArgumentTypes(Location loc, Throwable cause, Object[] args)
+      throws EvalException {
+    final int len = args.length - ((extraArgs == null) ? 0 : extraArgs.length);
+    final Class<?>[] types = invokeMethod.getParameterTypes();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i] == null) {
+        if (types[i].isPrimitive()) {
+          throw badCallException(loc, cause, args);
+        }
+      } else if (!Primitives.wrap(types[i]).isInstance(args[i])) {
+        String paramName =
+            i < len ? signature.getSignature().getNames().get(i) : extraArgs[i - len].name();
+        throw new EvalException(
+            loc,
+            String.format(
+                "argument '%s' has type '%s', but should be '%s'\nin call to builtin %s %s",
+                paramName,
+                EvalUtils.getDataTypeName(args[i]),
+                EvalUtils.getDataTypeNameFromClass(types[i]),
+                hasSelfArgument() ? "method" : "function",
+                getShortSignature()));
+      }
+    }
+  }
+
   private static String stacktraceToString(StackTraceElement[] elts) {
     StringBuilder b = new StringBuilder();
     for (StackTraceElement e : elts) {
@@ -266,6 +279,17 @@ public class BuiltinFunction extends BaseFunction {
   @Override
   protected void configure() {
     invokeMethod = findMethod("invoke");
+    try {
+      invokeHandle =
+          MethodHandles.lookup()
+              .unreflect(invokeMethod)
+              .asFixedArity()
+              .asSpreader(Object[].class, invokeMethod.getParameterTypes().length)
+              .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+    } catch (IllegalAccessException e) {
+      // findMethod made the method accessible.
+      throw new IllegalStateException(e);
+    }
 
     int arguments = signature.getSignature().getShape().getArguments();
     innerArgumentCount = arguments + (extraArgs == null ? 0 : extraArgs.length);
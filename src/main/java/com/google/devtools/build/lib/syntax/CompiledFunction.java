@@ -0,0 +1,418 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The body of a {@link UserDefinedFunction} compiled to a tree of closures, which is executed
+ * instead of interpreting the statements with {@link Eval}.
+ *
+ * <p>The local variables of the function, i.e. its parameters and all the names it assigns, are
+ * resolved to slots at compile time: the {@link Identifier}s of the body that refer to them are
+ * given their slot, and the values of the locals are stored in an array while the function is
+ * evaluated, instead of in the map of a {@link Environment.Frame}. Statements are compiled to
+ * closures that signal break, continue and return with their result rather than with exceptions.
+ * Expressions are still evaluated by the AST, and all errors are created as by the interpreter, so
+ * that both produce identical results.
+ *
+ * <p>Compilation is disabled unless the {@code bazel.CompileSkylarkFunctions} system property is
+ * true. Function bodies with statements that the compiler doesn't handle are interpreted.
+ */
+final class CompiledFunction {
+
+  private static volatile boolean enabled =
+      Boolean.parseBoolean(System.getProperty("bazel.CompileSkylarkFunctions", "false"));
+
+  /** Returned by a compiled statement that executed a {@code break}. */
+  private static final Object BREAK = new Object();
+
+  /** Returned by a compiled statement that executed a {@code continue}. */
+  private static final Object CONTINUE = new Object();
+
+  private final ImmutableList<String> parameterNames;
+  private final ImmutableMap<String, Integer> localSlotsByName;
+  private final Node body;
+
+  private CompiledFunction(
+      ImmutableList<String> parameterNames,
+      ImmutableMap<String, Integer> localSlotsByName,
+      Node body) {
+    this.parameterNames = parameterNames;
+    this.localSlotsByName = localSlotsByName;
+    this.body = body;
+  }
+
+  /** Returns whether function definitions should be compiled. */
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  @VisibleForTesting
+  static void setEnabled(boolean enabled) {
+    CompiledFunction.enabled = enabled;
+  }
+
+  /**
+   * Compiles the body of the given function definition, resolving its identifiers, or returns
+   * null if it contains statements that can only be interpreted. Must be called at most once per
+   * definition.
+   */
+  @Nullable
+  static CompiledFunction compile(FunctionDefStatement node) {
+    Node body = compileBlock(node.getStatements(), /*loopDepth=*/ 0, /*topLevel=*/ true);
+    if (body == null) {
+      return null;
+    }
+
+    // The parameters come first, in the order in which the arguments are passed.
+    ImmutableList<String> parameterNames = node.getSignature().getSignature().getNames();
+    Map<String, Integer> slots = new LinkedHashMap<>();
+    for (String name : parameterNames) {
+      slots.put(name, slots.size());
+    }
+    final List<String> assigned = new ArrayList<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(LValue node) {
+        for (Identifier ident : node.boundIdentifiers()) {
+          assigned.add(ident.getName());
+        }
+        super.visit(node);
+      }
+    }.visitBlock(node.getStatements());
+    for (String name : assigned) {
+      if (!slots.containsKey(name)) {
+        slots.put(name, slots.size());
+      }
+    }
+
+    final ImmutableMap<String, Integer> localSlotsByName = ImmutableMap.copyOf(slots);
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        Integer slot = localSlotsByName.get(node.getName());
+        if (slot != null) {
+          node.setLocalSlot(slot);
+        }
+      }
+
+      @Override
+      public void visit(DotExpression node) {
+        // The field is not a variable.
+        visit(node.getObject());
+      }
+    }.visitBlock(node.getStatements());
+    return new CompiledFunction(parameterNames, localSlotsByName, body);
+  }
+
+  @Nullable
+  private static Node compileBlock(List<Statement> statements, int loopDepth, boolean topLevel) {
+    List<Node> nodes = new ArrayList<>(statements.size());
+    for (Statement statement : statements) {
+      if (statement.kind() == Statement.Kind.PASS) {
+        continue;
+      }
+      Node node = compileStatement(statement, loopDepth, topLevel);
+      if (node == null) {
+        return null;
+      }
+      nodes.add(node);
+    }
+    return nodes.size() == 1 ? nodes.get(0) : new Block(nodes.toArray(new Node[0]));
+  }
+
+  @Nullable
+  private static Node compileStatement(Statement statement, int loopDepth, boolean topLevel) {
+    switch (statement.kind()) {
+      case ASSIGNMENT:
+        return new Assignment((AssignmentStatement) statement);
+      case AUGMENTED_ASSIGNMENT:
+        return new AugmentedAssignment((AugmentedAssignmentStatement) statement);
+      case EXPRESSION:
+        return new ExpressionNode((ExpressionStatement) statement);
+      case FLOW:
+        // Outside of a loop, break and continue leave the function with an exception.
+        if (loopDepth == 0) {
+          return null;
+        }
+        return ((FlowStatement) statement).getKind() == FlowStatement.Kind.BREAK
+            ? new Flow(BREAK)
+            : new Flow(CONTINUE);
+      case FOR:
+        ForStatement forStatement = (ForStatement) statement;
+        Node block = compileBlock(forStatement.getBlock(), loopDepth + 1, /*topLevel=*/ false);
+        return block == null ? null : new For(forStatement, block);
+      case IF:
+        return compileIf((IfStatement) statement, loopDepth);
+      case RETURN:
+        return new Return((ReturnStatement) statement, topLevel);
+      case CONDITIONAL:
+      case FUNCTION_DEF:
+      case LOAD:
+      case PASS:
+        return null;
+    }
+    throw new IllegalArgumentException("unexpected statement: " + statement.kind());
+  }
+
+  @Nullable
+  private static Node compileIf(IfStatement statement, int loopDepth) {
+    ImmutableList<IfStatement.ConditionalStatements> thenBlocks = statement.getThenBlocks();
+    Expression[] conditions = new Expression[thenBlocks.size()];
+    Node[] blocks = new Node[thenBlocks.size()];
+    for (int i = 0; i < conditions.length; i++) {
+      conditions[i] = thenBlocks.get(i).getCondition();
+      blocks[i] = compileBlock(thenBlocks.get(i).getStatements(), loopDepth, /*topLevel=*/ false);
+      if (blocks[i] == null) {
+        return null;
+      }
+    }
+    Node elseBlock = compileBlock(statement.getElseBlock(), loopDepth, /*topLevel=*/ false);
+    return elseBlock == null ? null : new If(statement, conditions, blocks, elseBlock);
+  }
+
+  /** Returns the slots of the local variables, by name. */
+  ImmutableMap<String, Integer> getLocalSlotsByName() {
+    return localSlotsByName;
+  }
+
+  /** Returns new slots for the local variables of an invocation, all unassigned. */
+  Object[] newLocalSlots() {
+    return new Object[localSlotsByName.size()];
+  }
+
+  /**
+   * Binds the arguments to the parameters and executes the body. The caller must have entered
+   * the scope of the function with slots from {@link #newLocalSlots}.
+   */
+  Object call(Object[] arguments, Environment env) throws EvalException, InterruptedException {
+    for (int i = 0; i < parameterNames.size(); i++) {
+      env.updateLocal(i, parameterNames.get(i), arguments[i]);
+    }
+    Object result = body.exec(env);
+    return result == null ? Runtime.NONE : result;
+  }
+
+  /** A compiled statement or block. */
+  private abstract static class Node {
+    /**
+     * Executes the statement, and returns null if it completed normally, {@link #BREAK} or {@link
+     * #CONTINUE} for a break or continue statement, or else the value returned by a return
+     * statement.
+     */
+    @Nullable
+    abstract Object exec(Environment env) throws EvalException, InterruptedException;
+  }
+
+  private static final class Block extends Node {
+    private final Node[] nodes;
+
+    Block(Node[] nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      for (Node node : nodes) {
+        Object result = node.exec(env);
+        if (result != null) {
+          return result;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final class Assignment extends Node {
+    private final AssignmentStatement statement;
+    private final Expression expression;
+    private final LValue lvalue;
+
+    Assignment(AssignmentStatement statement) {
+      this.statement = statement;
+      this.expression = statement.getExpression();
+      this.lvalue = statement.getLValue();
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        lvalue.assign(expression.eval(env), env, statement.getLocation());
+        return null;
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+
+  private static final class AugmentedAssignment extends Node {
+    private final AugmentedAssignmentStatement statement;
+
+    AugmentedAssignment(AugmentedAssignmentStatement statement) {
+      this.statement = statement;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        statement
+            .getLValue()
+            .assignAugmented(
+                statement.getOperator(), statement.getExpression(), env, statement.getLocation());
+        return null;
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+
+  private static final class ExpressionNode extends Node {
+    private final ExpressionStatement statement;
+    private final Expression expression;
+
+    ExpressionNode(ExpressionStatement statement) {
+      this.statement = statement;
+      this.expression = statement.getExpression();
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        expression.eval(env);
+        return null;
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+
+  private static final class Flow extends Node {
+    private final Object result;
+
+    Flow(Object result) {
+      this.result = result;
+    }
+
+    @Override
+    Object exec(Environment env) {
+      return result;
+    }
+  }
+
+  private static final class For extends Node {
+    private final ForStatement statement;
+    private final Expression collection;
+    private final LValue variable;
+    private final Node block;
+
+    For(ForStatement statement, Node block) {
+      this.statement = statement;
+      this.collection = statement.getCollection();
+      this.variable = statement.getVariable();
+      this.block = block;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        Object o = collection.eval(env);
+        Iterable<?> col = EvalUtils.toIterable(o, statement.getLocation(), env);
+        EvalUtils.lock(o, statement.getLocation());
+        try {
+          for (Object it : col) {
+            variable.assign(it, env, statement.getLocation());
+            Object result = block.exec(env);
+            if (result == BREAK) {
+              return null;
+            }
+            if (result != null && result != CONTINUE) {
+              return result;
+            }
+          }
+          return null;
+        } finally {
+          EvalUtils.unlock(o, statement.getLocation());
+        }
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+
+  private static final class If extends Node {
+    private final IfStatement statement;
+    private final Expression[] conditions;
+    private final Node[] blocks;
+    private final Node elseBlock;
+
+    If(IfStatement statement, Expression[] conditions, Node[] blocks, Node elseBlock) {
+      this.statement = statement;
+      this.conditions = conditions;
+      this.blocks = blocks;
+      this.elseBlock = elseBlock;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      try {
+        for (int i = 0; i < conditions.length; i++) {
+          if (EvalUtils.toBoolean(conditions[i].eval(env))) {
+            return blocks[i].exec(env);
+          }
+        }
+        return elseBlock.exec(env);
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+
+  private static final class Return extends Node {
+    private final ReturnStatement statement;
+    @Nullable private final Expression expression;
+    private final boolean topLevel;
+
+    Return(ReturnStatement statement, boolean topLevel) {
+      this.statement = statement;
+      this.expression = statement.getReturnExpression();
+      this.topLevel = topLevel;
+    }
+
+    @Override
+    Object exec(Environment env) throws EvalException, InterruptedException {
+      if (expression == null) {
+        return Runtime.NONE;
+      }
+      if (topLevel) {
+        // Like UserDefinedFunction, which evaluates the expression of a return statement of the
+        // body without executing the statement.
+        return expression.eval(env);
+      }
+      try {
+        return expression.eval(env);
+      } catch (EvalException ex) {
+        throw statement.maybeTransformException(ex);
+      }
+    }
+  }
+}
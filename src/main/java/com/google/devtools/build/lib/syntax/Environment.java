@@ -122,7 +122,11 @@ public final class Environment implements Freezable {
     @Nullable
     private Label label;
 
-    private final Map<String, Object> bindings;
+    /**
+     * The bindings; final, except that it is replaced by an {@link ImmutableMap} with the same
+     * entries by {@link #getImmutableBindings} once the frame is frozen.
+     */
+    private Map<String, Object> bindings;
 
     /** Constructs an uninitialized instance; caller must call {@link #initialize} before use. */
     public Frame() {
@@ -227,6 +231,27 @@ public final class Environment implements Freezable {
       return Collections.unmodifiableMap(bindings);
     }
 
+    /**
+     * Returns an immutable map of the direct bindings of this {@code Frame}, ignoring parents.
+     *
+     * <p>Once the {@code Frame} is frozen, it keeps the returned map in place of its own bindings,
+     * so that the {@link Extension}s made from it and the functions defined in it share a single
+     * copy of them.
+     */
+    ImmutableMap<String, Object> getImmutableBindings() {
+      checkInitialized();
+      if (bindings instanceof ImmutableMap) {
+        return (ImmutableMap<String, Object>) bindings;
+      }
+      ImmutableMap<String, Object> immutableBindings = ImmutableMap.copyOf(bindings);
+      if (mutability.isFrozen()) {
+        // Racing threads may each make a copy; any of them can be kept, since they are equal and
+        // safely published.
+        bindings = immutableBindings;
+      }
+      return immutableBindings;
+    }
+
     /**
      * Returns a map containing all bindings of this {@code Frame} and of its transitive parents,
      * taking into account shadowing precedence.
@@ -327,19 +352,29 @@ public final class Environment implements Freezable {
     /** The set of known global variables of the caller. */
     @Nullable final Set<String> knownGlobalVariables;
 
+    /** The local slots of the caller, if it is a compiled function. */
+    @Nullable final Object[] localSlots;
+
+    /** The slots of the local variables of the caller, if it is a compiled function. */
+    @Nullable final ImmutableMap<String, Integer> localSlotsByName;
+
     Continuation(
         Continuation continuation,
         BaseFunction function,
         FuncallExpression caller,
         Frame lexicalFrame,
         Frame globalFrame,
-        Set<String> knownGlobalVariables) {
+        Set<String> knownGlobalVariables,
+        Object[] localSlots,
+        ImmutableMap<String, Integer> localSlotsByName) {
       this.continuation = continuation;
       this.function = function;
       this.caller = caller;
       this.lexicalFrame = lexicalFrame;
       this.globalFrame = globalFrame;
       this.knownGlobalVariables = knownGlobalVariables;
+      this.localSlots = localSlots;
+      this.localSlotsByName = localSlotsByName;
     }
   }
 
@@ -363,9 +398,12 @@ public final class Environment implements Freezable {
     /**
      * Constructs using the bindings from the global definitions of the given {@link Environment},
      * and that {@code Environment}'s transitive hash code.
+     *
+     * <p>If the {@code Environment} is frozen, the bindings are shared with its global frame rather
+     * than copied.
      */
     public Extension(Environment env) {
-      this(ImmutableMap.copyOf(env.globalFrame.bindings), env.getTransitiveContentHashCode());
+      this(env.globalFrame.getImmutableBindings(), env.getTransitiveContentHashCode());
     }
 
     public String getTransitiveContentHashCode() {
@@ -449,6 +487,17 @@ public final class Environment implements Freezable {
    */
   @Nullable private Set<String> knownGlobalVariables;
 
+  /**
+   * When in the lexical Frame of a {@link CompiledFunction}, the values of its local variables,
+   * indexed by the slots that the identifiers of its body were resolved to. Unassigned variables
+   * have a null value. Only names that are not local variables of the function are bound in the
+   * lexical Frame itself.
+   */
+  @Nullable private Object[] localSlots;
+
+  /** When in the lexical Frame of a {@link CompiledFunction}, the slots of its local variables. */
+  @Nullable private ImmutableMap<String, Integer> localSlotsByName;
+
   /**
    * When in a lexical (Skylark) frame, this lists the names of the functions in the call stack.
    * We currently use it to artificially disable recursion.
@@ -469,15 +518,39 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, null, null);
+  }
+
+  /**
+   * Enters the scope of a compiled function, whose local variables are stored in slots.
+   *
+   * @param localSlots the initially empty local slots of the function
+   * @param localSlotsByName the slots of the local variables of the function
+   */
+  void enterScope(
+      BaseFunction function,
+      FuncallExpression caller,
+      Frame globals,
+      @Nullable Object[] localSlots,
+      @Nullable ImmutableMap<String, Integer> localSlotsByName) {
     continuation =
         new Continuation(
-            continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables);
+            continuation,
+            function,
+            caller,
+            lexicalFrame,
+            globalFrame,
+            knownGlobalVariables,
+            this.localSlots,
+            this.localSlotsByName);
     // TODO(bazel-team): What if instead of tracking both the lexical and global frames from the
     // Environment, we instead just tracked the current lexical frame, and made the global frame its
     // parent?
     lexicalFrame = new Frame(mutability(), null);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<>();
+    this.localSlots = localSlots;
+    this.localSlotsByName = localSlotsByName;
   }
 
   /**
@@ -488,6 +561,8 @@ public final class Environment implements Freezable {
     lexicalFrame = continuation.lexicalFrame;
     globalFrame = continuation.globalFrame;
     knownGlobalVariables = continuation.knownGlobalVariables;
+    localSlots = continuation.localSlots;
+    localSlotsByName = continuation.localSlotsByName;
     continuation = continuation.continuation;
   }
 
@@ -746,7 +821,7 @@ public final class Environment implements Freezable {
           String.format("Trying to bind dynamic variable '%s' but it is already bound",
               varname));
     }
-    if (lexicalFrame != null && lexicalFrame.get(varname) != null) {
+    if (lexicalFrame != null && lookupLexical(varname) != null) {
       throw new AssertionError(
           String.format("Trying to bind dynamic variable '%s' but it is already bound lexically",
               varname));
@@ -771,6 +846,11 @@ public final class Environment implements Freezable {
 
   /** Remove variable from local bindings. */
   void removeLocalBinding(String varname) {
+    Integer slot = getLocalSlot(varname);
+    if (slot != null) {
+      localSlots[slot] = null;
+      return;
+    }
     try {
       currentFrame().remove(this, varname);
     } catch (MutabilityException e) {
@@ -788,15 +868,11 @@ public final class Environment implements Freezable {
    * @return this Environment, in fluid style
    */
   public Environment update(String varname, Object value) throws EvalException {
-    Preconditions.checkNotNull(value, "update(value == null)");
-    // prevents clashes between static and dynamic variables.
-    if (dynamicFrame.get(varname) != null) {
-      throw new EvalException(
-          null, String.format("Trying to update special read-only global variable '%s'", varname));
-    }
-    if (isKnownGlobalVariable(varname)) {
-      throw new EvalException(
-          null, String.format("Trying to update read-only global variable '%s'", varname));
+    checkUpdate(varname, value);
+    Integer slot = getLocalSlot(varname);
+    if (slot != null) {
+      localSlots[slot] = value;
+      return this;
     }
     try {
       currentFrame().put(this, varname, Preconditions.checkNotNull(value));
@@ -813,6 +889,38 @@ public final class Environment implements Freezable {
     return this;
   }
 
+  /**
+   * Like {@link #update}, for a local variable that was resolved to the given slot of the compiled
+   * function being evaluated.
+   */
+  void updateLocal(int slot, String varname, Object value) throws EvalException {
+    if (localSlots == null) {
+      update(varname, value);
+      return;
+    }
+    checkUpdate(varname, value);
+    localSlots[slot] = value;
+  }
+
+  private void checkUpdate(String varname, Object value) throws EvalException {
+    Preconditions.checkNotNull(value, "update(value == null)");
+    // prevents clashes between static and dynamic variables.
+    if (dynamicFrame.get(varname) != null) {
+      throw new EvalException(
+          null, String.format("Trying to update special read-only global variable '%s'", varname));
+    }
+    if (isKnownGlobalVariable(varname)) {
+      throw new EvalException(
+          null, String.format("Trying to update read-only global variable '%s'", varname));
+    }
+  }
+
+  /** Returns the slot of the given local variable of the compiled function being evaluated. */
+  @Nullable
+  private Integer getLocalSlot(String varname) {
+    return localSlotsByName != null ? localSlotsByName.get(varname) : null;
+  }
+
   public boolean hasVariable(String varname) {
     return lookup(varname) != null;
   }
@@ -852,7 +960,7 @@ public final class Environment implements Freezable {
   public Object lookup(String varname) {
     // Lexical frame takes precedence, then globals, then dynamics.
     if (lexicalFrame != null) {
-      Object lexicalValue = lexicalFrame.get(varname);
+      Object lexicalValue = lookupLexical(varname);
       if (lexicalValue != null) {
         return lexicalValue;
       }
@@ -871,6 +979,26 @@ public final class Environment implements Freezable {
     return dynamicValue;
   }
 
+  /**
+   * Like {@link #lookup}, for a local variable that was resolved to the given slot of the compiled
+   * function being evaluated.
+   */
+  Object lookupLocal(int slot, String varname) {
+    if (localSlots != null) {
+      Object value = localSlots[slot];
+      if (value != null) {
+        return value;
+      }
+    }
+    return lookup(varname);
+  }
+
+  @Nullable
+  private Object lookupLexical(String varname) {
+    Integer slot = getLocalSlot(varname);
+    return slot != null ? localSlots[slot] : lexicalFrame.get(varname);
+  }
+
   /**
    * @return true if varname is a known global variable,
    * because it has been read in the context of the current function.
@@ -893,6 +1021,13 @@ public final class Environment implements Freezable {
     if (lexicalFrame != null) {
       vars.addAll(lexicalFrame.getTransitiveBindings().keySet());
     }
+    if (localSlotsByName != null) {
+      for (Map.Entry<String, Integer> entry : localSlotsByName.entrySet()) {
+        if (localSlots[entry.getValue()] != null) {
+          vars.add(entry.getKey());
+        }
+      }
+    }
     vars.addAll(globalFrame.getTransitiveBindings().keySet());
     vars.addAll(dynamicFrame.getTransitiveBindings().keySet());
     return vars;
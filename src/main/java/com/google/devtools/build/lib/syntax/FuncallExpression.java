@@ -36,9 +36,12 @@ import com.google.devtools.build.lib.syntax.Runtime.NoneType;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.StringUtilities;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -48,6 +51,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.annotation.Nullable;
 
 /**
@@ -62,10 +66,27 @@ public final class FuncallExpression extends Expression {
   public static final class MethodDescriptor {
     private final Method method;
     private final SkylarkCallable annotation;
+    private final Param[] parameters;
+
+    // Computed on first use, since most methods are never called.
+    @Nullable private volatile MethodHandle methodHandle;
+    // The types of the parameters of the annotation, including None if noneable.
+    private final SkylarkType[] parameterTypes;
+    // The default values of the parameters, each evaluated on first use. Calls from many threads
+    // may evaluate a default at the same time, which is harmless, since they're equal.
+    private final AtomicReferenceArray<Object> defaultValues;
 
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
       this.annotation = annotation;
+      this.parameters = annotation.parameters();
+      this.parameterTypes = new SkylarkType[parameters.length];
+      for (int i = 0; i < parameters.length; i++) {
+        SkylarkType type = getType(parameters[i]);
+        parameterTypes[i] =
+            parameters[i].noneable() ? SkylarkType.Union.of(type, SkylarkType.NONE) : type;
+      }
+      this.defaultValues = new AtomicReferenceArray<>(parameters.length);
     }
 
     Method getMethod() {
@@ -78,8 +99,75 @@ public final class FuncallExpression extends Expression {
     public SkylarkCallable getAnnotation() {
       return annotation;
     }
+
+    /**
+     * Returns a handle that invokes the method with the receiver, which is ignored for static
+     * methods, and the array of arguments.
+     */
+    MethodHandle getMethodHandle() throws IllegalAccessException {
+      MethodHandle handle = methodHandle;
+      if (handle == null) {
+        // This happens when the interface is public but the implementation classes
+        // have reduced visibility.
+        method.setAccessible(true);
+        handle = MethodHandles.lookup().unreflect(method).asFixedArity();
+        if (Modifier.isStatic(method.getModifiers())) {
+          handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        handle =
+            handle
+                .asSpreader(Object[].class, method.getParameterTypes().length)
+                .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+        methodHandle = handle;
+      }
+      return handle;
+    }
+
+    /** Returns the type of the i-th parameter of the annotation, including None if noneable. */
+    private SkylarkType getParameterType(int i) {
+      return parameterTypes[i];
+    }
+
+    /**
+     * Returns the default value of the i-th parameter of the annotation. Default values are
+     * evaluated in a frozen environment, so they can be shared by all calls.
+     */
+    private Object getDefaultValue(int i) {
+      Object value = defaultValues.get(i);
+      if (value == null) {
+        value = SkylarkSignatureProcessor.getDefaultValue(parameters[i], null);
+        defaultValues.set(i, value);
+      }
+      return value;
+    }
   }
 
+  /**
+   * What a call site needs to call a method on receivers of a given class, besides the receiver
+   * and the arguments.
+   */
+  private static final class MethodCallTarget {
+    private final Class<?> receiverClass;
+    @Nullable private final BaseFunction builtinFunction;
+    private final boolean namespace;
+    @Nullable private final List<MethodDescriptor> javaMethods;
+
+    private MethodCallTarget(Class<?> receiverClass, String methodName) {
+      this.receiverClass = receiverClass;
+      this.builtinFunction = Runtime.getBuiltinRegistry().getFunction(receiverClass, methodName);
+      this.namespace = builtinFunction != null && isNamespace(receiverClass);
+      this.javaMethods =
+          builtinFunction == null && !Class.class.equals(receiverClass)
+              ? getMethods(receiverClass, methodName)
+              : null;
+    }
+  }
+
+  /** The number of receiver classes that a call site caches targets for. */
+  private static final int MAX_CACHED_METHOD_CALL_TARGETS = 4;
+
+  private static final MethodCallTarget[] NO_METHOD_CALL_TARGETS = new MethodCallTarget[0];
+
   private static final LoadingCache<Class<?>, Map<String, List<MethodDescriptor>>> methodCache =
       CacheBuilder.newBuilder()
           .initialCapacity(10)
@@ -196,6 +284,11 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  // The inline cache of the targets of a method call, for the receiver classes seen so far. Calls
+  // on further classes are resolved without the cache. Replaced as a whole when a class is added,
+  // since the same AST may be evaluated concurrently.
+  private transient volatile MethodCallTarget[] methodCallTargets = NO_METHOD_CALL_TARGETS;
+
   public FuncallExpression(Expression function, ImmutableList<Argument.Passed> arguments) {
     this.function = Preconditions.checkNotNull(function);
     this.arguments = Preconditions.checkNotNull(arguments);
@@ -286,52 +379,55 @@ public final class FuncallExpression extends Expression {
 
   static Object callMethod(MethodDescriptor methodDescriptor, String methodName, Object obj,
       Object[] args, Location loc, Environment env) throws EvalException {
-    try {
-      Method method = methodDescriptor.getMethod();
-      if (obj == null && !Modifier.isStatic(method.getModifiers())) {
-        throw new EvalException(loc, "method '" + methodName + "' is not static");
-      }
-      // This happens when the interface is public but the implementation classes
-      // have reduced visibility.
-      method.setAccessible(true);
-      Object result = method.invoke(obj, args);
-      if (method.getReturnType().equals(Void.TYPE)) {
+    Method method = methodDescriptor.getMethod();
+    if (obj == null && !Modifier.isStatic(method.getModifiers())) {
+      throw new EvalException(loc, "method '" + methodName + "' is not static");
+    }
+    Object result = invokeJavaMethod(methodDescriptor, obj, args, loc);
+    if (method.getReturnType().equals(Void.TYPE)) {
+      return Runtime.NONE;
+    }
+    if (result == null) {
+      if (methodDescriptor.getAnnotation().allowReturnNones()) {
         return Runtime.NONE;
-      }
-      if (result == null) {
-        if (methodDescriptor.getAnnotation().allowReturnNones()) {
-          return Runtime.NONE;
-        } else {
-          throw new EvalException(
-              loc,
-              "method invocation returned None, please file a bug report: "
-                  + methodName
-                  + Printer.printAbbreviatedList(
-                      ImmutableList.copyOf(args), "(", ", ", ")", null));
-        }
-      }
-      // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
-      result = SkylarkType.convertToSkylark(result, method, env);
-      if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      } else {
         throw new EvalException(
             loc,
-            Printer.format(
-                "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+            "method invocation returned None, please file a bug report: "
+                + methodName
+                + Printer.printAbbreviatedList(
+                    ImmutableList.copyOf(args), "(", ", ", ")", null));
       }
-      return result;
+    }
+    // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
+    result = SkylarkType.convertToSkylark(result, method, env);
+    if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      throw new EvalException(
+          loc,
+          Printer.format(
+              "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+    }
+    return result;
+  }
+
+  /** Invokes the method through its handle, and converts what it throws to EvalExceptions. */
+  private static Object invokeJavaMethod(
+      MethodDescriptor methodDescriptor, Object obj, Object[] args, Location loc)
+      throws EvalException {
+    MethodHandle handle;
+    try {
+      handle = methodDescriptor.getMethodHandle();
     } catch (IllegalAccessException e) {
       // TODO(bazel-team): Print a nice error message. Maybe the method exists
       // and an argument is missing or has the wrong type.
       throw new EvalException(loc, "Method invocation failed: " + e);
-    } catch (InvocationTargetException e) {
-      if (e.getCause() instanceof FuncallException) {
-        throw new EvalException(loc, e.getCause().getMessage());
-      } else if (e.getCause() != null) {
-        throw new EvalExceptionWithJavaCause(loc, e.getCause());
-      } else {
-        // This is unlikely to happen
-        throw new EvalException(loc, "method invocation failed: " + e);
-      }
+    }
+    try {
+      return (Object) handle.invokeExact(obj, args);
+    } catch (FuncallException e) {
+      throw new EvalException(loc, e.getMessage());
+    } catch (Throwable e) {
+      throw new EvalExceptionWithJavaCause(loc, e);
     }
   }
 
@@ -340,10 +436,13 @@ public final class FuncallExpression extends Expression {
   // exactly and copy that behaviour.
   // Throws an EvalException when it cannot find a matching function.
   private Pair<MethodDescriptor, List<Object>> findJavaMethod(
-      Class<?> objClass, String methodName, List<Object> args, Map<String, Object> kwargs)
+      Class<?> objClass,
+      @Nullable List<MethodDescriptor> methods,
+      String methodName,
+      List<Object> args,
+      Map<String, Object> kwargs)
       throws EvalException {
     Pair<MethodDescriptor, List<Object>> matchingMethod = null;
-    List<MethodDescriptor> methods = getMethods(objClass, methodName);
     ArgumentListConversionResult argumentListConversionResult = null;
     if (methods != null) {
       for (MethodDescriptor method : methods) {
@@ -421,16 +520,17 @@ public final class FuncallExpression extends Expression {
     ImmutableList.Builder<Object> builder = ImmutableList.builder();
     Class<?>[] params = method.getMethod().getParameterTypes();
     SkylarkCallable callable = method.getAnnotation();
+    Param[] parameters = method.parameters;
     int mandatoryPositionals = callable.mandatoryPositionals();
     if (mandatoryPositionals < 0) {
-      if (callable.parameters().length > 0) {
+      if (parameters.length > 0) {
         mandatoryPositionals = 0;
       } else {
         mandatoryPositionals = params.length;
       }
     }
     if (mandatoryPositionals > args.size()
-        || args.size() > mandatoryPositionals + callable.parameters().length) {
+        || args.size() > mandatoryPositionals + parameters.length) {
       return ArgumentListConversionResult.fromError("too many arguments");
     }
     // First process the legacy positional parameters.
@@ -455,11 +555,9 @@ public final class FuncallExpression extends Expression {
 
     // Then the parameters specified in callable.parameters()
     Set<String> keys = new LinkedHashSet<>(kwargs.keySet());
-    for (Param param : callable.parameters()) {
-      SkylarkType type = getType(param);
-      if (param.noneable()) {
-        type = SkylarkType.Union.of(type, SkylarkType.NONE);
-      }
+    for (int p = 0; p < parameters.length; p++) {
+      Param param = parameters[p];
+      SkylarkType type = method.getParameterType(p);
       Object value = null;
       if (i < args.size()) {
         value = args.get(i);
@@ -486,7 +584,7 @@ public final class FuncallExpression extends Expression {
           return ArgumentListConversionResult.fromError(
               String.format("parameter '%s' has no default value", param.name()));
         }
-        value = SkylarkSignatureProcessor.getDefaultValue(param, null);
+        value = method.getDefaultValue(p);
       }
       builder.add(value);
       if (!param.noneable() && value instanceof NoneType) {
@@ -616,11 +714,12 @@ public final class FuncallExpression extends Expression {
     Location location = call.getLocation();
     Object value = positionals.get(0);
     ImmutableList<Object> positionalArgs = positionals.subList(1, positionals.size());
-    BaseFunction function = Runtime.getBuiltinRegistry().getFunction(value.getClass(), method);
+    MethodCallTarget target = call.getMethodCallTarget(value.getClass(), method);
+    BaseFunction function = target.builtinFunction;
     Object fieldValue =
         (value instanceof ClassObject) ? ((ClassObject) value).getValue(method) : null;
     if (function != null) {
-      if (!isNamespace(value.getClass())) {
+      if (!target.namespace) {
         // Use self as an implicit parameter in front.
         positionalArgs = positionals;
       }
@@ -647,29 +746,43 @@ public final class FuncallExpression extends Expression {
         obj = value;
         objClass = value.getClass();
       }
+      List<MethodDescriptor> methods =
+          obj == null ? getMethods(objClass, method) : target.javaMethods;
       Pair<MethodDescriptor, List<Object>> javaMethod =
-          call.findJavaMethod(objClass, method, positionalArgs, keyWordArgs);
+          call.findJavaMethod(objClass, methods, method, positionalArgs, keyWordArgs);
       if (javaMethod.first.getAnnotation().structField()) {
         // Not a method but a callable attribute
-        try {
-          return callFunction(javaMethod.first.getMethod().invoke(obj), env);
-        } catch (IllegalAccessException e) {
-          throw new EvalException(getLocation(), "method invocation failed: " + e);
-        } catch (InvocationTargetException e) {
-          if (e.getCause() instanceof FuncallException) {
-            throw new EvalException(getLocation(), e.getCause().getMessage());
-          } else if (e.getCause() != null) {
-            throw new EvalExceptionWithJavaCause(getLocation(), e.getCause());
-          } else {
-            // This is unlikely to happen
-            throw new EvalException(getLocation(), "method invocation failed: " + e);
-          }
-        }
+        return callFunction(
+            invokeJavaMethod(javaMethod.first, obj, new Object[0], getLocation()), env);
       }
       return callMethod(javaMethod.first, method, obj, javaMethod.second.toArray(), location, env);
     }
   }
 
+  /**
+   * Returns the target of a method call on a receiver of the given class, from the inline cache
+   * of this call site if possible.
+   */
+  private MethodCallTarget getMethodCallTarget(Class<?> receiverClass, String methodName) {
+    MethodCallTarget[] targets = methodCallTargets;
+    if (targets == null) {
+      // The field is transient, so it is null in a deserialized tree.
+      targets = NO_METHOD_CALL_TARGETS;
+    }
+    for (MethodCallTarget target : targets) {
+      if (target.receiverClass == receiverClass) {
+        return target;
+      }
+    }
+    MethodCallTarget target = new MethodCallTarget(receiverClass, methodName);
+    if (targets.length < MAX_CACHED_METHOD_CALL_TARGETS) {
+      MethodCallTarget[] newTargets = Arrays.copyOf(targets, targets.length + 1);
+      newTargets[targets.length] = target;
+      methodCallTargets = newTargets;
+    }
+    return target;
+  }
+
   @SuppressWarnings("unchecked")
   private void evalArguments(ImmutableList.Builder<Object> posargs, Map<String, Object> kwargs,
       Environment env)
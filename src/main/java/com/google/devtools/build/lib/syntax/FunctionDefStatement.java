@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Syntax node for a function definition.
@@ -26,6 +27,10 @@ public final class FunctionDefStatement extends Statement {
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
 
+  // Compiling resolves the identifiers of the body, so it is done at most once.
+  @Nullable private transient CompiledFunction compiled;
+  private transient boolean compileAttempted;
+
   public FunctionDefStatement(Identifier identifier,
       Iterable<Parameter<Expression, Expression>> parameters,
       FunctionSignature.WithValues<Expression, Expression> signature,
@@ -73,6 +78,16 @@ public final class FunctionDefStatement extends Statement {
     return signature;
   }
 
+  /** Returns the compiled body of this function, or null if it can't be compiled. */
+  @Nullable
+  synchronized CompiledFunction compile() {
+    if (!compileAttempted) {
+      compiled = CompiledFunction.compile(this);
+      compileAttempted = true;
+    }
+    return compiled;
+  }
+
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
     visitor.visit(this);
@@ -103,7 +103,11 @@ public final class LValue extends ASTNode {
                   + "The variable is defined in the global scope.",
               ident.getName()));
     }
-    env.update(ident.getName(), value);
+    if (ident.getLocalSlot() >= 0) {
+      env.updateLocal(ident.getLocalSlot(), ident.getName(), value);
+    } else {
+      env.update(ident.getName(), value);
+    }
   }
 
   /**
@@ -0,0 +1,729 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.syntax.AbstractComprehension.Clause;
+import com.google.devtools.build.lib.syntax.DictionaryLiteral.DictionaryEntryLiteral;
+import com.google.devtools.build.lib.syntax.IfStatement.ConditionalStatements;
+import com.google.devtools.build.lib.syntax.Lexer.LexerLocation;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact codec for syntax trees, which are much faster to read than to parse and validate again.
+ *
+ * <p>Each node is written as its kind, its location and its children. Strings and line number
+ * tables are written once per tree and then referred to by their index, and the locations created
+ * by the lexer are written as offsets. Function signatures are computed again from the parameters,
+ * like the parser does.
+ */
+final class SyntaxTreeCodec implements ObjectCodec<BuildFileAST> {
+
+  private static final int NO_LOCATION = 0;
+  private static final int LEXER_LOCATION = 1;
+  private static final int OTHER_LOCATION = 2;
+
+  private static final int LIST_COMPREHENSION = 0;
+  private static final int DICT_COMPREHENSION = 1;
+
+  private static final int FOR_CLAUSE = 0;
+  private static final int IF_CLAUSE = 1;
+
+  private static final int POSITIONAL = 0;
+  private static final int KEYWORD = 1;
+  private static final int STAR = 2;
+  private static final int STAR_STAR = 3;
+  private static final int MANDATORY = 4;
+  private static final int OPTIONAL = 5;
+
+  private static final Expression.Kind[] EXPRESSION_KINDS = Expression.Kind.values();
+  private static final Statement.Kind[] STATEMENT_KINDS = Statement.Kind.values();
+  private static final Operator[] OPERATORS = Operator.values();
+  private static final UnaryOperator[] UNARY_OPERATORS = UnaryOperator.values();
+  private static final ListLiteral.Kind[] LIST_KINDS = ListLiteral.Kind.values();
+  private static final FlowStatement.Kind[] FLOW_KINDS = FlowStatement.Kind.values();
+
+  @Override
+  public Class<BuildFileAST> getEncodedClass() {
+    return BuildFileAST.class;
+  }
+
+  @Override
+  public void serialize(BuildFileAST ast, CodedOutputStream codedOut)
+      throws SerializationException, IOException {
+    new Writer(codedOut).writeFile(ast);
+  }
+
+  @Override
+  public BuildFileAST deserialize(CodedInputStream codedIn)
+      throws SerializationException, IOException {
+    return new Reader(codedIn).readFile();
+  }
+
+  private static final class Writer {
+    private final CodedOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<LineNumberTable, Integer> lineNumberTables = new IdentityHashMap<>();
+
+    private Writer(CodedOutputStream out) {
+      this.out = out;
+    }
+
+    private void writeFile(BuildFileAST ast) throws SerializationException, IOException {
+      out.writeBoolNoTag(ast.containsErrors());
+      writeNullableString(ast.getContentHashCode());
+      writeLocation(ast.getLocation());
+      writeStatements(ast.getStatements());
+      out.writeUInt32NoTag(ast.getComments().size());
+      for (Comment comment : ast.getComments()) {
+        writeLocation(comment.getLocation());
+        writeString(comment.getValue());
+      }
+      ImmutableList<SkylarkImport> imports = ast.getImports();
+      out.writeBoolNoTag(imports != null);
+      if (imports != null) {
+        out.writeUInt32NoTag(imports.size());
+        for (SkylarkImport skylarkImport : imports) {
+          SkylarkImport.CODEC.serialize(skylarkImport, out);
+        }
+      }
+    }
+
+    private void writeString(String string) throws IOException {
+      Integer index = strings.get(string);
+      if (index != null) {
+        out.writeUInt32NoTag(index);
+      } else {
+        out.writeUInt32NoTag(strings.size());
+        strings.put(string, strings.size());
+        out.writeStringNoTag(string);
+      }
+    }
+
+    private void writeNullableString(@Nullable String string) throws IOException {
+      out.writeBoolNoTag(string != null);
+      if (string != null) {
+        writeString(string);
+      }
+    }
+
+    private void writeLocation(@Nullable Location location)
+        throws SerializationException, IOException {
+      if (location == null) {
+        out.writeUInt32NoTag(NO_LOCATION);
+      } else if (location instanceof LexerLocation) {
+        out.writeUInt32NoTag(LEXER_LOCATION);
+        LineNumberTable table = ((LexerLocation) location).getLineNumberTable();
+        Integer index = lineNumberTables.get(table);
+        if (index != null) {
+          out.writeUInt32NoTag(index);
+        } else {
+          out.writeUInt32NoTag(lineNumberTables.size());
+          lineNumberTables.put(table, lineNumberTables.size());
+          LineNumberTable.CODEC.serialize(table, out);
+        }
+        out.writeUInt32NoTag(location.getStartOffset());
+        out.writeUInt32NoTag(location.getEndOffset() - location.getStartOffset());
+      } else {
+        out.writeUInt32NoTag(OTHER_LOCATION);
+        Location.CODEC.serialize(location, out);
+      }
+    }
+
+    private void writeStatements(List<? extends Statement> statements)
+        throws SerializationException, IOException {
+      out.writeUInt32NoTag(statements.size());
+      for (Statement statement : statements) {
+        writeStatement(statement);
+      }
+    }
+
+    private void writeStatement(Statement statement) throws SerializationException, IOException {
+      out.writeUInt32NoTag(statement.kind().ordinal());
+      writeLocation(statement.getLocation());
+      switch (statement.kind()) {
+        case ASSIGNMENT:
+          AssignmentStatement assignment = (AssignmentStatement) statement;
+          writeLValue(assignment.getLValue());
+          writeExpression(assignment.getExpression());
+          break;
+        case AUGMENTED_ASSIGNMENT:
+          AugmentedAssignmentStatement augmented = (AugmentedAssignmentStatement) statement;
+          out.writeUInt32NoTag(augmented.getOperator().ordinal());
+          writeLValue(augmented.getLValue());
+          writeExpression(augmented.getExpression());
+          break;
+        case CONDITIONAL:
+          ConditionalStatements conditional = (ConditionalStatements) statement;
+          writeExpression(conditional.getCondition());
+          writeStatements(conditional.getStatements());
+          break;
+        case EXPRESSION:
+          writeExpression(((ExpressionStatement) statement).getExpression());
+          break;
+        case FLOW:
+          out.writeUInt32NoTag(((FlowStatement) statement).getKind().ordinal());
+          break;
+        case FOR:
+          ForStatement forStatement = (ForStatement) statement;
+          writeLValue(forStatement.getVariable());
+          writeExpression(forStatement.getCollection());
+          writeStatements(forStatement.getBlock());
+          break;
+        case FUNCTION_DEF:
+          FunctionDefStatement def = (FunctionDefStatement) statement;
+          writeExpression(def.getIdentifier());
+          out.writeUInt32NoTag(def.getParameters().size());
+          for (Parameter<Expression, Expression> parameter : def.getParameters()) {
+            writeParameter(parameter);
+          }
+          writeStatements(def.getStatements());
+          break;
+        case IF:
+          IfStatement ifStatement = (IfStatement) statement;
+          writeStatements(ifStatement.getThenBlocks());
+          writeStatements(ifStatement.getElseBlock());
+          break;
+        case LOAD:
+          LoadStatement load = (LoadStatement) statement;
+          writeExpression(load.getImport());
+          out.writeUInt32NoTag(load.getSymbolMap().size());
+          for (Map.Entry<Identifier, String> symbol : load.getSymbolMap().entrySet()) {
+            writeExpression(symbol.getKey());
+            writeString(symbol.getValue());
+          }
+          break;
+        case PASS:
+          break;
+        case RETURN:
+          Expression returned = ((ReturnStatement) statement).getReturnExpression();
+          out.writeBoolNoTag(returned != null);
+          if (returned != null) {
+            writeExpression(returned);
+          }
+          break;
+      }
+    }
+
+    private void writeExpressions(List<? extends Expression> expressions)
+        throws SerializationException, IOException {
+      out.writeUInt32NoTag(expressions.size());
+      for (Expression expression : expressions) {
+        writeExpression(expression);
+      }
+    }
+
+    private void writeExpression(Expression expression)
+        throws SerializationException, IOException {
+      out.writeUInt32NoTag(expression.kind().ordinal());
+      writeLocation(expression.getLocation());
+      switch (expression.kind()) {
+        case BINARY_OPERATOR:
+          BinaryOperatorExpression binary = (BinaryOperatorExpression) expression;
+          out.writeUInt32NoTag(binary.getOperator().ordinal());
+          writeExpression(binary.getLhs());
+          writeExpression(binary.getRhs());
+          break;
+        case COMPREHENSION:
+          AbstractComprehension comprehension = (AbstractComprehension) expression;
+          out.writeUInt32NoTag(
+              comprehension instanceof DictComprehension ? DICT_COMPREHENSION : LIST_COMPREHENSION);
+          writeExpressions(comprehension.getOutputExpressions());
+          out.writeUInt32NoTag(comprehension.getClauses().size());
+          for (Clause clause : comprehension.getClauses()) {
+            if (clause.getKind() == Clause.Kind.FOR) {
+              out.writeUInt32NoTag(FOR_CLAUSE);
+              writeLValue(clause.getLValue());
+            } else {
+              out.writeUInt32NoTag(IF_CLAUSE);
+            }
+            writeExpression(clause.getExpression());
+          }
+          break;
+        case CONDITIONAL:
+          ConditionalExpression conditional = (ConditionalExpression) expression;
+          writeExpression(conditional.getThenCase());
+          writeExpression(conditional.getCondition());
+          writeExpression(conditional.getElseCase());
+          break;
+        case DICTIONARY_LITERAL:
+          DictionaryLiteral dict = (DictionaryLiteral) expression;
+          out.writeUInt32NoTag(dict.getEntries().size());
+          for (DictionaryEntryLiteral entry : dict.getEntries()) {
+            writeLocation(entry.getLocation());
+            writeExpression(entry.getKey());
+            writeExpression(entry.getValue());
+          }
+          break;
+        case DOT:
+          DotExpression dot = (DotExpression) expression;
+          writeExpression(dot.getObject());
+          writeExpression(dot.getField());
+          break;
+        case FUNCALL:
+          FuncallExpression call = (FuncallExpression) expression;
+          writeExpression(call.getFunction());
+          out.writeUInt32NoTag(call.getArguments().size());
+          for (Argument.Passed argument : call.getArguments()) {
+            writeArgument(argument);
+          }
+          break;
+        case IDENTIFIER:
+          writeString(((Identifier) expression).getName());
+          break;
+        case INDEX:
+          IndexExpression index = (IndexExpression) expression;
+          writeExpression(index.getObject());
+          writeExpression(index.getKey());
+          break;
+        case INTEGER_LITERAL:
+          out.writeInt32NoTag(((IntegerLiteral) expression).getValue());
+          break;
+        case LIST_LITERAL:
+          ListLiteral list = (ListLiteral) expression;
+          out.writeUInt32NoTag(list.getKind().ordinal());
+          writeExpressions(list.getElements());
+          break;
+        case SLICE:
+          SliceExpression slice = (SliceExpression) expression;
+          writeExpression(slice.getObject());
+          writeExpression(slice.getStart());
+          writeExpression(slice.getEnd());
+          writeExpression(slice.getStep());
+          break;
+        case STRING_LITERAL:
+          writeString(((StringLiteral) expression).getValue());
+          break;
+        case UNARY_OPERATOR:
+          UnaryOperatorExpression unary = (UnaryOperatorExpression) expression;
+          out.writeUInt32NoTag(unary.getOperator().ordinal());
+          writeExpression(unary.getOperand());
+          break;
+      }
+    }
+
+    private void writeLValue(LValue lvalue) throws SerializationException, IOException {
+      writeLocation(lvalue.getLocation());
+      writeExpression(lvalue.getExpression());
+    }
+
+    private void writeArgument(Argument.Passed argument)
+        throws SerializationException, IOException {
+      if (argument.isPositional()) {
+        out.writeUInt32NoTag(POSITIONAL);
+      } else if (argument.isKeyword()) {
+        out.writeUInt32NoTag(KEYWORD);
+        writeString(argument.getName());
+      } else if (argument.isStar()) {
+        out.writeUInt32NoTag(STAR);
+      } else {
+        out.writeUInt32NoTag(STAR_STAR);
+      }
+      writeLocation(argument.getLocation());
+      writeExpression(argument.getValue());
+    }
+
+    private void writeParameter(Parameter<Expression, Expression> parameter)
+        throws SerializationException, IOException {
+      if (parameter.getType() != null) {
+        // The parser doesn't support type annotations.
+        throw new SerializationException("Unexpected type annotation in " + parameter);
+      }
+      if (parameter.isMandatory()) {
+        out.writeUInt32NoTag(MANDATORY);
+      } else if (parameter.isOptional()) {
+        out.writeUInt32NoTag(OPTIONAL);
+      } else if (parameter.isStar()) {
+        out.writeUInt32NoTag(STAR);
+      } else {
+        out.writeUInt32NoTag(STAR_STAR);
+      }
+      writeLocation(parameter.getLocation());
+      writeNullableString(parameter.getName());
+      if (parameter.isOptional()) {
+        writeExpression(parameter.getDefaultValue());
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final CodedInputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private final List<LineNumberTable> lineNumberTables = new ArrayList<>();
+
+    private Reader(CodedInputStream in) {
+      this.in = in;
+    }
+
+    private BuildFileAST readFile() throws SerializationException, IOException {
+      boolean containsErrors = in.readBool();
+      String contentHashCode = readNullableString();
+      Location location = readLocation();
+      ImmutableList<Statement> statements = readStatements();
+      int commentCount = in.readRawVarint32();
+      ImmutableList.Builder<Comment> comments = ImmutableList.builder();
+      for (int i = 0; i < commentCount; i++) {
+        Location commentLocation = readLocation();
+        comments.add(ASTNode.setLocation(commentLocation, new Comment(readString())));
+      }
+      ImmutableList<SkylarkImport> imports = null;
+      if (in.readBool()) {
+        int importCount = in.readRawVarint32();
+        ImmutableList.Builder<SkylarkImport> builder = ImmutableList.builder();
+        for (int i = 0; i < importCount; i++) {
+          builder.add(SkylarkImport.CODEC.deserialize(in));
+        }
+        imports = builder.build();
+      }
+      return new BuildFileAST(
+          statements, containsErrors, contentHashCode, location, comments.build(), imports);
+    }
+
+    private String readString() throws SerializationException, IOException {
+      int index = in.readRawVarint32();
+      if (index < strings.size()) {
+        return strings.get(index);
+      } else if (index == strings.size()) {
+        String string = in.readString();
+        strings.add(string);
+        return string;
+      }
+      throw new SerializationException("Invalid string index " + index);
+    }
+
+    @Nullable
+    private String readNullableString() throws SerializationException, IOException {
+      return in.readBool() ? readString() : null;
+    }
+
+    @Nullable
+    private Location readLocation() throws SerializationException, IOException {
+      int tag = in.readRawVarint32();
+      switch (tag) {
+        case NO_LOCATION:
+          return null;
+        case LEXER_LOCATION:
+          int index = in.readRawVarint32();
+          if (index == lineNumberTables.size()) {
+            lineNumberTables.add(LineNumberTable.CODEC.deserialize(in));
+          } else if (index > lineNumberTables.size()) {
+            throw new SerializationException("Invalid line number table index " + index);
+          }
+          int startOffset = in.readRawVarint32();
+          int length = in.readRawVarint32();
+          return new LexerLocation(lineNumberTables.get(index), startOffset, startOffset + length);
+        case OTHER_LOCATION:
+          return Location.CODEC.deserialize(in);
+        default:
+          throw new SerializationException("Invalid location tag " + tag);
+      }
+    }
+
+    private <T> T readEnum(T[] values) throws SerializationException, IOException {
+      int ordinal = in.readRawVarint32();
+      if (ordinal >= values.length) {
+        throw new SerializationException("Invalid ordinal " + ordinal);
+      }
+      return values[ordinal];
+    }
+
+    private ImmutableList<Statement> readStatements() throws SerializationException, IOException {
+      int count = in.readRawVarint32();
+      ImmutableList.Builder<Statement> statements = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        statements.add(readStatement());
+      }
+      return statements.build();
+    }
+
+    private Statement readStatement() throws SerializationException, IOException {
+      Statement.Kind kind = readEnum(STATEMENT_KINDS);
+      Location location = readLocation();
+      Statement statement;
+      switch (kind) {
+        case ASSIGNMENT:
+          {
+            LValue lvalue = readLValue();
+            statement = new AssignmentStatement(lvalue, readExpression());
+            break;
+          }
+        case AUGMENTED_ASSIGNMENT:
+          {
+            Operator operator = readEnum(OPERATORS);
+            LValue lvalue = readLValue();
+            statement = new AugmentedAssignmentStatement(operator, lvalue, readExpression());
+            break;
+          }
+        case CONDITIONAL:
+          {
+            Expression condition = readExpression();
+            statement = new ConditionalStatements(condition, readStatements());
+            break;
+          }
+        case EXPRESSION:
+          statement = new ExpressionStatement(readExpression());
+          break;
+        case FLOW:
+          statement = new FlowStatement(readEnum(FLOW_KINDS));
+          break;
+        case FOR:
+          {
+            LValue variable = readLValue();
+            Expression collection = readExpression();
+            statement = new ForStatement(variable, collection, readStatements());
+            break;
+          }
+        case FUNCTION_DEF:
+          {
+            Identifier identifier = (Identifier) readExpression();
+            int count = in.readRawVarint32();
+            List<Parameter<Expression, Expression>> parameters = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+              parameters.add(readParameter());
+            }
+            FunctionSignature.WithValues<Expression, Expression> signature;
+            try {
+              signature = FunctionSignature.WithValues.of(parameters);
+            } catch (FunctionSignature.SignatureException e) {
+              throw new SerializationException("Invalid signature of " + identifier, e);
+            }
+            statement =
+                new FunctionDefStatement(identifier, parameters, signature, readStatements());
+            break;
+          }
+        case IF:
+          {
+            List<ConditionalStatements> thenBlocks = new ArrayList<>();
+            for (Statement thenBlock : readStatements()) {
+              thenBlocks.add((ConditionalStatements) thenBlock);
+            }
+            statement = new IfStatement(thenBlocks, readStatements());
+            break;
+          }
+        case LOAD:
+          {
+            StringLiteral imp = (StringLiteral) readExpression();
+            int count = in.readRawVarint32();
+            Map<Identifier, String> symbolMap = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+              Identifier symbol = (Identifier) readExpression();
+              symbolMap.put(symbol, readString());
+            }
+            statement = new LoadStatement(imp, symbolMap);
+            break;
+          }
+        case PASS:
+          statement = new PassStatement();
+          break;
+        case RETURN:
+          statement = new ReturnStatement(in.readBool() ? readExpression() : null);
+          break;
+        default:
+          throw new SerializationException("Unexpected statement kind " + kind);
+      }
+      return ASTNode.setLocation(location, statement);
+    }
+
+    private List<Expression> readExpressions() throws SerializationException, IOException {
+      int count = in.readRawVarint32();
+      List<Expression> expressions = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        expressions.add(readExpression());
+      }
+      return expressions;
+    }
+
+    private Expression readExpression() throws SerializationException, IOException {
+      Expression.Kind kind = readEnum(EXPRESSION_KINDS);
+      Location location = readLocation();
+      Expression expression;
+      switch (kind) {
+        case BINARY_OPERATOR:
+          {
+            Operator operator = readEnum(OPERATORS);
+            Expression lhs = readExpression();
+            expression = new BinaryOperatorExpression(operator, lhs, readExpression());
+            break;
+          }
+        case COMPREHENSION:
+          {
+            int comprehensionKind = in.readRawVarint32();
+            List<Expression> outputs = readExpressions();
+            int count = in.readRawVarint32();
+            List<Clause> clauses = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+              if (in.readRawVarint32() == FOR_CLAUSE) {
+                LValue lvalue = readLValue();
+                clauses.add(new AbstractComprehension.ForClause(lvalue, readExpression()));
+              } else {
+                clauses.add(new AbstractComprehension.IfClause(readExpression()));
+              }
+            }
+            if (comprehensionKind == DICT_COMPREHENSION && outputs.size() == 2) {
+              expression = new DictComprehension(clauses, outputs.get(0), outputs.get(1));
+            } else if (comprehensionKind == LIST_COMPREHENSION && outputs.size() == 1) {
+              expression = new ListComprehension(clauses, outputs.get(0));
+            } else {
+              throw new SerializationException("Invalid comprehension");
+            }
+            break;
+          }
+        case CONDITIONAL:
+          {
+            Expression thenCase = readExpression();
+            Expression condition = readExpression();
+            expression = new ConditionalExpression(thenCase, condition, readExpression());
+            break;
+          }
+        case DICTIONARY_LITERAL:
+          {
+            int count = in.readRawVarint32();
+            List<DictionaryEntryLiteral> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+              Location entryLocation = readLocation();
+              Expression key = readExpression();
+              entries.add(
+                  ASTNode.setLocation(
+                      entryLocation, new DictionaryEntryLiteral(key, readExpression())));
+            }
+            expression = new DictionaryLiteral(entries);
+            break;
+          }
+        case DOT:
+          {
+            Expression object = readExpression();
+            expression = new DotExpression(object, (Identifier) readExpression());
+            break;
+          }
+        case FUNCALL:
+          {
+            Expression function = readExpression();
+            int count = in.readRawVarint32();
+            ImmutableList.Builder<Argument.Passed> arguments = ImmutableList.builder();
+            for (int i = 0; i < count; i++) {
+              arguments.add(readArgument());
+            }
+            expression = new FuncallExpression(function, arguments.build());
+            break;
+          }
+        case IDENTIFIER:
+          expression = new Identifier(readString());
+          break;
+        case INDEX:
+          {
+            Expression object = readExpression();
+            expression = new IndexExpression(object, readExpression());
+            break;
+          }
+        case INTEGER_LITERAL:
+          expression = new IntegerLiteral(in.readInt32());
+          break;
+        case LIST_LITERAL:
+          {
+            ListLiteral.Kind listKind = readEnum(LIST_KINDS);
+            expression = new ListLiteral(listKind, readExpressions());
+            break;
+          }
+        case SLICE:
+          {
+            Expression object = readExpression();
+            Expression start = readExpression();
+            Expression end = readExpression();
+            expression = new SliceExpression(object, start, end, readExpression());
+            break;
+          }
+        case STRING_LITERAL:
+          expression = new StringLiteral(readString());
+          break;
+        case UNARY_OPERATOR:
+          {
+            UnaryOperator operator = readEnum(UNARY_OPERATORS);
+            expression = new UnaryOperatorExpression(operator, readExpression());
+            break;
+          }
+        default:
+          throw new SerializationException("Unexpected expression kind " + kind);
+      }
+      return ASTNode.setLocation(location, expression);
+    }
+
+    private LValue readLValue() throws SerializationException, IOException {
+      Location location = readLocation();
+      return ASTNode.setLocation(location, new LValue(readExpression()));
+    }
+
+    private Argument.Passed readArgument() throws SerializationException, IOException {
+      int tag = in.readRawVarint32();
+      String name = tag == KEYWORD ? readString() : null;
+      Location location = readLocation();
+      Expression value = readExpression();
+      Argument.Passed argument;
+      switch (tag) {
+        case POSITIONAL:
+          argument = new Argument.Positional(value);
+          break;
+        case KEYWORD:
+          argument = new Argument.Keyword(name, value);
+          break;
+        case STAR:
+          argument = new Argument.Star(value);
+          break;
+        case STAR_STAR:
+          argument = new Argument.StarStar(value);
+          break;
+        default:
+          throw new SerializationException("Invalid argument tag " + tag);
+      }
+      return ASTNode.setLocation(location, argument);
+    }
+
+    private Parameter<Expression, Expression> readParameter()
+        throws SerializationException, IOException {
+      int tag = in.readRawVarint32();
+      Location location = readLocation();
+      String name = readNullableString();
+      Parameter<Expression, Expression> parameter;
+      switch (tag) {
+        case MANDATORY:
+          parameter = new Parameter.Mandatory<>(name);
+          break;
+        case OPTIONAL:
+          parameter = new Parameter.Optional<>(name, readExpression());
+          break;
+        case STAR:
+          parameter = new Parameter.Star<>(name);
+          break;
+        case STAR_STAR:
+          parameter = new Parameter.StarStar<>(name);
+          break;
+        default:
+          throw new SerializationException("Invalid parameter tag " + tag);
+      }
+      return ASTNode.setLocation(location, parameter);
+    }
+  }
+}
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -31,15 +32,29 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
+  // the statements compiled to closures, if they are executed that way
+  @Nullable private final CompiledFunction compiled;
+
   public UserDefinedFunction(
       String name,
       Location loc,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
       ImmutableList<Statement> statements,
       Environment.Frame definitionGlobals) {
+    this(name, loc, signature, statements, definitionGlobals, null);
+  }
+
+  UserDefinedFunction(
+      String name,
+      Location loc,
+      FunctionSignature.WithValues<Object, SkylarkType> signature,
+      ImmutableList<Statement> statements,
+      Environment.Frame definitionGlobals,
+      @Nullable CompiledFunction compiled) {
     super(name, signature, loc);
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    this.compiled = compiled;
   }
 
   public ImmutableList<Statement> getStatements() {
@@ -50,6 +65,11 @@ public class UserDefinedFunction extends BaseFunction {
     return definitionGlobals;
   }
 
+  /** Returns whether the statements are executed as a {@link CompiledFunction}. */
+  boolean isCompiled() {
+    return compiled != null;
+  }
+
   @Override
   public Object call(Object[] arguments, FuncallExpression ast, Environment env)
       throws EvalException, InterruptedException {
@@ -62,6 +82,10 @@ public class UserDefinedFunction extends BaseFunction {
               getName(), env.getCurrentFunction().getName()));
     }
 
+    if (compiled != null) {
+      return callCompiled(arguments, ast, env);
+    }
+
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN, getName());
     try {
       env.enterScope(this, ast, definitionGlobals);
@@ -98,6 +122,23 @@ public class UserDefinedFunction extends BaseFunction {
     }
   }
 
+  private Object callCompiled(Object[] arguments, FuncallExpression ast, Environment env)
+      throws EvalException, InterruptedException {
+    Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_COMPILED_FN, getName());
+    try {
+      env.enterScope(
+          this,
+          ast,
+          definitionGlobals,
+          compiled.newLocalSlots(),
+          compiled.getLocalSlotsByName());
+      return compiled.call(arguments, env);
+    } finally {
+      Profiler.instance().completeTask(ProfilerTask.SKYLARK_USER_COMPILED_FN);
+      env.exitScope();
+    }
+  }
+
   @Override
   public void repr(SkylarkPrinter printer) {
     Label label = this.definitionGlobals.getTransitiveLabel();
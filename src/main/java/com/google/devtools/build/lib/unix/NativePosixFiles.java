@@ -212,6 +212,27 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /** The number of values {@link #errnoStatBatch} returns in {@code stats} for each path. */
+  public static final int STAT_BATCH_FIELDS = 10;
+
+  /**
+   * Native wrapper around POSIX stat(2) or lstat(2) syscalls for many files, which only crosses
+   * the JNI boundary once and creates no objects: the paths are passed in a single array, and the
+   * results are returned in arrays of primitives.
+   *
+   * @param paths the Latin-1 bytes of the files to stat, each followed by a NUL byte.
+   * @param count the number of files in {@code paths}.
+   * @param followSymlinks whether to call stat(2) instead of lstat(2).
+   * @param errnos receives the errno of each stat, or 0 if it succeeded. Must have at least
+   *     {@code count} elements.
+   * @param stats receives, for each file in turn, {@link #STAT_BATCH_FIELDS} values: st_mode,
+   *     the seconds and nanoseconds of st_atime, st_mtime and st_ctime, st_size, st_dev and
+   *     st_ino. The values of the files with an error are undefined. Must have at least {@code
+   *     count * STAT_BATCH_FIELDS} elements.
+   */
+  public static native void errnoStatBatch(
+      byte[] paths, int count, boolean followSymlinks, int[] errnos, long[] stats);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
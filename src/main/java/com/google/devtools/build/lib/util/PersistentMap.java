@@ -139,6 +139,19 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
     return previous;
   }
 
+  /**
+   * Records the given updates in the journal without applying them to the backing map, for
+   * subclasses that update the backing map themselves. A null value records a removal. As for
+   * {@link #put}, the journal is written if {@link #updateJournal} says so.
+   */
+  protected void journalUpdates(Map<K, V> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    journal.putAll(updates);
+    markAsDirty();
+  }
+
   /**
    * Marks the map as dirty and potentially writes updated entries to the
    * journal.
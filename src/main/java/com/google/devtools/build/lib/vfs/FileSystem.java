@@ -549,6 +549,19 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Like {@link #statNullable}, but for many paths at once. The result has the status of each
+   * path at the same index. File systems that can stat several paths with less overhead than one
+   * after the other should override this.
+   */
+  protected FileStatus[] statNullableBatch(Path[] paths, boolean followSymlinks) {
+    FileStatus[] result = new FileStatus[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      result[i] = statNullable(paths[i], followSymlinks);
+    }
+    return result;
+  }
+
   /**
    * Like {@link #stat}, but returns null if the file is not found (corresponding to
    * {@code ENOENT} or {@code ENOTDIR} in Unix's stat(2) function) instead of throwing. Note that
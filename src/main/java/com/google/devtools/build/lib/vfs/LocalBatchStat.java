@@ -0,0 +1,60 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.collect.Iterables;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link BatchStat} for the file system of the exec root, which stats the paths of a batch in
+ * chunks, with one {@link FileSystem#statNullableBatch} call each.
+ *
+ * <p>Digests are never included, since computing them is what the callers of a local batch stat
+ * want to avoid. Paths that can't be stat'ed have a null status, so that the callers stat them
+ * again and get the error.
+ */
+public final class LocalBatchStat implements BatchStat {
+  // Bounds the time until an interrupt is noticed.
+  private static final int CHUNK_SIZE = 1024;
+
+  private final Path execRoot;
+
+  public LocalBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(
+      boolean includeDigest, boolean includeLinks, Iterable<PathFragment> paths)
+      throws InterruptedException {
+    List<FileStatusWithDigest> result = new ArrayList<>();
+    for (List<PathFragment> chunk : Iterables.partition(paths, CHUNK_SIZE)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      Path[] chunkPaths = new Path[chunk.size()];
+      for (int i = 0; i < chunkPaths.length; i++) {
+        chunkPaths[i] = execRoot.getRelative(chunk.get(i));
+      }
+      FileStatus[] stats =
+          execRoot.getFileSystem().statNullableBatch(chunkPaths, /*followSymlinks=*/ !includeLinks);
+      for (FileStatus stat : stats) {
+        result.add(FileStatusWithDigestAdapter.adapt(stat));
+      }
+    }
+    return result;
+  }
+}
@@ -25,20 +25,27 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ForwardingListenableFuture;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -89,6 +96,19 @@ public final class UnixGlob {
     return visitor.getNumGlobTasksForTesting();
   }
 
+  private static List<Future<List<Path>>> globAsyncByPatternInternal(
+      Path base,
+      List<String> patterns,
+      boolean excludeDirectories,
+      Predicate<Path> dirPred,
+      FilesystemCalls syscalls,
+      boolean checkForInterruption,
+      ThreadPoolExecutor threadPool) {
+    Preconditions.checkNotNull(threadPool, "%s %s", base, patterns);
+    return new GlobVisitor(threadPool, checkForInterruption)
+        .globAsyncByPattern(base, patterns, excludeDirectories, dirPred, syscalls);
+  }
+
   private static Future<List<Path>> globAsyncInternal(
       Path base,
       Collection<String> patterns,
@@ -424,6 +444,22 @@ public final class UnixGlob {
           checkForInterrupt,
           threadPool);
     }
+
+    /**
+     * Same as {@link #globAsync}, except that it returns a separate future for the matches of each
+     * pattern, in the order in which the patterns were added. The patterns are still evaluated in
+     * a single traversal, so all futures complete at the same time.
+     */
+    public List<Future<List<Path>>> globAsyncByPattern(boolean checkForInterrupt) {
+      return globAsyncByPatternInternal(
+          base,
+          patterns,
+          excludeDirectories,
+          pathFilter,
+          syscalls.get(),
+          checkForInterrupt,
+          threadPool);
+    }
   }
 
   /**
@@ -472,10 +508,14 @@ public final class UnixGlob {
   /**
    * GlobVisitor executes a glob using parallelism, which is useful when
    * the glob() requires many readdir() calls on high latency filesystems.
+   *
+   * <p>All patterns of a glob are evaluated in a single traversal: every directory is read at most
+   * once and matched against all patterns that may match below it, so overlapping patterns like
+   * {@code **}{@code /*.java} and {@code **}{@code /*.kt} share their readdir() and stat() calls.
    */
   private static final class GlobVisitor {
     // These collections are used across workers and must therefore be thread-safe.
-    private final Collection<Path> results = Sets.newConcurrentHashSet();
+    private ImmutableList<Collection<Path>> resultsByPattern = ImmutableList.of();
     private final Cache<String, Pattern> cache = CacheBuilder.newBuilder().build(
         new CacheLoader<String, Pattern>() {
             @Override
@@ -485,6 +525,9 @@ public final class UnixGlob {
           });
 
     private final GlobFuture result;
+    private final boolean failFastOnInterrupt;
+    // The results of the single patterns, if they were requested.
+    private ImmutableList<GlobFuture> patternResults = ImmutableList.of();
     private final ThreadPoolExecutor executor;
     private final AtomicLong totalOps = new AtomicLong(0);
     private final AtomicLong pendingOps = new AtomicLong(0);
@@ -497,6 +540,7 @@ public final class UnixGlob {
         ThreadPoolExecutor executor,
         boolean failFastOnInterrupt) {
       this.executor = executor;
+      this.failFastOnInterrupt = failFastOnInterrupt;
       this.result = new GlobFuture(this, failFastOnInterrupt);
     }
 
@@ -537,6 +581,10 @@ public final class UnixGlob {
       return "**".equals(pattern);
     }
 
+    private static boolean isWildcardPattern(String pattern) {
+      return pattern.contains("*") || pattern.contains("?");
+    }
+
     /**
      * Same as {@link #glob}, except does so asynchronously and returns a {@link Future} for the
      * result.
@@ -547,43 +595,74 @@ public final class UnixGlob {
         boolean excludeDirectories,
         Predicate<Path> dirPred,
         FilesystemCalls syscalls) {
+      start(base, patterns, excludeDirectories, dirPred, syscalls);
+      return result;
+    }
 
-      FileStatus baseStat;
-      try {
-        baseStat = syscalls.statIfFound(base, Symlinks.FOLLOW);
-      } catch (IOException e) {
-        return Futures.immediateFailedFuture(e);
-      }
-      if (baseStat == null || patterns.isEmpty()) {
-        return Futures.immediateFuture(Collections.<Path>emptyList());
+    /**
+     * Same as {@link #globAsync}, except that it returns a separate {@link Future} for the matches
+     * of each of {@code patterns}, in the same order.
+     */
+    List<Future<List<Path>>> globAsyncByPattern(
+        Path base,
+        List<String> patterns,
+        boolean excludeDirectories,
+        Predicate<Path> dirPred,
+        FilesystemCalls syscalls) {
+      ImmutableList.Builder<GlobFuture> futures = ImmutableList.builder();
+      for (int i = 0; i < patterns.size(); i++) {
+        futures.add(new GlobFuture(this, failFastOnInterrupt));
       }
+      patternResults = futures.build();
+      start(base, patterns, excludeDirectories, dirPred, syscalls);
+      return ImmutableList.<Future<List<Path>>>copyOf(patternResults);
+    }
 
-      List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
+    private void start(
+        Path base,
+        Collection<String> patterns,
+        boolean excludeDirectories,
+        Predicate<Path> dirPred,
+        FilesystemCalls syscalls) {
+      ImmutableList.Builder<Collection<Path>> results = ImmutableList.builder();
+      for (int i = 0; i < patterns.size(); i++) {
+        results.add(Sets.newConcurrentHashSet());
+      }
+      resultsByPattern = results.build();
 
-      // We do a dumb loop, even though it will likely duplicate logical work (note that the
-      // physical filesystem operations are cached). In order to optimize, we would need to keep
-      // track of which patterns shared sub-patterns and which did not (for example consider the
-      // glob [*/*.java, sub/*.java, */*.txt]).
+      // The futures are completed once this drops to 0, even if we return early.
       pendingOps.incrementAndGet();
       try {
-        for (String[] splitPattern : splitPatterns) {
-          boolean containsRecursivePattern = false;
-          for (String pattern : splitPattern) {
-            if (isRecursivePattern(pattern)) {
-              containsRecursivePattern = true;
-              break;
-            }
-          }
-          GlobTaskContext context = containsRecursivePattern
-              ? new RecursiveGlobTaskContext(splitPattern, excludeDirectories, dirPred, syscalls)
-              : new GlobTaskContext(splitPattern, excludeDirectories, dirPred, syscalls);
-          context.queueGlob(base, baseStat.isDirectory(), 0);
+        FileStatus baseStat;
+        try {
+          baseStat = syscalls.statIfFound(base, Symlinks.FOLLOW);
+        } catch (IOException e) {
+          ioException.set(e);
+          return;
+        }
+        if (baseStat == null || patterns.isEmpty()) {
+          return;
+        }
+
+        GlobTaskContext context =
+            new GlobTaskContext(
+                ImmutableList.copyOf(patterns),
+                checkAndSplitPatterns(patterns),
+                excludeDirectories,
+                dirPred,
+                syscalls);
+        if (!baseStat.isDirectory()) {
+          // Nothing to find here: the patterns can't be empty.
+          return;
         }
+        Set<GlobPosition> positions = new LinkedHashSet<>();
+        for (int i = 0; i < patterns.size(); i++) {
+          positions.add(new GlobPosition(i, 0));
+        }
+        queueGlob(base, positions, context);
       } finally {
         decrementAndCheckDone();
       }
-
-      return result;
     }
 
     private Throwable getMostSeriousThrowableSoFar() {
@@ -599,15 +678,15 @@ public final class UnixGlob {
       return null;
     }
 
-    /** Should only be called by link {@GlobTaskContext}. */
-    private void queueGlob(final Path base, final boolean baseIsDir, final int idx,
-        final GlobTaskContext context) {
+    /** Queues the matching of the directory {@code base} against the given positions. */
+    private void queueGlob(
+        final Path base, final Set<GlobPosition> positions, final GlobTaskContext context) {
       enqueue(new Runnable() {
         @Override
         public void run() {
           Profiler.instance().startTask(ProfilerTask.VFS_GLOB, this);
           try {
-            reallyGlob(base, baseIsDir, idx, context);
+            reallyGlob(base, positions, context);
           } catch (IOException e) {
             ioException.set(e);
           } catch (RuntimeException e) {
@@ -624,7 +703,7 @@ public final class UnixGlob {
           return String.format(
                   "%s glob(include=[%s], exclude_directories=%s)",
                   base.getPathString(),
-                  "\"" + Joiner.on("\", \"").join(context.patternParts) + "\"",
+                  "\"" + Joiner.on("\", \"").join(context.patterns) + "\"",
                   context.excludeDirectories);
         }
       });
@@ -669,176 +748,194 @@ public final class UnixGlob {
         Throwable mostSeriousThrowable = getMostSeriousThrowableSoFar();
         if (canceled) {
           result.markCanceled();
+          for (GlobFuture patternResult : patternResults) {
+            patternResult.markCanceled();
+          }
         } else if (mostSeriousThrowable != null) {
           result.setException(mostSeriousThrowable);
+          for (GlobFuture patternResult : patternResults) {
+            patternResult.setException(mostSeriousThrowable);
+          }
         } else {
-          result.set(ImmutableList.copyOf(results));
+          for (int i = 0; i < patternResults.size(); i++) {
+            patternResults.get(i).set(ImmutableList.copyOf(resultsByPattern.get(i)));
+          }
+          if (resultsByPattern.size() == 1) {
+            result.set(ImmutableList.copyOf(resultsByPattern.get(0)));
+          } else {
+            ImmutableSet.Builder<Path> union = ImmutableSet.builder();
+            for (Collection<Path> patternResult : resultsByPattern) {
+              union.addAll(patternResult);
+            }
+            result.set(union.build().asList());
+          }
         }
       }
     }
 
     /** A context for evaluating all the subtasks of a single top-level glob task. */
-    private class GlobTaskContext {
-      private final String[] patternParts;
+    private static class GlobTaskContext {
+      private final List<String> patterns;
+      private final List<String[]> patternParts;
       private final boolean excludeDirectories;
       private final Predicate<Path> dirPred;
       private final FilesystemCalls syscalls;
 
       GlobTaskContext(
-          String[] patternParts,
+          List<String> patterns,
+          List<String[]> patternParts,
           boolean excludeDirectories,
           Predicate<Path> dirPred,
           FilesystemCalls syscalls) {
+        this.patterns = patterns;
         this.patternParts = patternParts;
         this.excludeDirectories = excludeDirectories;
         this.dirPred = dirPred;
         this.syscalls = syscalls;
       }
 
-      protected void queueGlob(Path base, boolean baseIsDir, int patternIdx) {
-        GlobVisitor.this.queueGlob(base, baseIsDir, patternIdx, this);
+      private boolean isComplete(GlobPosition position) {
+        return position.segment == patternParts.get(position.pattern).length;
+      }
+
+      private String getSegment(GlobPosition position) {
+        return patternParts.get(position.pattern)[position.segment];
       }
     }
 
     /**
-     * A special implementation of {@link GlobTaskContext} that dedupes glob subtasks. Our naive
-     * implementation of recursive patterns means there are multiple ways to enqueue the same
-     * logical subtask.
+     * The position of a glob subtask in one of the patterns: the paths below a directory that
+     * match the pattern from {@code segment} on also match the whole pattern.
      */
-    private class RecursiveGlobTaskContext extends GlobTaskContext {
-
-      private class GlobTask {
-        private final Path base;
-        private final int patternIdx;
-
-        private GlobTask(Path base, int patternIdx) {
-          this.base = base;
-          this.patternIdx = patternIdx;
-        }
+    private static final class GlobPosition {
+      private final int pattern;
+      private final int segment;
 
-        @Override
-        public boolean equals(Object obj) {
-          if (!(obj instanceof GlobTask)) {
-            return false;
-          }
-          GlobTask other = (GlobTask) obj;
-          return base.equals(other.base) && patternIdx == other.patternIdx;
-        }
-
-        @Override
-        public int hashCode() {
-          return Objects.hash(base, patternIdx);
-        }
+      private GlobPosition(int pattern, int segment) {
+        this.pattern = pattern;
+        this.segment = segment;
       }
 
-      private final Set<GlobTask> visitedGlobSubTasks = Sets.newConcurrentHashSet();
-
-      private RecursiveGlobTaskContext(
-          String[] patternParts,
-          boolean excludeDirectories,
-          Predicate<Path> dirPred,
-          FilesystemCalls syscalls) {
-        super(patternParts, excludeDirectories, dirPred, syscalls);
+      private GlobPosition next() {
+        return new GlobPosition(pattern, segment + 1);
       }
 
       @Override
-      protected void queueGlob(Path base, boolean baseIsDir, int patternIdx) {
-        if (visitedGlobSubTasks.add(new GlobTask(base, patternIdx))) {
-          // This is a unique glob task. For example of how duplicates can arise, consider:
-          //   glob(['**/foo.txt'])
-          // with the only file being
-          //   a/foo.txt
-          //
-          // there are two ways to reach a/foo.txt: one by recursively globbing 'foo.txt' in the
-          // subdirectory 'a', and another other by recursively globbing '**/foo.txt' in the
-          // subdirectory 'a'.
-          super.queueGlob(base, baseIsDir, patternIdx);
+      public boolean equals(Object obj) {
+        if (!(obj instanceof GlobPosition)) {
+          return false;
         }
+        GlobPosition other = (GlobPosition) obj;
+        return pattern == other.pattern && segment == other.segment;
+      }
+
+      @Override
+      public int hashCode() {
+        return Objects.hash(pattern, segment);
       }
     }
 
     /**
-     * Expressed in Haskell:
+     * Matches the directory {@code base} and its children against {@code positions}, and queues
+     * one subtask for each child directory that may have matches below it.
+     *
+     * <p>Expressed in Haskell, for a single position:
      * <pre>
      *  reallyGlob base []     = { base }
      *  reallyGlob base [x:xs] = union { reallyGlob(f, xs) | f results "base/x" }
      * </pre>
      */
-    private void reallyGlob(
-        Path base,
-        boolean baseIsDir,
-        int idx,
-        GlobTaskContext context) throws IOException {
-      if (baseIsDir && !context.dirPred.apply(base)) {
-        return;
-      }
-
-      if (idx == context.patternParts.length) { // Base case.
-        if (!(context.excludeDirectories && baseIsDir)) {
-          results.add(base);
-        }
-
-        return;
-      }
-
-      if (!baseIsDir) {
-        // Nothing to find here.
+    private void reallyGlob(Path base, Set<GlobPosition> positions, GlobTaskContext context)
+        throws IOException {
+      if (!context.dirPred.apply(base)) {
         return;
       }
 
-      final String pattern = context.patternParts[idx];
-
       // ** is special: it can match nothing at all.
       // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
-      final boolean isRecursivePattern = isRecursivePattern(pattern);
-      if (isRecursivePattern) {
-        context.queueGlob(base, baseIsDir, idx + 1);
+      Deque<GlobPosition> pending = new ArrayDeque<>(positions);
+      Set<GlobPosition> expanded = new HashSet<>(positions);
+      List<GlobPosition> literalPositions = new ArrayList<>();
+      List<GlobPosition> wildcardPositions = new ArrayList<>();
+      while (!pending.isEmpty()) {
+        GlobPosition position = pending.removeFirst();
+        if (context.isComplete(position)) { // Base case.
+          if (!context.excludeDirectories) {
+            resultsByPattern.get(position.pattern).add(base);
+          }
+          continue;
+        }
+        String pattern = context.getSegment(position);
+        if (isRecursivePattern(pattern) && expanded.add(position.next())) {
+          pending.addLast(position.next());
+        }
+        if (isWildcardPattern(pattern)) {
+          wildcardPositions.add(position);
+        } else {
+          literalPositions.add(position);
+        }
       }
 
-      if (!pattern.contains("*") && !pattern.contains("?")) {
+      // The positions of the child directories, by name, so that each of them gets one subtask no
+      // matter how many patterns match it.
+      Map<String, Set<GlobPosition>> childPositions = new HashMap<>();
+
+      for (GlobPosition position : literalPositions) {
         // We do not need to do a readdir in this case, just a stat.
-        Path child = base.getChild(pattern);
-        FileStatus status = context.syscalls.statIfFound(child, Symlinks.FOLLOW);
+        String name = context.getSegment(position);
+        FileStatus status = context.syscalls.statIfFound(base.getChild(name), Symlinks.FOLLOW);
         if (status == null || (!status.isDirectory() && !status.isFile())) {
           // The file is a dangling symlink, fifo, does not exist, etc.
-          return;
+          continue;
         }
-
-        boolean childIsDir = status.isDirectory();
-        context.queueGlob(child, childIsDir, idx + 1);
-        return;
+        advance(base, name, status.isDirectory(), position.next(), childPositions, context);
       }
 
-      Collection<Dirent> dents = context.syscalls.readdir(base, Symlinks.FOLLOW);
-
-      for (Dirent dent : dents) {
-        Dirent.Type type = dent.getType();
-        if (type == Dirent.Type.UNKNOWN) {
-          // The file is a dangling symlink, fifo, etc.
-          continue;
-        }
-        boolean childIsDir = (type == Dirent.Type.DIRECTORY);
-        String text = dent.getName();
-        Path child = base.getChild(text);
-
-        if (isRecursivePattern) {
-          // Recurse without shifting the pattern.
-          if (childIsDir) {
-            context.queueGlob(child, childIsDir, idx);
+      if (!wildcardPositions.isEmpty()) {
+        for (Dirent dent : context.syscalls.readdir(base, Symlinks.FOLLOW)) {
+          Dirent.Type type = dent.getType();
+          if (type == Dirent.Type.UNKNOWN) {
+            // The file is a dangling symlink, fifo, etc.
+            continue;
           }
-        }
-        if (matches(pattern, text, cache)) {
-          // Recurse and consume one segment of the pattern.
-          if (childIsDir) {
-            context.queueGlob(child, childIsDir, idx + 1);
-          } else {
-            // Instead of using an async call, just repeat the base case above.
-            if (idx + 1 == context.patternParts.length) {
-              results.add(child);
+          boolean childIsDir = (type == Dirent.Type.DIRECTORY);
+          String text = dent.getName();
+          for (GlobPosition position : wildcardPositions) {
+            String pattern = context.getSegment(position);
+            if (childIsDir && isRecursivePattern(pattern)) {
+              // Recurse without shifting the pattern.
+              advance(base, text, true, position, childPositions, context);
+            }
+            if (matches(pattern, text, cache)) {
+              // Recurse and consume one segment of the pattern.
+              advance(base, text, childIsDir, position.next(), childPositions, context);
             }
           }
         }
       }
+
+      for (Map.Entry<String, Set<GlobPosition>> entry : childPositions.entrySet()) {
+        queueGlob(base.getChild(entry.getKey()), entry.getValue(), context);
+      }
+    }
+
+    /**
+     * Records that the child {@code name} of {@code base} matched up to {@code position}: a file
+     * is a result if it matched the whole pattern, and a directory is globbed from that position.
+     */
+    private void advance(
+        Path base,
+        String name,
+        boolean childIsDir,
+        GlobPosition position,
+        Map<String, Set<GlobPosition>> childPositions,
+        GlobTaskContext context) {
+      if (childIsDir) {
+        childPositions.computeIfAbsent(name, n -> new LinkedHashSet<>()).add(position);
+      } else if (context.isComplete(position)) {
+        // Instead of using an async call, just repeat the base case above.
+        resultsByPattern.get(position.pattern).add(base.getChild(name));
+      }
     }
   }
 }
@@ -45,6 +45,7 @@ class Worker {
 
   private Subprocess process;
   private Thread shutdownHook;
+  private volatile boolean evictionRequested;
 
   Worker(WorkerKey workerKey, int workerId, final Path workDir, Path logFile) {
     this.workerKey = workerKey;
@@ -127,6 +128,23 @@ class Worker {
     return this.workerId;
   }
 
+  /** Returns the id of the worker process, or -1 if it isn't known. */
+  long getProcessId() {
+    return process == null ? -1 : process.getProcessId();
+  }
+
+  /**
+   * Asks the {@link WorkerPool} to destroy this worker, when it's idle or the next time it's
+   * validated.
+   */
+  void requestEviction() {
+    evictionRequested = true;
+  }
+
+  boolean isEvictionRequested() {
+    return evictionRequested;
+  }
+
   HashCode getWorkerFilesCombinedHash() {
     return workerKey.getWorkerFilesCombinedHash();
   }
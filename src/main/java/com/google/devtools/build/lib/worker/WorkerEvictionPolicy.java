@@ -0,0 +1,29 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.EvictionConfig;
+import org.apache.commons.pool2.impl.EvictionPolicy;
+
+/**
+ * Evicts the idle workers that {@link WorkerPoolManager} chose to free memory for, regardless of
+ * how long they have been idle. The pool instantiates it by its class name, so it must be public.
+ */
+public final class WorkerEvictionPolicy implements EvictionPolicy<Worker> {
+  @Override
+  public boolean evict(EvictionConfig config, PooledObject<Worker> underTest, int idleCount) {
+    return underTest.getObject().isEvictionRequested();
+  }
+}
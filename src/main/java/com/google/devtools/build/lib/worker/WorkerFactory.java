@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.worker;
 import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.TreeSet;
@@ -27,7 +29,7 @@ import org.apache.commons.pool2.impl.DefaultPooledObject;
 /**
  * Factory used by the pool to create / destroy / validate worker processes.
  */
-final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker> {
+class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker> {
 
   // It's fine to use an AtomicInteger here (which is 32-bit), because it is only incremented when
   // spawning a new worker, thus even under worst-case circumstances and buggy workers quitting
@@ -65,8 +67,10 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     } else {
       worker = new Worker(key, workerId, key.getExecRoot(), logFile);
     }
+    long startTime = Profiler.nanoTimeMaybe();
     worker.prepareExecution(key);
     worker.createProcess();
+    Profiler.instance().logSimpleTask(startTime, ProfilerTask.WORKER_SPAWN, key.getMnemonic());
     if (workerOptions.workerVerbose) {
       reporter.handle(
           Event.info(
@@ -109,10 +113,16 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
     p.getObject().destroy();
   }
 
-  /** The worker is considered to be valid when its files have not changed on disk. */
+  /**
+   * The worker is considered to be valid when its files have not changed on disk, and the pool
+   * hasn't chosen to evict it.
+   */
   @Override
   public boolean validateObject(WorkerKey key, PooledObject<Worker> p) {
     Worker worker = p.getObject();
+    if (worker.isEvictionRequested()) {
+      return false;
+    }
     boolean hashMatches =
         key.getWorkerFilesCombinedHash().equals(worker.getWorkerFilesCombinedHash());
 
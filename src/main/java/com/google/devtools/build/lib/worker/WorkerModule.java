@@ -39,6 +39,10 @@ public class WorkerModule extends BlazeModule {
   private WorkerFactory workerFactory;
   private WorkerPool workerPool;
   private WorkerPoolConfig workerPoolConfig;
+  private int workerMemoryBudgetMb;
+  // Only set if --experimental_worker_multiplex is enabled.
+  private WorkerMultiplexerManager workerMultiplexerManager;
+  private int workerMaxMultiplexInstances;
   private WorkerOptions options;
 
   @Override
@@ -99,13 +103,29 @@ public class WorkerModule extends BlazeModule {
     WorkerPoolConfig newConfig = createWorkerPoolConfig(options);
 
     // If the config changed compared to the last run, we have to create a new pool.
-    if (workerPoolConfig != null && !workerPoolConfig.equals(newConfig)) {
+    if (workerPoolConfig != null
+        && (!workerPoolConfig.equals(newConfig)
+            || workerMemoryBudgetMb != options.workerMemoryBudgetMb)) {
       shutdownPool("Worker configuration has changed, restarting worker pool...");
     }
 
     if (workerPool == null) {
       workerPoolConfig = newConfig;
-      workerPool = new WorkerPool(workerFactory, workerPoolConfig);
+      workerMemoryBudgetMb = options.workerMemoryBudgetMb;
+      workerPool = new WorkerPool(workerFactory, workerPoolConfig, workerMemoryBudgetMb);
+    }
+
+    // Multiplexed workers can't be sandboxed, since they run many requests in the same directory.
+    boolean multiplex = options.workerMultiplex && !options.workerSandboxing;
+    if (workerMultiplexerManager != null
+        && (!multiplex || workerMaxMultiplexInstances != options.workerMaxMultiplexInstances)) {
+      workerMultiplexerManager.shutdown();
+      workerMultiplexerManager = null;
+    }
+    if (multiplex && workerMultiplexerManager == null) {
+      workerMaxMultiplexInstances = options.workerMaxMultiplexInstances;
+      workerMultiplexerManager =
+          new WorkerMultiplexerManager(workerFactory, workerMaxMultiplexInstances);
     }
   }
 
@@ -143,7 +163,8 @@ public class WorkerModule extends BlazeModule {
   @Override
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
     Preconditions.checkNotNull(workerPool);
-    builder.addActionContextProvider(new WorkerActionContextProvider(env, workerPool));
+    builder.addActionContextProvider(
+        new WorkerActionContextProvider(env, workerPool, workerMultiplexerManager));
     builder.addActionContextConsumer(new WorkerActionContextConsumer());
   }
 
@@ -164,7 +185,8 @@ public class WorkerModule extends BlazeModule {
   }
 
   /**
-   * Shuts down the worker pool and sets {#code workerPool} to null.
+   * Shuts down the worker pool and the multiplexed workers, and sets {#code workerPool} and {@code
+   * workerMultiplexerManager} to null.
    */
   private void shutdownPool(String reason) {
     Preconditions.checkArgument(!reason.isEmpty());
@@ -176,6 +198,10 @@ public class WorkerModule extends BlazeModule {
       workerPool.close();
       workerPool = null;
     }
+    if (workerMultiplexerManager != null) {
+      workerMultiplexerManager.shutdown();
+      workerMultiplexerManager = null;
+    }
   }
 
   @Override
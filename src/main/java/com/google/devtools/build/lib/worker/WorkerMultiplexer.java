@@ -0,0 +1,232 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends many concurrent requests to a single worker process that supports the multiplexed
+ * protocol: every {@link WorkRequest} carries a request id, the worker handles the requests on its
+ * own threads, and it responds to them in any order with a {@link WorkResponse} that carries the
+ * same id. A thread reads the responses and hands them to the threads waiting for them.
+ *
+ * <p>Interrupting a waiting thread sends a cancel request for its request to the worker, and waits
+ * a bounded time for the worker to respond to it. The request keeps its slot until the worker
+ * responds, so the number of requests that the worker handles stays bounded. If the worker process
+ * quits or writes something that isn't a response, all waiting requests fail.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  // How long an interrupted request waits for the worker to stop working on it.
+  private static final Duration DEFAULT_CANCEL_TIMEOUT = Duration.ofSeconds(10);
+
+  private final Worker worker;
+  // Limits the number of requests that the worker handles at the same time.
+  private final Semaphore inFlight;
+  private final Duration cancelTimeout;
+  private final ConcurrentMap<Integer, SettableFuture<WorkResponse>> responses =
+      new ConcurrentHashMap<>();
+  // Request id 0 is what workers that don't support multiplexing respond with, so it's skipped
+  // when the ids wrap around.
+  private final AtomicInteger nextRequestId;
+  private final RecordingInputStream stdout;
+
+  // Set by the reader thread once no more responses can be read, before it fails all waiting
+  // requests. A request that is added after that fails by itself.
+  private volatile IOException readFailure;
+  // Set once a request couldn't be written completely, after which the stream of requests can't
+  // be parsed by the worker anymore.
+  private volatile IOException writeFailure;
+
+  WorkerMultiplexer(Worker worker, int maxInFlight) {
+    this(worker, maxInFlight, DEFAULT_CANCEL_TIMEOUT, 1);
+  }
+
+  @VisibleForTesting
+  WorkerMultiplexer(Worker worker, int maxInFlight, Duration cancelTimeout, int firstRequestId) {
+    this.worker = worker;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.cancelTimeout = cancelTimeout;
+    this.nextRequestId = new AtomicInteger(firstRequestId);
+    this.stdout = new RecordingInputStream(worker.getInputStream());
+    Thread reader = new Thread(this::readResponses, "worker-multiplexer-" + worker.getWorkerId());
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Sends {@code request} to the worker under a new request id, and waits for its response.
+   *
+   * @throws IOException if the request couldn't be sent, or the worker process quit or wrote an
+   *     unparseable response before responding to it
+   * @throws InterruptedException if the thread was interrupted, in which case the worker is asked
+   *     to cancel the request
+   */
+  WorkResponse execute(WorkRequest request) throws IOException, InterruptedException {
+    inFlight.acquire();
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    int requestId = register(response);
+    // The slot is released once the worker is done with the request, which for a cancelled request
+    // may be after this method returns. A response to it is dropped, since nobody waits for it.
+    response.addListener(
+        () -> {
+          responses.remove(requestId);
+          inFlight.release();
+        },
+        MoreExecutors.directExecutor());
+    if (readFailure != null) {
+      response.setException(readFailure);
+    }
+    if (!response.isDone()) {
+      try {
+        send(request.toBuilder().setRequestId(requestId).build());
+      } catch (IOException e) {
+        response.setException(e);
+      }
+    }
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      throw (IOException) e.getCause();
+    } catch (InterruptedException e) {
+      cancel(requestId, response);
+      throw e;
+    }
+  }
+
+  /** Returns a new request id under which {@code response} waits for the worker. */
+  private int register(SettableFuture<WorkResponse> response) {
+    while (true) {
+      int requestId = nextRequestId.getAndUpdate(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+      // After a wrap-around, skips the ids of requests that are still running.
+      if (responses.putIfAbsent(requestId, response) == null) {
+        return requestId;
+      }
+    }
+  }
+
+  /** Asks the worker to cancel a request, and waits a bounded time for it to respond. */
+  private void cancel(int requestId, SettableFuture<WorkResponse> response) {
+    try {
+      send(WorkRequest.newBuilder().setRequestId(requestId).setCancel(true).build());
+    } catch (IOException e) {
+      // The worker can't be reached anymore, so there's nothing left to cancel.
+      response.setException(e);
+      return;
+    }
+    try {
+      Uninterruptibles.getUninterruptibly(
+          response, cancelTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      // The worker quit, or is still working on the request. Either way it keeps its slot until
+      // the worker responds or quits.
+    }
+  }
+
+  private void send(WorkRequest request) throws IOException {
+    OutputStream stdin = worker.getOutputStream();
+    synchronized (stdin) {
+      if (writeFailure != null) {
+        throw writeFailure;
+      }
+      try {
+        request.writeDelimitedTo(stdin);
+        stdin.flush();
+      } catch (IOException e) {
+        writeFailure = e;
+        throw e;
+      }
+    }
+  }
+
+  private void readResponses() {
+    IOException failure;
+    try {
+      while (true) {
+        stdout.startRecording(4096);
+        WorkResponse response;
+        try {
+          response = WorkResponse.parseDelimitedFrom(stdout);
+        } catch (IOException e) {
+          // Like for a worker without multiplexing, what the worker wrote instead of a response is
+          // probably an error message that tells why it failed.
+          stdout.readRemaining();
+          failure =
+              new IOException(
+                  "Worker process returned an unparseable WorkResponse:\n"
+                      + stdout.getRecordedDataAsString(),
+                  e);
+          break;
+        }
+        if (response == null) {
+          failure = new IOException("Worker process quit or closed its stdout stream");
+          break;
+        }
+        SettableFuture<WorkResponse> waiting = responses.get(response.getRequestId());
+        if (waiting != null) {
+          waiting.set(response);
+        }
+      }
+    } catch (RuntimeException e) {
+      failure = new IOException("Failed to read a WorkResponse", e);
+    }
+    readFailure = failure;
+    for (SettableFuture<WorkResponse> waiting : responses.values()) {
+      waiting.setException(failure);
+    }
+  }
+
+  /**
+   * Returns whether the worker process is running, and requests can still be sent to it and its
+   * responses read.
+   */
+  boolean isAlive() {
+    return readFailure == null && writeFailure == null && worker.isAlive();
+  }
+
+  HashCode getWorkerFilesCombinedHash() {
+    return worker.getWorkerFilesCombinedHash();
+  }
+
+  int getWorkerId() {
+    return worker.getWorkerId();
+  }
+
+  Path getLogFile() {
+    return worker.getLogFile();
+  }
+
+  /** Kills the worker process, which fails all requests that are waiting for a response. */
+  void destroy() throws IOException {
+    worker.destroy();
+  }
+}
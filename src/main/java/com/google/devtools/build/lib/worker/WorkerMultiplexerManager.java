@@ -0,0 +1,76 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps one {@link WorkerMultiplexer} per kind of worker, which is what {@link WorkerPool} does for
+ * workers that handle one request at a time, except that a single process serves all requests.
+ */
+@ThreadSafe
+final class WorkerMultiplexerManager {
+  private final WorkerFactory factory;
+  private final int maxInFlight;
+  private final Map<WorkerKey, WorkerMultiplexer> multiplexers = new HashMap<>();
+
+  WorkerMultiplexerManager(WorkerFactory factory, int maxInFlight) {
+    this.factory = factory;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Returns the multiplexer for {@code key}, starting a worker process if there is none, or if the
+   * previous one quit, can't be used anymore, or its files have changed on disk.
+   */
+  synchronized WorkerMultiplexer get(WorkerKey key) throws IOException, InterruptedException {
+    WorkerMultiplexer multiplexer = multiplexers.get(key);
+    if (multiplexer != null
+        && (!multiplexer.isAlive()
+            || !key.getWorkerFilesCombinedHash()
+                .equals(multiplexer.getWorkerFilesCombinedHash()))) {
+      multiplexers.remove(key);
+      multiplexer.destroy();
+      multiplexer = null;
+    }
+    if (multiplexer == null) {
+      Worker worker;
+      try {
+        worker = factory.create(key);
+      } catch (Exception e) {
+        Throwables.propagateIfPossible(e, IOException.class, InterruptedException.class);
+        throw new RuntimeException("unexpected", e);
+      }
+      multiplexer = new WorkerMultiplexer(worker, maxInFlight);
+      multiplexers.put(key, multiplexer);
+    }
+    return multiplexer;
+  }
+
+  /** Kills all worker processes. */
+  synchronized void shutdown() {
+    for (WorkerMultiplexer multiplexer : multiplexers.values()) {
+      try {
+        multiplexer.destroy();
+      } catch (IOException e) {
+        // We can't do anything here.
+      }
+    }
+    multiplexers.clear();
+  }
+}
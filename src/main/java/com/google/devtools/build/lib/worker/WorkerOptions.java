@@ -57,6 +57,20 @@ public class WorkerOptions extends OptionsBase {
   )
   public int workerMaxInstances;
 
+  @Option(
+    name = "experimental_worker_memory_budget_mb",
+    defaultValue = "0",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If positive, the number of worker processes of each kind adapts to how often they are "
+            + "used, up to --worker_max_instances, such that all of them together use at most "
+            + "this much resident memory. The least used idle workers are shut down to make room "
+            + "for busier ones. Resident memory is only measured on Linux."
+  )
+  public int workerMemoryBudgetMb;
+
   @Option(
     name = "worker_quit_after_build",
     defaultValue = "false",
@@ -100,4 +114,29 @@ public class WorkerOptions extends OptionsBase {
     help = "If enabled, workers will be executed in a sandboxed environment."
   )
   public boolean workerSandboxing;
+
+  @Option(
+    name = "experimental_worker_multiplex",
+    defaultValue = "false",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If enabled, actions whose execution info contains 'supports-multiplex-workers=1' send "
+            + "all their requests to a single worker process per kind of worker, which handles "
+            + "them concurrently. Has no effect if --worker_sandboxing is enabled."
+  )
+  public boolean workerMultiplex;
+
+  @Option(
+    name = "worker_max_multiplex_instances",
+    defaultValue = "8",
+    category = "strategy",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "How many requests a multiplexed worker process may handle at the same time if "
+            + "--experimental_worker_multiplex is enabled."
+  )
+  public int workerMaxMultiplexInstances;
 }
@@ -20,6 +20,7 @@ import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -30,21 +31,58 @@ import javax.annotation.concurrent.ThreadSafe;
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
+  @Nullable private final WorkerPoolManager manager;
 
   public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
+    this(factory, config, 0);
+  }
+
+  /**
+   * Creates a pool whose workers may take {@code memoryBudgetMb} of resident memory in total, see
+   * {@link WorkerPoolManager}, or any amount if it's 0. The maximum number of workers per key of
+   * {@code config} is then the upper bound of the capacity of each kind of worker.
+   */
+  public WorkerPool(
+      WorkerFactory factory, GenericKeyedObjectPoolConfig config, int memoryBudgetMb) {
     super(factory, config);
+    if (memoryBudgetMb > 0) {
+      manager = new WorkerPoolManager(this, memoryBudgetMb * 1024L, config.getMaxTotalPerKey());
+      // The manager calls evict() itself, which must test all idle workers.
+      setEvictionPolicyClassName(WorkerEvictionPolicy.class.getName());
+      setNumTestsPerEvictionRun(-1);
+    } else {
+      manager = null;
+    }
   }
 
   @Override
   public Worker borrowObject(WorkerKey key) throws IOException, InterruptedException {
+    if (manager != null) {
+      manager.acquire(key);
+    }
     try {
-      return super.borrowObject(key);
+      Worker worker = super.borrowObject(key);
+      if (manager != null) {
+        manager.borrowed(key, worker);
+      }
+      return worker;
     } catch (Throwable t) {
+      if (manager != null) {
+        manager.release(key, null);
+      }
       Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
       throw new RuntimeException("unexpected", t);
     }
   }
 
+  @Override
+  public void returnObject(WorkerKey key, Worker obj) {
+    super.returnObject(key, obj);
+    if (manager != null) {
+      manager.release(key, obj);
+    }
+  }
+
   @Override
   public void invalidateObject(WorkerKey key, Worker obj) throws IOException, InterruptedException {
     try {
@@ -52,6 +90,10 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
     } catch (Throwable t) {
       Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
       throw new RuntimeException("unexpected", t);
+    } finally {
+      if (manager != null) {
+        manager.release(key, null);
+      }
     }
   }
 }
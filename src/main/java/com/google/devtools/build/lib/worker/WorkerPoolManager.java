@@ -0,0 +1,382 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sizes the {@link WorkerPool} within a budget for the resident memory of all its workers.
+ *
+ * <p>Every kind of worker starts with room for one worker. When a borrower would have to wait, the
+ * capacity of its kind grows by one, up to the pool's maximum per key, if a new worker is expected
+ * to fit into the budget: its size is estimated from the workers of the same kind. If it doesn't
+ * fit, idle workers of other kinds are evicted if they are less valuable, where the value of a
+ * worker is the recent borrow rate of its kind per byte of its memory. Every eviction shrinks the
+ * capacity of the evicted kind by one. If the workers grow beyond the budget, the least valuable
+ * idle ones are evicted when a worker is returned.
+ *
+ * <p>The resident memory of a worker is read from {@code /proc}. Where it can't be read, workers
+ * take no memory, and the capacities grow as if there were no budget.
+ */
+@ThreadSafe
+final class WorkerPoolManager {
+  private static final Logger logger = Logger.getLogger(WorkerPoolManager.class.getName());
+
+  // The time over which the borrow rate of a kind of worker decays to 1/e of its value.
+  private static final double RATE_DECAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+  // How long the measured resident memory of a worker is used before it's read again.
+  private static final long MEASUREMENT_TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // How long a waiting borrower waits before checking again whether a new worker fits.
+  private static final long RECHECK_MILLIS = 1000;
+
+  /** The capacity and borrow rate of a kind of worker. */
+  private static final class KeyState {
+    int capacity = 1;
+    int borrowed;
+    // The decayed number of borrows, as of lastBorrowNanos.
+    double borrowRate;
+    long lastBorrowNanos;
+
+    void recordBorrow(long now) {
+      borrowRate = rateAt(now) + 1;
+      lastBorrowNanos = now;
+    }
+
+    double rateAt(long now) {
+      return borrowRate * Math.exp(-(now - lastBorrowNanos) / RATE_DECAY_NANOS);
+    }
+  }
+
+  /** A worker the pool created, with its last measured memory. */
+  private static final class WorkerState {
+    final WorkerKey key;
+    final Worker worker;
+    boolean idle;
+    long residentKb;
+    long measuredNanos;
+    boolean measured;
+
+    WorkerState(WorkerKey key, Worker worker) {
+      this.key = key;
+      this.worker = worker;
+    }
+  }
+
+  private final WorkerPool pool;
+  private final long memoryBudgetKb;
+  private final int maxInstancesPerKey;
+  private final ToLongFunction<Worker> memoryReader;
+
+  private final Map<WorkerKey, KeyState> keys = new HashMap<>();
+  // Workers don't override equals, so this is keyed by identity.
+  private final Map<Worker, WorkerState> workers = new HashMap<>();
+
+  WorkerPoolManager(WorkerPool pool, long memoryBudgetKb, int maxInstancesPerKey) {
+    this(pool, memoryBudgetKb, maxInstancesPerKey, WorkerPoolManager::readResidentMemoryKb);
+  }
+
+  @VisibleForTesting
+  WorkerPoolManager(
+      WorkerPool pool,
+      long memoryBudgetKb,
+      int maxInstancesPerKey,
+      ToLongFunction<Worker> memoryReader) {
+    this.pool = pool;
+    this.memoryBudgetKb = memoryBudgetKb;
+    this.maxInstancesPerKey = maxInstancesPerKey;
+    this.memoryReader = memoryReader;
+  }
+
+  /** Waits until a worker for {@code key} may be borrowed from the pool. */
+  void acquire(WorkerKey key) throws InterruptedException {
+    long startTime = Profiler.nanoTimeMaybe();
+    KeyState state;
+    synchronized (this) {
+      state = keys.computeIfAbsent(key, k -> new KeyState());
+      state.recordBorrow(BlazeClock.nanoTime());
+      if (state.borrowed < state.capacity) {
+        state.borrowed++;
+        return;
+      }
+    }
+    boolean waited = false;
+    boolean evicted = false;
+    while (true) {
+      measure();
+      synchronized (this) {
+        if (state.borrowed < state.capacity) {
+          state.borrowed++;
+          break;
+        }
+        if (state.capacity < maxInstancesPerKey) {
+          Room room = makeRoom(key, state, BlazeClock.nanoTime());
+          if (room != Room.NONE) {
+            evicted = room == Room.MADE_BY_EVICTING;
+            state.capacity++;
+            state.borrowed++;
+            break;
+          }
+        }
+        waited = true;
+        wait(RECHECK_MILLIS);
+      }
+    }
+    if (evicted) {
+      destroyEvicted();
+    }
+    if (waited) {
+      Profiler.instance()
+          .logSimpleTask(startTime, ProfilerTask.WORKER_POOL_WAIT, key.getMnemonic());
+    }
+  }
+
+  /** Records that {@code worker} was borrowed for {@code key} after {@link #acquire}. */
+  synchronized void borrowed(WorkerKey key, Worker worker) {
+    workers.computeIfAbsent(worker, w -> new WorkerState(key, w)).idle = false;
+  }
+
+  /**
+   * Releases what {@link #acquire} reserved for {@code key}. {@code worker} is the worker that was
+   * returned to the pool, which is now idle, or null if it wasn't returned.
+   */
+  void release(WorkerKey key, @Nullable Worker worker) {
+    synchronized (this) {
+      keys.get(key).borrowed--;
+      if (worker != null) {
+        WorkerState returned = workers.get(worker);
+        if (returned != null) {
+          returned.idle = true;
+        }
+      }
+      notifyAll();
+    }
+    measure();
+    synchronized (this) {
+      long excessKb = usedKb() - memoryBudgetKb;
+      if (excessKb <= 0) {
+        return;
+      }
+      long now = BlazeClock.nanoTime();
+      if (!markEvicted(selectEvictions(null, Double.MAX_VALUE, excessKb, now))) {
+        return;
+      }
+      notifyAll();
+    }
+    destroyEvicted();
+  }
+
+  /** Whether there is room for another worker, see {@link #makeRoom}. */
+  private enum Room {
+    NONE,
+    AVAILABLE,
+    MADE_BY_EVICTING
+  }
+
+  /**
+   * Returns whether another worker for {@code key} fits into the budget, marking less valuable
+   * idle workers of other kinds as evicted if that makes it fit. The caller must then {@link
+   * #destroyEvicted destroy} them.
+   */
+  private Room makeRoom(WorkerKey key, KeyState state, long now) {
+    long neededKb = estimateWorkerKb(key);
+    long excessKb = usedKb() + neededKb - memoryBudgetKb;
+    if (excessKb <= 0) {
+      return Room.AVAILABLE;
+    }
+    List<WorkerState> evictions =
+        selectEvictions(key, value(state.rateAt(now), neededKb), excessKb, now);
+    long freedKb = 0;
+    for (WorkerState eviction : evictions) {
+      freedKb += eviction.residentKb;
+    }
+    if (freedKb < excessKb) {
+      return Room.NONE;
+    }
+    markEvicted(evictions);
+    return Room.MADE_BY_EVICTING;
+  }
+
+  /**
+   * Returns the least valuable idle workers whose memory adds up to {@code excessKb}, or as close
+   * to it as possible, excluding those of {@code key} and those worth at least {@code maxValue}.
+   */
+  private List<WorkerState> selectEvictions(
+      @Nullable WorkerKey key, double maxValue, long excessKb, long now) {
+    List<WorkerState> candidates = new ArrayList<>();
+    for (WorkerState candidate : workers.values()) {
+      if (candidate.idle
+          && !candidate.key.equals(key)
+          && !candidate.worker.isEvictionRequested()
+          && value(candidate, now) < maxValue) {
+        candidates.add(candidate);
+      }
+    }
+    candidates.sort(Comparator.comparingDouble(candidate -> value(candidate, now)));
+    List<WorkerState> evictions = new ArrayList<>();
+    long freedKb = 0;
+    for (WorkerState candidate : candidates) {
+      if (freedKb >= excessKb) {
+        break;
+      }
+      evictions.add(candidate);
+      freedKb += candidate.residentKb;
+    }
+    return evictions;
+  }
+
+  /**
+   * Requests the eviction of the workers and stops counting them. Returns whether there were any.
+   */
+  private boolean markEvicted(List<WorkerState> evictions) {
+    for (WorkerState eviction : evictions) {
+      eviction.worker.requestEviction();
+      workers.remove(eviction.worker);
+      KeyState state = keys.get(eviction.key);
+      state.capacity = Math.max(1, state.capacity - 1);
+      Profiler.instance().logEvent(ProfilerTask.WORKER_EVICTION, eviction.key.getMnemonic());
+    }
+    return !evictions.isEmpty();
+  }
+
+  /**
+   * Destroys the workers marked as evicted that are still idle. The others fail their validation
+   * when they are returned. Must be called without holding the lock, as destroying a worker waits
+   * for its process to exit.
+   */
+  private void destroyEvicted() {
+    try {
+      pool.evict();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Failed to evict idle workers", e);
+    }
+  }
+
+  private double value(WorkerState worker, long now) {
+    return value(keys.get(worker.key).rateAt(now), worker.residentKb);
+  }
+
+  private static double value(double borrowRate, long residentKb) {
+    return borrowRate / Math.max(residentKb, 1);
+  }
+
+  /** Returns the expected size of a new worker for {@code key}, from the measured workers. */
+  private long estimateWorkerKb(WorkerKey key) {
+    long sameKeyKb = 0;
+    int sameKeyCount = 0;
+    long allKb = 0;
+    int allCount = 0;
+    for (WorkerState worker : workers.values()) {
+      if (worker.residentKb > 0) {
+        allKb += worker.residentKb;
+        allCount++;
+        if (worker.key.equals(key)) {
+          sameKeyKb += worker.residentKb;
+          sameKeyCount++;
+        }
+      }
+    }
+    if (sameKeyCount > 0) {
+      return sameKeyKb / sameKeyCount;
+    }
+    return allCount > 0 ? allKb / allCount : 0;
+  }
+
+  /**
+   * Reads the resident memory of the workers whose last measurement is too old, and forgets the
+   * dead workers. Only the list of workers is taken while holding the lock, so that other borrowers
+   * don't wait for the reads from {@code /proc}.
+   */
+  private void measure() {
+    long now = BlazeClock.nanoTime();
+    List<WorkerState> snapshot = new ArrayList<>();
+    List<WorkerState> stale = new ArrayList<>();
+    synchronized (this) {
+      for (WorkerState worker : workers.values()) {
+        snapshot.add(worker);
+        if (!worker.measured || now - worker.measuredNanos > MEASUREMENT_TTL_NANOS) {
+          stale.add(worker);
+        }
+      }
+    }
+    List<WorkerState> dead = new ArrayList<>();
+    for (WorkerState worker : snapshot) {
+      if (!worker.worker.isAlive()) {
+        dead.add(worker);
+      }
+    }
+    long[] residentKb = new long[stale.size()];
+    for (int i = 0; i < residentKb.length; i++) {
+      residentKb[i] = Math.max(memoryReader.applyAsLong(stale.get(i).worker), 0);
+    }
+    synchronized (this) {
+      for (WorkerState worker : dead) {
+        workers.remove(worker.worker, worker);
+      }
+      for (int i = 0; i < residentKb.length; i++) {
+        WorkerState worker = stale.get(i);
+        worker.residentKb = residentKb[i];
+        worker.measuredNanos = now;
+        worker.measured = true;
+      }
+    }
+  }
+
+  /** Returns the last measured resident memory of all workers. */
+  private long usedKb() {
+    long totalKb = 0;
+    for (WorkerState worker : workers.values()) {
+      totalKb += worker.residentKb;
+    }
+    return totalKb;
+  }
+
+  /** Returns the resident memory of the worker's process from {@code /proc}, or -1. */
+  private static long readResidentMemoryKb(Worker worker) {
+    long pid = worker.getProcessId();
+    if (pid < 0) {
+      return -1;
+    }
+    try {
+      for (String line :
+          Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"), US_ASCII)) {
+        // For example "VmRSS:\t  123456 kB".
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Not Linux, or the process has just exited.
+    }
+    return -1;
+  }
+}
@@ -54,6 +54,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
  * A spawn runner that launches Spawns the first time they are used in a persistent mode and then
@@ -73,6 +74,7 @@ final class WorkerSpawnRunner implements SpawnRunner {
 
   private final Path execRoot;
   private final WorkerPool workers;
+  @Nullable private final WorkerMultiplexerManager multiplexers;
   private final Multimap<String, String> extraFlags;
   private final EventHandler reporter;
   private final SpawnRunner fallbackRunner;
@@ -83,8 +85,23 @@ final class WorkerSpawnRunner implements SpawnRunner {
       Multimap<String, String> extraFlags,
       EventHandler reporter,
       SpawnRunner fallbackRunner) {
+    this(execRoot, workers, null, extraFlags, reporter, fallbackRunner);
+  }
+
+  /**
+   * Creates a runner that sends the requests of spawns that support multiplexed workers to the
+   * worker processes of {@code multiplexers}, unless they must be sandboxed.
+   */
+  public WorkerSpawnRunner(
+      Path execRoot,
+      WorkerPool workers,
+      @Nullable WorkerMultiplexerManager multiplexers,
+      Multimap<String, String> extraFlags,
+      EventHandler reporter,
+      SpawnRunner fallbackRunner) {
     this.execRoot = execRoot;
     this.workers = Preconditions.checkNotNull(workers);
+    this.multiplexers = multiplexers;
     this.extraFlags = extraFlags;
     this.reporter = reporter;
     this.fallbackRunner = fallbackRunner;
@@ -153,7 +170,10 @@ final class WorkerSpawnRunner implements SpawnRunner {
     WorkRequest workRequest = createWorkRequest(spawn, policy, flagFiles, inputFileCache);
 
     long startTime = System.currentTimeMillis();
-    WorkResponse response = execInWorker(key, workRequest, policy);
+    WorkResponse response =
+        multiplexers != null && supportsMultiplexWorkers(spawn) && !key.mustBeSandboxed()
+            ? execInMultiplexer(key, workRequest, policy)
+            : execInWorker(key, workRequest, policy);
     Duration wallTime = Duration.ofMillis(System.currentTimeMillis() - startTime);
 
     FileOutErr outErr = policy.getFileOutErr();
@@ -167,6 +187,11 @@ final class WorkerSpawnRunner implements SpawnRunner {
         .build();
   }
 
+  private static boolean supportsMultiplexWorkers(Spawn spawn) {
+    return "1".equals(
+        spawn.getExecutionInfo().get(ExecutionRequirements.SUPPORTS_MULTIPLEX_WORKERS));
+  }
+
   /**
    * Splits the command-line arguments of the {@code Spawn} into the part that is used to start the
    * persistent worker ({@code workerArgs}) and the part that goes into the {@code WorkRequest}
@@ -356,4 +381,39 @@ final class WorkerSpawnRunner implements SpawnRunner {
 
     return response;
   }
+
+  private WorkResponse execInMultiplexer(
+      WorkerKey key, WorkRequest request, SpawnExecutionPolicy policy)
+      throws InterruptedException, ExecException {
+    WorkerMultiplexer multiplexer;
+    try {
+      multiplexer = multiplexers.get(key);
+    } catch (IOException e) {
+      throw new UserExecException(
+          ErrorMessage.builder()
+              .message("IOException while starting a multiplexed worker:")
+              .exception(e)
+              .build()
+              .toString());
+    }
+
+    WorkResponse response;
+    try {
+      response = multiplexer.execute(request);
+    } catch (IOException e) {
+      // Only this request fails. The other requests keep their worker process, unless it quit, in
+      // which case the next request starts a new one.
+      throw new UserExecException(
+          ErrorMessage.builder()
+              .message("Multiplexed worker process failed to respond to a WorkRequest:")
+              .logFile(multiplexer.getLogFile())
+              .logSizeLimit(4096)
+              .exception(e)
+              .build()
+              .toString());
+    }
+
+    policy.lockOutputFiles();
+    return response;
+  }
 }
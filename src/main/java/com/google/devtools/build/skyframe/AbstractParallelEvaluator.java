@@ -65,7 +65,8 @@ public abstract class AbstractParallelEvaluator {
       ErrorInfoManager errorInfoManager,
       boolean keepGoing,
       int threadCount,
-      DirtyTrackingProgressReceiver progressReceiver) {
+      DirtyTrackingProgressReceiver progressReceiver,
+      @Nullable RemainingWorkEstimates remainingWorkEstimates) {
     this.graph = graph;
     evaluatorContext =
         new ParallelEvaluatorContext(
@@ -79,7 +80,8 @@ public abstract class AbstractParallelEvaluator {
             storedEventFilter,
             errorInfoManager,
             Evaluate::new,
-            threadCount);
+            threadCount,
+            remainingWorkEstimates);
   }
 
   AbstractParallelEvaluator(
@@ -106,7 +108,8 @@ public abstract class AbstractParallelEvaluator {
             storedEventFilter,
             errorInfoManager,
             Evaluate::new,
-            Preconditions.checkNotNull(forkJoinPool));
+            Preconditions.checkNotNull(forkJoinPool),
+            /*remainingWorkEstimates=*/ null);
   }
 
   /**
@@ -154,7 +157,7 @@ public abstract class AbstractParallelEvaluator {
         case ALREADY_EVALUATING:
           break;
         case NEEDS_SCHEDULING:
-          evaluatorContext.getVisitor().enqueueEvaluation(child);
+          evaluatorContext.getVisitor().enqueueEvaluation(child, skyKey);
           break;
       }
     }
@@ -342,6 +345,7 @@ public abstract class AbstractParallelEvaluator {
             long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTime;
             if (elapsedTimeNanos > 0) {
               evaluatorContext.getProgressReceiver().computed(skyKey, elapsedTimeNanos);
+              evaluatorContext.getVisitor().noteComputed(skyKey, elapsedTimeNanos);
               Profiler.instance()
                   .logSimpleTaskDuration(
                       startTime, elapsedTimeNanos, ProfilerTask.SKYFUNCTION, skyKey);
@@ -191,6 +191,11 @@ public abstract class DelegatingNodeEntry implements NodeEntry {
     return getThinDelegate().markDirty(isChanged);
   }
 
+  @Override
+  public int getNodeId() {
+    return getThinDelegate().getNodeId();
+  }
+
   @Override
   public void addTemporaryDirectDepsGroupToDirtyEntry(Collection<SkyKey> group) {
     getDelegate().addTemporaryDirectDepsGroupToDirtyEntry(group);
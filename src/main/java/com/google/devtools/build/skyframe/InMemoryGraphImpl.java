@@ -38,13 +38,20 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   protected final ConcurrentMap<SkyKey, InMemoryNodeEntry> nodeMap =
       new MapMaker().initialCapacity(1024).concurrencyLevel(200).makeMap();
   private final boolean keepEdges;
+  // Whether to create LockFreeInMemoryNodeEntry instances. Only used if edges are kept.
+  private final boolean lockFreeNodeEntries;
 
   InMemoryGraphImpl() {
     this(/*keepEdges=*/ true);
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, /*lockFreeNodeEntries=*/ false);
+  }
+
+  public InMemoryGraphImpl(boolean keepEdges, boolean lockFreeNodeEntries) {
     this.keepEdges = keepEdges;
+    this.lockFreeNodeEntries = lockFreeNodeEntries;
   }
 
   @Override
@@ -73,8 +80,14 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
-    InMemoryNodeEntry newval =
-        keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+    InMemoryNodeEntry newval;
+    if (!keepEdges) {
+      newval = new EdgelessInMemoryNodeEntry();
+    } else if (lockFreeNodeEntries) {
+      newval = new LockFreeInMemoryNodeEntry();
+    } else {
+      newval = new InMemoryNodeEntry();
+    }
     InMemoryNodeEntry oldval = nodeMap.putIfAbsent(key, newval);
     return oldval == null ? newval : oldval;
   }
@@ -17,18 +17,23 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
 import com.google.devtools.build.skyframe.Differencer.Diff;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import java.io.PrintStream;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -48,6 +53,19 @@ import javax.annotation.Nullable;
  * must pass in a monotonically increasing {@link IntVersion}.
  */
 public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
+  // Whether to store the edges of the graph as arrays of ids, see PackedInMemoryGraph.
+  private static final boolean PACKED_EDGES =
+      Boolean.parseBoolean(System.getProperty("skyframe.InMemoryGraph.PackedEdges", "false"));
+  // Whether to use node entries that signal and add reverse deps without locking, see
+  // LockFreeInMemoryNodeEntry. Ignored if the edges are packed.
+  private static final boolean LOCK_FREE_NODE_ENTRIES =
+      Boolean.parseBoolean(
+          System.getProperty("skyframe.InMemoryGraph.LockFreeNodeEntries", "false"));
+  // Whether to evaluate the nodes with the longest chain of work below them first, see
+  // RemainingWorkEstimates.
+  private static final boolean PRIORITIZE_BY_REMAINING_WORK =
+      Boolean.parseBoolean(
+          System.getProperty("skyframe.ParallelEvaluator.PrioritizeByRemainingWork", "false"));
 
   private final ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions;
   private final DirtyTrackingProgressReceiver progressReceiver;
@@ -72,6 +90,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final EmittedEventState emittedEventState;
 
+  // The estimates from the evaluations so far, if nodes are prioritized by them.
+  @Nullable private final RemainingWorkEstimates remainingWorkEstimates;
+
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
   public InMemoryMemoizingEvaluator(
@@ -95,9 +116,14 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph =
+        keepEdges && PACKED_EDGES
+            ? new PackedInMemoryGraph()
+            : new InMemoryGraphImpl(keepEdges, LOCK_FREE_NODE_ENTRIES);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
+    this.remainingWorkEstimates =
+        PRIORITIZE_BY_REMAINING_WORK ? new RemainingWorkEstimates() : null;
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -179,7 +205,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
               keepGoing,
               numThreads,
-              progressReceiver);
+              progressReceiver,
+              remainingWorkEstimates);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
@@ -246,6 +273,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private void performInvalidation() throws InterruptedException {
     EagerInvalidator.delete(graph, valuesToDelete, progressReceiver, deleterState, keepEdges);
+    if (remainingWorkEstimates != null && !valuesToDelete.isEmpty()) {
+      remainingWorkEstimates.forgetDeleted(graph);
+    }
     // Note that clearing the valuesToDelete would not do an internal resizing. Therefore, if any
     // build has a large set of dirty values, subsequent operations (even clearing) will be slower.
     // Instead, just start afresh with a new LinkedHashSet.
@@ -256,6 +286,50 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     valuesToDirty = new LinkedHashSet<>();
   }
 
+  /**
+   * Adds a done node for {@code key} with the given value and direct deps to a graph that has not
+   * been evaluated yet, e.g. to restore a node that was persisted by a previous server. All direct
+   * deps must have been restored before.
+   *
+   * <p>The node gets a version that is older than every evaluation, so the first evaluation treats
+   * it like a node built by an earlier one: it is only re-evaluated if it or one of its transitive
+   * deps is invalidated.
+   */
+  public void restoreDoneNode(SkyKey key, SkyValue value, GroupedList<SkyKey> directDeps)
+      throws InterruptedException {
+    Preconditions.checkState(lastGraphVersion == null, "Graph was already evaluated: %s", key);
+    Preconditions.checkState(keepEdges, "Edges are needed to invalidate restored nodes: %s", key);
+    NodeEntry entry =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    Preconditions.checkState(
+        entry.addReverseDepAndCheckIfDone(null) == DependencyState.NEEDS_SCHEDULING,
+        "%s was already restored: %s",
+        key,
+        entry);
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    for (Collection<SkyKey> group : directDeps) {
+      helper.startGroup(group.size());
+      for (SkyKey dep : group) {
+        helper.add(dep);
+      }
+      helper.endGroup();
+    }
+    entry.addTemporaryDirectDeps(helper);
+    Map<SkyKey, ? extends NodeEntry> depEntries =
+        graph.getBatch(key, Reason.OTHER, directDeps.toSet());
+    for (SkyKey dep : directDeps.toSet()) {
+      NodeEntry depEntry = Preconditions.checkNotNull(depEntries.get(dep), "%s %s", key, dep);
+      Preconditions.checkState(
+          depEntry.addReverseDepAndCheckIfDone(key) == DependencyState.DONE,
+          "Dep %s of %s was not restored: %s",
+          dep,
+          key,
+          depEntry);
+      entry.signalDep(MinimalVersion.INSTANCE);
+    }
+    entry.setValue(value, MinimalVersion.INSTANCE);
+  }
+
   private void setAndCheckEvaluateState(boolean newValue, Object requestInfo) {
     Preconditions.checkState(evaluating.getAndSet(newValue) != newValue,
         "Re-entrant evaluation for request: %s", requestInfo);
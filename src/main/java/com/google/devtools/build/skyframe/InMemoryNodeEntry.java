@@ -143,7 +143,7 @@ public class InMemoryNodeEntry implements NodeEntry {
    */
   @VisibleForTesting @Nullable protected volatile DirtyBuildingState dirtyBuildingState = null;
 
-  private static final int NOT_EVALUATING_SENTINEL = -1;
+  static final int NOT_EVALUATING_SENTINEL = -1;
 
   /**
    * The number of dependencies that are known to be done in a {@link NodeEntry} if it is already
@@ -165,8 +165,10 @@ public class InMemoryNodeEntry implements NodeEntry {
    * #directDeps#numElements} on the very last iteration of the loop, i.e., the thread is not
    * working on the node anymore. Note that this requires that there is no code after the loop in
    * {@code ParallelEvaluator.Evaluate#run}.
+   *
+   * <p>Volatile so that {@link LockFreeInMemoryNodeEntry} can update it without holding the lock.
    */
-  private int signaledDeps = NOT_EVALUATING_SENTINEL;
+  volatile int signaledDeps = NOT_EVALUATING_SENTINEL;
 
   /**
    * Construct a InMemoryNodeEntry. Use ONLY in Skyframe evaluation and graph implementations.
@@ -456,8 +458,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     // Can't process a dirty node without its deps.
     assertKeepDeps();
     if (isDone()) {
-      dirtyBuildingState =
-          DirtyBuildingState.create(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+      dirtyBuildingState = DirtyBuildingState.create(isChanged, getGroupedDirectDeps(), value);
       value = null;
       directDeps = null;
       return new MarkedDirtyResult(ReverseDepsUtility.getReverseDeps(this));
@@ -613,7 +614,9 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", isDone() ? GroupedList.create(directDeps) : directDeps)
+        .add(
+            "directDeps",
+            isDone() && keepEdges() != KeepEdgesPolicy.NONE ? getGroupedDirectDeps() : directDeps)
         .add("signaledDeps", signaledDeps)
         .add("reverseDeps", ReverseDepsUtility.toString(this))
         .add("dirtyBuildingState", dirtyBuildingState)
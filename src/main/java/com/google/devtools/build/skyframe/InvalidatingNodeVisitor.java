@@ -22,11 +22,14 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.concurrent.ConcurrentBitSet;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ExecutorParams;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import com.google.devtools.build.skyframe.ThinNodeEntry.MarkedDirtyResult;
@@ -39,6 +42,8 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
 /**
@@ -68,6 +73,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
   private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
   private static final int EXPECTED_PENDING_SET_SIZE = DEFAULT_THREAD_COUNT * 8;
   private static final int EXPECTED_VISITED_SET_SIZE = 1024;
+  // The number of nodes after which the progress of an invalidation is logged to the profiler.
+  private static final int PROGRESS_INTERVAL = 10000;
 
   private static final ErrorClassifier errorClassifier =
       new ErrorClassifier() {
@@ -84,6 +91,9 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
   // Aliased to InvalidationState.pendingVisitations.
   protected final Set<Pair<SkyKey, InvalidationType>> pendingVisitations;
   protected final QuiescingExecutor executor;
+  // The number of nodes that were actually invalidated, for the profiler.
+  private final AtomicInteger numInvalidated = new AtomicInteger();
+  private final AtomicLong lastProgressTime = new AtomicLong();
 
   protected InvalidatingNodeVisitor(
       TGraph graph,
@@ -128,6 +138,25 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
 
   /** Initiates visitation and waits for completion. */
   void run() throws InterruptedException {
+    long startTime = Profiler.nanoTimeMaybe();
+    lastProgressTime.set(startTime);
+    int numKeys = pendingVisitations.size();
+    try {
+      runInternal();
+    } finally {
+      Profiler.instance()
+          .logSimpleTask(
+              startTime,
+              ProfilerTask.SKYFRAME_INVALIDATION,
+              String.format(
+                  "%s: %d keys, %d nodes invalidated",
+                  getClass().getSimpleName(),
+                  numKeys,
+                  numInvalidated.get()));
+    }
+  }
+
+  private void runInternal() throws InterruptedException {
     // Make a copy to avoid concurrent modification confusing us as to which nodes were passed by
     // the caller, and which are added by other threads during the run. Since no tasks have been
     // started yet (the queueDirtying calls start them), this is thread-safe.
@@ -150,6 +179,23 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
 
   protected abstract boolean getSupportInterruptions();
 
+  /**
+   * Counts a node that was deleted or marked dirty, and every {@link #PROGRESS_INTERVAL} nodes logs
+   * the time since the previous interval to the profiler.
+   */
+  protected void noteInvalidated() {
+    int count = numInvalidated.incrementAndGet();
+    if (count % PROGRESS_INTERVAL == 0) {
+      long now = Profiler.nanoTimeMaybe();
+      Profiler.instance()
+          .logSimpleTask(
+              lastProgressTime.getAndSet(now),
+              now,
+              ProfilerTask.SKYFRAME_INVALIDATION,
+              count + " nodes invalidated");
+    }
+  }
+
   @VisibleForTesting
   CountDownLatch getInterruptionLatchForTestingOnly() {
     return executor.getInterruptionLatchForTestingOnly();
@@ -333,6 +379,7 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
                     key, EvaluationProgressReceiver.InvalidationState.DELETED);
                 // Actually remove the node.
                 graph.remove(key);
+                noteInvalidated();
 
                 // Remove the node from the set as the last operation.
                 pendingVisitations.remove(invalidationPair);
@@ -353,6 +400,10 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         Collections.newSetFromMap(
             new ConcurrentHashMap<SkyKey, Boolean>(
                 EXPECTED_VISITED_SET_SIZE, .75f, DEFAULT_THREAD_COUNT));
+    // The same sets as changed and dirtied, but keyed by node id, if the graph has node ids.
+    // These are much smaller than the sets of keys when millions of nodes are dirtied.
+    @Nullable private final ConcurrentBitSet changedIds;
+    @Nullable private final ConcurrentBitSet dirtiedIds;
     private final boolean supportInterruptions;
 
     protected DirtyingNodeVisitor(
@@ -362,6 +413,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         Function<ExecutorParams, ? extends ExecutorService> executorFactory) {
       super(graph, progressReceiver, state, executorFactory);
       this.supportInterruptions = true;
+      this.changedIds = graph.hasNodeIds() ? new ConcurrentBitSet() : null;
+      this.dirtiedIds = graph.hasNodeIds() ? new ConcurrentBitSet() : null;
     }
 
     /**
@@ -376,6 +429,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         boolean supportInterruptions) {
       super(graph, progressReceiver, state, forkJoinPool);
       this.supportInterruptions = supportInterruptions;
+      this.changedIds = graph.hasNodeIds() ? new ConcurrentBitSet() : null;
+      this.dirtiedIds = graph.hasNodeIds() ? new ConcurrentBitSet() : null;
     }
 
     @Override
@@ -406,7 +461,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
      * {@link NodeEntry} ignores the second marking.
      *
      * The invariant that we do not process a (SkyKey, InvalidationType) pair twice is enforced by
-     * the {@link #changed} and {@link #dirtied} sets.
+     * the {@link #changed} and {@link #dirtied} sets, or by {@link #changedIds} and {@link
+     * #dirtiedIds} if the graph has node ids.
      *
      * The "invariant" is also enforced across builds by checking to see if the entry is already
      * marked changed, or if it is already marked dirty and we are just going to mark it dirty
@@ -420,8 +476,11 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         Iterable<SkyKey> keys,
         final InvalidationType invalidationType,
         @Nullable SkyKey enqueueingKeyForExistenceCheck) {
-      final boolean isChanged = (invalidationType == InvalidationType.CHANGED);
-      Set<SkyKey> setToCheck = isChanged ? changed : dirtied;
+      if (changedIds != null) {
+        visitById(keys, invalidationType, enqueueingKeyForExistenceCheck);
+        return;
+      }
+      Set<SkyKey> setToCheck = invalidationType == InvalidationType.CHANGED ? changed : dirtied;
       int size = Iterables.size(keys);
       ArrayList<SkyKey> keysToGet = new ArrayList<>(size);
       for (SkyKey key : keys) {
@@ -444,14 +503,75 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
         // we can resume next time.
         return;
       }
-      if (enqueueingKeyForExistenceCheck != null && entries.size() != keysToGet.size()) {
-        Set<SkyKey> missingKeys = Sets.difference(ImmutableSet.copyOf(keysToGet), entries.keySet());
+      checkExistence(keysToGet, entries, enqueueingKeyForExistenceCheck);
+      dirty(keysToGet, entries, invalidationType);
+    }
+
+    /**
+     * Like {@link #visit(Iterable, InvalidationType, SkyKey)}, but looks up the entries first and
+     * deduplicates by their ids, since only keys that are in the graph have ids.
+     */
+    @ThreadSafe
+    private void visitById(
+        Iterable<SkyKey> keys,
+        InvalidationType invalidationType,
+        @Nullable SkyKey enqueueingKeyForExistenceCheck) {
+      ConcurrentBitSet idsToCheck =
+          invalidationType == InvalidationType.CHANGED ? changedIds : dirtiedIds;
+      Map<SkyKey, ? extends ThinNodeEntry> entries;
+      try {
+        entries = graph.getBatch(null, Reason.INVALIDATION, keys);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // As above, but nothing has been deduplicated yet, so all keys must be resumed next time.
+        if (supportInterruptions) {
+          for (SkyKey key : keys) {
+            pendingVisitations.add(Pair.of(key, invalidationType));
+          }
+        }
+        return;
+      }
+      checkExistence(keys, entries, enqueueingKeyForExistenceCheck);
+      ArrayList<SkyKey> keysToDirty = new ArrayList<>(entries.size());
+      for (Map.Entry<SkyKey, ? extends ThinNodeEntry> entry : entries.entrySet()) {
+        if (idsToCheck.add(entry.getValue().getNodeId())) {
+          keysToDirty.add(entry.getKey());
+        }
+      }
+      if (supportInterruptions) {
+        for (SkyKey key : keysToDirty) {
+          pendingVisitations.add(Pair.of(key, invalidationType));
+        }
+        // The initial keys are pending before they are visited, even if they aren't in the graph.
+        for (SkyKey key : keys) {
+          if (!entries.containsKey(key)) {
+            pendingVisitations.remove(Pair.of(key, invalidationType));
+          }
+        }
+      }
+      dirty(keysToDirty, entries, invalidationType);
+    }
+
+    private static void checkExistence(
+        Iterable<SkyKey> keys,
+        Map<SkyKey, ? extends ThinNodeEntry> entries,
+        @Nullable SkyKey enqueueingKeyForExistenceCheck) {
+      if (enqueueingKeyForExistenceCheck != null && entries.size() != Iterables.size(keys)) {
+        Set<SkyKey> missingKeys = Sets.difference(ImmutableSet.copyOf(keys), entries.keySet());
         throw new IllegalStateException(
             String.format(
                 "key(s) %s not in the graph, but enqueued for dirtying by %s",
                 Iterables.limit(missingKeys, 10), enqueueingKeyForExistenceCheck));
       }
-      for (final SkyKey key : keysToGet) {
+    }
+
+    /** Queues a task to dirty each of {@code keysToDirty}, whose entries are in {@code entries}. */
+    private void dirty(
+        Iterable<SkyKey> keysToDirty,
+        final Map<SkyKey, ? extends ThinNodeEntry> entries,
+        final InvalidationType invalidationType) {
+      final boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      for (final SkyKey key : keysToDirty) {
         executor.execute(
             new Runnable() {
               @Override
@@ -501,6 +621,7 @@ public abstract class InvalidatingNodeVisitor<TGraph extends QueryableGraph> {
 
                 progressReceiver.invalidated(key,
                     EvaluationProgressReceiver.InvalidationState.DIRTY);
+                noteInvalidated();
                 // Remove the node from the set as the last operation.
                 if (supportInterruptions) {
                   pendingVisitations.remove(Pair.of(key, invalidationType));
@@ -0,0 +1,184 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InMemoryNodeEntry} whose most frequent transitions don't take the entry's lock.
+ *
+ * <p>During an evaluation the hot operations on an entry are a child signaling its parent, a parent
+ * registering itself as a reverse dep of a done child, and reading the value of a done child. With
+ * many parents depending on the same popular child, or a parent with thousands of children, all of
+ * them contend for one monitor. Here, these operations are done with compare-and-swap on the
+ * {@link #signaledDeps} state word instead:
+ *
+ * <ul>
+ *   <li>{@link #signalDep} increments the state word with a CAS loop. Exactly one signaler sees the
+ *       count reach the number of temporary direct deps, as with the lock.
+ *   <li>{@link #addReverseDepAndCheckIfDone} on a done node pushes the reverse dep on a lock-free
+ *       stack, which is merged into the reverse deps the next time the lock is held and they are
+ *       accessed, see {@link #getReverseDepsRawForReverseDepsUtil}.
+ *   <li>{@link #isDone}, {@link #getErrorInfo} and {@link #isDirty} only read volatile state.
+ * </ul>
+ *
+ * <p>The rare transitions of dirty nodes, i.e. signaling a node that is being re-evaluated after it
+ * was dirtied, and everything that changes the state of a done node, still take the lock. This
+ * relies on the fact that a node is never dirtied while an evaluation is in progress, so a done
+ * node doesn't become undone while a reverse dep is pushed.
+ */
+class LockFreeInMemoryNodeEntry extends InMemoryNodeEntry {
+  private static final AtomicIntegerFieldUpdater<InMemoryNodeEntry> SIGNALED_DEPS_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(InMemoryNodeEntry.class, "signaledDeps");
+
+  private static final AtomicReferenceFieldUpdater<LockFreeInMemoryNodeEntry, PendingReverseDep>
+      PENDING_REVERSE_DEPS_UPDATER =
+          AtomicReferenceFieldUpdater.newUpdater(
+              LockFreeInMemoryNodeEntry.class, PendingReverseDep.class, "pendingReverseDeps");
+
+  /**
+   * The pending reverse deps are merged by the thread that pushes this many, so that a popular
+   * node doesn't hold on to a long linked list until its reverse deps are next requested.
+   */
+  private static final int MAX_PENDING_REVERSE_DEPS = 64;
+
+  /** Reverse deps added while the node was done, newest first. */
+  @Nullable private volatile PendingReverseDep pendingReverseDeps = null;
+
+  @Override
+  public boolean isDone() {
+    // The state word is written after the value when the node becomes done, so read it first.
+    return signaledDeps == NOT_EVALUATING_SENTINEL && value != null;
+  }
+
+  @Override
+  public boolean isDirty() {
+    return !isDone() && dirtyBuildingState != null;
+  }
+
+  @Override
+  @Nullable
+  public ErrorInfo getErrorInfo() {
+    Preconditions.checkState(isDone(), "no errors until done. NodeEntry: %s", this);
+    return ValueWithMetadata.getMaybeErrorInfo(value);
+  }
+
+  @Override
+  public DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
+    if (!isDone()) {
+      return super.addReverseDepAndCheckIfDone(reverseDep);
+    }
+    if (reverseDep != null && keepEdges() == KeepEdgesPolicy.ALL) {
+      pushPendingReverseDep(reverseDep);
+    }
+    return DependencyState.DONE;
+  }
+
+  private void pushPendingReverseDep(SkyKey reverseDep) {
+    PendingReverseDep pending = new PendingReverseDep(reverseDep);
+    PendingReverseDep head;
+    do {
+      head = pendingReverseDeps;
+      pending.next = head;
+      pending.count = head == null ? 1 : head.count + 1;
+    } while (!PENDING_REVERSE_DEPS_UPDATER.compareAndSet(this, head, pending));
+    if (pending.count >= MAX_PENDING_REVERSE_DEPS) {
+      synchronized (this) {
+        mergePendingReverseDeps();
+      }
+    }
+  }
+
+  /** Adds the pending reverse deps to the reverse deps. Must be called with the lock held. */
+  private void mergePendingReverseDeps() {
+    PendingReverseDep head = PENDING_REVERSE_DEPS_UPDATER.getAndSet(this, null);
+    if (head == null) {
+      return;
+    }
+    SkyKey[] reverseDeps = new SkyKey[head.count];
+    int i = reverseDeps.length;
+    for (PendingReverseDep pending = head; pending != null; pending = pending.next) {
+      reverseDeps[--i] = pending.reverseDep;
+    }
+    // Re-enters the accessors below, which find nothing left to merge.
+    ReverseDepsUtility.addReverseDeps(this, Arrays.asList(reverseDeps));
+  }
+
+  // All reverse dep operations of ReverseDepsUtility read one of these two first, so they see the
+  // pending reverse deps in the order they were added.
+
+  @Override
+  synchronized Object getReverseDepsRawForReverseDepsUtil() {
+    mergePendingReverseDeps();
+    return super.getReverseDepsRawForReverseDepsUtil();
+  }
+
+  @Override
+  synchronized List<Object> getReverseDepsDataToConsolidateForReverseDepsUtil() {
+    mergePendingReverseDeps();
+    return super.getReverseDepsDataToConsolidateForReverseDepsUtil();
+  }
+
+  @Override
+  public boolean signalDep() {
+    return signalDep(/*childVersion=*/ IntVersion.of(Long.MAX_VALUE));
+  }
+
+  @Override
+  public boolean signalDep(Version childVersion) {
+    // A node is only dirtied or cleaned while it isn't evaluating, so this is stable while its
+    // children are signaling it.
+    if (dirtyBuildingState != null) {
+      return super.signalDep(childVersion);
+    }
+    // The temporary direct deps were added before this node registered itself with the child that
+    // is signaling, which happened-before the child got here through the child's lock.
+    // If the node isn't evaluating, they may be compressed, and the check below fails.
+    Object temporaryDirectDeps = directDeps;
+    int numDirectDeps =
+        temporaryDirectDeps instanceof GroupedList
+            ? ((GroupedList<?>) temporaryDirectDeps).numElements()
+            : 0;
+    int signaled;
+    do {
+      signaled = signaledDeps;
+      Preconditions.checkState(
+          signaled > NOT_EVALUATING_SENTINEL, "Value must be evaluating in signalDep %s", this);
+      Preconditions.checkState(signaled < numDirectDeps, "%s %s", numDirectDeps, this);
+    } while (!SIGNALED_DEPS_UPDATER.compareAndSet(this, signaled, signaled + 1));
+    return signaled + 1 == numDirectDeps;
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    return cloneNodeEntry(new LockFreeInMemoryNodeEntry());
+  }
+
+  /** A node of the stack of pending reverse deps. */
+  private static final class PendingReverseDep {
+    private final SkyKey reverseDep;
+    private PendingReverseDep next;
+    private int count;
+
+    private PendingReverseDep(SkyKey reverseDep) {
+      this.reverseDep = reverseDep;
+    }
+  }
+}
@@ -20,12 +20,17 @@ import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.WorkStealingPriorityQueue;
+import com.google.devtools.build.lib.util.GroupedList;
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * Threadpool manager for {@link ParallelEvaluator}. Wraps a {@link QuiescingExecutor} and keeps
@@ -59,23 +64,53 @@ class NodeEntryVisitor {
    * {@link SkyKey} to evaluate.
    */
   private final Function<SkyKey, Runnable> runnableMaker;
+  /**
+   * If not null, the nodes are prioritized by these estimates of the work below them, see {@link
+   * #enqueueEvaluation(SkyKey, SkyKey)}, and the visitor records the estimates of the nodes it
+   * builds.
+   */
+  @Nullable private final RemainingWorkEstimates remainingWorkEstimates;
+  /**
+   * If nodes are prioritized, the keys waiting to be evaluated. For each of them, a task that polls
+   * the highest-priority key and evaluates it is submitted to the {@link #quiescingExecutor}, so
+   * the executor still knows the exact number of pending evaluations.
+   */
+  @Nullable private final WorkStealingPriorityQueue<SkyKey> prioritizedKeys;
+  /**
+   * If nodes are prioritized, the depth at which each enqueued key that is not done yet was first
+   * requested.
+   */
+  @Nullable private final ConcurrentMap<SkyKey, Integer> depths;
+  /**
+   * If nodes are prioritized, the time the {@link SkyFunction} of each node that is not done yet
+   * took so far, summed over its restarts.
+   */
+  @Nullable private final ConcurrentMap<SkyKey, Long> computeNanos;
+  private final Runnable evaluateHighestPriorityKey = this::evaluateHighestPriorityKey;
 
   NodeEntryVisitor(
       ForkJoinPool forkJoinPool,
       DirtyTrackingProgressReceiver progressReceiver,
-      Function<SkyKey, Runnable> runnableMaker) {
+      Function<SkyKey, Runnable> runnableMaker,
+      @Nullable RemainingWorkEstimates remainingWorkEstimates) {
     this.quiescingExecutor = ForkJoinQuiescingExecutor.newBuilder()
         .withOwnershipOf(forkJoinPool)
         .setErrorClassifier(NODE_ENTRY_VISITOR_ERROR_CLASSIFIER)
         .build();
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.remainingWorkEstimates = remainingWorkEstimates;
+    boolean prioritize = remainingWorkEstimates != null;
+    this.prioritizedKeys = prioritize ? new WorkStealingPriorityQueue<>() : null;
+    this.depths = prioritize ? new ConcurrentHashMap<>() : null;
+    this.computeNanos = prioritize ? new ConcurrentHashMap<>() : null;
   }
 
   NodeEntryVisitor(
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver,
-      Function<SkyKey, Runnable> runnableMaker) {
+      Function<SkyKey, Runnable> runnableMaker,
+      @Nullable RemainingWorkEstimates remainingWorkEstimates) {
     quiescingExecutor =
         new AbstractQueueVisitor(
             threadCount,
@@ -87,6 +122,11 @@ class NodeEntryVisitor {
             NODE_ENTRY_VISITOR_ERROR_CLASSIFIER);
     this.progressReceiver = progressReceiver;
     this.runnableMaker = runnableMaker;
+    this.remainingWorkEstimates = remainingWorkEstimates;
+    boolean prioritize = remainingWorkEstimates != null;
+    this.prioritizedKeys = prioritize ? new WorkStealingPriorityQueue<>() : null;
+    this.depths = prioritize ? new ConcurrentHashMap<>() : null;
+    this.computeNanos = prioritize ? new ConcurrentHashMap<>() : null;
   }
 
   void waitForCompletion() throws InterruptedException {
@@ -94,6 +134,22 @@ class NodeEntryVisitor {
   }
 
   void enqueueEvaluation(SkyKey key) {
+    enqueueEvaluation(key, /*parent=*/ null);
+  }
+
+  /**
+   * Enqueues the evaluation of {@code key}, which was requested by {@code parent}, or by the caller
+   * of the evaluation if {@code parent} is null.
+   *
+   * <p>If nodes are prioritized, the nodes with the longest chain of work below them are evaluated
+   * first, since these chains usually determine the wall time of a build. The chains are
+   * estimated from earlier evaluations, see {@link RemainingWorkEstimates}. Nodes with the same
+   * estimate, in particular nodes that are new or whose chain was short, are evaluated deepest
+   * first, where a node is one level deeper than the parent that first requested it: long chains
+   * are discovered level by level, so their deepest known node is the only hint at them, and
+   * preferring it starts the chain before the shallow work that was discovered earlier.
+   */
+  void enqueueEvaluation(SkyKey key, @Nullable SkyKey parent) {
     if (preventNewEvaluations.get()) {
       // If an error happens in nokeep_going mode, we still want to mark these nodes as inflight,
       // otherwise cleanup will not happen properly.
@@ -101,7 +157,64 @@ class NodeEntryVisitor {
       return;
     }
     progressReceiver.enqueueing(key);
-    quiescingExecutor.execute(runnableMaker.apply(key));
+    if (prioritizedKeys == null) {
+      quiescingExecutor.execute(runnableMaker.apply(key));
+      return;
+    }
+    Integer depth = depths.get(key);
+    if (depth == null) {
+      Integer parentDepth = parent == null ? null : depths.get(parent);
+      Integer newDepth = parentDepth == null ? 0 : parentDepth + 1;
+      depth = depths.putIfAbsent(key, newDepth);
+      if (depth == null) {
+        depth = newDepth;
+      }
+    }
+    prioritizedKeys.add(key, priority(remainingWorkEstimates.get(key), depth));
+    quiescingExecutor.execute(evaluateHighestPriorityKey);
+  }
+
+  /** Orders by the estimate in microseconds, which allows for chains of 100 days, then by depth. */
+  private static long priority(long estimateNanos, int depth) {
+    return (TimeUnit.NANOSECONDS.toMicros(estimateNanos) << 20) | Math.min(depth, (1 << 20) - 1);
+  }
+
+  private void evaluateHighestPriorityKey() {
+    SkyKey key;
+    try {
+      // Doesn't actually wait, since a key was added before this task was submitted.
+      key = prioritizedKeys.take();
+    } catch (InterruptedException e) {
+      // The evaluation is being aborted. Like a task that didn't start, leave the key alone.
+      Thread.currentThread().interrupt();
+      return;
+    }
+    runnableMaker.apply(key).run();
+  }
+
+  /** Notes that the {@link SkyFunction} of {@code key} ran for {@code elapsedTimeNanos}. */
+  void noteComputed(SkyKey key, long elapsedTimeNanos) {
+    if (computeNanos != null) {
+      computeNanos.merge(key, elapsedTimeNanos, Long::sum);
+    }
+  }
+
+  /**
+   * Notes that the node of {@code key} was built with the given direct deps and is about to be
+   * committed, so that its estimate is recorded.
+   */
+  void noteBuilt(SkyKey key, GroupedList<SkyKey> directDeps) {
+    if (remainingWorkEstimates != null) {
+      Long nanos = computeNanos.remove(key);
+      remainingWorkEstimates.recordBuilt(key, nanos == null ? 0 : nanos, directDeps);
+    }
+  }
+
+  /** Notes that the node of {@code key} is done, so its children won't be enqueued anymore. */
+  void noteDone(SkyKey key) {
+    if (depths != null) {
+      depths.remove(key);
+    }
   }
 
   /**
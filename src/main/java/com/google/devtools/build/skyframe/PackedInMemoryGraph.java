@@ -0,0 +1,115 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link InMemoryGraphImpl} that assigns every {@link SkyKey} an int id and whose nodes store
+ * their edges as arrays of these ids once they are done, see {@link PackedInMemoryNodeEntry}.
+ *
+ * <p>Edges dominate the number of objects in the graph. Storing them in primitive arrays instead of
+ * lists of references removes the per-group list objects and, more importantly, means the garbage
+ * collector doesn't have to trace them.
+ *
+ * <p>The id of a key is stored in its node entry, and the key of an id in a table owned by the
+ * graph. Keys without a node, i.e. deleted nodes or keys that are only the target of an edge, have
+ * their id in a separate map, and the id is given to the node if it is (re)created. So the table
+ * doesn't grow with every incremental build that deletes and recreates nodes, and edges to a
+ * deleted node, which are only removed lazily, continue to resolve to the right key.
+ */
+public class PackedInMemoryGraph extends InMemoryGraphImpl {
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+  // The keys by id, in chunks so that growing the table doesn't copy them. Only grown while holding
+  // growLock. A slot is written before the node entry holding its id is published in the map.
+  private volatile SkyKey[][] keyChunks = new SkyKey[16][];
+  private final Object growLock = new Object();
+  // The ids of keys without a node, to be used if the node is created.
+  private final ConcurrentMap<SkyKey, Integer> detachedIds = new ConcurrentHashMap<>();
+
+  public PackedInMemoryGraph() {
+    super(/*keepEdges=*/ true);
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    InMemoryNodeEntry entry = nodeMap.get(skyKey);
+    if (entry == null) {
+      return;
+    }
+    // Detach the id before removing the entry, so that getId() can always find it.
+    detachedIds.put(skyKey, entry.getNodeId());
+    nodeMap.remove(skyKey, entry);
+  }
+
+  @Override
+  protected InMemoryNodeEntry createIfAbsent(SkyKey key) {
+    InMemoryNodeEntry oldval = nodeMap.get(key);
+    if (oldval != null) {
+      return oldval;
+    }
+    // If another thread wins the race, the id assigned here is never used.
+    Integer detached = detachedIds.remove(key);
+    int id = detached != null ? detached : newId(key);
+    InMemoryNodeEntry newval = new PackedInMemoryNodeEntry(this, id);
+    oldval = nodeMap.putIfAbsent(key, newval);
+    return oldval == null ? newval : oldval;
+  }
+
+  private int newId(SkyKey key) {
+    int id = nextId.getAndIncrement();
+    Preconditions.checkState(id >= 0, "Too many nodes in the graph: %s", key);
+    int chunk = id >>> CHUNK_BITS;
+    SkyKey[][] chunks = keyChunks;
+    if (chunk >= chunks.length || chunks[chunk] == null) {
+      synchronized (growLock) {
+        chunks = keyChunks;
+        if (chunk >= chunks.length) {
+          chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, chunk + 1));
+        }
+        if (chunks[chunk] == null) {
+          chunks[chunk] = new SkyKey[CHUNK_SIZE];
+        }
+        keyChunks = chunks;
+      }
+    }
+    chunks[chunk][id & (CHUNK_SIZE - 1)] = key;
+    return id;
+  }
+
+  @Override
+  public boolean hasNodeIds() {
+    return true;
+  }
+
+  /** Returns the id of the given key, assigning one if it doesn't have one yet. */
+  int getId(SkyKey key) {
+    InMemoryNodeEntry entry = nodeMap.get(key);
+    if (entry != null) {
+      return entry.getNodeId();
+    }
+    return detachedIds.computeIfAbsent(key, this::newId);
+  }
+
+  SkyKey getKey(int id) {
+    return keyChunks[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An {@link InMemoryNodeEntry} of a {@link PackedInMemoryGraph}, which stores the edges of a done
+ * node as arrays of key ids instead of lists of keys.
+ *
+ * <p>The direct deps of a done node are stored in a single int array in which the last id of each
+ * group is complemented, so no group lists are needed. The temporary direct deps of an evaluating
+ * node are kept in a {@link GroupedList} as usual, and packed in {@link #postProcessAfterDone}.
+ *
+ * <p>The reverse deps are stored in a growable int array. {@link ReverseDepsUtility} accesses them
+ * through a list view, so the pending reverse dep operations and their consolidation are shared
+ * with {@link InMemoryNodeEntry}.
+ */
+class PackedInMemoryNodeEntry extends InMemoryNodeEntry {
+  private static final int[] EMPTY = new int[0];
+
+  private final PackedInMemoryGraph graph;
+  private final int id;
+  private int[] reverseDepIds = EMPTY;
+  private int numReverseDeps = 0;
+
+  PackedInMemoryNodeEntry(PackedInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  @Override
+  public int getNodeId() {
+    return id;
+  }
+
+  @Override
+  protected void postProcessAfterDone() {
+    GroupedList<SkyKey> deps = GroupedList.create(directDeps);
+    int[] packed = new int[deps.numElements()];
+    int i = 0;
+    for (Collection<SkyKey> group : deps) {
+      for (SkyKey dep : group) {
+        packed[i++] = graph.getId(dep);
+      }
+      packed[i - 1] = ~packed[i - 1];
+    }
+    this.directDeps = packed.length == 0 ? EMPTY : packed;
+  }
+
+  @Override
+  public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
+    Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    List<SkyKey> group = new ArrayList<>();
+    for (int packedId : (int[]) directDeps) {
+      group.add(graph.getKey(packedId < 0 ? ~packedId : packedId));
+      if (packedId < 0) {
+        deps.appendGroup(group);
+        group = new ArrayList<>();
+      }
+    }
+    return deps;
+  }
+
+  @Override
+  public synchronized int getNumDirectDeps() {
+    Preconditions.checkState(isDone(), "no deps until done. NodeEntry: %s", this);
+    return ((int[]) directDeps).length;
+  }
+
+  @Override
+  synchronized void setSingleReverseDepForReverseDepsUtil(SkyKey reverseDep) {
+    reverseDepIds = new int[] {graph.getId(reverseDep)};
+    numReverseDeps = 1;
+  }
+
+  @Override
+  synchronized void setReverseDepsForReverseDepsUtil(List<SkyKey> reverseDeps) {
+    int[] ids = reverseDeps.isEmpty() ? EMPTY : new int[reverseDeps.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = graph.getId(reverseDeps.get(i));
+    }
+    reverseDepIds = ids;
+    numReverseDeps = ids.length;
+  }
+
+  /** Returns the single reverse dep, or a live view of the reverse deps that supports appending. */
+  @Override
+  synchronized Object getReverseDepsRawForReverseDepsUtil() {
+    return numReverseDeps == 1 ? graph.getKey(reverseDepIds[0]) : new ReverseDepsView();
+  }
+
+  private void appendReverseDep(SkyKey reverseDep) {
+    if (numReverseDeps == reverseDepIds.length) {
+      reverseDepIds =
+          Arrays.copyOf(reverseDepIds, Math.max(4, numReverseDeps + (numReverseDeps >> 1)));
+    }
+    reverseDepIds[numReverseDeps++] = graph.getId(reverseDep);
+  }
+
+  @Override
+  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+    return cloneNodeEntry(new PackedInMemoryNodeEntry(graph, id));
+  }
+
+  /**
+   * A list of the reverse deps of this entry. Only valid while the entry's lock is held, like the
+   * lists stored by {@link InMemoryNodeEntry}.
+   */
+  private final class ReverseDepsView extends AbstractList<SkyKey> {
+    @Override
+    public SkyKey get(int index) {
+      Preconditions.checkElementIndex(index, numReverseDeps);
+      return graph.getKey(reverseDepIds[index]);
+    }
+
+    @Override
+    public int size() {
+      return numReverseDeps;
+    }
+
+    @Override
+    public void add(int index, SkyKey reverseDep) {
+      Preconditions.checkArgument(index == numReverseDeps, "Can only append: %s", index);
+      appendReverseDep(reverseDep);
+    }
+  }
+}
@@ -85,6 +85,36 @@ public class ParallelEvaluator extends AbstractParallelEvaluator implements Eval
       boolean keepGoing,
       int threadCount,
       DirtyTrackingProgressReceiver progressReceiver) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        errorInfoManager,
+        keepGoing,
+        threadCount,
+        progressReceiver,
+        /*remainingWorkEstimates=*/ null);
+  }
+
+  /**
+   * Like the above, but if {@code remainingWorkEstimates} is not null, evaluates the nodes with the
+   * most work below them first and updates the estimates with the nodes built.
+   */
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final ExtendedEventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      ErrorInfoManager errorInfoManager,
+      boolean keepGoing,
+      int threadCount,
+      DirtyTrackingProgressReceiver progressReceiver,
+      @Nullable RemainingWorkEstimates remainingWorkEstimates) {
     super(
         graph,
         graphVersion,
@@ -95,7 +125,8 @@ public class ParallelEvaluator extends AbstractParallelEvaluator implements Eval
         errorInfoManager,
         keepGoing,
         threadCount,
-        progressReceiver);
+        progressReceiver,
+        remainingWorkEstimates);
     cycleDetector = new SimpleCycleDetector();
   }
 
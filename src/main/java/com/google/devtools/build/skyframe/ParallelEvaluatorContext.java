@@ -72,7 +72,8 @@ class ParallelEvaluatorContext {
       EventFilter storedEventFilter,
       ErrorInfoManager errorInfoManager,
       final Function<SkyKey, Runnable> runnableMaker,
-      final int threadCount) {
+      final int threadCount,
+      @Nullable final RemainingWorkEstimates remainingWorkEstimates) {
     this.graph = graph;
     this.graphVersion = graphVersion;
     this.skyFunctions = skyFunctions;
@@ -92,7 +93,7 @@ class ParallelEvaluatorContext {
               @Override
               public NodeEntryVisitor get() {
                 return new NodeEntryVisitor(
-                    threadCount, progressReceiver, runnableMaker);
+                    threadCount, progressReceiver, runnableMaker, remainingWorkEstimates);
               }
             });
   }
@@ -108,7 +109,8 @@ class ParallelEvaluatorContext {
       EventFilter storedEventFilter,
       ErrorInfoManager errorInfoManager,
       final Function<SkyKey, Runnable> runnableMaker,
-      final ForkJoinPool forkJoinPool) {
+      final ForkJoinPool forkJoinPool,
+      @Nullable final RemainingWorkEstimates remainingWorkEstimates) {
     this.graph = graph;
     this.graphVersion = graphVersion;
     this.skyFunctions = skyFunctions;
@@ -128,7 +130,7 @@ class ParallelEvaluatorContext {
               @Override
               public NodeEntryVisitor get() {
                 return new NodeEntryVisitor(
-                    forkJoinPool, progressReceiver, runnableMaker);
+                    forkJoinPool, progressReceiver, runnableMaker, remainingWorkEstimates);
               }
             });
   }
@@ -147,6 +149,7 @@ class ParallelEvaluatorContext {
   void signalValuesAndEnqueueIfReady(
       SkyKey skyKey, Iterable<SkyKey> keys, Version version, EnqueueParentBehavior enqueueParents)
       throws InterruptedException {
+    getVisitor().noteDone(skyKey);
     // No fields of the entry are needed here, since we're just enqueuing for evaluation, but more
     // importantly, these hints are not respected for not-done nodes. If they are, we may need to
     // alter this hint.
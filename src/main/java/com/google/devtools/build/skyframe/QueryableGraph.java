@@ -60,6 +60,15 @@ public interface QueryableGraph {
    */
   Iterable<SkyKey> getCurrentlyAvailableNodes(Iterable<SkyKey> keys, Reason reason);
 
+  /**
+   * Whether the entries of this graph have ids, see {@link ThinNodeEntry#getNodeId}. The ids are
+   * non-negative, dense, and distinct for the entries that are in the graph at the same time, so
+   * that code visiting many nodes can track them in a bit set instead of a set of keys.
+   */
+  default boolean hasNodeIds() {
+    return false;
+  }
+
   /**
    * The reason that a node is being looked up in the Skyframe graph.
    *
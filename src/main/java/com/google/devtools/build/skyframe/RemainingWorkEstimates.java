@@ -0,0 +1,77 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates of the work that remains below a node, by which {@link NodeEntryVisitor} orders the
+ * nodes waiting to be evaluated.
+ *
+ * <p>The estimate of a node is the longest chain of compute time through its transitive deps,
+ * including its own, as observed the last time the node was built. Skyframe only discovers the deps
+ * of a node by evaluating it, so the estimates come from earlier evaluations with the same {@link
+ * MemoizingEvaluator}, and an instance should live as long as its graph.
+ *
+ * <p>Only chains of at least {@link #MIN_RECORDED_NANOS} are recorded, so that the cheap nodes that
+ * make up most of a large graph don't cost memory.
+ */
+@ThreadSafe
+public final class RemainingWorkEstimates {
+  static final long MIN_RECORDED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final ConcurrentMap<SkyKey, Long> chainNanos = new ConcurrentHashMap<>();
+
+  /** Returns the estimate for {@code key} in nanoseconds, or 0 if there is none. */
+  long get(SkyKey key) {
+    Long nanos = chainNanos.get(key);
+    return nanos == null ? 0 : nanos;
+  }
+
+  /**
+   * Records the estimate of a node that was just built, from the total time its {@link SkyFunction}
+   * took and the estimates of its direct deps, which are done.
+   */
+  void recordBuilt(SkyKey key, long computeNanos, GroupedList<SkyKey> directDeps) {
+    long longestDep = 0;
+    for (Collection<SkyKey> group : directDeps) {
+      for (SkyKey dep : group) {
+        longestDep = Math.max(longestDep, get(dep));
+      }
+    }
+    long chain = computeNanos + longestDep;
+    if (chain >= MIN_RECORDED_NANOS) {
+      chainNanos.put(key, chain);
+    } else {
+      chainNanos.remove(key);
+    }
+  }
+
+  /** Forgets the estimates of the nodes that were deleted from {@code graph}. */
+  void forgetDeleted(InMemoryGraph graph) {
+    chainNanos.keySet().removeIf(key -> graph.get(null, Reason.OTHER, key) == null);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return chainNanos.size();
+  }
+}
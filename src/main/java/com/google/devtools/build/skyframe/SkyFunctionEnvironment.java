@@ -557,6 +557,7 @@ class SkyFunctionEnvironment extends AbstractSkyFunctionEnvironment {
         oldDepEntry.removeReverseDep(skyKey);
       }
     }
+    evaluatorContext.getVisitor().noteBuilt(skyKey, primaryEntry.getTemporaryDirectDeps());
     // If this entry is dirty, setValue may not actually change it, if it determines that
     // the data being written now is the same as the data already present in the entry.
     // We could consider using max(childVersions) here instead of graphVersion. When full
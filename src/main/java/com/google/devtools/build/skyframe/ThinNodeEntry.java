@@ -64,6 +64,15 @@ public interface ThinNodeEntry {
   @ThreadSafe
   MarkedDirtyResult markDirty(boolean isChanged) throws InterruptedException;
 
+  /**
+   * Returns the id of this node. Only supported if its graph {@link QueryableGraph#hasNodeIds has
+   * node ids}.
+   */
+  @ThreadSafe
+  default int getNodeId() {
+    throw new UnsupportedOperationException("No node ids: " + this);
+  }
+
   /**
    * Returned by {@link #markDirty} if that call changed the node from clean to dirty. Contains an
    * iterable of the node's reverse deps for efficiency, because the single use case for {@link
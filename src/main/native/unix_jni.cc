@@ -465,6 +465,62 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+// The number of values errnoStatBatch returns for each path, see
+// NativePosixFiles.STAT_BATCH_FIELDS.
+static const int kStatBatchFields = 10;
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoStatBatch
+ * Signature: ([BIZ[I[J)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoStatBatch(
+    JNIEnv *env, jclass clazz, jbyteArray paths, jint count,
+    jboolean follow_symlinks, jintArray errnos, jlongArray stats) {
+  int (*stat_function)(const char *, portable_stat_struct *) =
+      follow_symlinks ? portable_stat : portable_lstat;
+
+  // A copy rather than a pinned array, so that the garbage collector isn't
+  // blocked during the syscalls.
+  jsize paths_length = env->GetArrayLength(paths);
+  jbyte *path_bytes = env->GetByteArrayElements(paths, NULL);
+  if (path_bytes == NULL) {
+    return;  // async exception!
+  }
+  std::vector<jint> errno_values(count);
+  std::vector<jlong> stat_values(static_cast<size_t>(count) * kStatBatchFields);
+  const char *path = reinterpret_cast<const char *>(path_bytes);
+  const char *paths_end = path + paths_length;
+  for (jint ii = 0; ii < count; ++ii) {
+    const char *path_end =
+        static_cast<const char *>(memchr(path, 0, paths_end - path));
+    CHECK(path_end != NULL);
+    portable_stat_struct statbuf;
+    int r;
+    while ((r = stat_function(path, &statbuf)) == -1 && errno == EINTR) { }
+    if (r == -1) {
+      errno_values[ii] = errno;
+    } else {
+      jlong *values = &stat_values[static_cast<size_t>(ii) * kStatBatchFields];
+      values[0] = statbuf.st_mode;
+      values[1] = StatSeconds(statbuf, STAT_ATIME);
+      values[2] = StatNanoSeconds(statbuf, STAT_ATIME);
+      values[3] = StatSeconds(statbuf, STAT_MTIME);
+      values[4] = StatNanoSeconds(statbuf, STAT_MTIME);
+      values[5] = StatSeconds(statbuf, STAT_CTIME);
+      values[6] = StatNanoSeconds(statbuf, STAT_CTIME);
+      values[7] = static_cast<jlong>(statbuf.st_size);
+      values[8] = static_cast<int>(statbuf.st_dev);
+      values[9] = static_cast<jlong>(statbuf.st_ino);
+    }
+    path = path_end + 1;
+  }
+  env->ReleaseByteArrayElements(paths, path_bytes, JNI_ABORT);
+  env->SetIntArrayRegion(errnos, 0, count, errno_values.data());
+  env->SetLongArrayRegion(stats, 0, stat_values.size(), stat_values.data());
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
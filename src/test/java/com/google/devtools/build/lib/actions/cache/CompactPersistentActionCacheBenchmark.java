@@ -0,0 +1,95 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache.StorageFormat;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Microbenchmarks for concurrent lookups and updates of the {@link CompactPersistentActionCache}
+ * with the different {@link StorageFormat}s, mimicking {@code ActionCacheChecker} with many jobs.
+ */
+public class CompactPersistentActionCacheBenchmark {
+  private static final int KEYS = 10000;
+  // One update for every PUT_RATIO lookups, like a mostly cached incremental build.
+  private static final int PUT_RATIO = 10;
+
+  @Param({"JOURNALED", "CONCURRENT"})
+  StorageFormat format;
+
+  @Param({"1", "8", "64", "500"})
+  int threads;
+
+  private CompactPersistentActionCache cache;
+  private ExecutorService executor;
+  private final List<String> keys = new ArrayList<>();
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    cache =
+        new CompactPersistentActionCache(
+            new InMemoryFileSystem().getPath("/cache"), BlazeClock.instance(), format);
+    for (int i = 0; i < KEYS; i++) {
+      String key = "bazel-out/k8-fastbuild/bin/package" + (i % 100) + "/output" + i + ".o";
+      keys.add(key);
+      cache.put(key, newEntry(key));
+    }
+    cache.save();
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static ActionCache.Entry newEntry(String key) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key, ImmutableMap.<String, String>of(), /*discoversInputs=*/ false);
+    entry.getFileDigest();
+    return entry;
+  }
+
+  @Benchmark
+  void getAndPut(int reps) throws Exception {
+    List<Future<?>> futures = new ArrayList<>(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < reps; i++) {
+                  String key = keys.get((i * threads + thread) % KEYS);
+                  if (cache.get(key) == null || i % PUT_RATIO == 0) {
+                    cache.put(key, newEntry(key));
+                  }
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+}
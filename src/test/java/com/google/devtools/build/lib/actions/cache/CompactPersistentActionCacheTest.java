@@ -17,9 +17,13 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache.StorageFormat;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.skyframe.FileArtifactValue;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
@@ -151,6 +155,81 @@ public class CompactPersistentActionCacheTest {
     assertFullSave();
   }
 
+  @Test
+  public void testConcurrentFormatSaveAndReload() throws Exception {
+    Path concurrentRoot = scratch.resolve("/cache/concurrent.dat");
+    CompactPersistentActionCache concurrentCache =
+        new CompactPersistentActionCache(concurrentRoot, clock, StorageFormat.CONCURRENT);
+    for (int i = 0; i < 100; i++) {
+      putKey(Integer.toString(i), concurrentCache, i % 2 == 0);
+    }
+    concurrentCache.remove("42");
+    concurrentCache.save();
+    assertThat(CompactPersistentActionCache.cacheFile(concurrentRoot).exists()).isTrue();
+
+    // The journaled format reads the same files.
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(concurrentRoot, clock);
+    for (int i = 0; i < 100; i++) {
+      if (i == 42) {
+        assertThat(newcache.get("42")).isNull();
+      } else {
+        assertKeyEquals(concurrentCache, newcache, Integer.toString(i));
+      }
+    }
+
+    // Updates after a full save end up in the journal.
+    putKey("abc", concurrentCache, true);
+    concurrentCache.save();
+    CompactPersistentActionCache newerCache =
+        new CompactPersistentActionCache(concurrentRoot, clock, StorageFormat.CONCURRENT);
+    assertKeyEquals(concurrentCache, newerCache, "abc");
+    assertKeyEquals(concurrentCache, newerCache, "17");
+  }
+
+  @Test
+  public void testMappedFormatSaveAndReload() throws Exception {
+    // The mapped format needs a file system backed by the local disk.
+    Path mappedRoot =
+        new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("mapped_action_cache");
+    FileSystemUtils.deleteTree(mappedRoot);
+    CompactPersistentActionCache mappedCache =
+        new CompactPersistentActionCache(mappedRoot, clock, StorageFormat.MAPPED);
+    for (int i = 0; i < 100; i++) {
+      putKey(Integer.toString(i), mappedCache, i % 2 == 0);
+    }
+    mappedCache.remove("42");
+    mappedCache.save();
+    mappedCache.close();
+
+    CompactPersistentActionCache newcache =
+        new CompactPersistentActionCache(mappedRoot, clock, StorageFormat.MAPPED);
+    for (int i = 0; i < 100; i++) {
+      if (i == 42) {
+        assertThat(newcache.get("42")).isNull();
+      } else {
+        assertThat(newcache.get(Integer.toString(i))).isNotNull();
+      }
+    }
+    assertThat(newcache.get("17").toString()).contains("17");
+
+    // The records are only consistent with the filename index once both are saved.
+    putKey("abc", newcache, true);
+    newcache.remove("17");
+    newcache.save();
+    newcache.close();
+    CompactPersistentActionCache newerCache =
+        new CompactPersistentActionCache(mappedRoot, clock, StorageFormat.MAPPED);
+    assertThat(newerCache.get("abc")).isNotNull();
+    assertThat(newerCache.get("17")).isNull();
+    assertThat(newerCache.get("18")).isNotNull();
+
+    newerCache.clear();
+    assertThat(newerCache.get("18")).isNull();
+    newerCache.close();
+    FileSystemUtils.deleteTree(mappedRoot);
+  }
+
   // Regression test to check that CompactActionCacheEntry.toString does not mutate the object.
   // Mutations may result in IllegalStateException.
   @Test
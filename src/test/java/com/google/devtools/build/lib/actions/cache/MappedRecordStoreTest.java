@@ -0,0 +1,248 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedRecordStore}. */
+@RunWith(JUnit4.class)
+public class MappedRecordStoreTest {
+  private static final long VERSION = 1;
+
+  private Path root;
+  private Path segmentFile;
+  private Path indexFile;
+
+  @Before
+  public final void createFiles() throws Exception {
+    root = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("mapped_store");
+    FileSystemUtils.deleteTree(root);
+    segmentFile = root.getChild("segment");
+    indexFile = root.getChild("index");
+  }
+
+  @After
+  public final void deleteFiles() throws Exception {
+    FileSystemUtils.deleteTree(root);
+  }
+
+  private MappedRecordStore open() throws IOException {
+    return new MappedRecordStore(VERSION, segmentFile, indexFile, /*minCompactionSize=*/ 0);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    MappedRecordStore store = open();
+    assertThat(store.get(1)).isNull();
+    store.put(1, bytes("one"));
+    store.put(-10, bytes("validation"));
+    assertThat(store.get(1)).isEqualTo(bytes("one"));
+    assertThat(store.get(-10)).isEqualTo(bytes("validation"));
+    store.put(1, bytes("uno"));
+    assertThat(store.get(1)).isEqualTo(bytes("uno"));
+    assertThat(store.size()).isEqualTo(2);
+    store.remove(1);
+    assertThat(store.get(1)).isNull();
+    assertThat(store.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testReopenAfterSave() throws Exception {
+    MappedRecordStore store = open();
+    for (int i = 0; i < 5000; i++) {
+      store.put(i, bytes("value" + i));
+    }
+    store.remove(42);
+    store.save();
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.size()).isEqualTo(4999);
+    assertThat(reopened.get(42)).isNull();
+    for (int i = 0; i < 5000; i += 7) {
+      if (i != 42) {
+        assertThat(reopened.get(i)).isEqualTo(bytes("value" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testReopenWithoutSaveRebuildsIndex() throws Exception {
+    MappedRecordStore store = open();
+    store.put(1, bytes("one"));
+    store.save();
+    store.put(2, bytes("two"));
+    store.remove(1);
+    // No save: the index is dirty and must be rebuilt from the segment.
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.get(1)).isNull();
+    assertThat(reopened.get(2)).isEqualTo(bytes("two"));
+  }
+
+  @Test
+  public void testTruncatedRecordIsDiscarded() throws Exception {
+    MappedRecordStore store = open();
+    store.put(1, bytes("one"));
+    store.put(2, bytes("two"));
+    long size = store.segmentSize();
+    // Simulate a partially written record.
+    try (OutputStream out = segmentFile.getOutputStream(/*append=*/ true)) {
+      out.write(new byte[] {0, 0, 0, 3, 0, 0, 1, 0, 'x'});
+    }
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.segmentSize()).isEqualTo(size);
+    assertThat(reopened.get(1)).isEqualTo(bytes("one"));
+    assertThat(reopened.get(2)).isEqualTo(bytes("two"));
+    assertThat(reopened.get(3)).isNull();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    MappedRecordStore store = open();
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 100; i++) {
+        store.put(i, bytes("value" + round + "_" + i));
+      }
+    }
+    store.remove(7);
+    long before = store.segmentSize();
+    store.compact();
+    assertThat(store.segmentSize()).isLessThan(before / 5);
+    assertThat(store.get(7)).isNull();
+    assertThat(store.get(8)).isEqualTo(bytes("value9_8"));
+    store.put(8, bytes("new"));
+    store.save();
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.size()).isEqualTo(99);
+    assertThat(reopened.get(8)).isEqualTo(bytes("new"));
+    assertThat(reopened.get(99)).isEqualTo(bytes("value9_99"));
+  }
+
+  @Test
+  public void testCompactionConcurrentWithGrowingIndex() throws Exception {
+    MappedRecordStore store = open();
+    int keys = 20000;
+    AtomicBoolean done = new AtomicBoolean();
+    Thread writer =
+        new Thread(
+            () -> {
+              try {
+                // Enough keys to grow the index several times while compactions run.
+                for (int i = 0; i < keys; i++) {
+                  store.put(i, bytes("value" + i));
+                  store.put(i, bytes("overwritten" + i));
+                }
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              } finally {
+                done.set(true);
+              }
+            });
+    AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+    writer.setUncaughtExceptionHandler((t, e) -> writerFailure.set(e));
+    writer.start();
+    int compactions = 0;
+    while (!done.get()) {
+      store.compact();
+      compactions++;
+    }
+    writer.join();
+    assertThat(writerFailure.get()).isNull();
+    assertThat(compactions).isGreaterThan(0);
+    assertThat(root.getChild("index.tmp").exists()).isFalse();
+    assertThat(root.getChild("index.compact.tmp").exists()).isFalse();
+
+    assertThat(store.size()).isEqualTo(keys);
+    for (int i = 0; i < keys; i++) {
+      assertThat(store.get(i)).isEqualTo(bytes("overwritten" + i));
+    }
+    store.save();
+    store.close();
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.size()).isEqualTo(keys);
+    for (int i = 0; i < keys; i += 13) {
+      assertThat(reopened.get(i)).isEqualTo(bytes("overwritten" + i));
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    MappedRecordStore store = open();
+    store.put(1, bytes("one"));
+    store.close();
+    store.close();
+    try {
+      store.put(2, bytes("two"));
+      fail();
+    } catch (ClosedChannelException expected) {
+    }
+    // Compacting a closed store does nothing.
+    store.compact();
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.get(1)).isEqualTo(bytes("one"));
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    MappedRecordStore store = open();
+    store.put(1, bytes("one"));
+    store.save();
+    store.clear();
+    assertThat(store.get(1)).isNull();
+    assertThat(store.size()).isEqualTo(0);
+    store.put(2, bytes("two"));
+    store.save();
+
+    MappedRecordStore reopened = open();
+    assertThat(reopened.get(1)).isNull();
+    assertThat(reopened.get(2)).isEqualTo(bytes("two"));
+  }
+
+  @Test
+  public void testDifferentVersionIsDiscarded() throws Exception {
+    MappedRecordStore store = open();
+    store.put(1, bytes("one"));
+    store.save();
+
+    MappedRecordStore other =
+        new MappedRecordStore(VERSION + 1, segmentFile, indexFile, /*minCompactionSize=*/ 0);
+    assertThat(other.get(1)).isNull();
+    assertThat(other.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentDigestCache}. */
+@RunWith(JUnit4.class)
+public class PersistentDigestCacheTest {
+  private static final PathFragment FILE = PathFragment.create("/out/lib.jar");
+  private static final byte[] DIGEST = {1, 2, 3, 4};
+
+  private Path root;
+
+  @Before
+  public final void createRoot() throws Exception {
+    root = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("digest_cache");
+    FileSystemUtils.deleteTree(root);
+    root.createDirectoryAndParents();
+  }
+
+  @After
+  public final void deleteRoot() throws Exception {
+    FileSystemUtils.deleteTree(root);
+  }
+
+  /** Returns a cache over the files in {@link #root}, once its store is open. */
+  private PersistentDigestCache open() throws Exception {
+    PersistentDigestCache cache = new PersistentDigestCache(root);
+    cache.flush();
+    return cache;
+  }
+
+  @Test
+  public void testDigestSurvivesReopen() throws Exception {
+    PersistentDigestCache cache = open();
+    assertThat(cache.get(FILE, 7, 100, 4096)).isNull();
+    cache.put(FILE, 7, 100, 4096, DIGEST);
+    // Found in the buffer before it's written.
+    assertThat(cache.get(FILE, 7, 100, 4096)).isEqualTo(DIGEST);
+    cache.flush();
+
+    PersistentDigestCache reopened = open();
+    assertThat(reopened.get(FILE, 7, 100, 4096)).isEqualTo(DIGEST);
+    assertThat(reopened.hitCount()).isEqualTo(1);
+    assertThat(reopened.missCount()).isEqualTo(0);
+    assertThat(reopened.bytesSaved()).isEqualTo(4096);
+  }
+
+  @Test
+  public void testChangedFileMisses() throws Exception {
+    PersistentDigestCache cache = open();
+    cache.put(FILE, 7, 100, 4096, DIGEST);
+    cache.flush();
+
+    PersistentDigestCache reopened = open();
+    assertThat(reopened.get(FILE, 8, 100, 4096)).isNull();
+    assertThat(reopened.get(FILE, 7, 101, 4096)).isNull();
+    assertThat(reopened.get(FILE, 7, 100, 4097)).isNull();
+    assertThat(reopened.get(PathFragment.create("/out/other.jar"), 7, 100, 4096)).isNull();
+    assertThat(reopened.missCount()).isEqualTo(4);
+    assertThat(reopened.bytesSaved()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCompactionWhileRecordingDigests() throws Exception {
+    final PersistentDigestCache cache = open();
+    final int files = 3000;
+    final int rounds = 20;
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread recorder =
+        new Thread(
+            () -> {
+              for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < files; i++) {
+                  // Overwrites the digests of the previous round, which leaves garbage behind.
+                  cache.put(
+                      PathFragment.create("/out/" + i), i, round, 4096, new byte[] {(byte) round});
+                }
+              }
+              done.set(true);
+            });
+    recorder.start();
+    int compactions = 0;
+    while (!done.get() || compactions == 0) {
+      cache.compact();
+      compactions++;
+    }
+    recorder.join();
+    cache.flush();
+    cache.compact();
+
+    PersistentDigestCache reopened = open();
+    byte[] lastDigest = {(byte) (rounds - 1)};
+    for (int i = 0; i < files; i++) {
+      PathFragment path = PathFragment.create("/out/" + i);
+      assertThat(reopened.get(path, i, rounds - 1, 4096)).isEqualTo(lastDigest);
+      assertThat(reopened.get(path, i, rounds - 2, 4096)).isNull();
+    }
+  }
+}
@@ -207,9 +207,7 @@ public abstract class BuildViewTestCase extends FoundationTestCase {
     analysisMock = getAnalysisMock();
     directories =
         new BlazeDirectories(
-            new ServerDirectories(outputBase, outputBase),
-            rootDirectory,
-            analysisMock.getProductName());
+            createServerDirectories(), rootDirectory, analysisMock.getProductName());
     actionKeyContext = new ActionKeyContext();
     binTools = BinTools.forUnitTesting(directories, analysisMock.getEmbeddedTools());
     mockToolsConfig = new MockToolsConfig(rootDirectory, false);
@@ -362,6 +360,10 @@ public abstract class BuildViewTestCase extends FoundationTestCase {
     assertContainsEvent(expectedError);
   }
 
+  protected ServerDirectories createServerDirectories() {
+    return new ServerDirectories(outputBase, outputBase);
+  }
+
   private void setUpSkyframe() {
     PathPackageLocator pkgLocator =
         PathPackageLocator.create(
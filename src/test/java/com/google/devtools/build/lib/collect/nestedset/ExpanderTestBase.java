@@ -224,7 +224,10 @@ public abstract class ExpanderTestBase  {
   }
 
   protected final void assertSetContents(Collection<String> expected, NestedSet<String> set) {
+    // Before and after the set is expanded for the first time.
+    assertThat(Lists.newArrayList(set.streamingIterator())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set)).isEqualTo(expected);
+    assertThat(Lists.newArrayList(set.streamingIterator())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set.toCollection())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set.toList())).isEqualTo(expected);
     assertThat(Lists.newArrayList(set.toSet())).isEqualTo(expected);
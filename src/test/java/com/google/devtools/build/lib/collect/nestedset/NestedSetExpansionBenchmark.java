@@ -0,0 +1,116 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for expanding synthetic nested sets shaped like the transitive sets of large
+ * builds: a deep chain, like the runfiles of a long chain of libraries, and a wide DAG, like a Java
+ * classpath or C++ header set that merges the sets of many overlapping deps.
+ */
+public class NestedSetExpansionBenchmark {
+  private static final int ELEMENTS_PER_SET = 10;
+
+  /** The shape of the benchmarked set. */
+  public enum Shape {
+    // Every set adds its elements to the previous one.
+    DEEP,
+    // Every set merges a random subset of the previous sets, like a target that depends on many
+    // libraries with overlapping deps.
+    WIDE,
+  }
+
+  @Param({"DEEP", "WIDE"})
+  Shape shape;
+
+  @Param({"100", "1000"})
+  int sets;
+
+  private NestedSet<String> set;
+
+  @BeforeExperiment
+  void setUp() {
+    List<NestedSet<String>> built = new ArrayList<>(sets);
+    Random random = new Random(0);
+    for (int i = 0; i < sets; i++) {
+      NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+      for (int j = 0; j < ELEMENTS_PER_SET; j++) {
+        builder.add("set" + i + "/element" + j);
+      }
+      if (shape == Shape.DEEP) {
+        if (i > 0) {
+          builder.addTransitive(built.get(i - 1));
+        }
+      } else {
+        for (int dep = 1; dep <= Math.min(i, 50); dep++) {
+          builder.addTransitive(built.get(random.nextInt(i)));
+        }
+      }
+      built.add(builder.build());
+    }
+    set = built.get(sets - 1);
+  }
+
+  /** Expands a new set over the benchmarked one, which walks it since there is no memo yet. */
+  @Benchmark
+  int firstToList(int reps) {
+    int size = 0;
+    for (int i = 0; i < reps; i++) {
+      NestedSet<String> newSet =
+          NestedSetBuilder.<String>stableOrder().addTransitive(set).add("new").build();
+      size += newSet.toList().size();
+    }
+    return size;
+  }
+
+  /** Replays the memo of the benchmarked set after the first iteration. */
+  @Benchmark
+  int toList(int reps) {
+    int size = 0;
+    for (int i = 0; i < reps; i++) {
+      size += set.toList().size();
+    }
+    return size;
+  }
+
+  @Benchmark
+  int streamingIterator(int reps) {
+    int size = 0;
+    for (int i = 0; i < reps; i++) {
+      for (Iterator<String> it = set.streamingIterator(); it.hasNext(); it.next()) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /** Expands a new set over the benchmarked one in parallel, like {@link #firstToList}. */
+  @Benchmark
+  int expandInParallel(int reps) {
+    int size = 0;
+    for (int i = 0; i < reps; i++) {
+      NestedSet<String> newSet =
+          NestedSetBuilder.<String>stableOrder().addTransitive(set).add("new").build();
+      size += NestedSetExpander.expandInParallel(newSet).size();
+    }
+    return size;
+  }
+}
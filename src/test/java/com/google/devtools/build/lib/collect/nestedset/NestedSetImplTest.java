@@ -18,6 +18,9 @@ import static org.junit.Assert.fail;
 
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -42,6 +45,62 @@ public class NestedSetImplTest {
     assertThat(set.isEmpty()).isFalse();
   }
 
+  @Test
+  public void parallelExpansionKeepsOrder() {
+    // Enough elements to be deduplicated on several threads, with shared subsets and elements.
+    NestedSet<String> set = buildWideSet();
+    NestedSet<String> sameSet = buildWideSet();
+    List<String> expected = sameSet.toList();
+    assertThat(expected.size()).isGreaterThan(NestedSetExpander.MIN_PARALLEL_OCCURRENCES);
+
+    assertThat(NestedSetExpander.expandInParallel(set))
+        .containsExactlyElementsIn(expected)
+        .inOrder();
+    // Replays the memo recorded by the parallel expansion.
+    assertThat(set.toList()).containsExactlyElementsIn(expected).inOrder();
+    assertThat(Lists.newArrayList(set.streamingIterator()))
+        .containsExactlyElementsIn(expected)
+        .inOrder();
+  }
+
+  private static NestedSet<String> buildWideSet() {
+    List<NestedSet<String>> leaves = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      NestedSetBuilder<String> leaf = nestedSetBuilder("shared", "leaf" + (i + 1) + "_0");
+      for (int k = 0; k < 30; k++) {
+        leaf.add("leaf" + i + "_" + k);
+      }
+      leaves.add(leaf.build());
+    }
+    NestedSetBuilder<String> top = nestedSetBuilder("top");
+    for (int j = 0; j < 20; j++) {
+      NestedSetBuilder<String> middle = nestedSetBuilder("middle" + j, "shared");
+      for (int i = 0; i < leaves.size(); i++) {
+        if ((i + j) % 3 != 0) {
+          middle.addTransitive(leaves.get(i));
+        }
+      }
+      top.addTransitive(middle.build());
+    }
+    // A subset that only repeats elements, whose branch the memo doesn't take.
+    top.addTransitive(nestedSetBuilder("shared", "top").build());
+    return top.addTransitive(leaves.get(0)).build();
+  }
+
+  @Test
+  public void streamingIteratorStopsEarly() {
+    NestedSet<String> set =
+        nestedSetBuilder("a")
+            .addTransitive(nestedSetBuilder("b", "c").build())
+            .addTransitive(nestedSetBuilder("c", "d").build())
+            .build();
+
+    Iterator<String> it = set.streamingIterator();
+    assertThat(it.next()).isEqualTo("b");
+    assertThat(it.next()).isEqualTo("c");
+    assertThat(Lists.newArrayList(set.streamingIterator())).containsExactly("b", "c", "d", "a");
+  }
+
   @Test
   public void flatToString() {
     assertThat(nestedSetBuilder().build().toString()).isEqualTo("{}");
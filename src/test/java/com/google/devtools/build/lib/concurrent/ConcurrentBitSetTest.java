@@ -0,0 +1,84 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ConcurrentBitSet}. */
+@RunWith(JUnit4.class)
+public class ConcurrentBitSetTest {
+
+  @Test
+  public void testAddAndContains() {
+    ConcurrentBitSet set = new ConcurrentBitSet();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.add(0)).isFalse();
+    assertThat(set.contains(0)).isTrue();
+    // Neighbours in the same word, and elements far beyond the first chunk.
+    assertThat(set.add(63)).isTrue();
+    assertThat(set.add(64)).isTrue();
+    assertThat(set.add(1 << 20)).isTrue();
+    assertThat(set.add(Integer.MAX_VALUE)).isTrue();
+    assertThat(set.contains(1)).isFalse();
+    assertThat(set.contains(63)).isTrue();
+    assertThat(set.contains(64)).isTrue();
+    assertThat(set.contains((1 << 20) + 1)).isFalse();
+    assertThat(set.contains(1 << 20)).isTrue();
+    assertThat(set.contains(Integer.MAX_VALUE)).isTrue();
+  }
+
+  @Test
+  public void testExactlyOneConcurrentAddSucceeds() throws Exception {
+    int threads = 8;
+    int size = 200000;
+    ConcurrentBitSet set = new ConcurrentBitSet();
+    AtomicInteger added = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < size; i++) {
+                    if (set.add(i)) {
+                      added.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(added.get()).isEqualTo(size);
+    for (int i = 0; i < size; i++) {
+      assertThat(set.contains(i)).isTrue();
+    }
+    assertThat(set.contains(size)).isFalse();
+  }
+}
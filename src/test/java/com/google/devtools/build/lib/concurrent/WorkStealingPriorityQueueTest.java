@@ -0,0 +1,144 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkStealingPriorityQueue}. */
+@RunWith(JUnit4.class)
+public class WorkStealingPriorityQueueTest {
+
+  @Test
+  public void testHighestPriorityFirstThenLastInFirstOut() {
+    WorkStealingPriorityQueue<String> queue = new WorkStealingPriorityQueue<>();
+    queue.add("a", 0);
+    queue.add("b", 2);
+    queue.add("c", 1);
+    queue.add("d", 2);
+    queue.add("e", 0);
+
+    List<String> polled = new ArrayList<>();
+    String element;
+    while ((element = queue.poll()) != null) {
+      polled.add(element);
+    }
+    assertThat(polled).containsExactly("d", "b", "c", "e", "a").inOrder();
+  }
+
+  @Test
+  public void testStealsFromOtherThreads() throws Exception {
+    WorkStealingPriorityQueue<String> queue = new WorkStealingPriorityQueue<>();
+    queue.add("local", 0);
+    Thread other = new Thread(() -> queue.add("other", 5));
+    other.start();
+    other.join();
+
+    // The calling thread's own elements come first, regardless of priority.
+    assertThat(queue.poll()).isEqualTo("local");
+    assertThat(queue.poll()).isEqualTo("other");
+    assertThat(queue.poll()).isNull();
+  }
+
+  @Test
+  public void testConcurrentProducersAndConsumers() throws Exception {
+    int threads = 8;
+    int perThread = 10000;
+    WorkStealingPriorityQueue<Integer> queue = new WorkStealingPriorityQueue<>();
+    Set<Integer> polled = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < perThread; i++) {
+                    queue.add(thread * perThread + i, i % 7);
+                    // Every thread polls as many elements as it adds, but possibly other threads'.
+                    Integer element;
+                    while ((element = queue.poll()) == null) {
+                      Thread.yield();
+                    }
+                    assertThat(polled.add(element)).isTrue();
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(polled).hasSize(threads * perThread);
+    assertThat(queue.poll()).isNull();
+  }
+
+  @Test
+  public void testTakeWaitsForAnElement() throws Exception {
+    WorkStealingPriorityQueue<String> queue = new WorkStealingPriorityQueue<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> taken = executor.submit(queue::take);
+      Thread.sleep(50);
+      assertThat(taken.isDone()).isFalse();
+      queue.add("a", 0);
+      assertThat(taken.get()).isEqualTo("a");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentProducersAndTakers() throws Exception {
+    int threads = 8;
+    int perThread = 10000;
+    WorkStealingPriorityQueue<Integer> queue = new WorkStealingPriorityQueue<>();
+    Set<Integer> taken = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < perThread; i++) {
+                    queue.add(thread * perThread + i, i % 7);
+                    assertThat(taken.add(queue.take())).isTrue();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(taken).hasSize(threads * perThread);
+    assertThat(queue.poll()).isNull();
+  }
+}
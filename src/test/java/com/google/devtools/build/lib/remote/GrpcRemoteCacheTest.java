@@ -27,11 +27,14 @@ import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.authandtls.GoogleAuthUtils;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.DigestUtil.ActionKey;
+import com.google.devtools.build.lib.remote.TreeNodeRepository.TreeNode;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
@@ -43,6 +46,9 @@ import com.google.devtools.common.options.Options;
 import com.google.devtools.remoteexecution.v1test.Action;
 import com.google.devtools.remoteexecution.v1test.ActionCacheGrpc.ActionCacheImplBase;
 import com.google.devtools.remoteexecution.v1test.ActionResult;
+import com.google.devtools.remoteexecution.v1test.BatchUpdateBlobsRequest;
+import com.google.devtools.remoteexecution.v1test.BatchUpdateBlobsResponse;
+import com.google.devtools.remoteexecution.v1test.Command;
 import com.google.devtools.remoteexecution.v1test.ContentAddressableStorageGrpc.ContentAddressableStorageImplBase;
 import com.google.devtools.remoteexecution.v1test.Digest;
 import com.google.devtools.remoteexecution.v1test.Directory;
@@ -53,6 +59,7 @@ import com.google.devtools.remoteexecution.v1test.FindMissingBlobsResponse;
 import com.google.devtools.remoteexecution.v1test.GetActionResultRequest;
 import com.google.devtools.remoteexecution.v1test.Tree;
 import com.google.devtools.remoteexecution.v1test.UpdateActionResultRequest;
+import com.google.devtools.remoteexecution.v1test.UpdateBlobRequest;
 import com.google.protobuf.ByteString;
 import io.grpc.CallCredentials;
 import io.grpc.CallOptions;
@@ -69,6 +76,13 @@ import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -140,6 +154,10 @@ public class GrpcRemoteCacheTest {
   }
 
   private GrpcRemoteCache newClient() throws IOException {
+    return newClient(Options.getDefaults(RemoteOptions.class));
+  }
+
+  private GrpcRemoteCache newClient(RemoteOptions remoteOptions) throws IOException {
     AuthAndTLSOptions authTlsOptions = Options.getDefaults(AuthAndTLSOptions.class);
     authTlsOptions.useGoogleDefaultCredentials = true;
     authTlsOptions.googleCredentials = "/exec/root/creds.json";
@@ -157,7 +175,6 @@ public class GrpcRemoteCacheTest {
         GoogleAuthUtils.newCallCredentials(
             scratch.resolve(authTlsOptions.googleCredentials).getInputStream(),
             authTlsOptions.googleAuthScopes);
-    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
     RemoteRetrier retrier =
         new RemoteRetrier(
             remoteOptions, RemoteRetrier.RETRIABLE_GRPC_ERRORS, Retrier.ALLOW_ALL_CALLS);
@@ -646,6 +663,376 @@ public class GrpcRemoteCacheTest {
     assertThat(result.build()).isEqualTo(expectedResult.build());
   }
 
+  @Test
+  public void testUploadSmallBlobsInBatches() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteMaxBatchBlobSize = 2;
+    remoteOptions.experimentalRemoteMaxBatchBlobs = 1;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    final Digest fooDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("a/foo"), "xyz");
+    final Digest barDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("bar"), "x");
+    final Digest bazDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("baz"), "xy");
+    final List<Digest> batched = new ArrayList<>();
+    serviceRegistry.addService(
+        new ContentAddressableStorageImplBase() {
+          @Override
+          public void findMissingBlobs(
+              FindMissingBlobsRequest request,
+              StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            responseObserver.onNext(
+                FindMissingBlobsResponse.newBuilder()
+                    .addAllMissingBlobDigests(request.getBlobDigestsList())
+                    .build());
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void batchUpdateBlobs(
+              BatchUpdateBlobsRequest request,
+              StreamObserver<BatchUpdateBlobsResponse> responseObserver) {
+            BatchUpdateBlobsResponse.Builder response = BatchUpdateBlobsResponse.newBuilder();
+            for (UpdateBlobRequest r : request.getRequestsList()) {
+              assertThat(DIGEST_UTIL.compute(r.getData().toByteArray()))
+                  .isEqualTo(r.getContentDigest());
+              batched.add(r.getContentDigest());
+              response.addResponsesBuilder().setBlobDigest(r.getContentDigest());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+          }
+        });
+    ByteStreamImplBase mockByteStreamImpl = Mockito.mock(ByteStreamImplBase.class);
+    serviceRegistry.addService(mockByteStreamImpl);
+    when(mockByteStreamImpl.write(Mockito.<StreamObserver<WriteResponse>>anyObject()))
+        .thenAnswer(blobChunkedWriteAnswer("xyz", 3));
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    Path fooFile = execRoot.getRelative("a/foo");
+    Path barFile = execRoot.getRelative("bar");
+    Path bazFile = execRoot.getRelative("baz");
+    client.upload(execRoot, ImmutableList.of(fooFile, barFile, bazFile), outErr, result);
+    assertThat(batched).containsExactly(barDigest, bazDigest);
+    // Only the large blob is streamed.
+    Mockito.verify(mockByteStreamImpl, Mockito.times(1))
+        .write(Mockito.<StreamObserver<WriteResponse>>anyObject());
+    assertThat(result.getOutputFilesList()).hasSize(3);
+    assertThat(result.getOutputFilesList().get(0).getDigest()).isEqualTo(fooDigest);
+  }
+
+  /** Returns a ByteStream service that accepts all writes, and records the written digests. */
+  private static ByteStreamImplBase recordingByteStream(final List<Digest> streamed) {
+    return new ByteStreamImplBase() {
+      @Override
+      public StreamObserver<WriteRequest> write(
+          final StreamObserver<WriteResponse> responseObserver) {
+        return new StreamObserver<WriteRequest>() {
+          private ByteString data = ByteString.EMPTY;
+
+          @Override
+          public void onNext(WriteRequest request) {
+            data = data.concat(request.getData());
+          }
+
+          @Override
+          public void onCompleted() {
+            streamed.add(DIGEST_UTIL.compute(data.toByteArray()));
+            responseObserver.onNext(
+                WriteResponse.newBuilder().setCommittedSize(data.size()).build());
+            responseObserver.onCompleted();
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            fail("An error occurred: " + t);
+          }
+        };
+      }
+    };
+  }
+
+  /** Returns a CAS service that reports all blobs as missing, and answers batch updates. */
+  private static ContentAddressableStorageImplBase batchingCas(
+      final List<BatchUpdateBlobsRequest> batches, final Status.Code batchStatus,
+      final Digest failedDigest) {
+    return new ContentAddressableStorageImplBase() {
+      @Override
+      public void findMissingBlobs(
+          FindMissingBlobsRequest request,
+          StreamObserver<FindMissingBlobsResponse> responseObserver) {
+        responseObserver.onNext(
+            FindMissingBlobsResponse.newBuilder()
+                .addAllMissingBlobDigests(request.getBlobDigestsList())
+                .build());
+        responseObserver.onCompleted();
+      }
+
+      @Override
+      public void batchUpdateBlobs(
+          BatchUpdateBlobsRequest request,
+          StreamObserver<BatchUpdateBlobsResponse> responseObserver) {
+        batches.add(request);
+        if (batchStatus != Status.Code.OK) {
+          responseObserver.onError(Status.fromCode(batchStatus).asRuntimeException());
+          return;
+        }
+        BatchUpdateBlobsResponse.Builder response = BatchUpdateBlobsResponse.newBuilder();
+        for (UpdateBlobRequest r : request.getRequestsList()) {
+          Status.Code code =
+              r.getContentDigest().equals(failedDigest) ? Status.Code.INTERNAL : Status.Code.OK;
+          response
+              .addResponsesBuilder()
+              .setBlobDigest(r.getContentDigest())
+              .getStatusBuilder()
+              .setCode(code.value());
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+      }
+    };
+  }
+
+  @Test
+  public void testUploadDoesNotBatchByDefault() throws Exception {
+    final GrpcRemoteCache client = newClient();
+    final Digest emptyDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("empty"), "");
+    final Digest fooDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("foo"), "x");
+    final List<BatchUpdateBlobsRequest> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<Digest> streamed = Collections.synchronizedList(new ArrayList<>());
+    serviceRegistry.addService(batchingCas(batches, Status.Code.OK, null));
+    serviceRegistry.addService(recordingByteStream(streamed));
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    client.upload(
+        execRoot,
+        ImmutableList.of(execRoot.getRelative("empty"), execRoot.getRelative("foo")),
+        outErr,
+        result);
+    // Batching is disabled, even for the empty blob.
+    assertThat(batches).isEmpty();
+    assertThat(streamed).contains(fooDigest);
+    assertThat(result.getOutputFilesList()).hasSize(2);
+    assertThat(result.getOutputFilesList().get(0).getDigest()).isEqualTo(emptyDigest);
+  }
+
+  @Test
+  public void testUploadStreamsBlobsWhenBatchUpdateIsUnimplemented() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteMaxBatchBlobSize = 2;
+    remoteOptions.experimentalRemoteMaxBatchBlobs = 1;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    final Digest fooDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("foo"), "x");
+    final Digest barDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("bar"), "xy");
+    final Digest bazDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("baz"), "yz");
+    final List<BatchUpdateBlobsRequest> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<Digest> streamed = Collections.synchronizedList(new ArrayList<>());
+    serviceRegistry.addService(batchingCas(batches, Status.Code.UNIMPLEMENTED, null));
+    serviceRegistry.addService(recordingByteStream(streamed));
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    client.upload(
+        execRoot,
+        ImmutableList.of(execRoot.getRelative("foo"), execRoot.getRelative("bar")),
+        outErr,
+        result);
+    client.upload(execRoot, ImmutableList.of(execRoot.getRelative("baz")), outErr, result);
+    // The first batch fails, and no other batch is attempted.
+    assertThat(batches).hasSize(1);
+    assertThat(streamed).containsExactly(fooDigest, barDigest, bazDigest);
+  }
+
+  @Test
+  public void testUploadStreamsBlobsThatFailedInBatch() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteMaxBatchBlobSize = 2;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    fakeFileCache.createScratchInput(ActionInputHelper.fromPath("foo"), "x");
+    final Digest barDigest =
+        fakeFileCache.createScratchInput(ActionInputHelper.fromPath("bar"), "xy");
+    final List<BatchUpdateBlobsRequest> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<Digest> streamed = Collections.synchronizedList(new ArrayList<>());
+    serviceRegistry.addService(batchingCas(batches, Status.Code.OK, barDigest));
+    serviceRegistry.addService(recordingByteStream(streamed));
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    client.upload(
+        execRoot,
+        ImmutableList.of(execRoot.getRelative("foo"), execRoot.getRelative("bar")),
+        outErr,
+        result);
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0).getRequestsCount()).isEqualTo(2);
+    // Only the blob that failed in the batch is streamed.
+    assertThat(streamed).containsExactly(barDigest);
+  }
+
+  @Test
+  public void testUploadSplitsBatchesAtMessageSizeLimit() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteMaxBatchBlobSize = 4 * 1024 * 1024;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    char[] contents = new char[3 * 1024 * 1024];
+    Arrays.fill(contents, 'x');
+    final Digest fooDigest =
+        fakeFileCache.createScratchInput(
+            ActionInputHelper.fromPath("foo"), new String(contents));
+    contents[0] = 'y';
+    final Digest barDigest =
+        fakeFileCache.createScratchInput(
+            ActionInputHelper.fromPath("bar"), new String(contents));
+    final List<BatchUpdateBlobsRequest> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<Digest> streamed = Collections.synchronizedList(new ArrayList<>());
+    serviceRegistry.addService(batchingCas(batches, Status.Code.OK, null));
+    serviceRegistry.addService(recordingByteStream(streamed));
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    client.upload(
+        execRoot,
+        ImmutableList.of(execRoot.getRelative("foo"), execRoot.getRelative("bar")),
+        outErr,
+        result);
+    // Both blobs don't fit into one message, so they are sent in two batches.
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0).getRequestsCount()).isEqualTo(1);
+    assertThat(batches.get(1).getRequestsCount()).isEqualTo(1);
+    assertThat(
+            ImmutableList.of(
+                batches.get(0).getRequests(0).getContentDigest(),
+                batches.get(1).getRequests(0).getContentDigest()))
+        .containsExactly(fooDigest, barDigest);
+    assertThat(streamed).isEmpty();
+  }
+
+  private static Thread startThread(Runnable runnable) {
+    Thread thread = new Thread(Context.current().wrap(runnable));
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testEnsureInputsPresentQueriesSharedDigestsOnce() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteKnownDigestsCacheSize = 100;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    final TreeNodeRepository repository =
+        new TreeNodeRepository(execRoot, fakeFileCache, DIGEST_UTIL);
+    ActionInput foo = ActionInputHelper.fromPath("a/foo");
+    fakeFileCache.createScratchInput(foo, "xyz");
+    final TreeNode root =
+        repository.buildFromActionInputs(new TreeMap<>(ImmutableMap.of(foo.getExecPath(), foo)));
+    final Command command = Command.newBuilder().addArguments("echo").build();
+    final List<Digest> queried = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch queryStarted = new CountDownLatch(1);
+    final CountDownLatch finishQuery = new CountDownLatch(1);
+    serviceRegistry.addService(
+        new ContentAddressableStorageImplBase() {
+          @Override
+          public void findMissingBlobs(
+              FindMissingBlobsRequest request,
+              StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            queried.addAll(request.getBlobDigestsList());
+            queryStarted.countDown();
+            try {
+              finishQuery.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            responseObserver.onNext(FindMissingBlobsResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+          }
+        });
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    Runnable ensureInputsPresent =
+        () -> {
+          try {
+            client.ensureInputsPresent(repository, execRoot, root, command);
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        };
+
+    Thread first = startThread(ensureInputsPresent);
+    queryStarted.await();
+    Thread second = startThread(ensureInputsPresent);
+    // The second action waits for the query of the first one.
+    while (second.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    finishQuery.countDown();
+    first.join();
+    second.join();
+    assertThat(errors).isEmpty();
+    // The root, the "a" directory, the input file and the command.
+    assertThat(queried).hasSize(4);
+    assertThat(ImmutableSet.copyOf(queried)).hasSize(4);
+  }
+
+  @Test
+  public void testEnsureInputsPresentTakesOverDigestsOfFailedQuery() throws Exception {
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.experimentalRemoteKnownDigestsCacheSize = 100;
+    final GrpcRemoteCache client = newClient(remoteOptions);
+    final TreeNodeRepository repository =
+        new TreeNodeRepository(execRoot, fakeFileCache, DIGEST_UTIL);
+    ActionInput foo = ActionInputHelper.fromPath("a/foo");
+    fakeFileCache.createScratchInput(foo, "xyz");
+    final TreeNode root =
+        repository.buildFromActionInputs(new TreeMap<>(ImmutableMap.of(foo.getExecPath(), foo)));
+    final Command command = Command.newBuilder().addArguments("echo").build();
+    final AtomicInteger queries = new AtomicInteger();
+    final CountDownLatch queryStarted = new CountDownLatch(1);
+    final CountDownLatch finishQuery = new CountDownLatch(1);
+    serviceRegistry.addService(
+        new ContentAddressableStorageImplBase() {
+          @Override
+          public void findMissingBlobs(
+              FindMissingBlobsRequest request,
+              StreamObserver<FindMissingBlobsResponse> responseObserver) {
+            if (queries.incrementAndGet() == 1) {
+              queryStarted.countDown();
+              try {
+                finishQuery.await();
+              } catch (InterruptedException e) {
+                throw new AssertionError(e);
+              }
+              responseObserver.onError(Status.PERMISSION_DENIED.asRuntimeException());
+              return;
+            }
+            responseObserver.onNext(FindMissingBlobsResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+          }
+        });
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    Runnable ensureInputsPresent =
+        () -> {
+          try {
+            client.ensureInputsPresent(repository, execRoot, root, command);
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        };
+
+    Thread first = startThread(ensureInputsPresent);
+    queryStarted.await();
+    Thread second = startThread(ensureInputsPresent);
+    while (second.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    finishQuery.countDown();
+    first.join();
+    second.join();
+    // Only the first action fails; the second one queries the digests itself.
+    assertThat(errors).hasSize(1);
+    assertThat(queries.get()).isEqualTo(2);
+  }
+
   @Test
   public void testUploadUploadsOnlyOutputs() throws Exception {
     final GrpcRemoteCache client = newClient();
@@ -15,12 +15,14 @@ package com.google.devtools.build.lib.remote;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.clock.JavaClock;
 import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -33,8 +35,13 @@ import com.google.devtools.remoteexecution.v1test.DirectoryNode;
 import com.google.devtools.remoteexecution.v1test.FileNode;
 import com.google.devtools.remoteexecution.v1test.Tree;
 import io.grpc.Context;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -245,6 +252,119 @@ public class SimpleBlobStoreActionCacheTest {
     assertThat(DIGEST_UTIL.compute(execRoot.getRelative("a/foo/file"))).isEqualTo(fileDigest);
   }
 
+  @Test
+  public void testDownloadFailureDeletesOutputs() throws Exception {
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
+    Digest missingDigest = DIGEST_UTIL.computeAsUtf8("missing-contents");
+    Tree barTreeMessage =
+        Tree.newBuilder()
+            .setRoot(
+                Directory.newBuilder()
+                    .addFiles(FileNode.newBuilder().setName("qux").setDigest(fooDigest)))
+            .build();
+    Digest barTreeDigest = DIGEST_UTIL.compute(barTreeMessage);
+
+    final ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    map.put(fooDigest.getHash(), "foo-contents".getBytes(Charsets.UTF_8));
+    map.put(barTreeDigest.getHash(), barTreeMessage.toByteArray());
+    SimpleBlobStoreActionCache client = newClient(map);
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("a/foo").setDigest(fooDigest);
+    result.addOutputFilesBuilder().setPath("a/missing").setDigest(missingDigest);
+    result.addOutputDirectoriesBuilder().setPath("a/bar").setTreeDigest(barTreeDigest);
+    try {
+      client.download(result.build(), execRoot, null);
+      fail("Should have thrown an exception.");
+    } catch (CacheNotFoundException expected) {
+      assertThat(expected.getMissingDigest()).isEqualTo(missingDigest);
+    }
+    assertThat(execRoot.getRelative("a/foo").exists()).isFalse();
+    assertThat(execRoot.getRelative("a/missing").exists()).isFalse();
+    assertThat(execRoot.getRelative("a/bar").exists()).isFalse();
+  }
+
+  @Test
+  public void testInterruptedDownloadDeletesOutputsAfterDownloadsStop() throws Exception {
+    Digest fooDigest = DIGEST_UTIL.computeAsUtf8("foo-contents");
+    Digest slowDigest = DIGEST_UTIL.computeAsUtf8("slow-contents");
+    final ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    map.put(fooDigest.getHash(), "foo-contents".getBytes(Charsets.UTF_8));
+    map.put(slowDigest.getHash(), "slow-contents".getBytes(Charsets.UTF_8));
+    CountDownLatch slowStarted = new CountDownLatch(1);
+    AtomicBoolean slowStopped = new AtomicBoolean();
+    SimpleBlobStore delegate = new ConcurrentMapBlobStore(map);
+    SimpleBlobStore blobStore =
+        new SimpleBlobStore() {
+          @Override
+          public boolean containsKey(String key) throws IOException, InterruptedException {
+            return delegate.containsKey(key);
+          }
+
+          @Override
+          public boolean get(String key, OutputStream out)
+              throws IOException, InterruptedException {
+            if (key.equals(slowDigest.getHash())) {
+              out.write("partial".getBytes(UTF_8));
+              slowStarted.countDown();
+              try {
+                // Blocks until the download is interrupted.
+                new CountDownLatch(1).await();
+              } finally {
+                slowStopped.set(true);
+              }
+            }
+            return delegate.get(key, out);
+          }
+
+          @Override
+          public boolean getActionResult(String key, OutputStream out)
+              throws IOException, InterruptedException {
+            return delegate.getActionResult(key, out);
+          }
+
+          @Override
+          public void put(String key, long length, InputStream in)
+              throws IOException, InterruptedException {
+            delegate.put(key, length, in);
+          }
+
+          @Override
+          public void putActionResult(String key, byte[] in)
+              throws IOException, InterruptedException {
+            delegate.putActionResult(key, in);
+          }
+
+          @Override
+          public void close() {}
+        };
+    SimpleBlobStoreActionCache client = new SimpleBlobStoreActionCache(blobStore, DIGEST_UTIL);
+
+    ActionResult.Builder result = ActionResult.newBuilder();
+    result.addOutputFilesBuilder().setPath("a/foo").setDigest(fooDigest);
+    result.addOutputFilesBuilder().setPath("a/slow").setDigest(slowDigest);
+    Thread downloadingThread = Thread.currentThread();
+    new Thread(
+            () -> {
+              try {
+                slowStarted.await();
+              } catch (InterruptedException e) {
+                return;
+              }
+              downloadingThread.interrupt();
+            })
+        .start();
+    try {
+      client.download(result.build(), execRoot, null);
+      fail("Should have thrown an exception.");
+    } catch (InterruptedException expected) {
+      // The slow download was interrupted, too.
+    }
+    assertThat(slowStopped.get()).isTrue();
+    assertThat(execRoot.getRelative("a/foo").exists()).isFalse();
+    assertThat(execRoot.getRelative("a/slow").exists()).isFalse();
+  }
+
   @Test
   public void testUploadBlob() throws Exception {
     final Digest digest = DIGEST_UTIL.computeAsUtf8("abcdefg");
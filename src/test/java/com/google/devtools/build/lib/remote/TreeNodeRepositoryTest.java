@@ -121,6 +121,42 @@ public class TreeNodeRepositoryTest {
     assertThat(aDirectory.getFiles(1).getDigest()).isEqualTo(fooDigest);
   }
 
+  @Test
+  public void testMerkleTreeCacheSharesDirectoriesBetweenRepositories() throws Exception {
+    Artifact foo = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
+    Artifact bar = new Artifact(scratch.file("/exec/root/b/bar", "11"), rootDir);
+    Artifact baz = new Artifact(scratch.file("/exec/root/c/baz", "111"), rootDir);
+    ActionInputFileCache inputFileCache =
+        new SingleBuildFileCache(execRoot.getPathString(), scratch.getFileSystem());
+    MerkleTreeCache merkleTreeCache = new MerkleTreeCache(100);
+    TreeNodeRepository repo1 =
+        new TreeNodeRepository(execRoot, inputFileCache, digestUtil, merkleTreeCache);
+    TreeNode root1 = buildFromActionInputs(repo1, foo, bar);
+    repo1.computeMerkleDigests(root1);
+    // The root and "a" and "b" directories.
+    assertThat(merkleTreeCache.getStats().missCount()).isEqualTo(3);
+
+    TreeNodeRepository repo2 =
+        new TreeNodeRepository(execRoot, inputFileCache, digestUtil, merkleTreeCache);
+    TreeNode root2 = buildFromActionInputs(repo2, foo, baz);
+    repo2.computeMerkleDigests(root2);
+    TreeNode aNode = root2.getChildEntries().get(0).getChild();
+    // The nodes are interned across the repositories.
+    assertThat(aNode).isSameAs(root1.getChildEntries().get(0).getChild());
+    assertThat(merkleTreeCache.getStats().hitCount()).isEqualTo(1);
+    assertThat(repo2.getMerkleDigest(aNode)).isEqualTo(repo1.getMerkleDigest(aNode));
+
+    // The shared directory is also available through the lookups of the second repository.
+    TreeNodeRepository uncached = createTestTreeNodeRepository();
+    TreeNode uncachedRoot = buildFromActionInputs(uncached, foo, baz);
+    uncached.computeMerkleDigests(uncachedRoot);
+    assertThat(repo2.getMerkleDigest(root2)).isEqualTo(uncached.getMerkleDigest(uncachedRoot));
+    assertThat(repo2.getAllDigests(root2))
+        .containsExactlyElementsIn(uncached.getAllDigests(uncachedRoot));
+    assertThat(repo2.treeToDirectories(root2))
+        .containsExactlyElementsIn(uncached.treeToDirectories(uncachedRoot));
+  }
+
   @Test
   public void testGetAllDigests() throws Exception {
     Artifact foo1 = new Artifact(scratch.file("/exec/root/a/foo", "1"), rootDir);
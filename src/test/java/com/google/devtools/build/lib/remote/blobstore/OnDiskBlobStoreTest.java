@@ -0,0 +1,244 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.blobstore;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OnDiskBlobStore}. */
+@RunWith(JUnit4.class)
+public class OnDiskBlobStoreTest {
+  private final ManualClock clock = new ManualClock();
+  private Path root;
+
+  @Before
+  public final void setUp() throws Exception {
+    root = new InMemoryFileSystem().getPath("/cache");
+  }
+
+  private void put(OnDiskBlobStore store, String key, int size) throws Exception {
+    clock.advanceMillis(1000);
+    store.put(key, size, new ByteArrayInputStream(new byte[size]));
+  }
+
+  @Test
+  public void testPutAndGetAreSharded() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    byte[] data = "hello".getBytes(UTF_8);
+    store.put("abcdef", data.length, new ByteArrayInputStream(data));
+    store.syncPending();
+    assertThat(root.getRelative("ab/abcdef").exists()).isTrue();
+    assertThat(store.containsKey("abcdef")).isTrue();
+    assertThat(store.containsKey("abcdeg")).isFalse();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.get("abcdef", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(data);
+    assertThat(store.get("abcdeg", new ByteArrayOutputStream())).isFalse();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedBlobsOfPreviousBuilds() throws Exception {
+    OnDiskBlobStore previousBuild = new OnDiskBlobStore(root, 1000, clock);
+    put(previousBuild, "aa1", 300);
+    put(previousBuild, "bb2", 300);
+    put(previousBuild, "cc3", 300);
+    previousBuild.get("aa1", new ByteArrayOutputStream());
+    previousBuild.close();
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    put(store, "dd4", 300);
+    store.close();
+    // "bb2" is the least recently used; evicting it brings the size below the limit.
+    assertThat(store.containsKey("bb2")).isFalse();
+    assertThat(store.containsKey("aa1")).isTrue();
+    assertThat(store.containsKey("cc3")).isTrue();
+    assertThat(store.containsKey("dd4")).isTrue();
+  }
+
+  @Test
+  public void testNeverEvictsBlobsOfCurrentBuild() throws Exception {
+    OnDiskBlobStore previousBuild = new OnDiskBlobStore(root, 1000, clock);
+    put(previousBuild, "aa1", 400);
+    put(previousBuild, "bb2", 400);
+    previousBuild.close();
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    assertThat(store.containsKey("aa1")).isTrue();
+    put(store, "cc3", 400);
+    put(store, "dd4", 400);
+    store.evict();
+    assertThat(store.containsKey("aa1")).isTrue();
+    assertThat(store.containsKey("bb2")).isFalse();
+    assertThat(store.containsKey("cc3")).isTrue();
+    assertThat(store.containsKey("dd4")).isTrue();
+  }
+
+  @Test
+  public void testIndexIsRebuiltFromDirectoryListing() throws Exception {
+    OnDiskBlobStore unbounded = new OnDiskBlobStore(root);
+    put(unbounded, "aa1", 600);
+    put(unbounded, "bb2", 600);
+    unbounded.close();
+    assertThat(root.getChild("index").exists()).isFalse();
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    store.close();
+    // One of the two blobs is evicted.
+    assertThat(root.getRelative("aa/aa1").exists() ^ root.getRelative("bb/bb2").exists()).isTrue();
+    assertThat(root.getChild("index").exists()).isTrue();
+  }
+
+  @Test
+  public void testUnshardedBlobsAreMovedIntoShards() throws Exception {
+    // Blobs written by a version of the store that kept them in the root directory.
+    FileSystemUtils.createDirectoryAndParents(root);
+    FileSystemUtils.writeContent(root.getChild("aa1"), new byte[600]);
+    FileSystemUtils.writeContent(root.getChild("bb2"), new byte[600]);
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    store.close();
+    assertThat(root.getChild("aa1").exists()).isFalse();
+    assertThat(root.getChild("bb2").exists()).isFalse();
+    // Both were indexed, so one of them is evicted.
+    assertThat(root.getRelative("aa/aa1").exists() ^ root.getRelative("bb/bb2").exists()).isTrue();
+  }
+
+  @Test
+  public void testUnboundedStoreMovesUnshardedBlobsIntoShards() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root);
+    FileSystemUtils.writeContent(root.getChild("aa1"), new byte[10]);
+
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    assertThat(root.getChild("aa1").exists()).isFalse();
+    assertThat(store.containsKey("aa1")).isTrue();
+    store.close();
+  }
+
+  @Test
+  public void testCloseTwice() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    put(store, "aa1", 10);
+    store.close();
+    assertThat(root.getRelative("aa/aa1").exists()).isTrue();
+    root.getChild("index").delete();
+
+    // The second call neither fails nor writes the index again.
+    store.close();
+    assertThat(root.getChild("index").exists()).isFalse();
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testPendingBlobsAreVisibleBeforeSync() throws Exception {
+    OnDiskBlobStore store = new OnDiskBlobStore(root);
+    byte[] data = "hello".getBytes(UTF_8);
+    store.put("abcdef", data.length, new ByteArrayInputStream(data));
+    assertThat(root.getRelative("ab/abcdef").exists()).isFalse();
+    assertThat(store.containsKey("abcdef")).isTrue();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(store.get("abcdef", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(data);
+
+    store.syncPending();
+    assertThat(root.getRelative("ab/abcdef").exists()).isTrue();
+    assertThat(store.containsKey("abcdef")).isTrue();
+    store.close();
+    assertThat(root.getChild("tmp").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testAbandonedTemporaryFilesAreDeleted() throws Exception {
+    Path tmp = root.getChild("tmp");
+    FileSystemUtils.createDirectoryAndParents(tmp.getChild("killed_store"));
+    FileSystemUtils.writeContent(tmp.getRelative("killed_store/pending"), new byte[10]);
+    FileSystemUtils.writeContent(tmp.getChild("old_layout_temp_file"), new byte[10]);
+
+    OnDiskBlobStore open = new OnDiskBlobStore(root);
+    byte[] data = "hello".getBytes(UTF_8);
+    open.put("abcdef", data.length, new ByteArrayInputStream(data));
+
+    // Opening another store deletes the files of the killed store, but not those of the open one.
+    OnDiskBlobStore store = new OnDiskBlobStore(root, 1000, clock);
+    assertThat(tmp.getChild("killed_store").exists()).isFalse();
+    assertThat(tmp.getChild("old_layout_temp_file").exists()).isFalse();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThat(open.get("abcdef", out)).isTrue();
+    assertThat(out.toByteArray()).isEqualTo(data);
+    open.close();
+    store.close();
+    assertThat(store.containsKey("abcdef")).isTrue();
+    assertThat(tmp.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testOnlyUnlockedTemporaryDirectoriesAreDeletedOnLocalFileSystem() throws Exception {
+    Path local = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getChild("disk_cache_lock");
+    FileSystemUtils.deleteTree(local);
+    Path tmp = local.getChild("tmp");
+    FileSystemUtils.createDirectoryAndParents(tmp.getChild("killed_store"));
+    FileSystemUtils.writeContent(tmp.getRelative("killed_store/pending"), new byte[10]);
+    FileSystemUtils.writeContent(tmp.getChild("killed_store.lock"), new byte[0]);
+
+    OnDiskBlobStore open = new OnDiskBlobStore(local);
+    open.put("abcdef", 5, new ByteArrayInputStream(new byte[5]));
+    OnDiskBlobStore store = new OnDiskBlobStore(local);
+    assertThat(tmp.getChild("killed_store").exists()).isFalse();
+    assertThat(tmp.getChild("killed_store.lock").exists()).isFalse();
+    // The open store holds the lock on its own directory.
+    assertThat(tmp.getDirectoryEntries()).hasSize(2);
+    assertThat(open.containsKey("abcdef")).isTrue();
+    open.close();
+    store.close();
+    assertThat(tmp.getDirectoryEntries()).isEmpty();
+    FileSystemUtils.deleteTree(local);
+  }
+
+  @Test
+  public void testPutFromPathAndGetToPathOnLocalFileSystem() throws Exception {
+    Path tmp = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getChild("disk_cache_test");
+    FileSystemUtils.deleteTree(tmp);
+    FileSystemUtils.createDirectoryAndParents(tmp);
+    OnDiskBlobStore store = new OnDiskBlobStore(tmp.getChild("cache"));
+    Path source = tmp.getChild("source");
+    FileSystemUtils.writeContentAsLatin1(source, "hello world");
+    store.putFromPath("abcdef", source);
+
+    Path pendingCopy = tmp.getChild("pending_copy");
+    assertThat(store.getToPath("abcdef", pendingCopy)).isTrue();
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(pendingCopy)))
+        .isEqualTo("hello world");
+
+    store.close();
+    Path dest = tmp.getChild("dest");
+    FileSystemUtils.writeContentAsLatin1(dest, "some longer previous contents");
+    assertThat(store.getToPath("abcdef", dest)).isTrue();
+    assertThat(new String(FileSystemUtils.readContentAsLatin1(dest))).isEqualTo("hello world");
+    assertThat(store.getToPath("abcdeg", tmp.getChild("missing"))).isFalse();
+    assertThat(tmp.getChild("missing").exists()).isFalse();
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AsynchronousTreeDeleter}. */
+@RunWith(JUnit4.class)
+public class AsynchronousTreeDeleterTest extends SandboxTestCase {
+  private Path trashBase;
+  private AsynchronousTreeDeleter deleter;
+
+  @Before
+  public final void setupTrash() {
+    trashBase = testRoot.getRelative("trash");
+  }
+
+  @After
+  public final void shutdownDeleter() {
+    if (deleter != null) {
+      deleter.shutdown();
+    }
+  }
+
+  private Path createTree(String name) throws IOException {
+    Path tree = testRoot.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(tree.getRelative("some/dir"));
+    FileSystemUtils.createEmptyFile(tree.getRelative("some/dir/file.txt"));
+    tree.getRelative("some/link").createSymbolicLink(tree.getRelative("some/dir"));
+    return tree;
+  }
+
+  private void waitForDeletions() throws InterruptedException {
+    for (int i = 0; i < 1000 && deleter.getQueueDepth() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(deleter.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDeleteTree() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 2);
+    Path tree = createTree("tree");
+
+    deleter.deleteTree(tree);
+    // The path can be reused right away.
+    assertThat(tree.exists(Symlinks.NOFOLLOW)).isFalse();
+
+    waitForDeletions();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testDeletesTrashOfEarlierServer() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(trashBase);
+    createTree("leftover").renameTo(trashBase.getRelative("leftover"));
+
+    deleter = new AsynchronousTreeDeleter(trashBase, 1);
+    waitForDeletions();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testNextDeleterTakesOverTrashAfterShutdown() throws Exception {
+    deleter = new AsynchronousTreeDeleter(trashBase, 1);
+    for (int i = 0; i < 10; i++) {
+      deleter.deleteTree(createTree("tree" + i));
+    }
+    // No tree is being deleted anymore once this returns.
+    deleter.shutdownAndAwaitTermination();
+
+    deleter = new AsynchronousTreeDeleter(trashBase, 2);
+    waitForDeletions();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+  }
+}
@@ -101,6 +101,59 @@ public class SymlinkedSandboxedSpawnTest extends SandboxTestCase {
     assertThat(execRoot.getRelative("wow/writable/temp.txt").exists()).isFalse();
   }
 
+  @Test
+  public void reuseFileSystem() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    Path worldTxt = workspaceDir.getRelative("world.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    FileSystemUtils.createEmptyFile(worldTxt);
+    ImmutableMap<PathFragment, Path> previousInputs =
+        ImmutableMap.of(
+            PathFragment.create("kept.txt"), helloTxt,
+            PathFragment.create("changed.txt"), helloTxt,
+            PathFragment.create("tampered.txt"), helloTxt,
+            PathFragment.create("removed/input.txt"), helloTxt);
+    new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.<String, String>of(),
+            previousInputs,
+            ImmutableSet.<PathFragment>of(),
+            ImmutableSet.<Path>of())
+        .createFileSystem();
+
+    // Pretend that the previous spawn replaced one of its inputs.
+    execRoot.getRelative("tampered.txt").delete();
+    execRoot.getRelative("tampered.txt").createSymbolicLink(worldTxt);
+
+    new SymlinkedSandboxedSpawn(
+            sandboxDir,
+            execRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.<String, String>of(),
+            ImmutableMap.of(
+                PathFragment.create("kept.txt"), helloTxt,
+                PathFragment.create("changed.txt"), worldTxt,
+                PathFragment.create("tampered.txt"), helloTxt,
+                PathFragment.create("added.txt"), worldTxt),
+            ImmutableSet.<PathFragment>of(),
+            ImmutableSet.<Path>of(),
+            previousInputs,
+            TreeDeleter.SYNCHRONOUS)
+        .createFileSystem();
+
+    assertThat(execRoot.getRelative("kept.txt").readSymbolicLink())
+        .isEqualTo(helloTxt.asFragment());
+    assertThat(execRoot.getRelative("changed.txt").readSymbolicLink())
+        .isEqualTo(worldTxt.asFragment());
+    assertThat(execRoot.getRelative("tampered.txt").readSymbolicLink())
+        .isEqualTo(helloTxt.asFragment());
+    assertThat(execRoot.getRelative("added.txt").readSymbolicLink())
+        .isEqualTo(worldTxt.asFragment());
+    assertThat(execRoot.getRelative("removed").exists(Symlinks.NOFOLLOW)).isFalse();
+  }
+
   @Test
   public void copyOutputs() throws Exception {
     Path outputFile = execRoot.getRelative("very/output.txt");
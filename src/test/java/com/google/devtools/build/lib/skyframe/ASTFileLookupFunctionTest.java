@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.skyframe;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.ServerDirectories;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -66,6 +67,12 @@ public class ASTFileLookupFunctionTest extends BuildViewTestCase {
     return mockFS;
   }
 
+  @Override
+  protected ServerDirectories createServerDirectories() {
+    // The persistent AST cache needs to know the version of the binary.
+    return new ServerDirectories(outputBase, outputBase, "0123456789abcdef0123456789abcdef");
+  }
+
     @Test
   public void testPreludeASTFileIsNotMandatory() throws Exception {
     reporter.removeHandler(failFastHandler);
@@ -154,6 +161,41 @@ public class ASTFileLookupFunctionTest extends BuildViewTestCase {
     assertThat(imports.get(0).getImportString()).isEqualTo(":ext2.bzl");
   }
 
+  @Test
+  public void testPersistentAstCacheIsUsedAfterReset() throws Exception {
+    scratch.deleteFile("tools/build_rules/prelude_blaze");
+    scratch.file("foo/BUILD", "load(':ext.bzl', 'CONST')");
+    scratch.file("foo/ext.bzl", "CONST = 17");
+    setPackageCacheOptions("--experimental_persistent_ast_cache=ast_cache");
+    invalidatePackages(/*alsoConfigs=*/ false);
+
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    PersistentAstCache persistentAstCache = getSkyframeExecutor().getPersistentAstCache();
+    persistentAstCache.getAndResetStats();
+    assertThat(
+            SkyframeExecutorTestUtils.evaluate(
+                    getSkyframeExecutor(), skyKey, /*keepGoing=*/ false, reporter)
+                .hasError())
+        .isFalse();
+    PersistentAstCache.Stats stats = persistentAstCache.getAndResetStats();
+    assertThat(stats.getHits()).isEqualTo(0);
+    assertThat(stats.getWrites()).isEqualTo(2);
+
+    // Like a new server, which has to load the package again.
+    getSkyframeExecutor().resetEvaluator();
+    setPackageCacheOptions("--experimental_persistent_ast_cache=ast_cache");
+    persistentAstCache.getAndResetStats();
+    assertThat(
+            SkyframeExecutorTestUtils.evaluate(
+                    getSkyframeExecutor(), skyKey, /*keepGoing=*/ false, reporter)
+                .hasError())
+        .isFalse();
+    stats = persistentAstCache.getAndResetStats();
+    assertThat(stats.getHits()).isEqualTo(2);
+    assertThat(stats.getMisses()).isEqualTo(0);
+    assertThat(stats.getWrites()).isEqualTo(0);
+  }
+
   @Test
   public void testLoadWithNonExistentBuildFile() throws Exception {
     invalidatePackages();
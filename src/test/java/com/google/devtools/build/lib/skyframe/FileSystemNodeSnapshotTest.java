@@ -0,0 +1,200 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.analysis.BlazeDirectories;
+import com.google.devtools.build.lib.analysis.ServerDirectories;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAction;
+import com.google.devtools.build.lib.testutil.TestConstants;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.ErrorTransienceValue;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequencedRecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link FileSystemNodeSnapshot}. */
+@RunWith(JUnit4.class)
+public class FileSystemNodeSnapshotTest {
+  private FileSystem fs;
+  private Root pkgRoot;
+  private Path snapshotFile;
+  private FileSystemNodeSnapshot snapshot;
+
+  private InMemoryMemoizingEvaluator evaluator;
+  private RecordingDifferencer differencer;
+  private SequentialBuildDriver driver;
+
+  @Before
+  public final void createFsAndRoot() throws Exception {
+    fs = new InMemoryFileSystem();
+    pkgRoot = Root.fromPath(fs.getPath("/root"));
+    snapshotFile = fs.getPath("/output_base/snapshot");
+    snapshot = new FileSystemNodeSnapshot(fs);
+    FileSystemUtils.createDirectoryAndParents(pkgRoot.getRelative("pkg"));
+    FileSystemUtils.createDirectoryAndParents(snapshotFile.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(pkgRoot.getRelative("pkg/BUILD"), "abc");
+    pkgRoot.getRelative("pkg/link").createSymbolicLink(PathFragment.create("BUILD"));
+    FileSystemUtils.writeContentAsLatin1(fs.getPath("/outside"), "outside");
+    newEvaluator();
+  }
+
+  private void newEvaluator() {
+    AtomicReference<PathPackageLocator> pkgLocator =
+        new AtomicReference<>(
+            new PathPackageLocator(
+                fs.getPath("/output_base"),
+                ImmutableList.of(pkgRoot),
+                BazelSkyframeExecutorConstants.BUILD_FILES_BY_PRIORITY));
+    BlazeDirectories directories =
+        new BlazeDirectories(
+            new ServerDirectories(pkgRoot.asPath(), fs.getPath("/output_base")),
+            pkgRoot.asPath(),
+            TestConstants.PRODUCT_NAME);
+    ExternalFilesHelper externalFilesHelper =
+        new ExternalFilesHelper(
+            pkgLocator,
+            ExternalFileAction.ASSUME_NON_EXISTENT_AND_IMMUTABLE_FOR_EXTERNAL_PATHS,
+            directories);
+    differencer = new SequencedRecordingDifferencer();
+    evaluator =
+        new InMemoryMemoizingEvaluator(
+            ImmutableMap.<SkyFunctionName, SkyFunction>builder()
+                .put(
+                    SkyFunctions.FILE_STATE,
+                    new FileStateFunction(
+                        new AtomicReference<TimestampGranularityMonitor>(), externalFilesHelper))
+                .put(SkyFunctions.FILE, new FileFunction(pkgLocator))
+                .put(
+                    SkyFunctions.FILE_SYMLINK_CYCLE_UNIQUENESS,
+                    new FileSymlinkCycleUniquenessFunction())
+                .put(
+                    SkyFunctions.FILE_SYMLINK_INFINITE_EXPANSION_UNIQUENESS,
+                    new FileSymlinkInfiniteExpansionUniquenessFunction())
+                .put(
+                    SkyFunctions.DIRECTORY_LISTING_STATE,
+                    new DirectoryListingStateFunction(externalFilesHelper))
+                .put(SkyFunctions.DIRECTORY_LISTING, new DirectoryListingFunction())
+                .build(),
+            differencer);
+    driver = new SequentialBuildDriver(evaluator);
+  }
+
+  private RootedPath rootedPath(String rootRelativePath) {
+    return RootedPath.toRootedPath(pkgRoot, PathFragment.create(rootRelativePath));
+  }
+
+  private <T extends SkyValue> T evaluate(SkyKey key) throws Exception {
+    EvaluationResult<T> result =
+        driver.evaluate(ImmutableList.of(key), false, 1, NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    return result.get(key);
+  }
+
+  @Test
+  public void testRestoredNodesAreNotReevaluated() throws Exception {
+    SkyKey buildFile = FileValue.key(rootedPath("pkg/BUILD"));
+    SkyKey link = FileValue.key(rootedPath("pkg/link"));
+    SkyKey listing = DirectoryListingValue.key(rootedPath("pkg"));
+    FileValue buildFileValue = evaluate(buildFile);
+    FileValue linkValue = evaluate(link);
+    DirectoryListingValue listingValue = evaluate(listing);
+    // FILE and FILE_STATE nodes of pkg/BUILD, pkg/link, pkg and the root, and the listing nodes.
+    assertThat(snapshot.write(evaluator.getGraphMap(), ImmutableList.of(pkgRoot), snapshotFile))
+        .isEqualTo(10);
+
+    newEvaluator();
+    assertThat(snapshot.read(evaluator, ImmutableList.of(pkgRoot), snapshotFile)).isEqualTo(10);
+    SkyValue restoredBuildFileValue = evaluator.getExistingValue(buildFile);
+    assertThat(restoredBuildFileValue).isEqualTo(buildFileValue);
+    assertThat(evaluator.getExistingValue(link)).isEqualTo(linkValue);
+    assertThat(evaluator.getExistingValue(listing)).isEqualTo(listingValue);
+    // Nothing was invalidated, so the restored value is the result.
+    assertThat(this.<FileValue>evaluate(buildFile)).isSameAs(restoredBuildFileValue);
+  }
+
+  @Test
+  public void testRestoredNodesAreInvalidatedThroughRestoredReverseDeps() throws Exception {
+    SkyKey link = FileValue.key(rootedPath("pkg/link"));
+    FileValue linkValue = evaluate(link);
+    assertThat(linkValue.getSize()).isEqualTo(3);
+    snapshot.write(evaluator.getGraphMap(), ImmutableList.of(pkgRoot), snapshotFile);
+
+    newEvaluator();
+    snapshot.read(evaluator, ImmutableList.of(pkgRoot), snapshotFile);
+    FileSystemUtils.writeContentAsLatin1(pkgRoot.getRelative("pkg/BUILD"), "abcdef");
+    differencer.invalidate(ImmutableList.of(FileStateValue.key(rootedPath("pkg/BUILD"))));
+    FileValue newLinkValue = evaluate(link);
+    assertThat(newLinkValue.getSize()).isEqualTo(6);
+  }
+
+  @Test
+  public void testNodesOutsidePathEntriesAreNotSaved() throws Exception {
+    SkyKey outside =
+        FileValue.key(RootedPath.toRootedPath(Root.absoluteRoot(fs), fs.getPath("/outside")));
+    evaluate(outside);
+    assertThat(snapshot.write(evaluator.getGraphMap(), ImmutableList.of(pkgRoot), snapshotFile))
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void testSnapshotWithDifferentPathEntriesIsIgnored() throws Exception {
+    evaluate(FileValue.key(rootedPath("pkg/BUILD")));
+    snapshot.write(evaluator.getGraphMap(), ImmutableList.of(pkgRoot), snapshotFile);
+
+    newEvaluator();
+    Root otherRoot = Root.fromPath(fs.getPath("/other"));
+    assertThat(snapshot.read(evaluator, ImmutableList.of(otherRoot), snapshotFile)).isEqualTo(0);
+    assertThat(evaluator.getValues()).isEmpty();
+  }
+
+  @Test
+  public void testCodecsRoundTrip() throws Exception {
+    evaluate(FileValue.key(rootedPath("pkg/link")));
+    evaluate(DirectoryListingValue.key(rootedPath("pkg")));
+    snapshot.write(evaluator.getGraphMap(), ImmutableList.of(pkgRoot), snapshotFile);
+    Map<SkyKey, SkyValue> values = new HashMap<>(evaluator.getValues());
+    // The node of the evaluator itself isn't saved.
+    values.remove(ErrorTransienceValue.KEY);
+
+    newEvaluator();
+    snapshot.read(evaluator, ImmutableList.of(pkgRoot), snapshotFile);
+    assertThat(evaluator.getValues()).containsExactlyEntriesIn(values);
+  }
+}
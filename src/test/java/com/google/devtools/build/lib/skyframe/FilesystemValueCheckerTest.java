@@ -47,6 +47,7 @@ import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.FileStatusWithDigestAdapter;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.LocalBatchStat;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -197,8 +198,15 @@ public class FilesystemValueCheckerTest {
    */
   @Test
   public void testDirtySymlink() throws Exception {
-    FilesystemValueChecker checker = new FilesystemValueChecker(null, null);
+    checkDirtySymlink(new FilesystemValueChecker(null, null));
+  }
+
+  @Test
+  public void testDirtySymlinkLocalBatchStat() throws Exception {
+    checkDirtySymlink(new FilesystemValueChecker(null, null, new LocalBatchStat(fs.getPath("/"))));
+  }
 
+  private void checkDirtySymlink(FilesystemValueChecker checker) throws Exception {
     Path path = fs.getPath("/foo");
     FileSystemUtils.writeContentAsLatin1(path, "foo contents");
     // We need the intermediate sym1 and sym2 so that we can dirty a child of symlink without
@@ -269,8 +277,16 @@ public class FilesystemValueCheckerTest {
 
   @Test
   public void testExplicitFiles() throws Exception {
-    FilesystemValueChecker checker = new FilesystemValueChecker(null, null);
+    checkExplicitFiles(new FilesystemValueChecker(null, null));
+  }
+
+  @Test
+  public void testExplicitFilesLocalBatchStat() throws Exception {
+    checkExplicitFiles(
+        new FilesystemValueChecker(null, null, new LocalBatchStat(fs.getPath("/"))));
+  }
 
+  private void checkExplicitFiles(FilesystemValueChecker checker) throws Exception {
     Path path1 = fs.getPath("/foo1");
     Path path2 = fs.getPath("/foo2");
     FileSystemUtils.createEmptyFile(path1);
@@ -305,6 +321,32 @@ public class FilesystemValueCheckerTest {
     assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
   }
 
+  @Test
+  public void testDeletedFileLocalBatchStat() throws Exception {
+    FilesystemValueChecker checker =
+        new FilesystemValueChecker(null, null, new LocalBatchStat(fs.getPath("/")));
+    Path path = fs.getPath("/foo");
+    FileSystemUtils.createEmptyFile(path);
+    SkyKey skyKey =
+        FileStateValue.key(
+            RootedPath.toRootedPath(Root.absoluteRoot(fs), PathFragment.create("/foo")));
+    EvaluationResult<SkyValue> result =
+        driver.evaluate(
+            ImmutableList.of(skyKey),
+            false,
+            SkyframeExecutor.DEFAULT_THREAD_COUNT,
+            NullEventHandler.INSTANCE);
+    assertThat(result.hasError()).isFalse();
+    assertEmptyDiff(getDirtyFilesystemKeys(evaluator, checker));
+
+    // The batch stat has no status for the path, so it is stat'ed again on its own.
+    assertThat(path.delete()).isTrue();
+    Diff diff = getDirtyFilesystemKeys(evaluator, checker);
+    assertThat(diff.changedKeysWithoutNewValues()).isEmpty();
+    assertThat(diff.changedKeysWithNewValues())
+        .containsExactly(skyKey, FileStateValue.NONEXISTENT_FILE_STATE_NODE);
+  }
+
   @Test
   public void testFileWithIOExceptionNotConsideredDirty() throws Exception {
     Path path = fs.getPath("/testroot/foo");
@@ -671,6 +713,11 @@ public class FilesystemValueCheckerTest {
         true);
   }
 
+  @Test
+  public void testDirtyActionsLocalBatchStat() throws Exception {
+    checkDirtyActions(new LocalBatchStat(fs.getPath("/")), false);
+  }
+
   @Test
   public void testDirtyActionsBatchStatFallback() throws Exception {
     checkDirtyActions(
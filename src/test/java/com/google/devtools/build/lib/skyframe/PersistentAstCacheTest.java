@@ -0,0 +1,127 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PersistentAstCache}. */
+@RunWith(JUnit4.class)
+public class PersistentAstCacheTest {
+  private static final PathFragment FILE = PathFragment.create("/workspace/pkg/defs.bzl");
+  private static final byte[] CONTENTS =
+      "def f(x):\n  return [x]\n".getBytes(StandardCharsets.UTF_8);
+
+  private PersistentAstCache cache;
+
+  @Before
+  public final void createCache() {
+    cache = new PersistentAstCache("version");
+    cache.setDirectory(new InMemoryFileSystem().getPath("/cache"));
+  }
+
+  private static BuildFileAST parse(byte[] contents) {
+    return BuildFileAST.parseSkylarkFile(
+        ParserInputSource.create(new String(contents, StandardCharsets.UTF_8), FILE),
+        Environment.FAIL_FAST_HANDLER);
+  }
+
+  private PersistentAstCache.Key key(byte[] contents, SkylarkSemantics semantics) {
+    return cache.key("bzl", FILE, contents, semantics);
+  }
+
+  @Test
+  public void testDisabled() {
+    cache.setDirectory(null);
+    assertThat(key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS)).isNull();
+  }
+
+  @Test
+  public void testDisabledWithoutVersion() {
+    cache = new PersistentAstCache(/*blazeVersion=*/ null);
+    cache.setDirectory(new InMemoryFileSystem().getPath("/cache"));
+    assertThat(key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS)).isNull();
+  }
+
+  @Test
+  public void testFailedWriteLeavesNoTemporaryFile() throws Exception {
+    PersistentAstCache.Key key = key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS);
+    // A non-empty directory in place of the entry makes the rename fail.
+    FileSystemUtils.createDirectoryAndParents(key.getEntry());
+    FileSystemUtils.writeContent(key.getEntry().getChild("file"), CONTENTS);
+    cache.put(key, parse(CONTENTS));
+
+    assertThat(cache.getAndResetStats().getFailures()).isEqualTo(1);
+    assertThat(key.getEntry().getParentDirectory().getDirectoryEntries())
+        .containsExactly(key.getEntry());
+  }
+
+  @Test
+  public void testHitAfterPut() {
+    PersistentAstCache.Key key = key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS);
+    assertThat(cache.get(key)).isNull();
+    BuildFileAST ast = parse(CONTENTS);
+    cache.put(key, ast);
+
+    BuildFileAST cached = cache.get(key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS));
+    assertThat(cached).isNotNull();
+    assertThat(cached.toString()).isEqualTo(ast.toString());
+
+    PersistentAstCache.Stats stats = cache.getAndResetStats();
+    assertThat(stats.getHits()).isEqualTo(1);
+    assertThat(stats.getMisses()).isEqualTo(1);
+    assertThat(stats.getWrites()).isEqualTo(1);
+    assertThat(stats.getHitRate()).isWithin(0.01).of(0.5);
+    assertThat(cache.getAndResetStats().getHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void testContentsAreKeyed() {
+    cache.put(key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS), parse(CONTENTS));
+    byte[] otherContents = "x = 1\n".getBytes(StandardCharsets.UTF_8);
+    assertThat(cache.get(key(otherContents, SkylarkSemantics.DEFAULT_SEMANTICS))).isNull();
+  }
+
+  @Test
+  public void testEntryForOtherSemanticsIsStale() {
+    cache.put(key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS), parse(CONTENTS));
+    SkylarkSemantics otherSemantics =
+        SkylarkSemantics.DEFAULT_SEMANTICS.toBuilder().incompatibleDepsetUnion(true).build();
+    assertThat(cache.get(key(CONTENTS, otherSemantics))).isNull();
+    assertThat(cache.getAndResetStats().getStaleEntries()).isEqualTo(1);
+  }
+
+  @Test
+  public void testTruncatedEntryIsMiss() throws Exception {
+    PersistentAstCache.Key key = key(CONTENTS, SkylarkSemantics.DEFAULT_SEMANTICS);
+    cache.put(key, parse(CONTENTS));
+    byte[] entry = FileSystemUtils.readContent(key.getEntry());
+    FileSystemUtils.writeContent(key.getEntry(), Arrays.copyOf(entry, entry.length - 4));
+    assertThat(cache.get(key)).isNull();
+    assertThat(cache.getAndResetStats().getFailures()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PredictedGlobDeps}. */
+@RunWith(JUnit4.class)
+public class PredictedGlobDepsTest {
+  private static final PackageIdentifier PACKAGE_ID = PackageIdentifier.createInMainRepo("pkg");
+  private static final Root ROOT = Root.fromPath(new InMemoryFileSystem().getPath("/workspace"));
+
+  private static List<String> predict(String... lines) {
+    BuildFileAST ast =
+        BuildFileAST.parseBuildFile(
+            ParserInputSource.create(
+                Joiner.on("\n").join(lines), PathFragment.create("/workspace/pkg/BUILD")),
+            ImmutableList.<Statement>of(),
+            Environment.FAIL_FAST_HANDLER);
+    List<String> globs = new ArrayList<>();
+    for (SkyKey key : PredictedGlobDeps.predict(ast, PACKAGE_ID, ROOT)) {
+      GlobDescriptor glob = (GlobDescriptor) key.argument();
+      assertThat(glob.getPackageId()).isEqualTo(PACKAGE_ID);
+      assertThat(glob.getPackageRoot()).isEqualTo(ROOT);
+      globs.add(glob.getPattern() + (glob.excludeDirs() ? "" : " (with dirs)"));
+    }
+    return globs;
+  }
+
+  @Test
+  public void testLiteralGlobs() {
+    assertThat(
+            predict(
+                "cc_library(name = 'a', srcs = glob(['*.cc'], exclude = ['*_test.cc']))",
+                "filegroup(name = 'b', srcs = glob(include = ['data/**'], exclude_directories = 0))",
+                "x = glob(['*.h']) + ['extra.h']"))
+        .containsExactly("*.cc", "*_test.cc", "data/** (with dirs)", "*.h")
+        .inOrder();
+  }
+
+  @Test
+  public void testComputedGlobsAreNotPredicted() {
+    assertThat(
+            predict(
+                "patterns = ['*.cc']",
+                "a = glob(patterns)",
+                "b = glob(['*.' + patterns[0]])",
+                "c = glob(['*.txt'], exclude = patterns)",
+                "d = native.glob(['*.java'])",
+                "e = glob(['bad/../pattern'])"))
+        .isEmpty();
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that {@link CompiledFunction} evaluates functions exactly like the interpreter: each
+ * program is run with and without compilation, and must produce the same result or error.
+ */
+@RunWith(JUnit4.class)
+public class CompiledFunctionTest extends EvaluationTestCase {
+
+  private final boolean wasEnabled = CompiledFunction.isEnabled();
+  private String[] skylarkOptions = {};
+
+  @After
+  public final void restoreEnabled() throws Exception {
+    CompiledFunction.setEnabled(wasEnabled);
+  }
+
+  /** Runs the program, which sets {@code result}, and returns its repr or the error. */
+  private String run(boolean compile, String... program) throws Exception {
+    CompiledFunction.setEnabled(compile);
+    enableSkylarkMode(skylarkOptions);
+    try {
+      eval(program);
+      return Printer.repr(lookup("result"));
+    } catch (EvalException e) {
+      return "error: " + e.print();
+    }
+  }
+
+  private String assertSameResult(String... program) throws Exception {
+    String interpreted = run(false, program);
+    String compiled = run(true, program);
+    assertThat(compiled).isEqualTo(interpreted);
+    return compiled;
+  }
+
+  @Test
+  public void testFunctionIsCompiled() throws Exception {
+    run(true, "def f(x):", "  return x", "result = f(1)");
+    assertThat(((UserDefinedFunction) lookup("f")).isCompiled()).isTrue();
+    run(false, "def f(x):", "  return x", "result = f(1)");
+    assertThat(((UserDefinedFunction) lookup("f")).isCompiled()).isFalse();
+  }
+
+  @Test
+  public void testLocalsAndParameters() throws Exception {
+    assertThat(
+            assertSameResult(
+                "g = 10",
+                "def f(a, b = 2, *args, **kwargs):",
+                "  c = a + b + g",
+                "  c += len(args)",
+                "  x, y = kwargs.get('x', 0), c",
+                "  return [a, b, c, x, y, args, sorted(kwargs.keys())]",
+                "result = [f(1), f(1, 3, 4, 5, x = 7, z = 8)]"))
+        .isEqualTo("[[1, 2, 13, 0, 13, (), []], [1, 3, 16, 7, 16, (4, 5), [\"x\", \"z\"]]]");
+  }
+
+  @Test
+  public void testLoopsAndFlow() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def f(n):",
+                "  out = []",
+                "  for i in range(n):",
+                "    if i == 1:",
+                "      continue",
+                "    elif i > 5:",
+                "      break",
+                "    for j, k in [(i, 'a'), (i + 1, 'b')]:",
+                "      if j == 4:",
+                "        return out + ['early', k]",
+                "      out.append(j)",
+                "    pass",
+                "  return out",
+                "result = [f(3), f(10)]"))
+        .isEqualTo("[[0, 1, 2, 3], [0, 1, 2, 3, 3, \"early\", \"b\"]]");
+  }
+
+  @Test
+  public void testImplicitReturn() throws Exception {
+    assertSameResult(
+        "def f(x):",
+        "  if x:",
+        "    return",
+        "  y = x",
+        "result = [f(True), f(False)]");
+  }
+
+  @Test
+  public void testComprehensions() throws Exception {
+    assertSameResult(
+        "def f(l):",
+        "  x = 'before'",
+        "  squares = [x * x for x in l if x % 2]",
+        "  d = {k: v for k, v in zip(l, squares)}",
+        "  return [squares, d, x]",
+        "result = f([1, 2, 3])");
+  }
+
+  @Test
+  public void testComprehensionVariablesDoNotLeak() throws Exception {
+    skylarkOptions = new String[] {"--incompatible_comprehension_variables_do_not_leak=true"};
+    assertSameResult(
+        "def f(l):",
+        "  x = 'before'",
+        "  squares = [x * x for x in l]",
+        "  return x",
+        "result = f([1, 2, 3])");
+  }
+
+  @Test
+  public void testGlobalReadBeforeLocalAssignment() throws Exception {
+    assertThat(
+            assertSameResult(
+                "a = 1",
+                "def f():",
+                "  b = a",
+                "  a = 2",
+                "  return b",
+                "result = f()"))
+        .contains("Variable 'a' is referenced before assignment");
+  }
+
+  @Test
+  public void testUnassignedLocal() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def f(c):",
+                "  if c:",
+                "    value = 1",
+                "  return valu",
+                "result = f(True)"))
+        .contains("name 'valu' is not defined (did you mean 'value'?)");
+    assertThat(
+            assertSameResult(
+                "def f(c):",
+                "  if c:",
+                "    value = 1",
+                "  return value",
+                "result = f(False)"))
+        .contains("name 'value' is not defined");
+  }
+
+  @Test
+  public void testErrorStackTrace() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def g(x):",
+                "  for i in x:",
+                "    if i:",
+                "      return 1 // 0",
+                "def f():",
+                "  y = [0, 1]",
+                "  return g(y)",
+                "result = f()"))
+        .contains("Traceback");
+  }
+
+  @Test
+  public void testLocalMutationOfIterable() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def f():",
+                "  l = [1, 2]",
+                "  for i in l:",
+                "    l.append(i)",
+                "result = f()"))
+        .contains("trying to mutate a locked object");
+  }
+
+  @Test
+  public void testRecursion() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def f(n):",
+                "  return n if n == 0 else f(n - 1)",
+                "result = f(2)"))
+        .contains("Recursion was detected");
+  }
+
+  @Test
+  public void testNestedCallsKeepTheirOwnLocals() throws Exception {
+    assertThat(
+            assertSameResult(
+                "def g(a):",
+                "  b = a * 2",
+                "  return b",
+                "def f(a):",
+                "  b = a + 1",
+                "  c = g(b)",
+                "  return [a, b, c]",
+                "result = f(1)"))
+        .isEqualTo("[1, 2, 4]");
+  }
+}
@@ -244,6 +244,33 @@ public class EnvironmentTest extends EvaluationTestCase {
     }
   }
 
+  @Test
+  public void testExtensionSharesBindingsOfFrozenEnvironment() throws Exception {
+    Environment env;
+    Environment.Extension unfrozenExtension;
+    try (Mutability mutability = Mutability.create("testExtension")) {
+      env =
+          Environment.builder(mutability)
+              .useDefaultSemantics()
+              .setGlobals(Environment.DEFAULT_GLOBALS)
+              .setEventHandler(Environment.FAIL_FAST_HANDLER)
+              .setFileContentHashCode("hash")
+              .build();
+      env.update("x", 1);
+      env.update("y", 2);
+      unfrozenExtension = new Environment.Extension(env);
+      env.update("z", 3);
+    }
+    assertThat(unfrozenExtension.getBindings()).containsExactly("x", 1, "y", 2).inOrder();
+
+    Environment.Extension extension = new Environment.Extension(env);
+    assertThat(extension.getBindings()).containsExactly("x", 1, "y", 2, "z", 3).inOrder();
+    assertThat(new Environment.Extension(env).getBindings())
+        .isSameAs(extension.getBindings());
+    assertThat(env.getGlobals().getBindings()).isEqualTo(extension.getBindings());
+    assertThat(env.lookup("z")).isEqualTo(3);
+  }
+
   @Test
   public void testReadOnly() throws Exception {
     Environment env = newSkylarkEnvironment()
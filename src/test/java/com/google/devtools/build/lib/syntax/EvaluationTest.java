@@ -16,6 +16,9 @@ package com.google.devtools.build.lib.syntax;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skylarkinterface.Param;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
 import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
@@ -695,4 +698,66 @@ public class EvaluationTest extends EvaluationTestCase {
         + "in call to replace(self: string, ",
         "'banana'.replace('a', 'o', 3, old='a', new=4)");
   }
+
+  /** A Java object whose {@code index} method behaves like the one of strings and lists. */
+  @SkylarkModule(name = "Letters", doc = "")
+  public static class Letters implements SkylarkValue {
+    protected final String letters;
+
+    Letters(String letters) {
+      this.letters = letters;
+    }
+
+    @SkylarkCallable(
+      name = "index",
+      doc = "",
+      parameters = {
+        @Param(name = "sub", type = String.class, doc = ""),
+        @Param(name = "start", type = Integer.class, defaultValue = "0", doc = "")
+      }
+    )
+    public Integer index(String sub, Integer start) {
+      return letters.indexOf(sub, start);
+    }
+
+    @Override
+    public void repr(SkylarkPrinter printer) {
+      printer.append(letters);
+    }
+  }
+
+  /** A subclass, so that a call site sees another receiver class with the same method. */
+  public static final class ReversedLetters extends Letters {
+    ReversedLetters(String letters) {
+      super(new StringBuilder(letters).reverse().toString());
+    }
+  }
+
+  @Test
+  public void testPolymorphicMethodCallSite() throws Exception {
+    newTest()
+        .update("letters", new Letters("xab"))
+        .update("reversed", new ReversedLetters("bax"))
+        // A fifth receiver class, which the call site doesn't cache.
+        .update("other", new Letters("xxb") {})
+        .setUp("receivers = ['ab', ['a', 'b'], letters, reversed, other, 'xb', letters, other]")
+        .testExactOrder("[x.index('b') for x in receivers]", 1, 1, 2, 2, 2, 1, 2, 2)
+        .testExactOrder("[x.index('b', 1) for x in ['ab', letters, reversed]]", 1, 2, 2)
+        .testIfErrorContains(
+            "type 'depset' has no method index(string)",
+            "[x.index('b') for x in receivers + [depset(['b'])]]");
+  }
+
+  @Test
+  public void testMethodCallArgumentTypeErrors() throws Exception {
+    newTest()
+        .update("letters", new Letters("ab"))
+        .testIfErrorContains(
+            "argument 'sub' has type 'int', but should be 'string'",
+            "[x.index(sub) for x, sub in [('ab', 'b'), ('ab', 1)]]")
+        .testIfErrorContains(
+            "Cannot convert parameter 'sub' to type string, in method index(int) of 'Letters'",
+            "[x.index(sub) for x, sub in [(letters, 'b'), (letters, 1)]]")
+        .testExactOrder("[x.index('b') for x in ['ab', letters]]", 1, 1);
+  }
 }
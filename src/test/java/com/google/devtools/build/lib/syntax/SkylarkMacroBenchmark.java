@@ -0,0 +1,130 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Benchmarks for calling Skylark macros with the patterns that are common in the .bzl files of
+ * large repositories, interpreted or as {@link CompiledFunction}s.
+ */
+public class SkylarkMacroBenchmark {
+  private static final String[] MACROS = {
+    // Expands a list of test names into per-test targets, the way test suite macros do.
+    "def _test_targets(name, srcs, deps, size = 'small', tags = []):",
+    "  tests = []",
+    "  for src in srcs:",
+    "    if not src.endswith('_test.cc'):",
+    "      continue",
+    "    test_name = '%s_%s' % (name, src[:-len('.cc')].replace('/', '_'))",
+    "    test_tags = tags + ['unit'] if size == 'small' else tags",
+    "    tests.append({'name': test_name, 'srcs': [src], 'deps': deps, 'tags': test_tags})",
+    "  return tests",
+    "",
+    // Merges keyword arguments with defaults and platform-specific copts.
+    "def _merge_kwargs(defaults, kwargs):",
+    "  merged = dict(defaults)",
+    "  for key, value in kwargs.items():",
+    "    if key in merged and type(value) == type([]):",
+    "      merged[key] = merged[key] + value",
+    "    else:",
+    "      merged[key] = value",
+    "  return merged",
+    "",
+    "def _copts(platform, opt):",
+    "  copts = ['-Wall', '-Werror']",
+    "  if platform == 'linux':",
+    "    copts += ['-fPIC']",
+    "  elif platform == 'darwin':",
+    "    copts += ['-fno-common']",
+    "  if opt:",
+    "    copts.append('-O2')",
+    "  return copts",
+    "",
+    // Derives header and source lists with comprehensions and string operations.
+    "def _library(name, files, platform):",
+    "  hdrs = [f for f in files if f.endswith('.h')]",
+    "  srcs = [f for f in files if f.endswith('.cc') and not f.endswith('_test.cc')]",
+    "  defines = {h.split('/')[-1].upper().replace('.', '_'): '1' for h in hdrs}",
+    "  kwargs = _merge_kwargs(",
+    "      {'copts': _copts(platform, True), 'visibility': ['//visibility:private']},",
+    "      {'copts': ['-DNAME=' + name], 'linkstatic': True})",
+    "  return {'name': name, 'hdrs': hdrs, 'srcs': srcs, 'defines': defines, 'kwargs': kwargs}",
+    "",
+    "def run(packages, files_per_package):",
+    "  result = []",
+    "  for p in range(packages):",
+    "    files = []",
+    "    for i in range(files_per_package):",
+    "      base = 'pkg%d/file%d' % (p, i)",
+    "      files += [base + '.h', base + '.cc', base + '_test.cc']",
+    "    lib = _library('lib%d' % p, files, 'linux' if p % 2 else 'darwin')",
+    "    result.append(lib)",
+    "    result += _test_targets(lib['name'], files, [':' + lib['name']], tags = ['p%d' % p])",
+    "  return len(result)",
+  };
+
+  @Param({"false", "true"})
+  boolean compiled;
+
+  @Param({"10", "100"})
+  int packages;
+
+  private Mutability mutability;
+  private Environment env;
+  private BaseFunction run;
+  private boolean wasEnabled;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    wasEnabled = CompiledFunction.isEnabled();
+    CompiledFunction.setEnabled(compiled);
+    mutability = Mutability.create("benchmark");
+    env =
+        Environment.builder(mutability)
+            .useDefaultSemantics()
+            .setGlobals(BazelLibrary.GLOBALS)
+            .setEventHandler(Environment.FAIL_FAST_HANDLER)
+            .build();
+    BuildFileAST.eval(env, MACROS);
+    run = (BaseFunction) env.lookup("run");
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    mutability.close();
+    CompiledFunction.setEnabled(wasEnabled);
+  }
+
+  @Benchmark
+  int callMacros(int reps) throws Exception {
+    int targets = 0;
+    for (int i = 0; i < reps; i++) {
+      targets +=
+          (Integer)
+              run.call(
+                  ImmutableList.<Object>of(packages, 10),
+                  ImmutableMap.<String, Object>of(),
+                  null,
+                  env);
+    }
+    return targets;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Benchmarks for calling the builtin methods that dominate the evaluation of .bzl files: string,
+ * list and dict methods and global functions, from call sites that see one or several receiver
+ * types.
+ */
+public class SkylarkMethodCallBenchmark {
+  private static final String[] PROGRAM = {
+    "def strings(n):",
+    "  count = 0",
+    "  for i in range(n):",
+    "    s = 'pkg/sub/file_%d.cc' % i",
+    "    if s.endswith('.cc') and not s.startswith('//'):",
+    "      count += len(s.replace('/', '_').split('_'))",
+    "    count += len(s.upper().strip())",
+    "  return count",
+    "",
+    "def collections(n):",
+    "  l = []",
+    "  d = {}",
+    "  for i in range(n):",
+    "    l.append(i)",
+    "    d[str(i)] = d.get(str(i - 1), 0) + 1",
+    "  d.update({'a': 1})",
+    "  return len(l) + len(d.keys()) + len(depset(l).to_list())",
+    "",
+    "def polymorphic(n):",
+    "  receivers = ['abc', ['a', 'b', 'c']]",
+    "  count = 0",
+    "  for i in range(n):",
+    "    for r in receivers:",
+    "      count += r.index('b')",
+    "  return count",
+    "",
+    "def run(n):",
+    "  return strings(n) + collections(n) + polymorphic(n)",
+  };
+
+  @Param({"100", "1000"})
+  int size;
+
+  private Mutability mutability;
+  private Environment env;
+  private BaseFunction run;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    mutability = Mutability.create("benchmark");
+    env =
+        Environment.builder(mutability)
+            .useDefaultSemantics()
+            .setGlobals(BazelLibrary.GLOBALS)
+            .setEventHandler(Environment.FAIL_FAST_HANDLER)
+            .build();
+    BuildFileAST.eval(env, PROGRAM);
+    run = (BaseFunction) env.lookup("run");
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    mutability.close();
+  }
+
+  @Benchmark
+  int callMethods(int reps) throws Exception {
+    int result = 0;
+    for (int i = 0; i < reps; i++) {
+      result +=
+          (Integer)
+              run.call(
+                  ImmutableList.<Object>of(size), ImmutableMap.<String, Object>of(), null, env);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BuildFileAST#CODEC}. */
+@RunWith(JUnit4.class)
+public class SyntaxTreeCodecTest extends EvaluationTestCase {
+
+  private static final String[] PROGRAM = {
+    "load('//foo:bar.bzl', 'a', b = 'c')",
+    "# A comment.",
+    "x = [1, -2, 'three'][0:2:1]",
+    "y = {'k': x, 'l': (x, x[0])} if x else {}",
+    "def f(p, q = 1, *args, **kwargs):",
+    "  r = p.upper() if not q else p + str(q)",
+    "  r += ''.join([s for s in args if s]) % ()",
+    "  for i in range(2):",
+    "    if i == 0:",
+    "      continue",
+    "    elif i == 1:",
+    "      pass",
+    "    else:",
+    "      break",
+    "  return {k: v for k, v in kwargs.items()}, r",
+    "def g():",
+    "  return",
+    "z = f('a', q = 2, *['b'], **{'c': 3})",
+  };
+
+  private static BuildFileAST parse(String... lines) {
+    ParserInputSource input =
+        ParserInputSource.create(Joiner.on("\n").join(lines), PathFragment.create("/foo/f.bzl"));
+    return BuildFileAST.parseSkylarkFile(input, Environment.FAIL_FAST_HANDLER);
+  }
+
+  private static BuildFileAST roundTrip(BuildFileAST ast) throws Exception {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(bytes);
+    BuildFileAST.CODEC.serialize(ast, codedOut);
+    codedOut.flush();
+    return BuildFileAST.CODEC.deserialize(bytes.toByteString().newCodedInput());
+  }
+
+  /** Returns the class and location of each node of the tree, in order. */
+  private static List<String> nodes(BuildFileAST ast) {
+    List<String> nodes = new ArrayList<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(ASTNode node) {
+        Location location = node.getLocation();
+        nodes.add(
+            String.format(
+                "%s %s %d-%d",
+                node.getClass().getSimpleName(),
+                location.print(),
+                location.getStartOffset(),
+                location.getEndOffset()));
+        super.visit(node);
+      }
+    }.visit(ast);
+    return nodes;
+  }
+
+  @Test
+  public void testRoundTripKeepsNodesAndLocations() throws Exception {
+    BuildFileAST ast = parse(PROGRAM);
+    BuildFileAST result = roundTrip(ast);
+    assertThat(result.toString()).isEqualTo(ast.toString());
+    assertThat(nodes(result)).containsExactlyElementsIn(nodes(ast)).inOrder();
+    assertThat(result.getComments()).hasSize(1);
+    assertThat(result.getComments().get(0).getLocation().print())
+        .isEqualTo(ast.getComments().get(0).getLocation().print());
+    assertThat(result.getImports()).isEqualTo(ast.getImports());
+    assertThat(result.containsErrors()).isFalse();
+  }
+
+  @Test
+  public void testRoundTripKeepsErrors() throws Exception {
+    setFailFast(false);
+    ParserInputSource input =
+        ParserInputSource.create("x = (1 +\ny = 2\n", PathFragment.create("/foo/f.bzl"));
+    BuildFileAST ast = BuildFileAST.parseSkylarkFile(input, getEventHandler());
+    assertThat(ast.containsErrors()).isTrue();
+    BuildFileAST result = roundTrip(ast);
+    assertThat(result.containsErrors()).isTrue();
+    assertThat(result.toString()).isEqualTo(ast.toString());
+  }
+
+  @Test
+  public void testDeserializedTreeEvaluates() throws Exception {
+    BuildFileAST ast =
+        roundTrip(
+            parse(
+                "def f(p, q = 1, *args, **kwargs):",
+                "  r = [p * q]",
+                "  for a in args:",
+                "    r += [a]",
+                "  return r + sorted(kwargs.keys())",
+                "result = f(2, 3, 4, 5, x = 1)"));
+    ast.exec(env, getEventHandler());
+    assertThat(lookup("result")).isEqualTo(SkylarkList.MutableList.of(null, 6, 4, 5, "x"));
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.LocalBatchStat;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmarks for stat'ing the files of a synthetic source tree on the local file system, one path
+ * per native call like {@link com.google.devtools.build.lib.skyframe.FilesystemValueChecker} does
+ * by default, and in batches with {@link LocalBatchStat}.
+ */
+public class UnixFileSystemBatchStatBenchmark {
+  private static final int FILES_PER_DIRECTORY = 100;
+
+  @Param({"10000", "100000"})
+  int files;
+
+  @Param({"1", "8"})
+  int threads;
+
+  private Path root;
+  private List<List<PathFragment>> shards;
+  private ExecutorService executor;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    root =
+        new UnixFileSystem()
+            .getPath(Files.createTempDirectory("batch_stat").toFile().getCanonicalPath());
+    List<PathFragment> paths = new ArrayList<>(files);
+    for (int i = 0; i < files; i++) {
+      PathFragment path =
+          PathFragment.create("dir" + (i / FILES_PER_DIRECTORY) + "/file" + i + ".java");
+      if (i % FILES_PER_DIRECTORY == 0) {
+        root.getRelative(path).getParentDirectory().createDirectoryAndParents();
+      }
+      FileSystemUtils.createEmptyFile(root.getRelative(path));
+      paths.add(path);
+    }
+    shards = Lists.partition(paths, (files + threads - 1) / threads);
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  void tearDown() throws Exception {
+    executor.shutdown();
+    FileSystemUtils.deleteTree(root);
+  }
+
+  /** Stats each path with a call of its own. */
+  @Benchmark
+  int statEach(int reps) throws Exception {
+    int found = 0;
+    for (int i = 0; i < reps; i++) {
+      List<Future<Integer>> futures = new ArrayList<>(threads);
+      for (final List<PathFragment> shard : shards) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  int shardFound = 0;
+                  for (PathFragment path : shard) {
+                    if (root.getRelative(path).statIfFound(Symlinks.NOFOLLOW) != null) {
+                      shardFound++;
+                    }
+                  }
+                  return shardFound;
+                }));
+      }
+      for (Future<Integer> future : futures) {
+        found += future.get();
+      }
+    }
+    return found;
+  }
+
+  /** Stats the paths with one call for each chunk of {@link LocalBatchStat}. */
+  @Benchmark
+  int statBatch(int reps) throws Exception {
+    final LocalBatchStat batchStat = new LocalBatchStat(root);
+    int found = 0;
+    for (int i = 0; i < reps; i++) {
+      List<Future<Integer>> futures = new ArrayList<>(threads);
+      for (final List<PathFragment> shard : shards) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  int shardFound = 0;
+                  for (FileStatusWithDigest stat :
+                      batchStat.batchStat(
+                          /*includeDigest=*/ false, /*includeLinks=*/ true, shard)) {
+                    if (stat != null) {
+                      shardFound++;
+                    }
+                  }
+                  return shardFound;
+                }));
+      }
+      for (Future<Integer> future : futures) {
+        found += future.get();
+      }
+    }
+    return found;
+  }
+}
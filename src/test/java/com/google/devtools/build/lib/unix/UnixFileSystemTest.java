@@ -16,12 +16,17 @@ package com.google.devtools.build.lib.unix;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.FileStatusWithDigest;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.LocalBatchStat;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.SymlinkAwareFileSystemTest;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -77,4 +82,32 @@ public class UnixFileSystemTest extends SymlinkAwareFileSystemTest {
     assertThat(fifo.stat().isFile()).isTrue();
     assertThat(fifo.stat().isSpecialFile()).isTrue();
   }
+
+  @Test
+  public void testLocalBatchStat() throws Exception {
+    Path regular = absolutize("regular");
+    Path link = absolutize("link");
+    FileSystemUtils.writeContentAsLatin1(regular, "contents");
+    link.createSymbolicLink(regular);
+
+    List<FileStatusWithDigest> stats =
+        new LocalBatchStat(workingDir)
+            .batchStat(
+                /*includeDigest=*/ false,
+                /*includeLinks=*/ true,
+                ImmutableList.of(
+                    PathFragment.create("regular"),
+                    PathFragment.create("link"),
+                    PathFragment.create("missing")));
+
+    assertThat(stats).hasSize(3);
+    assertThat(stats.get(0).isFile()).isTrue();
+    assertThat(stats.get(0).getNodeId()).isEqualTo(regular.stat().getNodeId());
+    assertThat(stats.get(0).getSize()).isEqualTo(8);
+    assertThat(stats.get(0).getLastModifiedTime())
+        .isEqualTo(regular.stat().getLastModifiedTime());
+    assertThat(stats.get(0).getLastChangeTime()).isEqualTo(regular.stat().getLastChangeTime());
+    assertThat(stats.get(1).isSymbolicLink()).isTrue();
+    assertThat(stats.get(2)).isNull();
+  }
 }
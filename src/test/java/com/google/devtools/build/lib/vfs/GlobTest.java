@@ -288,6 +288,49 @@ public class GlobTest {
 
   }
 
+  @Test
+  public void testOverlappingPatternsReadEachDirectoryOnce() throws Exception {
+    Set<Path> readdirs = new HashSet<>();
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+        return UnixGlob.DEFAULT_SYSCALLS.statIfFound(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        assertThat(readdirs.add(path)).isTrue();
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+
+    assertThat(
+            new UnixGlob.Builder(tmpPath)
+                .addPatterns("**/wiz", "foo*/*/wiz", "foo/**/file", "**")
+                .setExcludeDirectories(true)
+                .setFilesystemCalls(new AtomicReference<>(syscalls))
+                .glob())
+        .containsExactly(tmpPath.getRelative("foo/bar/wiz/file"));
+    assertThat(readdirs).hasSize(12);
+  }
+
+  @Test
+  public void testGlobAsyncByPattern() throws Exception {
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+    List<Future<List<Path>>> results =
+        new UnixGlob.Builder(tmpPath)
+            .addPatterns("foo*", "*/barnacle", "xxx")
+            .setThreadPool(executor)
+            .globAsyncByPattern(true);
+
+    assertThat(results.get(0).get()).containsExactlyElementsIn(resolvePaths("foo", "food", "fool"));
+    assertThat(results.get(1).get())
+        .containsExactlyElementsIn(
+            resolvePaths("foo/barnacle", "food/barnacle", "fool/barnacle"));
+    assertThat(results.get(2).get()).isEmpty();
+    executor.shutdown();
+  }
+
   private void assertGlobMatchesAnyOrder(ArrayList<String> patterns,
                                          String... paths) throws Exception {
     assertThat(resolvePaths(paths)).containsExactlyElementsIn(
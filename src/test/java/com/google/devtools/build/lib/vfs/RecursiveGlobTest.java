@@ -141,12 +141,13 @@ public class RecursiveGlobTest {
         .setExcludeDirectories(false)
         .globInterruptibleAndReturnNumGlobTasksForTesting();
 
-    // The old glob implementation used to use 41 total glob tasks.
+    // The old glob implementation used to use 41 total glob tasks. The one with a task per
+    // directory and pattern position used 28; now there is one task per directory.
     // Yes, checking for an exact value here is super brittle, but it lets us catch performance
     // regressions. In other words, if you're a developer reading this comment because this test
     // case is failing, you should be very sure you know what you're doing before you change the
     // expectation of the test.
-    assertThat(numGlobTasks).isEqualTo(28);
+    assertThat(numGlobTasks).isEqualTo(14);
   }
 
   private void assertIllegalWildcard(String pattern)
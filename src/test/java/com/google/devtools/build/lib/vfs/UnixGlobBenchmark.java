@@ -0,0 +1,101 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Benchmarks for globbing a synthetic source tree with many files in an in-memory file system,
+ * with the overlapping recursive patterns that a large package typically has.
+ */
+public class UnixGlobBenchmark {
+  private static final int FILES_PER_DIRECTORY = 100;
+  private static final int DIRECTORIES_PER_DIRECTORY = 10;
+  private static final ImmutableList<String> PATTERNS =
+      ImmutableList.of("**/*.java", "**/*.kt", "**/BUILD", "dir0/*/*.txt");
+
+  @Param({"100000", "1000000"})
+  int files;
+
+  @Param({"1", "8"})
+  int threads;
+
+  private Path root;
+  private ThreadPoolExecutor executor;
+
+  @BeforeExperiment
+  void setUp() throws Exception {
+    root = new InMemoryFileSystem().getPath("/src");
+    int directories = files / FILES_PER_DIRECTORY;
+    for (int i = 0; i < directories; i++) {
+      // Directory i is a child of directory (i - 1) / DIRECTORIES_PER_DIRECTORY.
+      String name = "dir" + i;
+      for (int j = i; j > 0; ) {
+        j = (j - 1) / DIRECTORIES_PER_DIRECTORY;
+        name = "dir" + j + "/" + name;
+      }
+      Path dir = root.getRelative(name);
+      FileSystemUtils.createDirectoryAndParents(dir);
+      for (int j = 0; j < FILES_PER_DIRECTORY; j++) {
+        String extension = j % 3 == 0 ? ".java" : (j % 3 == 1 ? ".kt" : ".txt");
+        FileSystemUtils.createEmptyFile(dir.getChild("file" + j + extension));
+      }
+    }
+    executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+  }
+
+  @AfterExperiment
+  void tearDown() {
+    executor.shutdown();
+  }
+
+  /** Evaluates all patterns in a single traversal. */
+  @Benchmark
+  int globTogether(int reps) throws Exception {
+    int matches = 0;
+    for (int i = 0; i < reps; i++) {
+      matches +=
+          new UnixGlob.Builder(root)
+              .addPatterns(PATTERNS)
+              .setThreadPool(executor)
+              .globInterruptible()
+              .size();
+    }
+    return matches;
+  }
+
+  /** Evaluates each pattern with a traversal of its own, like separate glob() calls. */
+  @Benchmark
+  int globSeparately(int reps) throws Exception {
+    int matches = 0;
+    for (int i = 0; i < reps; i++) {
+      for (String pattern : PATTERNS) {
+        matches +=
+            new UnixGlob.Builder(root)
+                .addPattern(pattern)
+                .setThreadPool(executor)
+                .globInterruptible()
+                .size();
+      }
+    }
+    return matches;
+  }
+}
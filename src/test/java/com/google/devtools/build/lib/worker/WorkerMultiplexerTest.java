@@ -0,0 +1,260 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerMultiplexer}. */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+
+  /** A worker whose process is replaced by pipes, through which the test plays the process. */
+  private static final class FakeWorker extends Worker {
+    private final Pipe stdin = Pipe.open();
+    private final Pipe stdout = Pipe.open();
+    private final OutputStream requestStream = Channels.newOutputStream(stdin.sink());
+    private final InputStream responseStream = Channels.newInputStream(stdout.source());
+    // What the test reads the requests from and writes the responses to.
+    final InputStream requests = Channels.newInputStream(stdin.source());
+    final OutputStream responses = Channels.newOutputStream(stdout.sink());
+
+    FakeWorker(WorkerKey key, FileSystem fs) throws IOException {
+      super(key, 1, key.getExecRoot(), fs.getPath("/worker.log"));
+    }
+
+    @Override
+    InputStream getInputStream() {
+      return responseStream;
+    }
+
+    @Override
+    OutputStream getOutputStream() {
+      return requestStream;
+    }
+
+    @Override
+    boolean isAlive() {
+      return stdout.sink().isOpen();
+    }
+
+    @Override
+    void destroy() throws IOException {
+      super.destroy();
+      stdout.sink().close();
+      stdin.source().close();
+    }
+  }
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private WorkerKey key;
+  private FakeWorker worker;
+  private WorkerMultiplexer multiplexer;
+
+  @Before
+  public final void startMultiplexer() throws Exception {
+    key =
+        new WorkerKey(
+            ImmutableList.of(),
+            ImmutableMap.of(),
+            fs.getPath("/outputbase/execroot/workspace"),
+            "dummy",
+            HashCode.fromInt(0),
+            ImmutableSortedMap.of(),
+            ImmutableMap.of(),
+            ImmutableSet.of(),
+            false);
+    worker = new FakeWorker(key, fs);
+    multiplexer = new WorkerMultiplexer(worker, 2, Duration.ofMinutes(1), 1);
+  }
+
+  @After
+  public final void stopMultiplexer() throws Exception {
+    executor.shutdownNow();
+    multiplexer.destroy();
+  }
+
+  private Future<WorkResponse> execute(String argument) {
+    return executor.submit(
+        () -> multiplexer.execute(WorkRequest.newBuilder().addArguments(argument).build()));
+  }
+
+  /** Replaces the multiplexer of the test with one that has the given settings. */
+  private void restartMultiplexer(int maxInFlight, Duration cancelTimeout, int firstRequestId)
+      throws IOException {
+    multiplexer.destroy();
+    worker = new FakeWorker(key, fs);
+    multiplexer = new WorkerMultiplexer(worker, maxInFlight, cancelTimeout, firstRequestId);
+  }
+
+  /** Executes a request on a new thread, which the test can interrupt and join. */
+  private Thread startExecute(String argument) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                multiplexer.execute(WorkRequest.newBuilder().addArguments(argument).build());
+              } catch (IOException | InterruptedException e) {
+                // Expected when the test interrupts the request.
+              }
+            });
+    thread.start();
+    return thread;
+  }
+
+  private WorkRequest readRequest() throws IOException {
+    return WorkRequest.parseDelimitedFrom(worker.requests);
+  }
+
+  private void respond(int requestId, String output) throws IOException {
+    WorkResponse.newBuilder()
+        .setRequestId(requestId)
+        .setOutput(output)
+        .build()
+        .writeDelimitedTo(worker.responses);
+    worker.responses.flush();
+  }
+
+  @Test
+  public void testResponsesInAnyOrder() throws Exception {
+    Future<WorkResponse> first = execute("first");
+    WorkRequest firstRequest = readRequest();
+    Future<WorkResponse> second = execute("second");
+    WorkRequest secondRequest = readRequest();
+    assertThat(firstRequest.getArgumentsList()).containsExactly("first");
+    assertThat(secondRequest.getArgumentsList()).containsExactly("second");
+    assertThat(firstRequest.getRequestId()).isNotEqualTo(0);
+    assertThat(secondRequest.getRequestId()).isNotEqualTo(firstRequest.getRequestId());
+
+    respond(secondRequest.getRequestId(), "second output");
+    assertThat(second.get().getOutput()).isEqualTo("second output");
+    assertThat(first.isDone()).isFalse();
+    respond(firstRequest.getRequestId(), "first output");
+    assertThat(first.get().getOutput()).isEqualTo("first output");
+  }
+
+  @Test
+  public void testInterruptCancelsRequest() throws Exception {
+    Future<WorkResponse> cancelled = execute("cancelled");
+    WorkRequest request = readRequest();
+    cancelled.cancel(true);
+    WorkRequest cancel = readRequest();
+    assertThat(cancel.getCancel()).isTrue();
+    assertThat(cancel.getRequestId()).isEqualTo(request.getRequestId());
+
+    // The response to the cancelled request is dropped, and the worker can still be used.
+    respond(request.getRequestId(), "cancelled output");
+    Future<WorkResponse> next = execute("next");
+    respond(readRequest().getRequestId(), "next output");
+    assertThat(next.get().getOutput()).isEqualTo("next output");
+    assertThat(multiplexer.isAlive()).isTrue();
+  }
+
+  @Test
+  public void testWorkerQuitFailsWaitingRequests() throws Exception {
+    Future<WorkResponse> response = execute("request");
+    readRequest();
+    worker.responses.close();
+    try {
+      response.get();
+      fail("Expected the request to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+    }
+    assertThat(multiplexer.isAlive()).isFalse();
+  }
+
+  @Test
+  public void testInterruptWaitsForCancelResponse() throws Exception {
+    Thread thread = startExecute("cancelled");
+    WorkRequest request = readRequest();
+    thread.interrupt();
+    assertThat(readRequest().getCancel()).isTrue();
+    // The worker is still working on the request.
+    thread.join(100);
+    assertThat(thread.isAlive()).isTrue();
+
+    WorkResponse.newBuilder()
+        .setRequestId(request.getRequestId())
+        .setWasCancelled(true)
+        .build()
+        .writeDelimitedTo(worker.responses);
+    worker.responses.flush();
+    thread.join();
+  }
+
+  @Test
+  public void testCancelledRequestKeepsSlotUntilResponse() throws Exception {
+    restartMultiplexer(1, Duration.ofMillis(10), 1);
+    Thread thread = startExecute("cancelled");
+    WorkRequest request = readRequest();
+    thread.interrupt();
+    assertThat(readRequest().getCancel()).isTrue();
+    // Gives up waiting for the worker to stop.
+    thread.join();
+
+    Future<WorkResponse> next = execute("next");
+    // The worker is still working on the cancelled request, so the next one isn't sent yet.
+    Thread.sleep(100);
+    assertThat(worker.requests.available()).isEqualTo(0);
+    respond(request.getRequestId(), "cancelled output");
+    WorkRequest nextRequest = readRequest();
+    assertThat(nextRequest.getArgumentsList()).containsExactly("next");
+    respond(nextRequest.getRequestId(), "next output");
+    assertThat(next.get().getOutput()).isEqualTo("next output");
+  }
+
+  @Test
+  public void testRequestIdsWrapAroundToOne() throws Exception {
+    restartMultiplexer(2, Duration.ofMinutes(1), Integer.MAX_VALUE);
+    Future<WorkResponse> first = execute("first");
+    WorkRequest firstRequest = readRequest();
+    Future<WorkResponse> second = execute("second");
+    WorkRequest secondRequest = readRequest();
+    assertThat(firstRequest.getRequestId()).isEqualTo(Integer.MAX_VALUE);
+    // Request id 0 is reserved for workers without multiplexing.
+    assertThat(secondRequest.getRequestId()).isEqualTo(1);
+
+    respond(firstRequest.getRequestId(), "first output");
+    respond(secondRequest.getRequestId(), "second output");
+    assertThat(first.get().getOutput()).isEqualTo("first output");
+    assertThat(second.get().getOutput()).isEqualTo("second output");
+  }
+}
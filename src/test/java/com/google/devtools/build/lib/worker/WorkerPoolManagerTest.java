@@ -0,0 +1,176 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WorkerPoolManager}. */
+@RunWith(JUnit4.class)
+public class WorkerPoolManagerTest {
+  // Every worker takes 400 kB, so two of them fit into the budget, but not three.
+  private static final long WORKER_KB = 400;
+  private static final long BUDGET_KB = 1000;
+
+  /** A worker without a process. */
+  private final class FakeWorker extends Worker {
+    private boolean alive = true;
+
+    FakeWorker(WorkerKey key, int workerId, FileSystem fs) {
+      super(key, workerId, key.getExecRoot(), fs.getPath("/worker-" + workerId + ".log"));
+    }
+
+    @Override
+    boolean isAlive() {
+      return alive;
+    }
+
+    @Override
+    void destroy() {
+      destroyedWithLockHeld |= Thread.holdsLock(manager);
+      alive = false;
+    }
+  }
+
+  private final FileSystem fs = new InMemoryFileSystem();
+  private WorkerPool pool;
+  private WorkerPoolManager manager;
+  private volatile boolean measuredWithLockHeld;
+  private volatile boolean destroyedWithLockHeld;
+
+  @Before
+  public final void createPool() {
+    WorkerFactory factory =
+        new WorkerFactory(new WorkerOptions(), fs.getPath("/outputbase/bazel-workers")) {
+          private int workerId;
+
+          @Override
+          public Worker create(WorkerKey key) {
+            return new FakeWorker(key, workerId++, fs);
+          }
+        };
+    WorkerPoolConfig config = new WorkerPoolConfig();
+    config.setMaxTotalPerKey(4);
+    config.setMaxTotal(-1);
+    config.setTestOnBorrow(true);
+    config.setTestOnReturn(true);
+    pool = new WorkerPool(factory, config);
+    pool.setEvictionPolicyClassName(WorkerEvictionPolicy.class.getName());
+    pool.setNumTestsPerEvictionRun(-1);
+    manager =
+        new WorkerPoolManager(
+            pool,
+            BUDGET_KB,
+            4,
+            worker -> {
+              measuredWithLockHeld |= Thread.holdsLock(manager);
+              return WORKER_KB;
+            });
+  }
+
+  @After
+  public final void closePool() {
+    pool.close();
+    // Reading /proc and destroying processes would block other borrowers.
+    assertThat(measuredWithLockHeld).isFalse();
+    assertThat(destroyedWithLockHeld).isFalse();
+  }
+
+  private WorkerKey key(String mnemonic) {
+    return new WorkerKey(
+        ImmutableList.of(),
+        ImmutableMap.of(),
+        fs.getPath("/outputbase/execroot/workspace"),
+        mnemonic,
+        HashCode.fromInt(0),
+        ImmutableSortedMap.of(),
+        ImmutableMap.of(),
+        ImmutableSet.of(),
+        false);
+  }
+
+  private Worker borrow(WorkerKey key) throws Exception {
+    manager.acquire(key);
+    Worker worker = pool.borrowObject(key);
+    manager.borrowed(key, worker);
+    return worker;
+  }
+
+  private void giveBack(WorkerKey key, Worker worker) {
+    pool.returnObject(key, worker);
+    manager.release(key, worker);
+  }
+
+  @Test
+  public void testCapacityGrowsWithinBudget() throws Exception {
+    WorkerKey key = key("Javac");
+    Worker first = borrow(key);
+    Worker second = borrow(key);
+    assertThat(second).isNotSameAs(first);
+
+    // A third worker doesn't fit, so the next borrower waits until one is returned.
+    CountDownLatch borrowed = new CountDownLatch(1);
+    Thread third =
+        new Thread(
+            () -> {
+              try {
+                giveBack(key, borrow(key));
+                borrowed.countDown();
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    third.start();
+    assertThat(borrowed.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    giveBack(key, first);
+    assertThat(borrowed.await(10, TimeUnit.SECONDS)).isTrue();
+    third.join();
+    assertThat(pool.getNumActive(key) + pool.getNumIdle(key)).isEqualTo(2);
+  }
+
+  @Test
+  public void testEvictsIdleWorkerOfLessUsedKind() throws Exception {
+    WorkerKey rarelyUsed = key("JavaSourceJar");
+    WorkerKey busy = key("Javac");
+    Worker idle = borrow(rarelyUsed);
+    giveBack(rarelyUsed, idle);
+
+    Worker first = borrow(busy);
+    // Making room for a second busy worker evicts the idle one, which was borrowed less often.
+    Worker second = borrow(busy);
+    assertThat(second).isNotSameAs(first);
+    assertThat(idle.isEvictionRequested()).isTrue();
+    assertThat(idle.isAlive()).isFalse();
+    assertThat(pool.getNumIdle(rarelyUsed)).isEqualTo(0);
+
+    // The evicted kind can still borrow a worker, as soon as one fits again.
+    giveBack(busy, second);
+    giveBack(busy, first);
+    assertThat(borrow(rarelyUsed)).isNotSameAs(idle);
+  }
+}
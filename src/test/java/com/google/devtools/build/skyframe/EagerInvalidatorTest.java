@@ -111,6 +111,10 @@ public class EagerInvalidatorTest {
 
   }
 
+  protected InMemoryGraphImpl newGraph() {
+    return new InMemoryGraphImpl();
+  }
+
   protected InvalidationState newInvalidationState() {
     throw new UnsupportedOperationException("Sublcasses must override");
   }
@@ -183,7 +187,7 @@ public class EagerInvalidatorTest {
         invalidated.add(skyKey);
       }
     });
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b")
@@ -213,7 +217,7 @@ public class EagerInvalidatorTest {
 
     // Given a graph consisting of two nodes, "a" and "ab" such that "ab" depends on "a",
     // And given "ab" is in error,
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     tester.getOrCreate("ab").addDependency("a").setHasError(true);
     eval(false, skyKey("ab"));
@@ -239,7 +243,7 @@ public class EagerInvalidatorTest {
         invalidated.add(skyKey);
       }
     });
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     invalidateWithoutError(receiver, skyKey("a"));
     assertThat(invalidated).isEmpty();
     set("a", "a");
@@ -255,7 +259,7 @@ public class EagerInvalidatorTest {
     WeakReference<HeavyValue> weakRef = new WeakReference<>(heavyValue);
     tester.set("a", heavyValue);
 
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     eval(false, key);
     invalidate(graph, new DirtyTrackingProgressReceiver(null), key);
 
@@ -273,7 +277,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void reverseDepsConsistent() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     set("c", "c");
@@ -318,7 +322,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void interruptChild() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     int numValues = 50; // More values than the invalidator has threads.
     final SkyKey[] family = new SkyKey[numValues];
     final SkyKey child = GraphTester.skyKey("child");
@@ -431,7 +435,7 @@ public class EagerInvalidatorTest {
     Random random = new Random(TestUtils.getRandomSeed());
     int graphSize = 1000;
     int tries = 5;
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     SkyKey[] values = constructLargeGraph(graphSize);
     eval(/*keepGoing=*/false, values);
     final Thread mainThread = Thread.currentThread();
@@ -486,7 +490,7 @@ public class EagerInvalidatorTest {
   }
 
   protected void setupInvalidatableGraph() throws Exception {
-    graph = new InMemoryGraphImpl();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b").setComputedValue(CONCATENATE);
@@ -627,4 +631,16 @@ public class EagerInvalidatorTest {
       assertThat(receiver.getUnenqueuedDirtyKeys()).hasSize(2);
     }
   }
+
+  /**
+   * Runs the dirtying tests on a {@link PackedInMemoryGraph}, on which the visitor deduplicates by
+   * node id.
+   */
+  @RunWith(JUnit4.class)
+  public static class PackedGraphDirtyingInvalidatorTest extends DirtyingInvalidatorTest {
+    @Override
+    protected InMemoryGraphImpl newGraph() {
+      return new PackedInMemoryGraph();
+    }
+  }
 }
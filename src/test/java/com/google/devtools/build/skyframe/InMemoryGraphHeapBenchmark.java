@@ -0,0 +1,104 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+
+/**
+ * Measures the heap retained by a synthetic graph stored in an {@link InMemoryGraphImpl} and in a
+ * {@link PackedInMemoryGraph}.
+ *
+ * <p>Node {@code i} depends on nodes {@code i - 1} and, in a separate group, {@code i / 2} and
+ * {@code i / 3}, which gives a mix of small fan-outs and a few nodes with very many reverse deps.
+ * The number of nodes defaults to 10 million and can be passed as the first argument; the second
+ * argument restricts the run to one of "default" or "packed". Run with a large heap, e.g. {@code
+ * -Xmx16g}, and a single graph per JVM for the most accurate numbers.
+ */
+public class InMemoryGraphHeapBenchmark {
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Node");
+  private static final SkyValue VALUE = new SkyValue() {};
+  private static final Version VERSION = IntVersion.of(0);
+
+  public static void main(String[] args) throws Exception {
+    int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+    String only = args.length > 1 ? args[1] : null;
+    // Keys are shared between both graphs and are not part of the measurement.
+    SkyKey[] keys = new SkyKey[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      keys[i] = LegacySkyKey.create(NODE_TYPE, i);
+    }
+    if (only == null || only.equals("default")) {
+      measure("default", new InMemoryGraphImpl(), keys);
+    }
+    if (only == null || only.equals("packed")) {
+      measure("packed", new PackedInMemoryGraph(), keys);
+    }
+  }
+
+  private static void measure(String name, InMemoryGraphImpl graph, SkyKey[] keys)
+      throws InterruptedException {
+    long before = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < keys.length; i++) {
+      build(graph, keys, i);
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    long retained = usedHeap() - before;
+    System.out.printf(
+        "%s: %d nodes, %d MB retained, %.1f bytes per node, built in %d ms%n",
+        name,
+        keys.length,
+        retained >> 20,
+        (double) retained / keys.length,
+        elapsedMillis);
+    // Keep the graph reachable until it was measured.
+    if (graph.getAllValues().size() != keys.length) {
+      throw new IllegalStateException(name);
+    }
+  }
+
+  /** Evaluates node {@code i} the way the evaluator would, with all its deps already done. */
+  private static void build(InMemoryGraphImpl graph, SkyKey[] keys, int i)
+      throws InterruptedException {
+    SkyKey key = keys[i];
+    NodeEntry entry =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    entry.addReverseDepAndCheckIfDone(null);
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    if (i > 0) {
+      helper.add(keys[i - 1]);
+    }
+    if (i > 3) {
+      helper.startGroup();
+      helper.add(keys[i / 2]);
+      helper.add(keys[i / 3]);
+      helper.endGroup();
+    }
+    for (SkyKey dep : entry.addTemporaryDirectDeps(helper)) {
+      graph.get(null, Reason.OTHER, dep).addReverseDepAndCheckIfDone(key);
+      entry.signalDep();
+    }
+    entry.setValue(VALUE, VERSION);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
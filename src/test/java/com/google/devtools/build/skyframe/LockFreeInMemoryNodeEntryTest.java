@@ -0,0 +1,119 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LockFreeInMemoryNodeEntry}. */
+@RunWith(JUnit4.class)
+public class LockFreeInMemoryNodeEntryTest extends InMemoryNodeEntryTest {
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Type");
+  private static final int THREADS = 8;
+
+  @Override
+  protected InMemoryNodeEntry newEntry() {
+    return new LockFreeInMemoryNodeEntry();
+  }
+
+  private static SkyKey key(int i) {
+    return LegacySkyKey.create(NODE_TYPE, i);
+  }
+
+  /** Runs {@code task} for the numbers {@code 0} to {@code count} on {@link #THREADS} threads. */
+  private static void runConcurrently(int count, IntTask task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      AtomicInteger next = new AtomicInteger();
+      for (int t = 0; t < THREADS; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                    task.run(i);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private interface IntTask {
+    void run(int i) throws Exception;
+  }
+
+  @Test
+  public void concurrentSignalsMakeNodeReadyExactlyOnce() throws Exception {
+    int numDeps = 10000;
+    NodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    for (int i = 0; i < numDeps; i++) {
+      helper.add(key(i));
+    }
+    entry.addTemporaryDirectDeps(helper);
+
+    AtomicInteger readyCount = new AtomicInteger();
+    runConcurrently(
+        numDeps,
+        i -> {
+          if (entry.signalDep()) {
+            readyCount.incrementAndGet();
+          }
+        });
+    assertThat(readyCount.get()).isEqualTo(1);
+    assertThat(entry.isReady()).isTrue();
+  }
+
+  @Test
+  public void concurrentReverseDepsOfDoneNodeAreAllKept() throws Exception {
+    int numReverseDeps = 1000;
+    NodeEntry entry = newEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    entry.setValue(new StringValue("value"), IntVersion.of(0L));
+
+    runConcurrently(
+        numReverseDeps,
+        i -> {
+          assertThat(entry.addReverseDepAndCheckIfDone(key(i))).isEqualTo(DependencyState.DONE);
+          assertThat(entry.isDone()).isTrue();
+        });
+    assertThat(entry.getReverseDepsForDoneEntry()).hasSize(numReverseDeps);
+
+    // Operations that take the lock see the pending reverse deps.
+    entry.addReverseDepAndCheckIfDone(key(numReverseDeps));
+    entry.removeReverseDep(key(numReverseDeps));
+    assertThat(entry.getReverseDepsForDoneEntry()).hasSize(numReverseDeps);
+    NodeEntry.MarkedDirtyResult result = entry.markDirty(/*isChanged=*/ true);
+    assertThat(result.getReverseDepsUnsafe()).hasSize(numReverseDeps);
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.util.GroupedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link NodeEntryVisitor} with prioritization by remaining work. */
+@RunWith(JUnit4.class)
+public class NodeEntryVisitorTest {
+  private final List<String> evaluated = Collections.synchronizedList(new ArrayList<>());
+  private final CountDownLatch blockerStarted = new CountDownLatch(1);
+  private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+  private final RemainingWorkEstimates estimates = new RemainingWorkEstimates();
+  private NodeEntryVisitor visitor;
+
+  @Before
+  public final void createVisitor() {
+    // A single thread, which the "blocker" key keeps busy until the test enqueued its keys.
+    visitor =
+        new NodeEntryVisitor(
+            /*threadCount=*/ 1,
+            new DirtyTrackingProgressReceiver(null),
+            key ->
+                () -> {
+                  String name = (String) key.argument();
+                  if (name.equals("blocker")) {
+                    blockerStarted.countDown();
+                    Uninterruptibles.awaitUninterruptibly(releaseBlocker);
+                  }
+                  evaluated.add(name);
+                },
+            estimates);
+  }
+
+  private static SkyKey key(String name) {
+    return GraphTester.toSkyKey(name);
+  }
+
+  private void startBlocker() throws InterruptedException {
+    visitor.enqueueEvaluation(key("blocker"));
+    blockerStarted.await();
+  }
+
+  private void releaseBlockerAndWait() throws InterruptedException {
+    releaseBlocker.countDown();
+    visitor.waitForCompletion();
+  }
+
+  @Test
+  public void testDeeperKeysAreEvaluatedFirst() throws Exception {
+    startBlocker();
+    visitor.enqueueEvaluation(key("top"));
+    visitor.enqueueEvaluation(key("a"), key("top"));
+    visitor.enqueueEvaluation(key("b"), key("a"));
+    visitor.enqueueEvaluation(key("c"), key("b"));
+    // Shallow keys that were enqueued last still wait for the deep ones.
+    visitor.enqueueEvaluation(key("other"));
+    visitor.enqueueEvaluation(key("a2"), key("top"));
+    releaseBlockerAndWait();
+
+    assertThat(evaluated)
+        .containsExactly("blocker", "c", "b", "a2", "a", "other", "top")
+        .inOrder();
+  }
+
+  @Test
+  public void testDoneKeysForgetTheirDepth() throws Exception {
+    startBlocker();
+    visitor.enqueueEvaluation(key("x"));
+    visitor.enqueueEvaluation(key("y"), key("x"));
+    visitor.noteDone(key("x"));
+    // The depth of x is no longer known, so z counts as requested by the caller.
+    visitor.enqueueEvaluation(key("z"), key("x"));
+    visitor.enqueueEvaluation(key("w"));
+    releaseBlockerAndWait();
+
+    assertThat(evaluated).containsExactly("blocker", "y", "w", "z", "x").inOrder();
+  }
+
+  @Test
+  public void testKeysWithMoreWorkBelowThemAreEvaluatedFirst() throws Exception {
+    // As observed in an earlier evaluation: "slow" took 50ms below "top", "fast" 2ms.
+    GroupedList<SkyKey> noDeps = new GroupedList<>();
+    estimates.recordBuilt(key("slow"), TimeUnit.MILLISECONDS.toNanos(50), noDeps);
+    estimates.recordBuilt(key("fast"), TimeUnit.MILLISECONDS.toNanos(2), noDeps);
+    startBlocker();
+    visitor.enqueueEvaluation(key("top"));
+    visitor.enqueueEvaluation(key("new"), key("top"));
+    visitor.enqueueEvaluation(key("deeper"), key("new"));
+    visitor.enqueueEvaluation(key("fast"), key("top"));
+    visitor.enqueueEvaluation(key("slow"), key("top"));
+    releaseBlockerAndWait();
+
+    // Keys without an estimate are ordered by depth.
+    assertThat(evaluated)
+        .containsExactly("blocker", "slow", "fast", "deeper", "new", "top")
+        .inOrder();
+  }
+
+  @Test
+  public void testBuiltKeysRecordTheLongestChainBelowThem() throws Exception {
+    GroupedList<SkyKey> noDeps = new GroupedList<>();
+    estimates.recordBuilt(key("a"), TimeUnit.MILLISECONDS.toNanos(30), noDeps);
+    estimates.recordBuilt(key("b"), TimeUnit.MILLISECONDS.toNanos(10), noDeps);
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    deps.appendGroup(ImmutableList.of(key("a")));
+    deps.appendGroup(ImmutableList.of(key("b"), key("cheap")));
+
+    // Two restarts of the same node.
+    visitor.noteComputed(key("top"), TimeUnit.MILLISECONDS.toNanos(3));
+    visitor.noteComputed(key("top"), TimeUnit.MILLISECONDS.toNanos(4));
+    visitor.noteBuilt(key("top"), deps);
+
+    assertThat(estimates.get(key("top"))).isEqualTo(TimeUnit.MILLISECONDS.toNanos(37));
+    // Chains shorter than the minimum are not kept.
+    visitor.noteBuilt(key("cheap"), noDeps);
+    assertThat(estimates.get(key("cheap"))).isEqualTo(0);
+    assertThat(estimates.size()).isEqualTo(3);
+  }
+}
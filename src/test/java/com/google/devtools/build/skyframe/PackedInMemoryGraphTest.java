@@ -0,0 +1,152 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PackedInMemoryGraph}. */
+@RunWith(JUnit4.class)
+public class PackedInMemoryGraphTest extends GraphTest {
+  private PackedInMemoryGraph packedGraph;
+
+  @Override
+  protected Version getStartingVersion() {
+    return IntVersion.of(0);
+  }
+
+  @Override
+  protected Version getNextVersion(Version v) {
+    Preconditions.checkState(v instanceof IntVersion);
+    return ((IntVersion) v).next();
+  }
+
+  @Override
+  protected void makeGraph() {
+    packedGraph = new PackedInMemoryGraph();
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return packedGraph;
+  }
+
+  /** Evaluates the node {@code key}, whose deps must be done, with the given groups of deps. */
+  private NodeEntry build(SkyKey key, List<List<SkyKey>> groups) throws InterruptedException {
+    NodeEntry entry =
+        packedGraph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    assertThat(entry.addReverseDepAndCheckIfDone(null))
+        .isEqualTo(DependencyState.NEEDS_SCHEDULING);
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    for (List<SkyKey> group : groups) {
+      helper.startGroup();
+      for (SkyKey dep : group) {
+        helper.add(dep);
+      }
+      helper.endGroup();
+    }
+    entry.addTemporaryDirectDeps(helper);
+    for (List<SkyKey> group : groups) {
+      for (SkyKey dep : group) {
+        assertThat(packedGraph.get(null, Reason.OTHER, dep).addReverseDepAndCheckIfDone(key))
+            .isEqualTo(DependencyState.DONE);
+        entry.signalDep();
+      }
+    }
+    entry.setValue(new StringValue(key.toString()), getStartingVersion());
+    return entry;
+  }
+
+  private NodeEntry build(SkyKey key) throws InterruptedException {
+    return build(key, ImmutableList.<List<SkyKey>>of());
+  }
+
+  @Test
+  public void testDirectDepGroupsArePreserved() throws Exception {
+    SkyKey a = key("a");
+    SkyKey b = key("b");
+    SkyKey c = key("c");
+    build(a);
+    build(b);
+    build(c);
+    NodeEntry top =
+        build(
+            key("top"),
+            ImmutableList.<List<SkyKey>>of(ImmutableList.of(a), ImmutableList.of(b, c)));
+
+    GroupedList<SkyKey> expected = new GroupedList<>();
+    expected.appendGroup(ImmutableList.of(a));
+    expected.appendGroup(ImmutableList.of(b, c));
+    assertThat(((InMemoryNodeEntry) top).getGroupedDirectDeps()).isEqualTo(expected);
+    assertThat(((InMemoryNodeEntry) top).getNumDirectDeps()).isEqualTo(3);
+    assertThat(top.getDirectDeps()).containsExactly(a, b, c).inOrder();
+    assertThat(top.getReverseDepsForDoneEntry()).isEmpty();
+    assertThat(top.toString()).contains("directDeps");
+  }
+
+  @Test
+  public void testReverseDepsOfDoneNode() throws Exception {
+    SkyKey dep = key("dep");
+    build(dep);
+    for (int i = 0; i < 20; i++) {
+      build(key("parent" + i), ImmutableList.<List<SkyKey>>of(ImmutableList.of(dep)));
+    }
+    NodeEntry depEntry = packedGraph.get(null, Reason.OTHER, dep);
+    assertThat(depEntry.getReverseDepsForDoneEntry()).hasSize(20);
+
+    depEntry.removeReverseDep(key("parent3"));
+    depEntry.checkIfDoneForDirtyReverseDep(key("parent4"));
+    assertThat(depEntry.getReverseDepsForDoneEntry()).hasSize(19);
+    assertThat(depEntry.getReverseDepsForDoneEntry()).doesNotContain(key("parent3"));
+    assertThat(depEntry.getReverseDepsForDoneEntry()).contains(key("parent4"));
+  }
+
+  @Test
+  public void testMarkDirtyRestoresDirectDeps() throws Exception {
+    SkyKey dep = key("dep");
+    SkyKey top = key("top");
+    build(dep);
+    NodeEntry topEntry = build(top, ImmutableList.<List<SkyKey>>of(ImmutableList.of(dep)));
+
+    NodeEntry.MarkedDirtyResult result = topEntry.markDirty(/*isChanged=*/ false);
+    assertThat(result.getReverseDepsUnsafe()).isEmpty();
+    assertThat(topEntry.addReverseDepAndCheckIfDone(null))
+        .isEqualTo(DependencyState.NEEDS_SCHEDULING);
+    assertThat(topEntry.getNextDirtyDirectDeps()).containsExactly(dep);
+  }
+
+  @Test
+  public void testRecreatedKeyKeepsItsId() throws Exception {
+    SkyKey key = key("key");
+    build(key);
+    int id = packedGraph.getId(key);
+    packedGraph.remove(key);
+    assertThat(packedGraph.getId(key)).isEqualTo(id);
+    build(key("other"));
+    build(key);
+    assertThat(packedGraph.getId(key)).isEqualTo(id);
+    assertThat(packedGraph.getKey(id)).isEqualTo(key);
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the throughput of the {@link ParallelEvaluator} on graphs with a wide fan-in,
+ * with the default {@link InMemoryNodeEntry} and with {@link LockFreeInMemoryNodeEntry}.
+ *
+ * <p>The top node depends on {@link #width} leaves, which all signal it when they are done, and
+ * every leaf depends on one popular root node, which gets {@link #width} reverse deps added while
+ * it is done. These are the contention points of a real build, e.g. a test suite or a toolchain.
+ */
+public class ParallelEvaluatorFanInBenchmark {
+  private static final SkyFunctionName ROOT = SkyFunctionName.create("ROOT");
+  private static final SkyFunctionName LEAF = SkyFunctionName.create("LEAF");
+  private static final SkyFunctionName TOP = SkyFunctionName.create("TOP");
+  private static final SkyKey ROOT_KEY = LegacySkyKey.create(ROOT, "root");
+  private static final SkyKey TOP_KEY = LegacySkyKey.create(TOP, "top");
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  @Param({"false", "true"})
+  boolean lockFreeNodeEntries;
+
+  @Param({"1000", "100000"})
+  int width;
+
+  @Param({"8", "200"})
+  int threads;
+
+  @Benchmark
+  void evaluate(int reps) throws InterruptedException {
+    SkyFunction function = new FanInFunction(width);
+    ImmutableMap<SkyFunctionName, SkyFunction> functions =
+        ImmutableMap.of(ROOT, function, LEAF, function, TOP, function);
+    for (int i = 0; i < reps; i++) {
+      ParallelEvaluator evaluator =
+          new ParallelEvaluator(
+              new InMemoryGraphImpl(/*keepEdges=*/ true, lockFreeNodeEntries),
+              IntVersion.of(0),
+              functions,
+              NullEventHandler.INSTANCE,
+              new MemoizingEvaluator.EmittedEventState(),
+              InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+              ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+              /*keepGoing=*/ false,
+              threads,
+              new DirtyTrackingProgressReceiver(null));
+      EvaluationResult<SkyValue> result = evaluator.eval(ImmutableList.of(TOP_KEY));
+      if (result.hasError()) {
+        throw new IllegalStateException(result.toString());
+      }
+    }
+  }
+
+  private static final class FanInFunction implements SkyFunction {
+    private final List<SkyKey> leaves = new ArrayList<>();
+
+    private FanInFunction(int width) {
+      for (int i = 0; i < width; i++) {
+        leaves.add(LegacySkyKey.create(LEAF, i));
+      }
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      SkyFunctionName name = skyKey.functionName();
+      if (name.equals(LEAF)) {
+        env.getValue(ROOT_KEY);
+      } else if (name.equals(TOP)) {
+        env.getValues(leaves);
+      }
+      return env.valuesMissing() ? null : VALUE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+}
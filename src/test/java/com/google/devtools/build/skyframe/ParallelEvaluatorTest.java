@@ -146,6 +146,46 @@ public class ParallelEvaluatorTest {
     assertThat(storedEventHandler.getPosts()).isEmpty();
   }
 
+  @Test
+  public void prioritizedByRemainingWork() throws Exception {
+    graph = new InMemoryGraphImpl();
+    set("leaf", "x");
+    // Chains of different lengths that share their leaf, below a node that depends on all.
+    GraphTester.TestFunction top = tester.getOrCreate("top").setComputedValue(CONCATENATE);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      String previous = "leaf";
+      for (int j = 0; j <= i; j++) {
+        String link = "chain" + i + "_" + j;
+        tester.getOrCreate(link).addDependency(previous).setComputedValue(CONCATENATE);
+        previous = link;
+      }
+      top.addDependency(previous);
+      expected.append("x");
+    }
+    set("bad", "bad").setHasError(true);
+    tester.getOrCreate("badParent").addDependency("bad").setComputedValue(CONCATENATE);
+
+    Version oldGraphVersion = graphVersion;
+    graphVersion = graphVersion.next();
+    EvaluationResult<StringValue> result =
+        new ParallelEvaluator(
+                graph,
+                oldGraphVersion,
+                tester.getSkyFunctionMap(),
+                storedEventHandler,
+                new MemoizingEvaluator.EmittedEventState(),
+                InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+                ErrorInfoManager.UseChildErrorInfoIfNecessary.INSTANCE,
+                /*keepGoing=*/ true,
+                150,
+                revalidationReceiver,
+                new RemainingWorkEstimates())
+            .eval(ImmutableList.of(GraphTester.toSkyKey("top"), GraphTester.toSkyKey("badParent")));
+    assertThat(result.get(GraphTester.toSkyKey("top")).getValue()).isEqualTo(expected.toString());
+    assertThat(result.getError(GraphTester.toSkyKey("badParent"))).isNotNull();
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
@@ -64,6 +64,7 @@ final class CasServer extends ContentAddressableStorageImplBase {
     BatchUpdateBlobsResponse.Builder batchResponse = BatchUpdateBlobsResponse.newBuilder();
     for (UpdateBlobRequest r : request.getRequestsList()) {
       BatchUpdateBlobsResponse.Response.Builder resp = batchResponse.addResponsesBuilder();
+      resp.setBlobDigest(r.getContentDigest());
       try {
         Digest digest = cache.uploadBlob(r.getData().toByteArray());
         if (!r.getContentDigest().equals(digest)) {
@@ -266,6 +266,15 @@ public final class RemoteWorker {
     } else {
       blobStore = new ConcurrentMapBlobStore(new ConcurrentHashMap<String, byte[]>());
     }
+    // Closing the store syncs the blobs that are still pending and saves its index, if any.
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                blobStore.close();
+              }
+            });
 
     DigestUtil digestUtil = new DigestUtil(fs.getDigestFunction());
     RemoteWorker worker =